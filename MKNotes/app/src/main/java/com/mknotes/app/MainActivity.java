@@ -14,6 +14,7 @@ import android.view.View;
 import android.view.ViewGroup;
 import android.view.Window;
 import android.view.WindowManager;
+import android.widget.AbsListView;
 import android.widget.AdapterView;
 import android.widget.GridView;
 import android.widget.ImageButton;
@@ -29,7 +30,9 @@ import android.widget.Toast;
 import com.mknotes.app.cloud.CloudSyncManager;
 import com.mknotes.app.cloud.FirebaseAuthManager;
 import com.mknotes.app.adapter.NoteAdapter;
+import com.mknotes.app.db.AsyncRepository;
 import com.mknotes.app.db.NotesRepository;
+import com.mknotes.app.db.ReKeyEngine;
 import com.mknotes.app.model.Category;
 import com.mknotes.app.model.Note;
 import com.mknotes.app.analysis.CalendarAnalysisActivity;
@@ -38,9 +41,15 @@ import com.mknotes.app.util.PrefsManager;
 import com.mknotes.app.util.SessionManager;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
 
 public class MainActivity extends Activity {
 
@@ -69,11 +78,17 @@ public class MainActivity extends Activity {
     // State
     private NoteAdapter adapter;
     private NotesRepository repository;
+    private AsyncRepository asyncRepo;
+    private Future pendingLoad;
     private PrefsManager prefs;
     private boolean isSelectionMode = false;
     private Set selectedNoteIds;
     private List currentNotes;
     private boolean isGridView = false;
+    private boolean hasMoreNotes = false;
+
+    /** Notes per list page; more pages load as the list scrolls. */
+    private static final int NOTES_PAGE_SIZE = 40;
 
     private static final int REQUEST_EDITOR = 100;
     private static final int REQUEST_SEARCH = 101;
@@ -84,6 +99,7 @@ public class MainActivity extends Activity {
         setContentView(R.layout.activity_main);
 
         repository = NotesRepository.getInstance(this);
+        asyncRepo = AsyncRepository.getInstance(this);
         prefs = PrefsManager.getInstance(this);
         selectedNoteIds = new HashSet();
         currentNotes = new ArrayList();
@@ -110,6 +126,8 @@ public class MainActivity extends Activity {
         // Refresh session timestamp on every resume
         if (session.isPasswordSet()) {
             session.updateSessionTimestamp();
+            // Re-encryption after a password change continues in the background
+            ReKeyEngine.getInstance(this).resumeIfPending(null);
         }
 
         loadNotes();
@@ -117,6 +135,17 @@ public class MainActivity extends Activity {
 
         // Trigger cloud sync on app resume if authenticated
         triggerCloudSync();
+        startRealtimeUpdates();
+    }
+
+    protected void onPause() {
+        super.onPause();
+        try {
+            // The listener keeps running while the app is in use; only the list stops listening
+            CloudSyncManager.getInstance(this).clearRealtimeCallback();
+        } catch (Exception e) {
+            // Cloud sync failure must not crash the app
+        }
     }
 
     /**
@@ -147,6 +176,29 @@ public class MainActivity extends Activity {
         }
     }
 
+    /**
+     * Listen for changes made on other devices while the list is shown.
+     * Each burst of changes updates only the affected notes.
+     */
+    private void startRealtimeUpdates() {
+        try {
+            if (!PrefsManager.getInstance(this).isCloudSyncEnabled()) return;
+            if (!FirebaseAuthManager.getInstance(this).isLoggedIn()) return;
+            if (!SessionManager.getInstance(this).isSessionValid()) return;
+
+            CloudSyncManager.getInstance(this).startRealtimeSync(
+                    new CloudSyncManager.RealtimeChangeCallback() {
+                        public void onNotesChanged(Set<Long> changedIds, Set<Long> removedIds) {
+                            if (!isFinishing()) {
+                                applyRemoteChanges(changedIds, removedIds);
+                            }
+                        }
+                    });
+        } catch (Exception e) {
+            // Cloud sync failure must not crash the app
+        }
+    }
+
     /**
      * Trigger cloud soft-delete when a note is moved to trash.
      * Sets isDeleted=true in Firestore so other devices know this note is deleted.
@@ -429,9 +481,7 @@ public class MainActivity extends Activity {
         List toDelete = getSelectedNoteObjects();
         for (int i = 0; i < toDelete.size(); i++) {
             Note note = (Note) toDelete.get(i);
-            String cloudId = note.getCloudId();
-            repository.moveToTrash(note);
-            triggerCloudDeleteForNote(cloudId);
+            moveToTrashAsync(note);
         }
         Toast.makeText(this, R.string.note_moved_to_trash, Toast.LENGTH_SHORT).show();
         exitSelectionMode();
@@ -439,41 +489,63 @@ public class MainActivity extends Activity {
     }
 
     private void copySelectedNotes() {
-        List toCopy = getSelectedNoteObjects();
-        for (int i = 0; i < toCopy.size(); i++) {
-            Note original = (Note) toCopy.get(i);
-            Note copy = new Note();
-            copy.setTitle(original.getTitle());
-            copy.setContent(original.getContent());
-            copy.setColor(original.getColor());
-            copy.setCategoryId(original.getCategoryId());
-            copy.setCreatedAt(System.currentTimeMillis());
-            copy.setModifiedAt(System.currentTimeMillis());
-            repository.insertNote(copy);
-        }
+        final List toCopy = getSelectedNoteObjects();
+        asyncRepo.write(null, new Callable() {
+            public Object call() {
+                for (int i = 0; i < toCopy.size(); i++) {
+                    // List items only hold a preview, copy from the full note
+                    Note original = repository.getNoteById(((Note) toCopy.get(i)).getId());
+                    if (original == null) continue;
+                    Note copy = new Note();
+                    copy.setTitle(original.getTitle());
+                    copy.setContent(original.getContent());
+                    copy.setColor(original.getColor());
+                    copy.setCategoryId(original.getCategoryId());
+                    copy.setCreatedAt(System.currentTimeMillis());
+                    copy.setModifiedAt(System.currentTimeMillis());
+                    repository.insertNote(copy);
+                }
+                return null;
+            }
+        }, null);
         Toast.makeText(this, getString(R.string.make_copy), Toast.LENGTH_SHORT).show();
         exitSelectionMode();
         loadNotes();
     }
 
     private void toggleFavoriteSelected() {
-        List toFav = getSelectedNoteObjects();
-        for (int i = 0; i < toFav.size(); i++) {
-            Note note = (Note) toFav.get(i);
-            repository.toggleFavorite(note.getId());
-        }
+        final List toFav = getSelectedNoteObjects();
+        asyncRepo.write(null, new Callable() {
+            public Object call() {
+                for (int i = 0; i < toFav.size(); i++) {
+                    Note note = (Note) toFav.get(i);
+                    repository.toggleFavorite(note.getId());
+                }
+                return null;
+            }
+        }, null);
         exitSelectionMode();
         loadNotes();
     }
 
     private void archiveSelectedNotes() {
-        List toArchive = getSelectedNoteObjects();
-        for (int i = 0; i < toArchive.size(); i++) {
-            Note note = (Note) toArchive.get(i);
-            repository.archiveNote(note.getId());
-            // Trigger cloud update so archived state syncs
-            triggerCloudUploadForNote(note.getId());
-        }
+        final List toArchive = getSelectedNoteObjects();
+        asyncRepo.write(null, new Callable() {
+            public Object call() {
+                for (int i = 0; i < toArchive.size(); i++) {
+                    Note note = (Note) toArchive.get(i);
+                    repository.archiveNote(note.getId());
+                }
+                return null;
+            }
+        }, new AsyncRepository.Callback() {
+            public void onResult(Object result) {
+                // Trigger cloud update so archived state syncs
+                for (int i = 0; i < toArchive.size(); i++) {
+                    triggerCloudUploadForNote(((Note) toArchive.get(i)).getId());
+                }
+            }
+        });
         Toast.makeText(this, getString(R.string.archive_note), Toast.LENGTH_SHORT).show();
         exitSelectionMode();
         loadNotes();
@@ -532,6 +604,24 @@ public class MainActivity extends Activity {
         gridNotes.setOnItemClickListener(itemClickListener);
         gridNotes.setOnItemLongClickListener(itemLongClickListener);
 
+        // Load the next page when the end of the list or grid comes into view
+        AbsListView.OnScrollListener pagingListener = new AbsListView.OnScrollListener() {
+            public void onScrollStateChanged(AbsListView view, int scrollState) {
+            }
+
+            public void onScroll(AbsListView view, int firstVisibleItem,
+                                 int visibleItemCount, int totalItemCount) {
+                if (totalItemCount > 0
+                        && firstVisibleItem + visibleItemCount >= totalItemCount - 5
+                        && hasMoreNotes
+                        && pendingLoad == null) {
+                    loadNextPage();
+                }
+            }
+        };
+        listNotes.setOnScrollListener(pagingListener);
+        gridNotes.setOnScrollListener(pagingListener);
+
         if (tvSearchHint != null) {
             tvSearchHint.setOnClickListener(new View.OnClickListener() {
                 public void onClick(View v) {
@@ -562,19 +652,157 @@ public class MainActivity extends Activity {
         });
     }
 
+    /**
+     * Reload the list for the current filter in the background.
+     * Loads at least as many notes as are shown now so the scroll position
+     * survives a refresh. A newer load supersedes one still in flight.
+     */
     private void loadNotes() {
-        String filter = prefs.getCurrentFilter();
-        List notes;
+        if (pendingLoad != null) {
+            pendingLoad.cancel(false);
+        }
+        final int limit = Math.max(NOTES_PAGE_SIZE, currentNotes.size());
+        pendingLoad = loadNotePage(0, limit, new AsyncRepository.Callback() {
+            public void onResult(Object result) {
+                pendingLoad = null;
+                List notes = result != null ? (List) result : new ArrayList();
+                hasMoreNotes = notes.size() == limit;
+                showNotes(notes);
+            }
+        });
+    }
+
+    /**
+     * Append the next page of notes. Called by the scroll listener.
+     */
+    private void loadNextPage() {
+        pendingLoad = loadNotePage(currentNotes.size(), NOTES_PAGE_SIZE, new AsyncRepository.Callback() {
+            public void onResult(Object result) {
+                pendingLoad = null;
+                List page = result != null ? (List) result : new ArrayList();
+                hasMoreNotes = page.size() == NOTES_PAGE_SIZE;
+                if (!page.isEmpty()) {
+                    currentNotes.addAll(page);
+                    adapter.notifyDataSetChanged();
+                }
+            }
+        });
+    }
 
+    /**
+     * Query one page of note summaries for the current filter. Only title and a
+     * content preview are decrypted; the editor loads the full note by id.
+     */
+    private Future loadNotePage(int offset, int limit, AsyncRepository.Callback callback) {
+        String filter = prefs.getCurrentFilter();
         if (PrefsManager.FILTER_FAVORITES.equals(filter)) {
-            notes = repository.getFavoriteNotes(prefs.getSortBy());
+            return asyncRepo.getFavoriteNoteSummaries(this, offset, limit, callback);
         } else if (PrefsManager.FILTER_CATEGORY.equals(filter)) {
             long catId = prefs.getCurrentCategoryId();
-            notes = repository.getNotesByCategory(catId, prefs.getSortBy());
-        } else {
-            notes = repository.getAllNotes(prefs.getSortBy());
+            return asyncRepo.getNoteSummariesByCategory(this, catId, offset, limit, callback);
+        }
+        return asyncRepo.getAllNoteSummaries(this, prefs.getSortBy(), offset, limit, callback);
+    }
+
+    /**
+     * Update the shown list for notes changed on another device, without
+     * reloading it: removed notes are dropped, changed ones reloaded by id and
+     * replaced in place (then re-sorted by modification time if the list is).
+     * Falls back to loadNotes() when a changed note is not shown (it may belong
+     * anywhere in the list) or its title changed while sorting by title.
+     */
+    private void applyRemoteChanges(final Set<Long> changedIds, Set<Long> removedIds) {
+        if (pendingLoad != null) {
+            // A reload is already on its way and will include these changes
+            loadNotes();
+            return;
+        }
+        for (int i = currentNotes.size() - 1; i >= 0; i--) {
+            Long id = Long.valueOf(((Note) currentNotes.get(i)).getId());
+            if (removedIds.contains(id)) {
+                currentNotes.remove(i);
+                selectedNoteIds.remove(id);
+            }
+        }
+        final Map shown = new HashMap();
+        for (int i = 0; i < currentNotes.size(); i++) {
+            Note n = (Note) currentNotes.get(i);
+            shown.put(Long.valueOf(n.getId()), n);
+        }
+        if (!shown.keySet().containsAll(changedIds)) {
+            loadNotes();
+            return;
+        }
+        if (changedIds.isEmpty()) {
+            showNotes(currentNotes);
+            return;
+        }
+        pendingLoad = asyncRepo.getNotesByIds(this, new ArrayList<Long>(changedIds), 0, changedIds.size(),
+                new AsyncRepository.Callback() {
+                    public void onResult(Object result) {
+                        pendingLoad = null;
+                        List updated = result != null ? (List) result : new ArrayList();
+                        if (updated.size() != changedIds.size()) {
+                            loadNotes();
+                            return;
+                        }
+                        boolean byTitle = !isSortedByModified()
+                                && PrefsManager.SORT_TITLE.equals(prefs.getSortBy());
+                        for (int i = 0; i < updated.size(); i++) {
+                            Note n = (Note) updated.get(i);
+                            Note old = (Note) shown.get(Long.valueOf(n.getId()));
+                            int pos = currentNotes.indexOf(old);
+                            if (pos < 0 || (byTitle && !String.valueOf(n.getTitle()).equals(String.valueOf(old.getTitle())))) {
+                                loadNotes();
+                                return;
+                            }
+                            if (matchesCurrentFilter(n)) {
+                                currentNotes.set(pos, n);
+                            } else {
+                                currentNotes.remove(pos);
+                            }
+                        }
+                        if (isSortedByModified()) {
+                            Collections.sort(currentNotes, new Comparator() {
+                                public int compare(Object a, Object b) {
+                                    long ma = ((Note) a).getModifiedAt();
+                                    long mb = ((Note) b).getModifiedAt();
+                                    return ma > mb ? -1 : (ma < mb ? 1 : 0);
+                                }
+                            });
+                        }
+                        showNotes(currentNotes);
+                    }
+                });
+    }
+
+    /**
+     * Whether the current list is ordered by modification time, newest first
+     * (favorites and categories always are).
+     */
+    private boolean isSortedByModified() {
+        String filter = prefs.getCurrentFilter();
+        if (PrefsManager.FILTER_FAVORITES.equals(filter) || PrefsManager.FILTER_CATEGORY.equals(filter)) {
+            return true;
         }
+        return PrefsManager.SORT_MODIFIED.equals(prefs.getSortBy());
+    }
 
+    /**
+     * Same conditions as the list queries of loadNotePage().
+     */
+    private boolean matchesCurrentFilter(Note note) {
+        if (note.isArchived()) return false;
+        String filter = prefs.getCurrentFilter();
+        if (PrefsManager.FILTER_FAVORITES.equals(filter)) {
+            return note.isFavorite();
+        } else if (PrefsManager.FILTER_CATEGORY.equals(filter)) {
+            return note.getCategoryId() == prefs.getCurrentCategoryId();
+        }
+        return true;
+    }
+
+    private void showNotes(List notes) {
         currentNotes = notes;
         adapter.setNotes(notes);
 
@@ -664,6 +892,17 @@ public class MainActivity extends Activity {
     }
 
     private void shareNote(Note note) {
+        if (note.isSummary()) {
+            // Share the whole text, not the list preview
+            asyncRepo.getNoteById(this, note.getId(), new AsyncRepository.Callback() {
+                public void onResult(Object result) {
+                    if (result != null) {
+                        shareNote((Note) result);
+                    }
+                }
+            });
+            return;
+        }
         Intent shareIntent = new Intent(Intent.ACTION_SEND);
         shareIntent.setType("text/plain");
         String shareText = "";
@@ -705,8 +944,7 @@ public class MainActivity extends Activity {
 
             colorView.setOnClickListener(new View.OnClickListener() {
                 public void onClick(View v) {
-                    note.setColor(colorIndex);
-                    repository.updateNote(note);
+                    updateNoteColorAsync(note.getId(), colorIndex);
                     loadNotes();
                 }
             });
@@ -718,6 +956,23 @@ public class MainActivity extends Activity {
         builder.show();
     }
 
+    /**
+     * Change the color of the stored note. List items are summaries, so the
+     * full note is loaded and saved on the writer thread.
+     */
+    private void updateNoteColorAsync(final long noteId, final int colorIndex) {
+        asyncRepo.write(null, new Callable() {
+            public Object call() {
+                Note full = repository.getNoteById(noteId);
+                if (full != null) {
+                    full.setColor(colorIndex);
+                    repository.updateNote(full);
+                }
+                return null;
+            }
+        }, null);
+    }
+
     private void confirmDeleteNote(final Note note) {
         if (prefs.isConfirmDelete()) {
             AlertDialog.Builder builder = new AlertDialog.Builder(this);
@@ -725,9 +980,7 @@ public class MainActivity extends Activity {
             builder.setMessage(R.string.delete_note_message);
             builder.setPositiveButton(R.string.delete, new DialogInterface.OnClickListener() {
                 public void onClick(DialogInterface dialog, int which) {
-                    String cloudId = note.getCloudId();
-                    repository.moveToTrash(note);
-                    triggerCloudDeleteForNote(cloudId);
+                    moveToTrashAsync(note);
                     loadNotes();
                     Toast.makeText(MainActivity.this, R.string.note_moved_to_trash, Toast.LENGTH_SHORT).show();
                 }
@@ -735,14 +988,25 @@ public class MainActivity extends Activity {
             builder.setNegativeButton(R.string.cancel, null);
             builder.show();
         } else {
-            String cloudId = note.getCloudId();
-            repository.moveToTrash(note);
-            triggerCloudDeleteForNote(cloudId);
+            moveToTrashAsync(note);
             loadNotes();
             Toast.makeText(this, R.string.note_moved_to_trash, Toast.LENGTH_SHORT).show();
         }
     }
 
+    /**
+     * Move a note to trash on the writer thread, then soft-delete it in the cloud.
+     * Not tied to this activity: the cloud delete must follow even if it is destroyed.
+     */
+    private void moveToTrashAsync(Note note) {
+        final String cloudId = note.getCloudId();
+        asyncRepo.moveToTrash(null, note, new AsyncRepository.Callback() {
+            public void onResult(Object result) {
+                triggerCloudDeleteForNote(cloudId);
+            }
+        });
+    }
+
     private void showPasswordDialog(final Note note) {
         final android.widget.EditText input = new android.widget.EditText(this);
         input.setInputType(android.text.InputType.TYPE_CLASS_TEXT | android.text.InputType.TYPE_TEXT_VARIATION_PASSWORD);
@@ -757,8 +1021,20 @@ public class MainActivity extends Activity {
                 if (com.mknotes.app.util.PasswordHashUtil.verifyPassword(pwd, note.getPassword())) {
                     // Auto-migrate plain text password to hash on successful unlock
                     if (!com.mknotes.app.util.PasswordHashUtil.isHashed(note.getPassword())) {
-                        note.setPassword(com.mknotes.app.util.PasswordHashUtil.hashPassword(pwd));
-                        repository.updateNote(note);
+                        final String hashed = com.mknotes.app.util.PasswordHashUtil.hashPassword(pwd);
+                        note.setPassword(hashed);
+                        final long noteId = note.getId();
+                        // The list item is a summary: update the full note
+                        asyncRepo.write(null, new Callable() {
+                            public Object call() {
+                                Note full = repository.getNoteById(noteId);
+                                if (full != null) {
+                                    full.setPassword(hashed);
+                                    repository.updateNote(full);
+                                }
+                                return null;
+                            }
+                        }, null);
                     }
                     openEditor(note.getId());
                 } else {
@@ -944,6 +1220,11 @@ public class MainActivity extends Activity {
         }
     }
 
+    protected void onDestroy() {
+        super.onDestroy();
+        asyncRepo.cancelAll(this);
+    }
+
     private int dpToPx(int dp) {
         float density = getResources().getDisplayMetrics().density;
         return (int) (dp * density + 0.5f);
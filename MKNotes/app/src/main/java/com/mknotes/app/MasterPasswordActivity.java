@@ -10,11 +10,12 @@ import android.view.WindowManager;
 import android.widget.Button;
 import android.widget.EditText;
 import android.widget.ImageView;
+import android.widget.ProgressBar;
 import android.widget.TextView;
 import android.widget.Toast;
 
 import com.mknotes.app.cloud.FirebaseAuthManager;
-import com.mknotes.app.db.NotesRepository;
+import com.mknotes.app.db.ReKeyEngine;
 import com.mknotes.app.util.PrefsManager;
 import com.mknotes.app.util.SessionManager;
 
@@ -24,7 +25,7 @@ import com.mknotes.app.util.SessionManager;
  * This is the LAUNCHER activity -- all app entry goes through here.
  *
  * On first unlock after encryption feature is added, migrates existing plaintext
- * notes to encrypted format using the derived key.
+ * notes to encrypted format using the derived key, with a progress bar.
  */
 public class MasterPasswordActivity extends Activity {
 
@@ -41,6 +42,8 @@ public class MasterPasswordActivity extends Activity {
     private TextView textError;
     private TextView textStrengthHint;
     private Button btnAction;
+    private ProgressBar progressMigration;
+    private TextView textMigrationProgress;
 
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
@@ -81,6 +84,8 @@ public class MasterPasswordActivity extends Activity {
         textError = (TextView) findViewById(R.id.text_error);
         textStrengthHint = (TextView) findViewById(R.id.text_strength_hint);
         btnAction = (Button) findViewById(R.id.btn_action);
+        progressMigration = (ProgressBar) findViewById(R.id.progress_migration);
+        textMigrationProgress = (TextView) findViewById(R.id.text_migration_progress);
     }
 
     private void setupCreateMode() {
@@ -134,10 +139,9 @@ public class MasterPasswordActivity extends Activity {
         // Set password (this also caches the derived key in SessionManager)
         boolean success = sessionManager.setMasterPassword(password);
         if (success) {
-            // Migrate existing plaintext notes to encrypted format
-            migrateExistingNotes();
             Toast.makeText(this, R.string.master_password_set_success, Toast.LENGTH_SHORT).show();
-            launchMain();
+            // Migrate existing plaintext notes to encrypted format, then continue
+            migrateExistingNotes();
         } else {
             showError(getString(R.string.master_password_error_generic));
         }
@@ -159,8 +163,12 @@ public class MasterPasswordActivity extends Activity {
             // If encryption migration hasn't happened yet, do it now
             if (!sessionManager.isEncryptionMigrated()) {
                 migrateExistingNotes();
+                return;
             }
 
+            // Finish a master password change interrupted by process death
+            ReKeyEngine.getInstance(this).resumeIfPending(null);
+
             launchMain();
         } else {
             showError(getString(R.string.master_password_error_wrong));
@@ -169,23 +177,36 @@ public class MasterPasswordActivity extends Activity {
     }
 
     /**
-     * Migrate all existing plaintext notes to encrypted format.
-     * Called once after encryption feature is first activated.
+     * Migrate all existing plaintext notes to encrypted format, showing progress,
+     * then open the app. Runs in batches on ReKeyEngine; an interrupted migration
+     * resumes from its checkpoint on next unlock, and a failed one is retried then.
      */
     private void migrateExistingNotes() {
-        try {
-            byte[] key = sessionManager.getCachedKey();
-            if (key == null) {
-                return;
+        btnAction.setEnabled(false);
+        editPassword.setEnabled(false);
+        editConfirmPassword.setEnabled(false);
+        textError.setVisibility(View.GONE);
+        progressMigration.setVisibility(View.VISIBLE);
+        textMigrationProgress.setVisibility(View.VISIBLE);
+        textMigrationProgress.setText(R.string.master_password_migrating);
+
+        boolean started = ReKeyEngine.getInstance(this).migrateIfNeeded(new ReKeyEngine.ProgressListener() {
+            public void onProgress(int done, int total) {
+                progressMigration.setIndeterminate(false);
+                progressMigration.setMax(Math.max(total, 1));
+                progressMigration.setProgress(done);
+                textMigrationProgress.setText(getString(R.string.master_password_migrate_progress, done, total));
             }
-            NotesRepository repo = NotesRepository.getInstance(this);
-            boolean success = repo.migrateToEncrypted(key);
-            if (success) {
-                sessionManager.setEncryptionMigrated(true);
+
+            public void onFinished(boolean success) {
+                // On failure notes stay readable (plaintext fallback); retried on next unlock
+                if (!isFinishing()) {
+                    launchMain();
+                }
             }
-            // If !success, transaction rolled back, will retry on next unlock
-        } catch (Exception e) {
-            // Migration failed -- will retry on next unlock
+        });
+        if (!started) {
+            launchMain();
         }
     }
 
@@ -44,12 +44,14 @@ import android.widget.FrameLayout;
 import android.widget.TimePicker;
 import android.widget.Toast;
 
+import com.mknotes.app.cloud.AttachmentSyncManager;
 import com.mknotes.app.cloud.CloudSyncManager;
 import com.mknotes.app.cloud.FirebaseAuthManager;
 import com.mknotes.app.adapter.ChecklistAdapter;
 import com.mknotes.app.checklist.ChangeHistory;
 import com.mknotes.app.checklist.ChecklistDragHelper;
 import com.mknotes.app.checklist.ChecklistManager;
+import com.mknotes.app.db.AsyncRepository;
 import com.mknotes.app.db.NotesRepository;
 import com.mknotes.app.editor.AddBottomSheet;
 import com.mknotes.app.model.AudioAttachment;
@@ -190,6 +192,7 @@ public class NoteEditorActivity extends Activity {
     private boolean serviceBound = false;
 
     private NotesRepository repository;
+    private AsyncRepository asyncRepo;
     private PrefsManager prefs;
     private RichTextStyleManager styleManager;
     private Note currentNote;
@@ -236,6 +239,7 @@ public class NoteEditorActivity extends Activity {
         setContentView(R.layout.activity_note_editor);
 
         repository = NotesRepository.getInstance(this);
+        asyncRepo = AsyncRepository.getInstance(this);
         prefs = PrefsManager.getInstance(this);
         textUndoManager = new UndoRedoManager();
         routineUndoManager = new GenericUndoRedoManager();
@@ -251,6 +255,13 @@ public class NoteEditorActivity extends Activity {
         initRichTextPanel();
         initChecklist();
         loadNote();
+    }
+
+    /**
+     * Second half of onCreate, run once currentNote is available
+     * (immediately for a new note, after the background load otherwise).
+     */
+    private void onNoteReady() {
         setupListeners();
         setupRichTextPanelListeners();
         updateEditedDate();
@@ -1197,6 +1208,7 @@ public class NoteEditorActivity extends Activity {
                 }
             } else {
                 iv.setImageResource(R.drawable.ic_image);
+                fetchMissingImage(img);
             }
 
             iv.setOnClickListener(new View.OnClickListener() {
@@ -1330,10 +1342,47 @@ public class NoteEditorActivity extends Activity {
         builder.show();
     }
 
-    private void openAttachedFile(FileAttachment file) {
+    /**
+     * Download an image attached on another device, then show it.
+     */
+    private void fetchMissingImage(FileAttachment img) {
+        AttachmentSyncManager.getInstance(this).fetch(currentNote.getId(), "images", img.getLocalName(),
+                new AttachmentSyncManager.FetchCallback() {
+                    public void onFetched(File file) {
+                        if (file != null && !isFinishing()) {
+                            refreshImagePreviews();
+                        }
+                    }
+                });
+    }
+
+    /**
+     * Download an attachment added on another device, then run onReady.
+     * Shows the file-not-found message if it cannot be fetched.
+     */
+    private void fetchAttachment(String subDir, String localName, final String displayName,
+                                 final Runnable onReady) {
+        AttachmentSyncManager.getInstance(this).fetch(currentNote.getId(), subDir, localName,
+                new AttachmentSyncManager.FetchCallback() {
+                    public void onFetched(File file) {
+                        if (isFinishing()) return;
+                        if (file != null) {
+                            onReady.run();
+                        } else {
+                            FileErrorHandler.showFileNotFound(NoteEditorActivity.this, displayName);
+                        }
+                    }
+                });
+    }
+
+    private void openAttachedFile(final FileAttachment file) {
         File f = AttachmentManager.getFileFile(this, currentNote.getId(), file.getLocalName());
         if (!f.exists()) {
-            FileErrorHandler.showFileNotFound(this, file.getOriginalName());
+            fetchAttachment("files", file.getLocalName(), file.getOriginalName(), new Runnable() {
+                public void run() {
+                    openAttachedFile(file);
+                }
+            });
             return;
         }
         try {
@@ -1490,10 +1539,14 @@ public class NoteEditorActivity extends Activity {
         }
     }
 
-    private void playAudio(AudioAttachment audio, final ImageButton btnPlay) {
+    private void playAudio(final AudioAttachment audio, final ImageButton btnPlay) {
         File audioFile = AttachmentManager.getAudioFile(this, currentNote.getId(), audio.getLocalName());
         if (!audioFile.exists()) {
-            FileErrorHandler.showFileNotFound(this, audio.getLocalName());
+            fetchAttachment("audios", audio.getLocalName(), audio.getLocalName(), new Runnable() {
+                public void run() {
+                    playAudio(audio, btnPlay);
+                }
+            });
             return;
         }
         try {
@@ -1723,6 +1776,10 @@ public class NoteEditorActivity extends Activity {
         return divider;
     }
 
+    /**
+     * Load the note to edit. Existing notes are read and decrypted in the
+     * background; the editor is bound once the result arrives.
+     */
     private void loadNote() {
         long noteId = getIntent().getLongExtra("note_id", -1);
         if (noteId == -1) {
@@ -1730,10 +1787,19 @@ public class NoteEditorActivity extends Activity {
             currentNote = new Note();
             currentNote.setColor(prefs.getDefaultColor());
             tvDate.setText(DateUtils.formatEditorDate(System.currentTimeMillis()));
-        } else {
-            isNewNote = false;
-            currentNote = repository.getNoteById(noteId);
-            if (currentNote != null) {
+            bindLoadedNote();
+            onNoteReady();
+            return;
+        }
+        isNewNote = false;
+        asyncRepo.getNoteById(this, noteId, new AsyncRepository.Callback() {
+            public void onResult(Object result) {
+                currentNote = (Note) result;
+                if (currentNote == null) {
+                    Toast.makeText(NoteEditorActivity.this, R.string.note_not_found, Toast.LENGTH_SHORT).show();
+                    finish();
+                    return;
+                }
                 etTitle.setText(currentNote.getTitle());
                 // ISSUE 5: Load rich text formatting from HTML
                 String savedContent = currentNote.getContent();
@@ -1746,13 +1812,16 @@ public class NoteEditorActivity extends Activity {
                 }
                 tvDate.setText(DateUtils.formatEditorDate(currentNote.getModifiedAt()));
                 updateFavoriteIcon();
-            } else {
-                Toast.makeText(this, R.string.note_not_found, Toast.LENGTH_SHORT).show();
-                finish();
-                return;
+                bindLoadedNote();
+                onNoteReady();
             }
-        }
+        });
+    }
 
+    /**
+     * Apply the loaded (or new) note to the editor: modes, attachments, moods, undo state.
+     */
+    private void bindLoadedNote() {
         float fontSize = prefs.getFontSize();
         etContent.setTextSize(fontSize);
 
@@ -3049,7 +3118,7 @@ public class NoteEditorActivity extends Activity {
             builder.setPositiveButton(R.string.delete, new DialogInterface.OnClickListener() {
                 public void onClick(DialogInterface dialog, int which) {
                     AttachmentManager.deleteAllAttachments(NoteEditorActivity.this, currentNote.getId());
-                    repository.moveToTrash(currentNote);
+                    asyncRepo.moveToTrash(null, currentNote, null);
                     Toast.makeText(NoteEditorActivity.this, R.string.note_moved_to_trash, Toast.LENGTH_SHORT).show();
                     setResult(RESULT_OK);
                     finish();
@@ -3059,7 +3128,7 @@ public class NoteEditorActivity extends Activity {
             builder.show();
         } else {
             AttachmentManager.deleteAllAttachments(this, currentNote.getId());
-            repository.moveToTrash(currentNote);
+            asyncRepo.moveToTrash(null, currentNote, null);
             Toast.makeText(this, R.string.note_moved_to_trash, Toast.LENGTH_SHORT).show();
             setResult(RESULT_OK);
             finish();
@@ -3067,6 +3136,10 @@ public class NoteEditorActivity extends Activity {
     }
 
     private void saveNote() {
+        if (currentNote == null) {
+            // Still loading in the background; nothing was edited yet
+            return;
+        }
         String title = etTitle.getText().toString().trim();
         String content;
 
@@ -3110,6 +3183,7 @@ public class NoteEditorActivity extends Activity {
         saveAttachmentData();
 
         if (isNewNote) {
+            // Insert stays synchronous: attachments and moods need the row id right away
             long id = repository.insertNote(currentNote);
             currentNote.setId(id);
             isNewNote = false;
@@ -3119,13 +3193,18 @@ public class NoteEditorActivity extends Activity {
                 moodStripManager.setNoteContext(id, currentNote.getCreatedAt());
                 moodStripManager.savePendingMood();
             }
+            // Trigger cloud sync upload after save
+            triggerCloudUpload();
         } else {
-            repository.updateNote(currentNote);
+            // Encrypt and write a snapshot on the writer thread; upload once it is stored.
+            // Not owned by this activity so the upload still follows after finish().
+            asyncRepo.updateNote(null, currentNote, new AsyncRepository.Callback() {
+                public void onResult(Object result) {
+                    triggerCloudUpload();
+                }
+            });
         }
 
-        // Trigger cloud sync upload after save
-        triggerCloudUpload();
-
         hasChanges = false;
     }
 
@@ -3192,6 +3271,7 @@ public class NoteEditorActivity extends Activity {
 
     protected void onDestroy() {
         super.onDestroy();
+        asyncRepo.cancelAll(this);
         stopAudioPlayback();
         // Unregister meditation broadcast receivers to prevent leaks
         if (meditationCardBuilder != null) {
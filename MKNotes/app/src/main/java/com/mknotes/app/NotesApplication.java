@@ -11,7 +11,10 @@ import android.os.StrictMode;
 import androidx.multidex.MultiDex;
 
 import com.google.firebase.FirebaseApp;
+import com.mknotes.app.backup.AutoBackupJobService;
+import com.mknotes.app.cloud.CloudSyncManager;
 import com.mknotes.app.db.NotesRepository;
+import com.mknotes.app.util.PrefsManager;
 import com.mknotes.app.util.SessionManager;
 
 public class NotesApplication extends Application {
@@ -51,6 +54,13 @@ public class NotesApplication extends Application {
             // Fail silently - don't block app startup
         }
 
+        // Daily backup while charging and idle
+        try {
+            AutoBackupJobService.schedule(this);
+        } catch (Exception e) {
+            // Fail silently - don't block app startup
+        }
+
         // Register ActivityLifecycleCallbacks for session timeout tracking.
         // Tracks when app goes to background/foreground to enforce session expiry.
         registerActivityLifecycleCallbacks(new ActivityLifecycleCallbacks() {
@@ -69,6 +79,13 @@ public class NotesApplication extends Application {
                 if (activityCount == 0) {
                     // App went to background
                     SessionManager.getInstance(activity).onAppBackgrounded();
+                    try {
+                        if (PrefsManager.getInstance(activity).isCloudSyncEnabled()) {
+                            CloudSyncManager.getInstance(activity).stopRealtimeSync();
+                        }
+                    } catch (Exception e) {
+                        // Cloud sync failure must not crash the app
+                    }
                 }
             }
 
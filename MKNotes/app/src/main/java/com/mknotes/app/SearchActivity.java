@@ -12,6 +12,7 @@ import android.view.View;
 import android.view.ViewGroup;
 import android.view.inputmethod.EditorInfo;
 import android.view.inputmethod.InputMethodManager;
+import android.widget.AbsListView;
 import android.widget.AdapterView;
 import android.widget.EditText;
 import android.widget.ImageButton;
@@ -21,12 +22,13 @@ import android.widget.RelativeLayout;
 import android.widget.TextView;
 
 import com.mknotes.app.adapter.NoteAdapter;
-import com.mknotes.app.db.NotesRepository;
+import com.mknotes.app.db.AsyncRepository;
 import com.mknotes.app.model.Note;
 import com.mknotes.app.util.SessionManager;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.Future;
 
 /**
  * SearchActivity - Replicates SearchScreenTopBar.kt behavior.
@@ -35,6 +37,9 @@ import java.util.List;
  */
 public class SearchActivity extends Activity {
 
+    /** Number of results decrypted per page; more are loaded while scrolling. */
+    private static final int PAGE_SIZE = 30;
+
     private EditText etSearch;
     private ImageButton btnBack;
     private ImageButton btnClear;
@@ -43,13 +48,21 @@ public class SearchActivity extends Activity {
     private RelativeLayout searchToolbar;
 
     private NoteAdapter adapter;
-    private NotesRepository repository;
+    private AsyncRepository asyncRepo;
+
+    // Ranked ids of the current query, and the notes decrypted so far
+    private List<Long> resultIds = new ArrayList<Long>();
+    private List loadedNotes = new ArrayList();
+    private int nextOffset = 0;
+    // In-flight search or page load; superseded by each new query
+    private Future pendingSearch;
+    private Future pendingPage;
 
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_search);
 
-        repository = NotesRepository.getInstance(this);
+        asyncRepo = AsyncRepository.getInstance(this);
 
         initViews();
         styleSearchTopBar();
@@ -158,7 +171,11 @@ public class SearchActivity extends Activity {
                     performSearch(query);
                 } else {
                     btnClear.setVisibility(View.GONE);
-                    adapter.setNotes(new ArrayList());
+                    cancelPending();
+                    resultIds = new ArrayList<Long>();
+                    loadedNotes = new ArrayList();
+                    nextOffset = 0;
+                    adapter.setNotes(loadedNotes);
                     noResults.setVisibility(View.GONE);
                     listResults.setVisibility(View.VISIBLE);
                 }
@@ -189,18 +206,74 @@ public class SearchActivity extends Activity {
                 startActivity(intent);
             }
         });
+
+        // Decrypt the next page when the list nears its end
+        listResults.setOnScrollListener(new AbsListView.OnScrollListener() {
+            public void onScrollStateChanged(AbsListView view, int scrollState) {
+            }
+
+            public void onScroll(AbsListView view, int firstVisibleItem,
+                                 int visibleItemCount, int totalItemCount) {
+                if (totalItemCount > 0
+                        && firstVisibleItem + visibleItemCount >= totalItemCount - 5
+                        && nextOffset < resultIds.size()
+                        && pendingPage == null) {
+                    loadNextPage();
+                }
+            }
+        });
     }
 
     private void performSearch(String query) {
-        List results = repository.searchNotes(query);
-        adapter.setNotes(results);
-
-        if (results.isEmpty()) {
-            noResults.setVisibility(View.VISIBLE);
-            listResults.setVisibility(View.GONE);
-        } else {
-            noResults.setVisibility(View.GONE);
-            listResults.setVisibility(View.VISIBLE);
+        cancelPending();
+        pendingSearch = asyncRepo.searchNotes(this, query, new AsyncRepository.Callback() {
+            public void onResult(Object result) {
+                pendingSearch = null;
+                resultIds = result != null ? (List<Long>) result : new ArrayList<Long>();
+                loadedNotes = new ArrayList();
+                nextOffset = 0;
+                adapter.setNotes(loadedNotes);
+                loadNextPage();
+
+                if (resultIds.isEmpty()) {
+                    noResults.setVisibility(View.VISIBLE);
+                    listResults.setVisibility(View.GONE);
+                } else {
+                    noResults.setVisibility(View.GONE);
+                    listResults.setVisibility(View.VISIBLE);
+                }
+            }
+        });
+    }
+
+    /**
+     * Decrypt the next page of ranked results in the background and append it.
+     */
+    private void loadNextPage() {
+        if (nextOffset >= resultIds.size()) return;
+        final int offset = nextOffset;
+        nextOffset += PAGE_SIZE;
+        // Ids of notes deleted meanwhile are skipped by the repository
+        pendingPage = asyncRepo.getNotesByIds(this, resultIds, offset, PAGE_SIZE,
+                new AsyncRepository.Callback() {
+                    public void onResult(Object result) {
+                        pendingPage = null;
+                        if (result != null) {
+                            loadedNotes.addAll((List) result);
+                        }
+                        adapter.setNotes(loadedNotes);
+                    }
+                });
+    }
+
+    private void cancelPending() {
+        if (pendingSearch != null) {
+            pendingSearch.cancel(false);
+            pendingSearch = null;
+        }
+        if (pendingPage != null) {
+            pendingPage.cancel(false);
+            pendingPage = null;
         }
     }
 
@@ -234,6 +307,11 @@ public class SearchActivity extends Activity {
         finish();
     }
 
+    protected void onDestroy() {
+        super.onDestroy();
+        asyncRepo.cancelAll(this);
+    }
+
     private int dpToPx(int dp) {
         float density = getResources().getDisplayMetrics().density;
         return (int) (dp * density + 0.5f);
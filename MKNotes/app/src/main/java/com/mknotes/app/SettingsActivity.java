@@ -19,33 +19,27 @@ import android.widget.Switch;
 import android.widget.TextView;
 import android.widget.Toast;
 
+import com.mknotes.app.backup.AutoBackupJobService;
+import com.mknotes.app.backup.BackupExporter;
+import com.mknotes.app.backup.BackupImporter;
 import com.mknotes.app.cloud.CloudSyncManager;
 import com.mknotes.app.cloud.FirebaseAuthManager;
-import com.mknotes.app.db.NotesRepository;
-import com.mknotes.app.model.Note;
+import com.mknotes.app.db.ReKeyEngine;
 import com.mknotes.app.util.CryptoUtils;
 import com.mknotes.app.util.MKFileProvider;
 import com.mknotes.app.util.NoteColorUtil;
 import com.mknotes.app.util.PrefsManager;
 import com.mknotes.app.util.SessionManager;
 
-import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.util.Arrays;
-import java.util.List;
-
-import org.json.JSONArray;
-import org.json.JSONObject;
 
 public class SettingsActivity extends Activity {
 
     private static final int REQUEST_RESTORE_FILE = 9001;
+    private static final String BACKUP_ARCHIVE_NAME = "mknotes_backup.zip";
 
     private PrefsManager prefs;
-    private NotesRepository repository;
     private RadioGroup rgSort;
     private RadioButton rbSortModified;
     private RadioButton rbSortCreated;
@@ -55,6 +49,7 @@ public class SettingsActivity extends Activity {
     private TextView tvFontPreview;
     private Switch switchAutoSave;
     private Switch switchConfirmDelete;
+    private Switch switchAutoBackup;
 
     // Cloud Sync views
     private Switch switchCloudSync;
@@ -69,7 +64,6 @@ public class SettingsActivity extends Activity {
         setContentView(R.layout.activity_settings);
 
         prefs = PrefsManager.getInstance(this);
-        repository = NotesRepository.getInstance(this);
 
         initViews();
         loadSettings();
@@ -102,6 +96,7 @@ public class SettingsActivity extends Activity {
         tvFontPreview = (TextView) findViewById(R.id.tv_font_preview);
         switchAutoSave = (Switch) findViewById(R.id.switch_auto_save);
         switchConfirmDelete = (Switch) findViewById(R.id.switch_confirm_delete);
+        switchAutoBackup = (Switch) findViewById(R.id.switch_auto_backup);
 
         // Backup & Restore buttons
         TextView btnBackup = (TextView) findViewById(R.id.btn_backup);
@@ -159,6 +154,7 @@ public class SettingsActivity extends Activity {
 
         switchAutoSave.setChecked(prefs.isAutoSave());
         switchConfirmDelete.setChecked(prefs.isConfirmDelete());
+        switchAutoBackup.setChecked(prefs.isAutoBackupEnabled());
     }
 
     private void setupColorPicker() {
@@ -236,6 +232,13 @@ public class SettingsActivity extends Activity {
                 prefs.setConfirmDelete(isChecked);
             }
         });
+
+        switchAutoBackup.setOnCheckedChangeListener(new CompoundButton.OnCheckedChangeListener() {
+            public void onCheckedChanged(CompoundButton buttonView, boolean isChecked) {
+                prefs.setAutoBackupEnabled(isChecked);
+                AutoBackupJobService.schedule(SettingsActivity.this);
+            }
+        });
     }
 
     // ======================== CLOUD SYNC SETTINGS ========================
@@ -325,6 +328,7 @@ public class SettingsActivity extends Activity {
         builder.setMessage(R.string.cloud_sync_logout_confirm_message);
         builder.setPositiveButton(R.string.cloud_sync_logout, new DialogInterface.OnClickListener() {
             public void onClick(DialogInterface dialog, int which) {
+                CloudSyncManager.getInstance(SettingsActivity.this).clearOutbox();
                 FirebaseAuthManager.getInstance(SettingsActivity.this).logout();
                 prefs.setCloudSyncEnabled(false);
                 switchCloudSync.setChecked(false);
@@ -337,7 +341,7 @@ public class SettingsActivity extends Activity {
     }
 
     /**
-     * Perform manual bidirectional sync with cloud.
+     * Perform manual full bidirectional sync with cloud.
      */
     private void performManualSync() {
         if (!prefs.isCloudSyncEnabled()) {
@@ -354,7 +358,7 @@ public class SettingsActivity extends Activity {
 
         tvSyncStatus.setText(R.string.cloud_sync_syncing);
 
-        CloudSyncManager.getInstance(this).syncOnAppStart(new CloudSyncManager.SyncCallback() {
+        CloudSyncManager.getInstance(this).fullSync(new CloudSyncManager.SyncCallback() {
             public void onSyncComplete(final boolean success) {
                 runOnUiThread(new Runnable() {
                     public void run() {
@@ -366,6 +370,11 @@ public class SettingsActivity extends Activity {
                     }
                 });
             }
+        }, new CloudSyncManager.UploadProgressListener() {
+            public void onUploadProgress(int uploaded, int failed, int total, int notesPerSecond) {
+                tvSyncStatus.setText(getString(R.string.cloud_sync_upload_progress,
+                        uploaded + failed, total, notesPerSecond));
+            }
         });
     }
 
@@ -383,6 +392,13 @@ public class SettingsActivity extends Activity {
             return;
         }
 
+        if (sessionManager.isReKeyPending()) {
+            // Notes are still moving to the data key; show its progress instead
+            Toast.makeText(this, R.string.master_password_reencrypt_pending, Toast.LENGTH_LONG).show();
+            showReEncryptProgress();
+            return;
+        }
+
         // Build layout programmatically
         LinearLayout container = new LinearLayout(this);
         container.setOrientation(LinearLayout.VERTICAL);
@@ -432,13 +448,6 @@ public class SettingsActivity extends Activity {
                 String newPwd = editNew.getText().toString();
                 String confirmPwd = editConfirm.getText().toString();
 
-                // Validate old password
-                if (!sessionManager.verifyMasterPassword(oldPwd)) {
-                    Toast.makeText(SettingsActivity.this,
-                            R.string.master_password_old_wrong, Toast.LENGTH_SHORT).show();
-                    return;
-                }
-
                 // Validate new password length
                 if (newPwd.length() < 8) {
                     Toast.makeText(SettingsActivity.this,
@@ -453,34 +462,16 @@ public class SettingsActivity extends Activity {
                     return;
                 }
 
-                // Perform change and get old key for re-encryption
-                byte[] oldKey = sessionManager.changeMasterPasswordGetOldKey(oldPwd, newPwd);
-                if (oldKey != null) {
-                    // Re-encrypt all notes with new key
-                    byte[] newKey = sessionManager.getCachedKey();
-                    if (newKey != null) {
-                        try {
-                            repository.reEncryptAllNotes(oldKey, newKey);
-                        } catch (Exception e) {
-                            // Re-encryption failed
-                        }
-                    }
-                    // Zero-fill old key after re-encryption completes
-                    Arrays.fill(oldKey, (byte) 0);
-
-                    // Push re-encrypted data to cloud so other devices get updated ciphertext
-                    try {
-                        if (PrefsManager.getInstance(SettingsActivity.this).isCloudSyncEnabled()
-                                && FirebaseAuthManager.getInstance(SettingsActivity.this).isLoggedIn()) {
-                            CloudSyncManager.getInstance(SettingsActivity.this).uploadAllNotes();
-                        }
-                    } catch (Exception e) {
-                        // Cloud sync failure must not crash the app
-                    }
-
+                // Verifies the old password, then rewraps the data key only;
+                // notes and cloud data stay as they are
+                int result = sessionManager.changeMasterPassword(oldPwd, newPwd);
+                if (result == SessionManager.PASSWORD_CHANGED) {
                     Toast.makeText(SettingsActivity.this,
                             R.string.master_password_changed_success, Toast.LENGTH_SHORT).show();
                     dialog.dismiss();
+                } else if (result == SessionManager.PASSWORD_WRONG) {
+                    Toast.makeText(SettingsActivity.this,
+                            R.string.master_password_old_wrong, Toast.LENGTH_SHORT).show();
                 } else {
                     Toast.makeText(SettingsActivity.this,
                             R.string.master_password_error_generic, Toast.LENGTH_SHORT).show();
@@ -489,121 +480,180 @@ public class SettingsActivity extends Activity {
         });
     }
 
+    /**
+     * Run (or attach to) the pending re-encryption job (switch to a data key)
+     * behind a non-cancelable progress dialog. Notes are synced to cloud once
+     * every row is re-encrypted.
+     */
+    private void showReEncryptProgress() {
+        LinearLayout container = new LinearLayout(this);
+        container.setOrientation(LinearLayout.VERTICAL);
+        int pad = (int) (20 * getResources().getDisplayMetrics().density);
+        container.setPadding(pad, pad, pad, pad);
+
+        final android.widget.ProgressBar progressBar = new android.widget.ProgressBar(
+                this, null, android.R.attr.progressBarStyleHorizontal);
+        progressBar.setIndeterminate(true);
+        container.addView(progressBar);
+
+        final TextView progressText = new TextView(this);
+        container.addView(progressText);
+
+        final AlertDialog progressDialog = new AlertDialog.Builder(this)
+                .setTitle(R.string.master_password_reencrypting)
+                .setView(container)
+                .setCancelable(false)
+                .create();
+        progressDialog.show();
+
+        boolean started = ReKeyEngine.getInstance(this).resumeIfPending(new ReKeyEngine.ProgressListener() {
+            public void onProgress(int done, int total) {
+                progressBar.setIndeterminate(false);
+                progressBar.setMax(Math.max(total, 1));
+                progressBar.setProgress(done);
+                progressText.setText(getString(R.string.master_password_reencrypt_progress, done, total));
+            }
+
+            public void onFinished(boolean success) {
+                if (!isDestroyed() && progressDialog.isShowing()) {
+                    progressDialog.dismiss();
+                }
+                if (!success) {
+                    Toast.makeText(SettingsActivity.this,
+                            R.string.master_password_reencrypt_failed, Toast.LENGTH_LONG).show();
+                    return;
+                }
+
+                // Push re-encrypted (PENDING) notes to cloud so other devices get updated
+                // ciphertext; the old key is discarded once they are uploaded
+                try {
+                    if (PrefsManager.getInstance(SettingsActivity.this).isCloudSyncEnabled()
+                            && FirebaseAuthManager.getInstance(SettingsActivity.this).isLoggedIn()) {
+                        CloudSyncManager.getInstance(SettingsActivity.this).syncOnAppStart(null);
+                    }
+                } catch (Exception e) {
+                    // Cloud sync failure must not crash the app
+                }
+
+                Toast.makeText(SettingsActivity.this,
+                        R.string.master_password_reencrypt_done, Toast.LENGTH_SHORT).show();
+            }
+        });
+        if (!started) {
+            progressDialog.dismiss();
+        }
+    }
+
     // ======================== BACKUP ========================
 
     /**
-     * ISSUE 6: Backup all notes to a JSON file in cache directory,
+     * ISSUE 6: Backup notes, categories, meditation and mood data and
+     * attachments to an archive in cache directory,
      * then share it via Intent so user can save/send the file.
-     * Uses org.json (built into Android) - no external libraries.
+     * Written in the background by BackupExporter, which streams rows and
+     * files from the device, behind a progress dialog.
      *
-     * IMPORTANT: Backup exports encrypted data as-is. No decryption
-     * is performed before export, ensuring backup files contain no plaintext.
+     * IMPORTANT: Backup exports encrypted note data as-is. No decryption
+     * is performed before export, so notes in the backup stay encrypted.
      * Restore requires the same master password to decrypt.
      */
     private void performBackup() {
-        try {
-            List allNotes = repository.getAllNotesRaw();
-            JSONArray jsonArray = new JSONArray();
-
-            for (int i = 0; i < allNotes.size(); i++) {
-                Note note = (Note) allNotes.get(i);
-                JSONObject obj = new JSONObject();
-                obj.put("id", note.getId());
-                obj.put("title", note.getTitle() != null ? note.getTitle() : "");
-                obj.put("content", note.getContent() != null ? note.getContent() : "");
-                obj.put("createdAt", note.getCreatedAt());
-                obj.put("modifiedAt", note.getModifiedAt());
-                obj.put("color", note.getColor());
-                obj.put("favorite", note.isFavorite());
-                obj.put("locked", note.isLocked());
-                obj.put("password", note.getPassword() != null ? note.getPassword() : "");
-                obj.put("categoryId", note.getCategoryId());
-                obj.put("hasChecklist", note.hasChecklist());
-                obj.put("hasImage", note.hasImage());
-                obj.put("checklistData", note.getChecklistData() != null ? note.getChecklistData() : "");
-                obj.put("isChecklistMode", note.isChecklistMode());
-                obj.put("imagesData", note.getImagesData() != null ? note.getImagesData() : "");
-                obj.put("filesData", note.getFilesData() != null ? note.getFilesData() : "");
-                obj.put("audiosData", note.getAudiosData() != null ? note.getAudiosData() : "");
-                obj.put("linkedNoteIds", note.getLinkedNoteIds() != null ? note.getLinkedNoteIds() : "");
-                obj.put("isRoutineMode", note.isRoutineMode());
-                obj.put("routineData", note.getRoutineData() != null ? note.getRoutineData() : "");
-                obj.put("archived", note.isArchived());
-                obj.put("cloudId", note.getCloudId() != null ? note.getCloudId() : "");
-                obj.put("encrypted", true);
-                jsonArray.put(obj);
-            }
-
-            JSONObject root = new JSONObject();
-            root.put("appName", "MKNotes");
-            root.put("version", 1);
-            root.put("encryptionVersion", 2);
-            root.put("backupDate", System.currentTimeMillis());
-            root.put("notesCount", allNotes.size());
-            root.put("notes", jsonArray);
-
-            // Include encryption credentials for fresh device restore
-            SessionManager sm = SessionManager.getInstance(this);
-            String salt = sm.getSaltHex();
-            String verifyToken = sm.getVerifyToken();
-            if (salt != null && salt.length() > 0) {
-                root.put("salt", salt);
-            }
-            if (verifyToken != null && verifyToken.length() > 0) {
-                root.put("verifyToken", verifyToken);
-            }
-
-            String jsonStr = root.toString(2);
-
-            // Write to cache
-            File cacheDir = getCacheDir();
-            File backupDir = new File(cacheDir, "backups");
-            if (!backupDir.exists()) {
-                backupDir.mkdirs();
-            }
-            File backupFile = new File(backupDir, "mknotes_backup.json");
+        File backupDir = new File(getCacheDir(), "backups");
+        if (!backupDir.exists()) {
+            backupDir.mkdirs();
+        }
+        File backupFile = new File(backupDir, BACKUP_ARCHIVE_NAME);
 
-            FileOutputStream fos = new FileOutputStream(backupFile);
-            fos.write(jsonStr.getBytes("UTF-8"));
-            fos.flush();
-            fos.close();
+        LinearLayout container = new LinearLayout(this);
+        container.setOrientation(LinearLayout.VERTICAL);
+        int pad = (int) (20 * getResources().getDisplayMetrics().density);
+        container.setPadding(pad, pad, pad, pad);
 
-            // Share via Intent
-            Uri contentUri = MKFileProvider.getUriForFile(backupFile);
-            Intent shareIntent = new Intent(Intent.ACTION_SEND);
-            shareIntent.setType("application/json");
-            shareIntent.putExtra(Intent.EXTRA_STREAM, contentUri);
-            shareIntent.addFlags(Intent.FLAG_GRANT_READ_URI_PERMISSION);
-            startActivity(Intent.createChooser(shareIntent, getString(R.string.settings_backup)));
+        final android.widget.ProgressBar progressBar = new android.widget.ProgressBar(
+                this, null, android.R.attr.progressBarStyleHorizontal);
+        progressBar.setIndeterminate(true);
+        container.addView(progressBar);
 
-            Toast.makeText(this, R.string.backup_success, Toast.LENGTH_SHORT).show();
+        final TextView progressText = new TextView(this);
+        container.addView(progressText);
 
-        } catch (Exception e) {
-            Toast.makeText(this, getString(R.string.backup_failed) + ": " + e.getMessage(),
-                    Toast.LENGTH_SHORT).show();
-        }
+        final AlertDialog progressDialog = new AlertDialog.Builder(this)
+                .setTitle(R.string.backup_in_progress)
+                .setView(container)
+                .setCancelable(false)
+                .create();
+        progressDialog.show();
+
+        BackupExporter.getInstance(this).exportArchive(backupFile, new BackupExporter.Listener() {
+            public void onProgress(int done, int total) {
+                progressBar.setIndeterminate(false);
+                progressBar.setMax(Math.max(total, 1));
+                progressBar.setProgress(done);
+                progressText.setText(getString(R.string.backup_progress, done, total));
+            }
+
+            public void onFinished(File file, Exception error) {
+                if (isDestroyed()) {
+                    return;
+                }
+                if (progressDialog.isShowing()) {
+                    progressDialog.dismiss();
+                }
+                if (file == null) {
+                    Toast.makeText(SettingsActivity.this, getString(R.string.backup_failed) + ": "
+                            + (error != null ? error.getMessage() : ""), Toast.LENGTH_SHORT).show();
+                    return;
+                }
+                try {
+                    // Share via Intent
+                    Uri contentUri = MKFileProvider.getUriForFile(file);
+                    Intent shareIntent = new Intent(Intent.ACTION_SEND);
+                    shareIntent.setType("application/zip");
+                    shareIntent.putExtra(Intent.EXTRA_STREAM, contentUri);
+                    shareIntent.addFlags(Intent.FLAG_GRANT_READ_URI_PERMISSION);
+                    startActivity(Intent.createChooser(shareIntent, getString(R.string.settings_backup)));
+
+                    Toast.makeText(SettingsActivity.this, R.string.backup_success, Toast.LENGTH_SHORT).show();
+                } catch (Exception e) {
+                    Toast.makeText(SettingsActivity.this, getString(R.string.backup_failed) + ": " + e.getMessage(),
+                            Toast.LENGTH_SHORT).show();
+                }
+            }
+        });
     }
 
     // ======================== RESTORE ========================
 
     /**
-     * Show confirmation dialog before restoring.
+     * Show confirmation dialog before restoring. If the daily backup set
+     * exists (AutoBackupJobService), it is offered next to a backup file.
      */
     private void showRestoreConfirmDialog() {
+        final File incrementalDir = BackupExporter.getIncrementalBackupDir(this);
+        boolean hasAutoBackup = BackupImporter.hasIncrementalBackup(incrementalDir);
         AlertDialog.Builder builder = new AlertDialog.Builder(this);
         builder.setTitle(R.string.restore_confirm_title);
         builder.setMessage(R.string.restore_confirm_message);
-        builder.setPositiveButton(R.string.btn_ok, new DialogInterface.OnClickListener() {
-            public void onClick(DialogInterface dialog, int which) {
-                openFilePicker();
-            }
-        });
+        builder.setPositiveButton(hasAutoBackup ? R.string.restore_from_file : R.string.btn_ok,
+                new DialogInterface.OnClickListener() {
+                    public void onClick(DialogInterface dialog, int which) {
+                        openFilePicker();
+                    }
+                });
+        if (hasAutoBackup) {
+            builder.setNeutralButton(R.string.restore_from_auto_backup, new DialogInterface.OnClickListener() {
+                public void onClick(DialogInterface dialog, int which) {
+                    BackupImporter.getInstance(SettingsActivity.this)
+                            .restoreIncremental(incrementalDir, showRestoreProgress());
+                }
+            });
+        }
         builder.setNegativeButton(R.string.btn_cancel, null);
         builder.show();
     }
 
     /**
-     * Open a file picker to let user select the backup JSON file.
+     * Open a file picker to let user select the backup file.
      */
     private void openFilePicker() {
         try {
@@ -639,18 +689,7 @@ public class SettingsActivity extends Activity {
                 Toast.makeText(this, R.string.restore_failed, Toast.LENGTH_SHORT).show();
                 return;
             }
-
-            BufferedReader reader = new BufferedReader(new InputStreamReader(is, "UTF-8"));
-            StringBuilder sb = new StringBuilder();
-            String line;
-            while ((line = reader.readLine()) != null) {
-                sb.append(line);
-            }
-            reader.close();
-            is.close();
-
-            performRestore(sb.toString());
-
+            performRestore(is);
         } catch (Exception e) {
             Toast.makeText(this, getString(R.string.restore_failed) + ": " + e.getMessage(),
                     Toast.LENGTH_SHORT).show();
@@ -658,29 +697,27 @@ public class SettingsActivity extends Activity {
     }
 
     /**
-     * Fallback: restore from the default backup file in cache.
+     * Fallback: restore from the incremental backup set, or the default
+     * backup file in cache.
      */
     private void restoreFromDefaultBackup() {
         try {
+            File incrementalDir = BackupExporter.getIncrementalBackupDir(this);
+            if (BackupImporter.hasIncrementalBackup(incrementalDir)) {
+                BackupImporter.getInstance(this).restoreIncremental(incrementalDir, showRestoreProgress());
+                return;
+            }
             File cacheDir = getCacheDir();
-            File backupFile = new File(cacheDir, "backups/mknotes_backup.json");
+            File backupFile = new File(cacheDir, "backups/" + BACKUP_ARCHIVE_NAME);
+            if (!backupFile.exists()) {
+                // Written by versions before the archive
+                backupFile = new File(cacheDir, "backups/mknotes_backup.json");
+            }
             if (!backupFile.exists()) {
                 Toast.makeText(this, R.string.no_backup_found, Toast.LENGTH_SHORT).show();
                 return;
             }
-
-            java.io.FileInputStream fis = new java.io.FileInputStream(backupFile);
-            BufferedReader reader = new BufferedReader(new InputStreamReader(fis, "UTF-8"));
-            StringBuilder sb = new StringBuilder();
-            String line;
-            while ((line = reader.readLine()) != null) {
-                sb.append(line);
-            }
-            reader.close();
-            fis.close();
-
-            performRestore(sb.toString());
-
+            performRestore(new java.io.FileInputStream(backupFile));
         } catch (Exception e) {
             Toast.makeText(this, getString(R.string.restore_failed) + ": " + e.getMessage(),
                     Toast.LENGTH_SHORT).show();
@@ -688,109 +725,81 @@ public class SettingsActivity extends Activity {
     }
 
     /**
-     * Parse JSON string and insert all notes into the database.
+     * Restore the backup read from is (closed when done) behind a progress
+     * dialog. BackupImporter streams the notes into the database in batched
+     * transactions; a failed restore adds nothing.
      * Existing notes are NOT deleted - backup notes are added alongside them.
-     *
-     * Backup data is encrypted -- we insert it as raw encrypted values
-     * using insertNoteRaw() to avoid double-encryption.
      */
-    private void performRestore(String jsonString) {
-        try {
-            JSONObject root = new JSONObject(jsonString);
-
-            // Validate it is a MKNotes backup
-            String appName = root.optString("appName", "");
-            if (!"MKNotes".equals(appName)) {
-                Toast.makeText(this, R.string.restore_failed, Toast.LENGTH_SHORT).show();
-                return;
-            }
-
-            JSONArray notesArray = root.getJSONArray("notes");
-            int restoredCount = 0;
-            boolean isEncryptedBackup = false;
+    private void performRestore(InputStream is) {
+        BackupImporter.getInstance(this).restore(is, showRestoreProgress());
+    }
 
-            // Restore encryption credentials from backup if on fresh device
-            String backupSalt = root.optString("salt", "");
-            String backupToken = root.optString("verifyToken", "");
-            if (backupSalt.length() > 0 && backupToken.length() > 0) {
-                SessionManager sm = SessionManager.getInstance(this);
-                if (!sm.isPasswordSet()) {
-                    // Fresh device -- store salt and token from backup.
-                    // User MUST enter the SAME master password from original device.
-                    sm.restoreFromBackup(backupSalt, backupToken);
+    /**
+     * Show the restore progress dialog.
+     *
+     * @return listener that updates and dismisses it
+     */
+    private BackupImporter.Listener showRestoreProgress() {
+        LinearLayout container = new LinearLayout(this);
+        container.setOrientation(LinearLayout.VERTICAL);
+        int pad = (int) (20 * getResources().getDisplayMetrics().density);
+        container.setPadding(pad, pad, pad, pad);
+
+        final android.widget.ProgressBar progressBar = new android.widget.ProgressBar(
+                this, null, android.R.attr.progressBarStyleHorizontal);
+        progressBar.setIndeterminate(true);
+        container.addView(progressBar);
+
+        final TextView progressText = new TextView(this);
+        container.addView(progressText);
+
+        final AlertDialog progressDialog = new AlertDialog.Builder(this)
+                .setTitle(R.string.restore_in_progress)
+                .setView(container)
+                .setCancelable(false)
+                .create();
+        progressDialog.show();
+
+        return new BackupImporter.Listener() {
+            public void onProgress(int done, int total) {
+                if (total > 0) {
+                    progressBar.setIndeterminate(false);
+                    progressBar.setMax(total);
+                    progressBar.setProgress(done);
+                    progressText.setText(getString(R.string.backup_progress, done, total));
+                } else {
+                    progressText.setText(getString(R.string.restore_progress, done));
                 }
             }
 
-            for (int i = 0; i < notesArray.length(); i++) {
-                JSONObject obj = notesArray.getJSONObject(i);
-
-                // Check if this backup contains encrypted data
-                if (i == 0) {
-                    isEncryptedBackup = obj.optBoolean("encrypted", false);
-                }
-
-                Note note = new Note();
-                note.setTitle(obj.optString("title", ""));
-                note.setContent(obj.optString("content", ""));
-                note.setCreatedAt(obj.optLong("createdAt", System.currentTimeMillis()));
-                note.setModifiedAt(obj.optLong("modifiedAt", System.currentTimeMillis()));
-                note.setColor(obj.optInt("color", 0));
-                note.setFavorite(obj.optBoolean("favorite", false));
-                note.setLocked(obj.optBoolean("locked", false));
-                note.setPassword(obj.optString("password", ""));
-                note.setCategoryId(obj.optLong("categoryId", -1));
-                note.setHasChecklist(obj.optBoolean("hasChecklist", false));
-                note.setHasImage(obj.optBoolean("hasImage", false));
-                note.setChecklistData(obj.optString("checklistData", ""));
-                note.setChecklistMode(obj.optBoolean("isChecklistMode", false));
-                note.setImagesData(obj.optString("imagesData", ""));
-                note.setFilesData(obj.optString("filesData", ""));
-                note.setAudiosData(obj.optString("audiosData", ""));
-                note.setLinkedNoteIds(obj.optString("linkedNoteIds", ""));
-                note.setRoutineMode(obj.optBoolean("isRoutineMode", false));
-                note.setRoutineData(obj.optString("routineData", ""));
-                note.setArchived(obj.optBoolean("archived", false));
-
-                // Preserve cloudId from backup if present, otherwise a new UUID is generated on insert
-                String backupCloudId = obj.optString("cloudId", "");
-                if (backupCloudId.length() > 0) {
-                    note.setCloudId(backupCloudId);
-                }
-
-                long newId;
-                if (isEncryptedBackup) {
-                    // Data is already encrypted -- insert raw to avoid double-encryption
-                    newId = repository.insertNoteRaw(note);
-                } else {
-                    // Legacy unencrypted backup -- insert normally (will encrypt)
-                    newId = repository.insertNote(note);
+            public void onFinished(int restored, Exception error) {
+                if (!isDestroyed() && progressDialog.isShowing()) {
+                    progressDialog.dismiss();
                 }
-                if (newId > 0) {
-                    restoredCount++;
+                if (error != null) {
+                    Toast.makeText(SettingsActivity.this, getString(R.string.restore_failed) + ": "
+                            + error.getMessage(), Toast.LENGTH_SHORT).show();
+                    return;
                 }
-            }
-
-            Toast.makeText(this, getString(R.string.restore_success) + " (" + restoredCount + " notes)",
-                    Toast.LENGTH_SHORT).show();
-
-            // Trigger cloud sync after restore so restored notes get uploaded
-            try {
-                if (PrefsManager.getInstance(this).isCloudSyncEnabled()
-                        && FirebaseAuthManager.getInstance(this).isLoggedIn()
-                        && SessionManager.getInstance(this).isSessionValid()) {
-                    CloudSyncManager.getInstance(this).syncOnAppStart(new CloudSyncManager.SyncCallback() {
-                        public void onSyncComplete(boolean success) {
-                            // Sync done silently after restore
-                        }
-                    });
+                Toast.makeText(SettingsActivity.this, getString(R.string.restore_success)
+                        + " (" + restored + " notes)", Toast.LENGTH_SHORT).show();
+
+                // Trigger a full cloud sync after restore so restored notes get uploaded
+                try {
+                    if (PrefsManager.getInstance(SettingsActivity.this).isCloudSyncEnabled()
+                            && FirebaseAuthManager.getInstance(SettingsActivity.this).isLoggedIn()
+                            && SessionManager.getInstance(SettingsActivity.this).isSessionValid()) {
+                        CloudSyncManager.getInstance(SettingsActivity.this).fullSync(
+                                new CloudSyncManager.SyncCallback() {
+                                    public void onSyncComplete(boolean success) {
+                                        // Sync done silently after restore
+                                    }
+                                }, null);
+                    }
+                } catch (Exception e) {
+                    // Cloud sync failure must not crash the app
                 }
-            } catch (Exception e) {
-                // Cloud sync failure must not crash the app
             }
-
-        } catch (Exception e) {
-            Toast.makeText(this, getString(R.string.restore_failed) + ": " + e.getMessage(),
-                    Toast.LENGTH_SHORT).show();
-        }
+        };
     }
 }
@@ -38,13 +38,24 @@ public class AnalysisNotesTab {
      * Build notes view for single or multiple dates.
      */
     public View buildForDates(List dates) {
-        List notes;
+        return buildFromNotes(loadForDates(dates));
+    }
+
+    /**
+     * Query and decrypt the notes for the given dates. Touches no views, so it
+     * can run on a background thread (see CalendarAnalysisActivity).
+     */
+    public List loadForDates(List dates) {
         if (dates.size() == 1) {
-            notes = dataProvider.getNotesForDate((String) dates.get(0));
-        } else {
-            notes = dataProvider.getNotesForDates(dates);
+            return dataProvider.getNotesForDate((String) dates.get(0));
         }
+        return dataProvider.getNotesForDates(dates);
+    }
 
+    /**
+     * Build the notes list view from already loaded notes. Main thread only.
+     */
+    public View buildFromNotes(List notes) {
         if (notes.isEmpty()) {
             return buildEmptyView(context.getString(R.string.analysis_no_notes));
         }
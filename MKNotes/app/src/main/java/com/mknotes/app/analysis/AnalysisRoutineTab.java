@@ -35,13 +35,24 @@ public class AnalysisRoutineTab {
      * Build routine view for single or multiple dates.
      */
     public View buildForDates(List dates) {
-        List routineNotes;
+        return buildFromRoutines(loadForDates(dates));
+    }
+
+    /**
+     * Query and decrypt the routine notes for the given dates. Touches no views, so it
+     * can run on a background thread (see CalendarAnalysisActivity).
+     */
+    public List loadForDates(List dates) {
         if (dates.size() == 1) {
-            routineNotes = dataProvider.getRoutineNotesForDate((String) dates.get(0));
-        } else {
-            routineNotes = dataProvider.getRoutineNotesForDates(dates);
+            return dataProvider.getRoutineNotesForDate((String) dates.get(0));
         }
+        return dataProvider.getRoutineNotesForDates(dates);
+    }
 
+    /**
+     * Build the routine list view from already loaded notes. Main thread only.
+     */
+    public View buildFromRoutines(List routineNotes) {
         if (routineNotes.isEmpty()) {
             return buildEmptyView(context.getString(R.string.analysis_no_routine));
         }
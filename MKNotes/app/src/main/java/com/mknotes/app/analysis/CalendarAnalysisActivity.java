@@ -19,6 +19,7 @@ import android.widget.Toast;
 
 import com.mknotes.app.R;
 import com.mknotes.app.MasterPasswordActivity;
+import com.mknotes.app.db.AsyncRepository;
 import com.mknotes.app.db.MoodRepository;
 import com.mknotes.app.model.NoteMood;
 import com.mknotes.app.mood.MoodBarChartView;
@@ -32,6 +33,8 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
 
 /**
  * Calendar Analysis Activity.
@@ -89,6 +92,12 @@ public class CalendarAnalysisActivity extends Activity {
     private boolean isWeekGraph = true; // true=week, false=month
 
     private MoodRepository moodRepo;
+    private AsyncRepository asyncRepo;
+
+    // In-flight background loads; a newer request supersedes the older one
+    private Future pendingContent;
+    private Future pendingEmojis;
+    private Future pendingGraph;
 
     // State
     private int currentMode = AnalysisCalendarView.MODE_DATE;
@@ -104,6 +113,7 @@ public class CalendarAnalysisActivity extends Activity {
         getWindow().setStatusBarColor(0xFF0D0D12);
 
         moodRepo = MoodRepository.getInstance(this);
+        asyncRepo = AsyncRepository.getInstance(this);
 
         initViews();
         initTabBuilders();
@@ -373,22 +383,36 @@ public class CalendarAnalysisActivity extends Activity {
     }
 
     private void loadMoodEmojisForDisplayedMonth() {
-        int month = calendarView.getDisplayMonth() + 1; // 0-indexed to 1-indexed
-        int year = calendarView.getDisplayYear();
-
-        Calendar cal = Calendar.getInstance();
-        cal.set(year, month - 1, 1);
-        int maxDay = cal.getActualMaximum(Calendar.DAY_OF_MONTH);
+        final int month = calendarView.getDisplayMonth() + 1; // 0-indexed to 1-indexed
+        final int year = calendarView.getDisplayYear();
 
-        Map emojiMap = new HashMap();
-        for (int d = 1; d <= maxDay; d++) {
-            String dateStr = String.format(Locale.US, "%04d-%02d-%02d", year, month, d);
-            NoteMood primary = moodRepo.getPrimaryMoodForDate(dateStr);
-            if (primary != null && primary.getEmojiUnicode() != null && primary.getEmojiUnicode().length() > 0) {
-                emojiMap.put(dateStr, primary.getEmojiUnicode());
-            }
+        if (pendingEmojis != null) {
+            pendingEmojis.cancel(false);
         }
-        calendarView.setMoodEmojiMap(emojiMap);
+        pendingEmojis = asyncRepo.read(this, new Callable() {
+            public Object call() {
+                Calendar cal = Calendar.getInstance();
+                cal.set(year, month - 1, 1);
+                int maxDay = cal.getActualMaximum(Calendar.DAY_OF_MONTH);
+
+                Map emojiMap = new HashMap();
+                for (int d = 1; d <= maxDay; d++) {
+                    String dateStr = String.format(Locale.US, "%04d-%02d-%02d", year, month, d);
+                    NoteMood primary = moodRepo.getPrimaryMoodForDate(dateStr);
+                    if (primary != null && primary.getEmojiUnicode() != null && primary.getEmojiUnicode().length() > 0) {
+                        emojiMap.put(dateStr, primary.getEmojiUnicode());
+                    }
+                }
+                return emojiMap;
+            }
+        }, new AsyncRepository.Callback() {
+            public void onResult(Object result) {
+                pendingEmojis = null;
+                if (result != null) {
+                    calendarView.setMoodEmojiMap((Map) result);
+                }
+            }
+        });
     }
 
     // ============ MOOD GRAPH SECTION ============
@@ -504,15 +528,41 @@ public class CalendarAnalysisActivity extends Activity {
     private void refreshMoodGraph() {
         graphContainer.removeAllViews();
 
-        if (isWeekGraph) {
-            // Get start of current week (Monday)
-            Calendar cal = Calendar.getInstance();
-            cal.set(Calendar.DAY_OF_WEEK, Calendar.MONDAY);
-            SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd", Locale.US);
-            String startDate = sdf.format(cal.getTime());
-
-            float[] intensities = moodRepo.getWeekIntensities(startDate);
-            String[] emojis = moodRepo.getWeekEmojis(startDate);
+        final boolean week = isWeekGraph;
+        final int month = calendarView.getDisplayMonth() + 1;
+        final int year = calendarView.getDisplayYear();
+        if (pendingGraph != null) {
+            pendingGraph.cancel(false);
+        }
+        pendingGraph = asyncRepo.read(this, new Callable() {
+            public Object call() {
+                if (week) {
+                    // Get start of current week (Monday)
+                    Calendar cal = Calendar.getInstance();
+                    cal.set(Calendar.DAY_OF_WEEK, Calendar.MONDAY);
+                    SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd", Locale.US);
+                    String startDate = sdf.format(cal.getTime());
+                    return new Object[]{moodRepo.getWeekIntensities(startDate),
+                            moodRepo.getWeekEmojis(startDate)};
+                }
+                return new Object[]{moodRepo.getMonthIntensities(year, month),
+                        moodRepo.getMonthEmojis(year, month)};
+            }
+        }, new AsyncRepository.Callback() {
+            public void onResult(Object result) {
+                pendingGraph = null;
+                if (result != null) {
+                    Object[] data = (Object[]) result;
+                    showMoodGraph(week, year, month, (float[]) data[0], (String[]) data[1]);
+                }
+            }
+        });
+    }
+
+    private void showMoodGraph(boolean week, int year, int month, float[] intensities, String[] emojis) {
+        graphContainer.removeAllViews();
+
+        if (week) {
             String[] labels = {"Mon", "Tue", "Wed", "Thu", "Fri", "Sat", "Sun"};
 
             MoodBarChartView chart = new MoodBarChartView(this);
@@ -522,14 +572,7 @@ public class CalendarAnalysisActivity extends Activity {
             chart.setLayoutParams(chartLp);
             graphContainer.addView(chart);
         } else {
-            // Month graph
-            int month = calendarView.getDisplayMonth() + 1;
-            int year = calendarView.getDisplayYear();
-
-            float[] intensities = moodRepo.getMonthIntensities(year, month);
-            String[] emojis = moodRepo.getMonthEmojis(year, month);
-
-            // Create day labels (1, 2, 3, ...)
+            // Month graph: create day labels (1, 2, 3, ...)
             String[] labels = new String[intensities.length];
             for (int i = 0; i < labels.length; i++) {
                 labels[i] = String.valueOf(i + 1);
@@ -814,6 +857,21 @@ public class CalendarAnalysisActivity extends Activity {
 
     private void refreshContent() {
         contentArea.removeAllViews();
+        if (pendingContent != null) {
+            pendingContent.cancel(false);
+            pendingContent = null;
+        }
+
+        // Notes and Routine decrypt every matching note: load them in the background
+        if (currentTab == 0 || currentTab == 1) {
+            List dates = collectSelectedDates();
+            if (dates.isEmpty()) {
+                hideContent();
+                return;
+            }
+            refreshNoteListContent(dates);
+            return;
+        }
 
         View content = null;
 
@@ -871,6 +929,67 @@ public class CalendarAnalysisActivity extends Activity {
         }
     }
 
+    private void refreshNoteListContent(final List dates) {
+        final boolean routine = currentTab == 1;
+        pendingContent = asyncRepo.read(this, new Callable() {
+            public Object call() {
+                return routine ? routineTab.loadForDates(dates) : notesTab.loadForDates(dates);
+            }
+        }, new AsyncRepository.Callback() {
+            public void onResult(Object result) {
+                pendingContent = null;
+                List notes = result != null ? (List) result : new ArrayList();
+                View content = routine ? routineTab.buildFromRoutines(notes) : notesTab.buildFromNotes(notes);
+                contentArea.removeAllViews();
+                contentArea.addView(content);
+                emptyState.setVisibility(View.GONE);
+            }
+        });
+    }
+
+    /**
+     * Expand the current selection (dates, months or years) into yyyy-MM-dd dates.
+     */
+    private List collectSelectedDates() {
+        List dates = new ArrayList();
+        if (currentMode == AnalysisCalendarView.MODE_DATE) {
+            dates.addAll(calendarView.getSelectedDates());
+        } else if (currentMode == AnalysisCalendarView.MODE_MONTH) {
+            List monthKeys = calendarView.getSelectedMonthKeys();
+            for (int i = 0; i < monthKeys.size(); i++) {
+                String key = (String) monthKeys.get(i);
+                try {
+                    addMonthDates(dates, Integer.parseInt(key.substring(0, 4)),
+                            Integer.parseInt(key.substring(5, 7)));
+                } catch (Exception e) {
+                    // skip invalid
+                }
+            }
+        } else {
+            List yearKeys = calendarView.getSelectedYearKeys();
+            for (int i = 0; i < yearKeys.size(); i++) {
+                try {
+                    int year = Integer.parseInt((String) yearKeys.get(i));
+                    for (int m = 1; m <= 12; m++) {
+                        addMonthDates(dates, year, m);
+                    }
+                } catch (NumberFormatException e) {
+                    // skip invalid
+                }
+            }
+        }
+        return dates;
+    }
+
+    private void addMonthDates(List dates, int year, int month) {
+        Calendar cal = Calendar.getInstance();
+        cal.set(year, month - 1, 1);
+        int maxDay = cal.getActualMaximum(Calendar.DAY_OF_MONTH);
+        for (int d = 1; d <= maxDay; d++) {
+            dates.add(String.format(Locale.US, "%04d-%02d-%02d", year, month, d));
+        }
+    }
+
     // ============ CONTENT BUILDERS BY MODE ============
 
     private View buildDateContent(List dates) {
@@ -958,6 +1077,11 @@ public class CalendarAnalysisActivity extends Activity {
         }
     }
 
+    protected void onDestroy() {
+        super.onDestroy();
+        asyncRepo.cancelAll(this);
+    }
+
     // ============ UTILITY ============
 
     private int dpPx(int dp) {
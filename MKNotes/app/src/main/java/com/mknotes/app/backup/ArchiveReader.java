@@ -0,0 +1,731 @@
+package com.mknotes.app.backup;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.os.Handler;
+import android.util.JsonReader;
+import android.util.JsonToken;
+import android.util.Log;
+
+import com.mknotes.app.db.ActivitySyncRepository;
+import com.mknotes.app.db.BackupRepository;
+import com.mknotes.app.db.NotesDatabaseHelper;
+import com.mknotes.app.db.NotesRepository;
+import com.mknotes.app.model.Note;
+import com.mknotes.app.util.AttachmentConverter;
+import com.mknotes.app.util.AttachmentManager;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+/**
+ * Restores a backup archive (see BackupArchive) in one pass over the zip.
+ * Rows are inserted in batches of BATCH_SIZE per transaction, and ids from
+ * the archive are mapped to the new ids as entries are read: category and
+ * mantra references, note links, moods and attachment directories all point
+ * at the restored rows.
+ *
+ * Like the JSON restore, existing data is kept and the backup is added to
+ * it. Categories with the same name and mantras with the same cloud id
+ * (built-in mantras on every device) are reused instead of duplicated; the
+ * sessions, history and count logs of a reused mantra are left to cloud sync.
+ *
+ * An incremental backup set is restored by calling read() for the full
+ * archive and then for each delta in sequence order with the same reader;
+ * a delta updates the rows it restored earlier and deletes the ones listed
+ * in its deletions. finish() completes the restore.
+ *
+ * All or nothing: on failure the caller calls rollback(), which deletes
+ * everything inserted so far again.
+ */
+final class ArchiveReader {
+
+    private static final String TAG = "ArchiveReader";
+
+    /** Rows inserted per transaction. */
+    private static final int BATCH_SIZE = 200;
+    /** Bytes per FileChannel transfer. */
+    private static final long TRANSFER_SIZE = 64 * 1024;
+
+    private final Context context;
+    private final Handler mainHandler;
+    private final NotesRepository notesRepository;
+    private final BackupRepository backupRepository;
+
+    private BackupImporter.Listener listener;
+    private int done;
+    private int total;
+
+    // Archive id (Long) -> new id (Long)
+    private final Map noteIds = new HashMap();
+    /** Table -> Map archive id -> new id. */
+    private final Map rowIds = new HashMap();
+    /** Table -> Set of archive ids of rows that exist here already. */
+    private final Map reusedRows = new HashMap();
+    /** New note id (Long) -> linked ids JSON with archive ids. */
+    private final Map links = new HashMap();
+
+    // Undo of a failed restore: table -> Set of Long ids
+    private final Map insertedRows = new LinkedHashMap();
+    private final Set insertedNotes = new LinkedHashSet();
+
+    /** Set and sequence number of the last archive read; -1 before the first. */
+    private String setId;
+    private int sequence = -1;
+    /** The archive being read is a delta. */
+    private boolean delta;
+
+    int restoredNotes = 0;
+    String salt = "";
+    String verifyToken = "";
+    String wrappedKey = "";
+
+    ArchiveReader(Context context, Handler mainHandler) {
+        this.context = context;
+        this.mainHandler = mainHandler;
+        notesRepository = NotesRepository.getInstance(context);
+        backupRepository = BackupRepository.getInstance(context);
+    }
+
+    /**
+     * Restore the archive read from in (not closed). Runs on the calling
+     * thread. Credentials from the manifest are left in the salt,
+     * verifyToken and wrappedKey fields for the caller to apply.
+     *
+     * @param listener receives progress on the main thread; may be null
+     * @throws IOException if the archive is invalid, or a delta that does
+     *                     not follow the archive read before
+     */
+    void read(InputStream in, BackupImporter.Listener listener) throws IOException {
+        this.listener = listener;
+        ZipInputStream zip = new ZipInputStream(in);
+        try {
+            ZipEntry entry = zip.getNextEntry();
+            if (entry == null || !BackupArchive.ENTRY_MANIFEST.equals(entry.getName())) {
+                throw new IOException("Not a MKNotes backup");
+            }
+            boolean first = sequence < 0;
+            readManifest(jsonReader(zip));
+            if (first) {
+                // Local built-in mantras get the cloud ids the archive uses for them
+                ActivitySyncRepository.getInstance(context).assignMantraCloudIds();
+            }
+
+            while ((entry = zip.getNextEntry()) != null) {
+                String name = entry.getName();
+                if (BackupArchive.ENTRY_DELETIONS.equals(name)) {
+                    if (delta) {
+                        readDeletions(jsonReader(zip));
+                    }
+                } else if (BackupArchive.ENTRY_NOTES.equals(name)) {
+                    readNotes(jsonReader(zip));
+                } else if (name.startsWith(BackupArchive.ATTACHMENTS_PREFIX)) {
+                    readAttachment(zip, name);
+                } else {
+                    String table = tableOf(name);
+                    if (table != null) {
+                        readTable(jsonReader(zip), table);
+                    }
+                    // Entries of newer versions are skipped
+                }
+            }
+        } catch (RuntimeException e) {
+            // Malformed values and SQLException
+            throw new IOException(e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Complete the restore after the last archive: point note links at the
+     * restored notes.
+     *
+     * @return notes restored
+     */
+    int finish() throws IOException {
+        try {
+            applyLinks();
+        } catch (RuntimeException e) {
+            throw new IOException(e.getMessage(), e);
+        }
+        restoredNotes = noteIds.size();
+        return restoredNotes;
+    }
+
+    private static JsonReader jsonReader(ZipInputStream zip) throws IOException {
+        // Not closed: closing would close the zip. It ends at the end of the entry.
+        return new JsonReader(new InputStreamReader(zip, "UTF-8"));
+    }
+
+    private static String tableOf(String entryName) {
+        for (int i = 0; i < BackupArchive.TABLES_BEFORE_NOTES.length; i++) {
+            if (BackupArchive.entryName(BackupArchive.TABLES_BEFORE_NOTES[i]).equals(entryName)) {
+                return BackupArchive.TABLES_BEFORE_NOTES[i];
+            }
+        }
+        for (int i = 0; i < BackupArchive.TABLES_AFTER_NOTES.length; i++) {
+            if (BackupArchive.entryName(BackupArchive.TABLES_AFTER_NOTES[i]).equals(entryName)) {
+                return BackupArchive.TABLES_AFTER_NOTES[i];
+            }
+        }
+        return null;
+    }
+
+    // ============ MANIFEST ============
+
+    private void readManifest(JsonReader reader) throws IOException {
+        String appName = null;
+        String format = null;
+        long formatVersion = 0;
+        String type = BackupArchive.TYPE_FULL;
+        String archiveSetId = null;
+        int archiveSequence = 0;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if ("appName".equals(name)) {
+                appName = BackupImporter.readString(reader, "");
+            } else if ("format".equals(name)) {
+                format = BackupImporter.readString(reader, "");
+            } else if ("formatVersion".equals(name)) {
+                formatVersion = BackupImporter.readLong(reader, 0);
+            } else if ("type".equals(name)) {
+                type = BackupImporter.readString(reader, BackupArchive.TYPE_FULL);
+            } else if ("setId".equals(name)) {
+                archiveSetId = BackupImporter.readString(reader, null);
+            } else if ("sequence".equals(name)) {
+                archiveSequence = (int) BackupImporter.readLong(reader, 0);
+            } else if ("counts".equals(name) && reader.peek() == JsonToken.BEGIN_OBJECT) {
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    reader.nextName();
+                    total += (int) BackupImporter.readLong(reader, 0);
+                }
+                reader.endObject();
+            } else if ("salt".equals(name)) {
+                salt = BackupImporter.readString(reader, "");
+            } else if ("verifyToken".equals(name)) {
+                verifyToken = BackupImporter.readString(reader, "");
+            } else if ("wrappedKey".equals(name)) {
+                wrappedKey = BackupImporter.readString(reader, "");
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        if (!BackupArchive.APP_NAME.equals(appName) || !BackupArchive.FORMAT.equals(format)) {
+            throw new IOException("Not a MKNotes backup");
+        }
+        if (formatVersion > BackupArchive.FORMAT_VERSION) {
+            throw new IOException("Backup was made by a newer version of the app");
+        }
+        delta = BackupArchive.TYPE_DELTA.equals(type);
+        if (delta && (sequence < 0 || archiveSetId == null || !archiveSetId.equals(setId)
+                || archiveSequence != sequence + 1)) {
+            throw new IOException("Backup set is incomplete");
+        }
+        if (!delta && sequence >= 0) {
+            throw new IOException("Backup set is incomplete");
+        }
+        setId = archiveSetId;
+        sequence = archiveSequence;
+    }
+
+    // ============ NOTES ============
+
+    private void readNotes(JsonReader reader) throws IOException {
+        List batch = new ArrayList();
+        List archiveIds = new ArrayList();
+        List updates = new ArrayList();
+        List updateIds = new ArrayList();
+        boolean[] encrypted = new boolean[1];
+        Map categoryIds = idsOf(NotesDatabaseHelper.TABLE_CATEGORIES);
+        reader.beginArray();
+        while (reader.hasNext()) {
+            // Archive notes are always written as stored (encrypted)
+            Note note = BackupImporter.readNote(reader, encrypted);
+            Long archiveId = Long.valueOf(note.getId());
+            note.setCategoryId(mapped(categoryIds, note.getCategoryId()));
+            Object id = noteIds.get(archiveId);
+            if (id != null) {
+                // Changed in a delta after an earlier archive restored it
+                updates.add(note);
+                updateIds.add(id);
+                if (updates.size() >= BATCH_SIZE) {
+                    updateNotes(updates, updateIds);
+                }
+            } else {
+                batch.add(note);
+                archiveIds.add(archiveId);
+                if (batch.size() >= BATCH_SIZE) {
+                    insertNotes(batch, archiveIds);
+                }
+            }
+        }
+        reader.endArray();
+        insertNotes(batch, archiveIds);
+        updateNotes(updates, updateIds);
+    }
+
+    /**
+     * Insert a batch of notes as stored in the archive (encrypted fields
+     * stay encrypted) and clear it.
+     */
+    private void insertNotes(List batch, List archiveIds) {
+        if (batch.isEmpty()) return;
+        long[] ids = notesRepository.insertNotesRaw(batch);
+        for (int i = 0; i < ids.length; i++) {
+            Long id = Long.valueOf(ids[i]);
+            insertedNotes.add(id);
+            noteIds.put(archiveIds.get(i), id);
+            putLinks(id, (Note) batch.get(i));
+        }
+        progress(ids.length);
+        batch.clear();
+        archiveIds.clear();
+    }
+
+    private void updateNotes(List batch, List ids) {
+        if (batch.isEmpty()) return;
+        notesRepository.updateNotesRaw(toArray(ids), batch);
+        for (int i = 0; i < ids.size(); i++) {
+            putLinks((Long) ids.get(i), (Note) batch.get(i));
+        }
+        progress(batch.size());
+        batch.clear();
+        ids.clear();
+    }
+
+    private void putLinks(Long id, Note note) {
+        String linked = note.getLinkedNoteIds();
+        if (linked != null && linked.length() > 2) {
+            links.put(id, linked);
+        } else {
+            links.remove(id);
+        }
+    }
+
+    /**
+     * Point note links at the restored notes. Links to notes that are not in
+     * the archive are dropped. Done last, as links may refer to later notes
+     * and deltas may change them.
+     */
+    private void applyLinks() {
+        if (links.isEmpty()) return;
+        Map remapped = new HashMap();
+        Iterator it = links.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry entry = (Map.Entry) it.next();
+            List archiveLinks = AttachmentConverter.jsonToIds((String) entry.getValue());
+            List newLinks = new ArrayList();
+            for (int i = 0; i < archiveLinks.size(); i++) {
+                Object id = noteIds.get(archiveLinks.get(i));
+                if (id != null) {
+                    newLinks.add(id);
+                }
+            }
+            remapped.put(entry.getKey(), AttachmentConverter.idsToJson(newLinks));
+        }
+        notesRepository.updateLinkedNoteIds(remapped);
+    }
+
+    // ============ TABLE ROWS ============
+
+    private void readTable(JsonReader reader, String table) throws IOException {
+        Set columns = backupRepository.getColumns(table);
+        Map ids = idsOf(table);
+        List batch = new ArrayList();
+        List archiveIds = new ArrayList();
+        List updates = new ArrayList();
+        List updateIds = new ArrayList();
+        reader.beginArray();
+        while (reader.hasNext()) {
+            ContentValues values = new ContentValues();
+            Long archiveId = Long.valueOf(readRow(reader, columns, values));
+            Object id = ids.get(archiveId);
+            if (isReused(table, archiveId) || !prepareRow(table, archiveId.longValue(), values, id == null)) {
+                progress(1);
+            } else if (id != null) {
+                // Changed in a delta after an earlier archive restored it
+                updates.add(values);
+                updateIds.add(id);
+                if (updates.size() >= BATCH_SIZE) {
+                    updateRows(table, updates, updateIds);
+                }
+            } else {
+                batch.add(values);
+                archiveIds.add(archiveId);
+                if (batch.size() >= BATCH_SIZE) {
+                    insertRows(table, batch, archiveIds);
+                }
+            }
+        }
+        reader.endArray();
+        insertRows(table, batch, archiveIds);
+        updateRows(table, updates, updateIds);
+    }
+
+    /**
+     * Read one row object into values, keeping only columns of this schema.
+     *
+     * @return the row's _id in the archive, or -1
+     */
+    private static long readRow(JsonReader reader, Set columns, ContentValues values) throws IOException {
+        long archiveId = -1;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String column = reader.nextName();
+            if (NotesDatabaseHelper.COL_ID.equals(column)) {
+                archiveId = BackupImporter.readLong(reader, -1);
+                continue;
+            }
+            if (!columns.contains(column)) {
+                reader.skipValue();
+                continue;
+            }
+            JsonToken token = reader.peek();
+            if (token == JsonToken.NULL) {
+                reader.nextNull();
+                values.putNull(column);
+            } else if (token == JsonToken.NUMBER) {
+                String number = reader.nextString();
+                try {
+                    values.put(column, Long.valueOf(Long.parseLong(number)));
+                } catch (NumberFormatException e) {
+                    values.put(column, Double.valueOf(number));
+                }
+            } else if (token == JsonToken.BOOLEAN) {
+                values.put(column, Integer.valueOf(reader.nextBoolean() ? 1 : 0));
+            } else if (token == JsonToken.STRING) {
+                values.put(column, reader.nextString());
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        return archiveId;
+    }
+
+    /**
+     * Map the references of a row to new ids and mark it for sync. A new
+     * category or mantra that exists here already is reused instead.
+     *
+     * @param isNew the row was not restored from an earlier archive
+     * @return false to skip the row
+     */
+    private boolean prepareRow(String table, long archiveId, ContentValues values, boolean isNew) {
+        if (NotesDatabaseHelper.TABLE_CATEGORIES.equals(table)) {
+            if (isNew && reuse(table, archiveId, NotesDatabaseHelper.COL_CAT_NAME, values)) {
+                return false;
+            }
+        } else if (NotesDatabaseHelper.TABLE_MANTRAS.equals(table)) {
+            if (isNew && reuse(table, archiveId, NotesDatabaseHelper.COL_MANTRA_CLOUD_ID, values)) {
+                return false;
+            }
+            Long noteId = values.getAsLong(NotesDatabaseHelper.COL_MANTRA_NOTE_ID);
+            if (noteId != null) {
+                values.put(NotesDatabaseHelper.COL_MANTRA_NOTE_ID, mapped(noteIds, noteId.longValue()));
+            }
+        } else if (NotesDatabaseHelper.TABLE_NOTE_MOODS.equals(table)) {
+            if (!remap(values, NotesDatabaseHelper.COL_MOOD_NOTE_ID, noteIds)) {
+                return false;
+            }
+        } else {
+            // Sessions, history and count logs belong to a mantra
+            String column = mantraColumnOf(table);
+            Long mantraId = values.getAsLong(column);
+            if (mantraId == null || isReused(NotesDatabaseHelper.TABLE_MANTRAS, mantraId)
+                    || !remap(values, column, idsOf(NotesDatabaseHelper.TABLE_MANTRAS))) {
+                return false;
+            }
+        }
+        if (values.containsKey(NotesDatabaseHelper.COL_ROW_SYNC_STATUS)) {
+            values.put(NotesDatabaseHelper.COL_ROW_SYNC_STATUS, Note.SYNC_STATUS_PENDING);
+        }
+        return true;
+    }
+
+    /**
+     * Map the row to an existing one with the same value of column, if any.
+     */
+    private boolean reuse(String table, long archiveId, String column, ContentValues values) {
+        long existing = backupRepository.findId(table, column, values.getAsString(column));
+        if (existing <= 0) return false;
+        Long key = Long.valueOf(archiveId);
+        idsOf(table).put(key, Long.valueOf(existing));
+        Set reused = (Set) reusedRows.get(table);
+        if (reused == null) {
+            reused = new HashSet();
+            reusedRows.put(table, reused);
+        }
+        reused.add(key);
+        return true;
+    }
+
+    private boolean isReused(String table, Long archiveId) {
+        Set reused = (Set) reusedRows.get(table);
+        return reused != null && reused.contains(archiveId);
+    }
+
+    private Map idsOf(String table) {
+        Map ids = (Map) rowIds.get(table);
+        if (ids == null) {
+            ids = new HashMap();
+            rowIds.put(table, ids);
+        }
+        return ids;
+    }
+
+    private static String mantraColumnOf(String table) {
+        if (NotesDatabaseHelper.TABLE_DAILY_SESSIONS.equals(table)) {
+            return NotesDatabaseHelper.COL_SESSION_MANTRA_ID;
+        } else if (NotesDatabaseHelper.TABLE_MANTRA_HISTORY.equals(table)) {
+            return NotesDatabaseHelper.COL_HIST_MANTRA_ID;
+        }
+        return NotesDatabaseHelper.COL_LOG_MANTRA_ID;
+    }
+
+    /**
+     * Replace an archive id column by the new id.
+     *
+     * @return false if the referenced row was not restored
+     */
+    private static boolean remap(ContentValues values, String column, Map ids) {
+        Long archiveId = values.getAsLong(column);
+        Object id = archiveId != null ? ids.get(archiveId) : null;
+        if (id == null) return false;
+        values.put(column, (Long) id);
+        return true;
+    }
+
+    /**
+     * New id for an archive id, or -1 (none) if the row was not restored.
+     */
+    private static long mapped(Map ids, long archiveId) {
+        Object id = ids.get(Long.valueOf(archiveId));
+        return id != null ? ((Long) id).longValue() : -1;
+    }
+
+    private void insertRows(String table, List batch, List archiveIds) {
+        if (batch.isEmpty()) return;
+        long[] ids = backupRepository.insertRows(table, batch);
+        Set inserted = insertedOf(table);
+        Map idMap = idsOf(table);
+        for (int i = 0; i < ids.length; i++) {
+            inserted.add(Long.valueOf(ids[i]));
+            idMap.put(archiveIds.get(i), Long.valueOf(ids[i]));
+        }
+        progress(ids.length);
+        batch.clear();
+        archiveIds.clear();
+    }
+
+    private void updateRows(String table, List batch, List ids) {
+        if (batch.isEmpty()) return;
+        backupRepository.updateRows(table, toArray(ids), batch);
+        progress(batch.size());
+        batch.clear();
+        ids.clear();
+    }
+
+    private Set insertedOf(String table) {
+        Set inserted = (Set) insertedRows.get(table);
+        if (inserted == null) {
+            inserted = new LinkedHashSet();
+            insertedRows.put(table, inserted);
+        }
+        return inserted;
+    }
+
+    // ============ DELETIONS ============
+
+    /**
+     * Delete what a delta lists as deleted since the previous archive. Only
+     * rows and files this restore added are affected; reused categories and
+     * mantras are kept.
+     */
+    private void readDeletions(JsonReader reader) throws IOException {
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if ("notes".equals(name) && reader.peek() == JsonToken.BEGIN_ARRAY) {
+                List ids = unmap(readIds(reader), noteIds);
+                for (int i = 0; i < ids.size(); i++) {
+                    Long id = (Long) ids.get(i);
+                    AttachmentManager.deleteAllAttachments(context, id.longValue());
+                    insertedNotes.remove(id);
+                    links.remove(id);
+                }
+                notesRepository.deleteNotes(toArray(ids));
+            } else if ("rows".equals(name) && reader.peek() == JsonToken.BEGIN_OBJECT) {
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    String table = tableOf(BackupArchive.entryName(reader.nextName()));
+                    if (table == null || reader.peek() != JsonToken.BEGIN_ARRAY) {
+                        reader.skipValue();
+                        continue;
+                    }
+                    List archiveIds = readIds(reader);
+                    Set reused = (Set) reusedRows.get(table);
+                    if (reused != null) {
+                        archiveIds.removeAll(reused);
+                    }
+                    List ids = unmap(archiveIds, idsOf(table));
+                    insertedOf(table).removeAll(ids);
+                    backupRepository.deleteRows(table, toArray(ids));
+                }
+                reader.endObject();
+            } else if ("attachments".equals(name) && reader.peek() == JsonToken.BEGIN_ARRAY) {
+                reader.beginArray();
+                while (reader.hasNext()) {
+                    File file = attachmentFile(BackupImporter.readString(reader, ""));
+                    if (file != null) {
+                        file.delete();
+                    }
+                }
+                reader.endArray();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+    }
+
+    private static List readIds(JsonReader reader) throws IOException {
+        List ids = new ArrayList();
+        reader.beginArray();
+        while (reader.hasNext()) {
+            long id = BackupImporter.readLong(reader, -1);
+            if (id >= 0) {
+                ids.add(Long.valueOf(id));
+            }
+        }
+        reader.endArray();
+        return ids;
+    }
+
+    /**
+     * Remove archive ids from a map.
+     *
+     * @return the new ids of the ones restored
+     */
+    private static List unmap(List archiveIds, Map ids) {
+        List removed = new ArrayList();
+        for (int i = 0; i < archiveIds.size(); i++) {
+            Object id = ids.remove(archiveIds.get(i));
+            if (id != null) {
+                removed.add(id);
+            }
+        }
+        return removed;
+    }
+
+    // ============ ATTACHMENTS ============
+
+    /**
+     * Copy an attachment entry into the restored note's directory.
+     * Entries of notes not restored and unexpected paths are skipped.
+     */
+    private void readAttachment(ZipInputStream zip, String entryName) throws IOException {
+        File target = attachmentFile(entryName.substring(BackupArchive.ATTACHMENTS_PREFIX.length()));
+        if (target == null) return;
+        FileOutputStream out = new FileOutputStream(target);
+        try {
+            // Not closed: closing would close the zip
+            ReadableByteChannel source = Channels.newChannel(zip);
+            FileChannel channel = out.getChannel();
+            long position = 0;
+            long count;
+            while ((count = channel.transferFrom(source, position, TRANSFER_SIZE)) > 0) {
+                position += count;
+            }
+        } finally {
+            out.close();
+        }
+        progress(1);
+    }
+
+    /**
+     * File of the restored note for an attachment path (see
+     * BackupArchive.attachmentPath()), or null if the note was not restored
+     * or the path is unexpected.
+     */
+    private File attachmentFile(String path) {
+        String[] parts = path.split("/");
+        if (parts.length != 3 || !AttachmentManager.isAttachmentSubDir(parts[1])
+                || !AttachmentManager.isValidLocalName(parts[2])) {
+            return null;
+        }
+        long noteId;
+        try {
+            noteId = mapped(noteIds, Long.parseLong(parts[0]));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        if (noteId <= 0) return null;
+        return AttachmentManager.getAttachmentFile(context, noteId, parts[1], parts[2]);
+    }
+
+    // ============ ROLLBACK ============
+
+    /**
+     * Delete everything this restore added, newest tables first. Can be
+     * called more than once.
+     */
+    void rollback() {
+        try {
+            Iterator it = insertedNotes.iterator();
+            while (it.hasNext()) {
+                AttachmentManager.deleteAllAttachments(context, ((Long) it.next()).longValue());
+            }
+            List tables = new ArrayList(insertedRows.keySet());
+            for (int i = tables.size() - 1; i >= 0; i--) {
+                backupRepository.deleteRows((String) tables.get(i),
+                        toArray(new ArrayList((Set) insertedRows.get(tables.get(i)))));
+            }
+            notesRepository.deleteNotes(toArray(new ArrayList(insertedNotes)));
+        } catch (Exception e) {
+            Log.e(TAG, "Rollback failed: " + e.getMessage());
+        }
+        insertedRows.clear();
+        insertedNotes.clear();
+        restoredNotes = 0;
+    }
+
+    private static long[] toArray(List ids) {
+        long[] array = new long[ids.size()];
+        for (int i = 0; i < array.length; i++) {
+            array[i] = ((Long) ids.get(i)).longValue();
+        }
+        return array;
+    }
+
+    private void progress(int count) {
+        done += count;
+        if (listener == null) return;
+        final BackupImporter.Listener target = listener;
+        final int progress = done;
+        final int max = total > 0 ? Math.max(total, done) : 0;
+        mainHandler.post(new Runnable() {
+            public void run() {
+                target.onProgress(progress, max);
+            }
+        });
+    }
+}
@@ -0,0 +1,517 @@
+package com.mknotes.app.backup;
+
+import android.content.Context;
+import android.os.Handler;
+
+import com.mknotes.app.db.BackupRepository;
+import com.mknotes.app.db.NotesDatabaseHelper;
+import com.mknotes.app.db.NotesRepository;
+import com.mknotes.app.model.Note;
+import com.mknotes.app.util.AttachmentManager;
+import com.mknotes.app.util.SessionManager;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Writes the backup archive (see BackupArchive) to a stream: table rows and
+ * notes are paged from the database and streamed into their entries, and
+ * attachment files are copied into the zip through a FileChannel, so memory
+ * use does not grow with the library.
+ *
+ * Notes are exported as stored (encrypted fields stay encrypted). The other
+ * tables and the attachment files are not encrypted on the device either
+ * and are exported as they are.
+ *
+ * For an incremental backup, scan() first hashes every record and file and
+ * compares them with the index of the previous archive of the set; write()
+ * then emits only what changed, plus the deletions. Without a previous index
+ * the archive is the full base of a new set. Changed credentials alone also
+ * make a delta, since every manifest carries them. Records changed between the
+ * two passes are written as they are at write time and sent again by the
+ * next backup, as their hash no longer matches the index.
+ */
+final class ArchiveWriter {
+
+    /** Rows read per query. */
+    private static final int PAGE_SIZE = 50;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final Context context;
+    private final Handler mainHandler;
+    private final NotesRepository notesRepository;
+    private final BackupRepository backupRepository;
+    /** Index of the previous archive of the set; null for a full archive. */
+    private final BackupIndex previous;
+
+    private BackupExporter.Listener listener;
+    private int done;
+    private int total;
+
+    // Filled in by scan(); null sets mean everything
+    private BackupIndex index;
+    private Set changedNotes;
+    /** Table -> Set of Long ids. */
+    private Map changedRows;
+    /** Attachments as listed by listAttachments(). */
+    private List changedAttachments;
+    private final List deletedNotes = new ArrayList();
+    /** Table -> List of Long ids. */
+    private final Map deletedRows = new HashMap();
+    private final List deletedAttachments = new ArrayList();
+
+    // Hashing of records: digest of what BackupJsonWriter writes
+    private final MessageDigest digest = BackupIndex.newDigest();
+    private Writer hashWriter;
+
+    ArchiveWriter(Context context, Handler mainHandler) {
+        this(context, mainHandler, null);
+    }
+
+    ArchiveWriter(Context context, Handler mainHandler, BackupIndex previous) {
+        this.context = context;
+        this.mainHandler = mainHandler;
+        this.previous = previous;
+        notesRepository = NotesRepository.getInstance(context);
+        backupRepository = BackupRepository.getInstance(context);
+    }
+
+    // ============ SCAN ============
+
+    /**
+     * Hash everything and compare with the previous index, building the
+     * index of the archive to write. Runs on the calling thread.
+     */
+    void scan() throws IOException {
+        index = previous != null
+                ? new BackupIndex(previous.setId, previous.sequence + 1)
+                : new BackupIndex(UUID.randomUUID().toString(), 0);
+        if (previous != null) {
+            changedNotes = new HashSet();
+            changedRows = new HashMap();
+            changedAttachments = new ArrayList();
+        }
+
+        BackupJsonWriter credentials = beginHash();
+        credentials.beginObject();
+        BackupExporter.writeCredentials(credentials, SessionManager.getInstance(context));
+        credentials.endObject();
+        index.credentialsHash = endHash(credentials);
+
+        long lastId = -1;
+        List page;
+        while (!(page = notesRepository.getNotesRawAfter(lastId, PAGE_SIZE)).isEmpty()) {
+            for (int i = 0; i < page.size(); i++) {
+                Note note = (Note) page.get(i);
+                BackupJsonWriter json = beginHash();
+                BackupExporter.writeNote(json, note);
+                String hash = endHash(json);
+                index.notes.put(Long.valueOf(note.getId()),
+                        new BackupIndex.Entry(-1, note.getModifiedAt(), hash));
+                if (previous != null && !hash.equals(previous.noteHash(note.getId()))) {
+                    changedNotes.add(Long.valueOf(note.getId()));
+                }
+                lastId = note.getId();
+            }
+        }
+
+        for (int t = 0; t < tableCount(); t++) {
+            String table = tableAt(t);
+            Set changed = new HashSet();
+            lastId = -1;
+            while (!(page = backupRepository.getRowsAfter(table, lastId, PAGE_SIZE)).isEmpty()) {
+                for (int i = 0; i < page.size(); i++) {
+                    Map row = (Map) page.get(i);
+                    lastId = ((Long) row.get(NotesDatabaseHelper.COL_ID)).longValue();
+                    BackupJsonWriter json = beginHash();
+                    writeRow(json, row);
+                    String hash = endHash(json);
+                    index.putRow(table, lastId, hash);
+                    if (previous != null && !hash.equals(previous.rowHash(table, lastId))) {
+                        changed.add(Long.valueOf(lastId));
+                    }
+                }
+            }
+            if (previous != null) {
+                changedRows.put(table, changed);
+            }
+        }
+
+        List attachments = listAttachments();
+        for (int i = 0; i < attachments.size(); i++) {
+            Object[] attachment = (Object[]) attachments.get(i);
+            File file = (File) attachment[3];
+            String path = pathOf(attachment);
+            long size = file.length();
+            long modified = file.lastModified();
+            BackupIndex.Entry old = previous != null
+                    ? (BackupIndex.Entry) previous.attachments.get(path) : null;
+            String hash;
+            if (old != null && old.size == size && old.modified == modified) {
+                // Unchanged size and time: not read again
+                hash = old.hash;
+            } else {
+                try {
+                    hash = hashFile(file);
+                } catch (IOException e) {
+                    // Deleted since it was listed
+                    continue;
+                }
+            }
+            index.attachments.put(path, new BackupIndex.Entry(size, modified, hash));
+            if (previous != null && (old == null || !hash.equals(old.hash))) {
+                changedAttachments.add(attachment);
+            }
+        }
+
+        if (previous != null) {
+            collectDeleted(previous.notes, index.notes, deletedNotes);
+            for (int t = 0; t < tableCount(); t++) {
+                String table = tableAt(t);
+                Map before = (Map) previous.rows.get(table);
+                Map now = (Map) index.rows.get(table);
+                List deleted = new ArrayList();
+                collectDeleted(before, now, deleted);
+                if (!deleted.isEmpty()) {
+                    deletedRows.put(table, deleted);
+                }
+            }
+            collectDeleted(previous.attachments, index.attachments, deletedAttachments);
+        }
+    }
+
+    private static void collectDeleted(Map before, Map now, List deleted) {
+        if (before == null) return;
+        Iterator it = before.keySet().iterator();
+        while (it.hasNext()) {
+            Object key = it.next();
+            if (now == null || !now.containsKey(key)) {
+                deleted.add(key);
+            }
+        }
+    }
+
+    /**
+     * Whether the scanned archive would hold anything; a delta without
+     * changes need not be written.
+     */
+    boolean hasChanges() {
+        if (previous == null) return true;
+        if (!index.credentialsHash.equals(previous.credentialsHash)) {
+            // Password changed: the manifest of the delta carries the new credentials
+            return true;
+        }
+        if (!changedNotes.isEmpty() || !changedAttachments.isEmpty()
+                || !deletedNotes.isEmpty() || !deletedRows.isEmpty()
+                || !deletedAttachments.isEmpty()) {
+            return true;
+        }
+        Iterator it = changedRows.values().iterator();
+        while (it.hasNext()) {
+            if (!((Set) it.next()).isEmpty()) return true;
+        }
+        return false;
+    }
+
+    /**
+     * The index after scan(), to be stored once the archive is written.
+     */
+    BackupIndex getIndex() {
+        return index;
+    }
+
+    private BackupJsonWriter beginHash() throws IOException {
+        if (hashWriter == null) {
+            OutputStream sink = new OutputStream() {
+                public void write(int b) {
+                }
+
+                public void write(byte[] b, int off, int len) {
+                }
+            };
+            hashWriter = new BufferedWriter(new OutputStreamWriter(
+                    new DigestOutputStream(sink, digest), "UTF-8"), BUFFER_SIZE);
+        }
+        digest.reset();
+        return new BackupJsonWriter(hashWriter);
+    }
+
+    private String endHash(BackupJsonWriter json) throws IOException {
+        json.flush();
+        return BackupIndex.hex(digest.digest());
+    }
+
+    private String hashFile(File file) throws IOException {
+        digest.reset();
+        FileInputStream in = new FileInputStream(file);
+        try {
+            FileChannel channel = in.getChannel();
+            ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+            while (channel.read(buffer) >= 0) {
+                buffer.flip();
+                digest.update(buffer);
+                buffer.clear();
+            }
+        } finally {
+            in.close();
+        }
+        return BackupIndex.hex(digest.digest());
+    }
+
+    // ============ WRITE ============
+
+    /**
+     * Write the archive to out (finished, not closed): everything, or after
+     * scan() of a delta only the changes. Runs on the calling thread.
+     *
+     * @param listener receives progress on the main thread; may be null
+     */
+    void write(OutputStream out, BackupExporter.Listener listener) throws IOException {
+        this.listener = listener;
+        ZipOutputStream zip = new ZipOutputStream(out);
+        BackupJsonWriter json;
+
+        // Counts are taken before streaming; for restore progress only
+        List attachments = changedAttachments != null ? changedAttachments : listAttachments();
+        int notesCount = changedNotes != null ? changedNotes.size() : notesRepository.getNotesRawCount();
+        total = notesCount + attachments.size();
+        int[] tableCounts = new int[tableCount()];
+        for (int i = 0; i < tableCounts.length; i++) {
+            tableCounts[i] = changedRows != null ? ((Set) changedRows.get(tableAt(i))).size()
+                    : backupRepository.getRowCount(tableAt(i));
+            total += tableCounts[i];
+        }
+
+        json = beginEntry(zip, BackupArchive.ENTRY_MANIFEST);
+        json.beginObject()
+                .name("appName").value(BackupArchive.APP_NAME)
+                .name("format").value(BackupArchive.FORMAT)
+                .name("formatVersion").value(BackupArchive.FORMAT_VERSION)
+                .name("encryptionVersion").value(2)
+                .name("type").value(previous != null ? BackupArchive.TYPE_DELTA : BackupArchive.TYPE_FULL);
+        if (index != null) {
+            json.name("setId").value(index.setId)
+                    .name("sequence").value(index.sequence);
+        }
+        json.name("backupDate").value(System.currentTimeMillis())
+                .name("counts").beginObject();
+        for (int i = 0; i < tableCounts.length; i++) {
+            json.name(BackupArchive.entryName(tableAt(i))).value(tableCounts[i]);
+        }
+        json.name(BackupArchive.ENTRY_NOTES).value(notesCount)
+                .name(BackupArchive.ATTACHMENTS_PREFIX).value(attachments.size())
+                .endObject();
+        BackupExporter.writeCredentials(json, SessionManager.getInstance(context));
+        json.endObject();
+        endEntry(zip, json);
+
+        if (previous != null) {
+            writeDeletions(zip);
+        }
+
+        for (int i = 0; i < BackupArchive.TABLES_BEFORE_NOTES.length; i++) {
+            writeTable(zip, BackupArchive.TABLES_BEFORE_NOTES[i]);
+        }
+        writeNotes(zip);
+        for (int i = 0; i < BackupArchive.TABLES_AFTER_NOTES.length; i++) {
+            writeTable(zip, BackupArchive.TABLES_AFTER_NOTES[i]);
+        }
+
+        // Media is mostly compressed already
+        zip.setLevel(Deflater.BEST_SPEED);
+        WritableByteChannel target = Channels.newChannel(zip);
+        for (int i = 0; i < attachments.size(); i++) {
+            Object[] attachment = (Object[]) attachments.get(i);
+            File file = (File) attachment[3];
+            FileInputStream in;
+            try {
+                in = new FileInputStream(file);
+            } catch (IOException e) {
+                // Deleted since it was listed
+                continue;
+            }
+            try {
+                zip.putNextEntry(new ZipEntry(BackupArchive.ATTACHMENTS_PREFIX + pathOf(attachment)));
+                FileChannel source = in.getChannel();
+                long size = source.size();
+                long position = 0;
+                while (position < size) {
+                    position += source.transferTo(position, size - position, target);
+                }
+                zip.closeEntry();
+            } finally {
+                in.close();
+            }
+            progress(1);
+        }
+        zip.finish();
+    }
+
+    private static int tableCount() {
+        return BackupArchive.TABLES_BEFORE_NOTES.length + BackupArchive.TABLES_AFTER_NOTES.length;
+    }
+
+    private static String tableAt(int index) {
+        int before = BackupArchive.TABLES_BEFORE_NOTES.length;
+        return index < before ? BackupArchive.TABLES_BEFORE_NOTES[index]
+                : BackupArchive.TABLES_AFTER_NOTES[index - before];
+    }
+
+    /**
+     * @return List of Object[]{Long noteId, subDir, localName, File} for the
+     * attachment files of all notes that exist on this device
+     */
+    private List listAttachments() {
+        List attachments = new ArrayList();
+        List notes = notesRepository.getNotesWithAttachmentsRaw();
+        for (int i = 0; i < notes.size(); i++) {
+            Note note = (Note) notes.get(i);
+            List refs = AttachmentManager.getAttachmentRefs(note);
+            for (int j = 0; j < refs.size(); j++) {
+                String[] ref = (String[]) refs.get(j);
+                File file = AttachmentManager.getAttachmentFile(context, note.getId(), ref[0], ref[1]);
+                // Not downloaded to this device; restore fetches it from the cloud on view
+                if (!file.isFile()) continue;
+                attachments.add(new Object[]{Long.valueOf(note.getId()), ref[0], ref[1], file});
+            }
+        }
+        return attachments;
+    }
+
+    private static String pathOf(Object[] attachment) {
+        return BackupArchive.attachmentPath(((Long) attachment[0]).longValue(),
+                (String) attachment[1], (String) attachment[2]);
+    }
+
+    private void writeDeletions(ZipOutputStream zip) throws IOException {
+        BackupJsonWriter json = beginEntry(zip, BackupArchive.ENTRY_DELETIONS);
+        json.beginObject().name("notes").beginArray();
+        for (int i = 0; i < deletedNotes.size(); i++) {
+            json.value(((Long) deletedNotes.get(i)).longValue());
+        }
+        json.endArray().name("rows").beginObject();
+        Iterator it = deletedRows.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry table = (Map.Entry) it.next();
+            json.name((String) table.getKey()).beginArray();
+            List ids = (List) table.getValue();
+            for (int i = 0; i < ids.size(); i++) {
+                json.value(((Long) ids.get(i)).longValue());
+            }
+            json.endArray();
+        }
+        json.endObject().name("attachments").beginArray();
+        for (int i = 0; i < deletedAttachments.size(); i++) {
+            json.value((String) deletedAttachments.get(i));
+        }
+        json.endArray().endObject();
+        endEntry(zip, json);
+    }
+
+    private void writeNotes(ZipOutputStream zip) throws IOException {
+        BackupJsonWriter json = beginEntry(zip, BackupArchive.ENTRY_NOTES);
+        json.beginArray();
+        long lastId = -1;
+        List page;
+        while (!(page = notesRepository.getNotesRawAfter(lastId, PAGE_SIZE)).isEmpty()) {
+            int written = 0;
+            for (int i = 0; i < page.size(); i++) {
+                Note note = (Note) page.get(i);
+                lastId = note.getId();
+                if (changedNotes != null && !changedNotes.contains(Long.valueOf(lastId))) continue;
+                BackupExporter.writeNote(json, note);
+                written++;
+            }
+            progress(written);
+        }
+        json.endArray();
+        endEntry(zip, json);
+    }
+
+    private void writeTable(ZipOutputStream zip, String table) throws IOException {
+        Set changed = changedRows != null ? (Set) changedRows.get(table) : null;
+        BackupJsonWriter json = beginEntry(zip, BackupArchive.entryName(table));
+        json.beginArray();
+        long lastId = -1;
+        List page;
+        while (!(page = backupRepository.getRowsAfter(table, lastId, PAGE_SIZE)).isEmpty()) {
+            int written = 0;
+            for (int i = 0; i < page.size(); i++) {
+                Map row = (Map) page.get(i);
+                lastId = ((Long) row.get(NotesDatabaseHelper.COL_ID)).longValue();
+                if (changed != null && !changed.contains(Long.valueOf(lastId))) continue;
+                writeRow(json, row);
+                written++;
+            }
+            progress(written);
+        }
+        json.endArray();
+        endEntry(zip, json);
+    }
+
+    private static void writeRow(BackupJsonWriter json, Map row) throws IOException {
+        json.beginObject();
+        Iterator it = row.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry column = (Map.Entry) it.next();
+            json.name((String) column.getKey());
+            Object value = column.getValue();
+            if (value instanceof Long) {
+                json.value(((Long) value).longValue());
+            } else if (value instanceof Double) {
+                json.value(((Double) value).doubleValue());
+            } else if (value instanceof String) {
+                json.value((String) value);
+            } else {
+                json.nullValue();
+            }
+        }
+        json.endObject();
+    }
+
+    private static BackupJsonWriter beginEntry(ZipOutputStream zip, String name) throws IOException {
+        zip.putNextEntry(new ZipEntry(name));
+        // Flushed, never closed: closing would close the zip
+        return new BackupJsonWriter(new BufferedWriter(new OutputStreamWriter(zip, "UTF-8"), BUFFER_SIZE));
+    }
+
+    private static void endEntry(ZipOutputStream zip, BackupJsonWriter json) throws IOException {
+        json.flush();
+        zip.closeEntry();
+    }
+
+    private void progress(int count) {
+        done += count;
+        if (listener == null) return;
+        final BackupExporter.Listener target = listener;
+        final int progress = done;
+        final int max = Math.max(total, done);
+        mainHandler.post(new Runnable() {
+            public void run() {
+                target.onProgress(progress, max);
+            }
+        });
+    }
+}
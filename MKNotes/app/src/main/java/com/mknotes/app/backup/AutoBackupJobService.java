@@ -0,0 +1,118 @@
+package com.mknotes.app.backup;
+
+import android.app.job.JobInfo;
+import android.app.job.JobParameters;
+import android.app.job.JobScheduler;
+import android.app.job.JobService;
+import android.content.ComponentName;
+import android.content.Context;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.mknotes.app.util.PrefsManager;
+
+import java.io.File;
+
+/**
+ * Scheduled automatic backup: once a day, while the device is charging and
+ * idle, adds to the incremental backup set (BackupExporter.backupIncremental())
+ * on the exporter's background thread. Up to KEEP_SETS sets and MAX_BYTES
+ * are kept; duration and size of every run are recorded in BackupMetrics.
+ *
+ * The job is persisted across reboots and scheduled again on app start
+ * while auto backup is enabled (see schedule()).
+ */
+public class AutoBackupJobService extends JobService {
+
+    private static final String TAG = "AutoBackupJobService";
+
+    private static final int JOB_ID = 4100;
+    private static final long INTERVAL_MS = 24L * 60 * 60 * 1000;
+    /** Backup sets (a full archive with its deltas) kept. */
+    private static final int KEEP_SETS = 3;
+    /** Size of all kept sets; older sets go first. */
+    private static final long MAX_BYTES = 256L * 1024 * 1024;
+
+    /**
+     * Schedule the daily backup if auto backup is enabled, or cancel it.
+     * A job already scheduled is kept.
+     */
+    public static void schedule(Context context) {
+        JobScheduler scheduler = (JobScheduler) context.getSystemService(Context.JOB_SCHEDULER_SERVICE);
+        if (scheduler == null) return;
+        if (!PrefsManager.getInstance(context).isAutoBackupEnabled()) {
+            scheduler.cancel(JOB_ID);
+            return;
+        }
+        if (scheduler.getPendingJob(JOB_ID) != null) return;
+        JobInfo job = new JobInfo.Builder(JOB_ID, new ComponentName(context, AutoBackupJobService.class))
+                .setRequiresCharging(true)
+                .setRequiresDeviceIdle(true)
+                .setRequiresStorageNotLow(true)
+                .setPeriodic(INTERVAL_MS)
+                .setPersisted(true)
+                .build();
+        scheduler.schedule(job);
+    }
+
+    public boolean onStartJob(final JobParameters params) {
+        if (!PrefsManager.getInstance(this).isAutoBackupEnabled()) {
+            return false;
+        }
+        final File dir = BackupExporter.getIncrementalBackupDir(this);
+        final long started = System.currentTimeMillis();
+        final long startedElapsed = SystemClock.elapsedRealtime();
+        BackupExporter.getInstance(this).backupIncremental(dir, KEEP_SETS, MAX_BYTES,
+                new BackupExporter.Listener() {
+                    public void onProgress(int done, int total) {
+                    }
+
+                    public void onFinished(final File file, final Exception error) {
+                        final long duration = SystemClock.elapsedRealtime() - startedElapsed;
+                        if (error != null) {
+                            Log.e(TAG, "Auto backup failed: " + error.getMessage());
+                        }
+                        // Called on the main thread; the metrics file is written off it
+                        new Thread(new Runnable() {
+                            public void run() {
+                                recordMetrics(started, duration, file, error, dir);
+                                jobFinished(params, error != null);
+                            }
+                        }, "mknotes-backup-metrics").start();
+                    }
+                });
+        return true;
+    }
+
+    public boolean onStopJob(JobParameters params) {
+        // The backup cannot be interrupted; it completes or fails on its own
+        // and the next period runs as usual
+        return false;
+    }
+
+    private void recordMetrics(long started, long duration, File file, Exception error, File dir) {
+        String result;
+        long archiveBytes = 0;
+        if (error != null || file == null) {
+            result = BackupMetrics.RESULT_FAILED;
+        } else if (file.lastModified() / 1000 < started / 1000) {
+            // Nothing changed: the latest archive of an earlier run
+            result = BackupMetrics.RESULT_UNCHANGED;
+        } else {
+            String name = file.getName();
+            result = name.equals(BackupArchive.setFileName(BackupArchive.setIdOf(name), 0))
+                    ? BackupMetrics.RESULT_FULL : BackupMetrics.RESULT_DELTA;
+            archiveBytes = file.length();
+        }
+        BackupMetrics.record(this, started, duration, result, archiveBytes, sizeOf(dir));
+    }
+
+    private static long sizeOf(File dir) {
+        File[] files = dir.listFiles();
+        long size = 0;
+        for (int i = 0; files != null && i < files.length; i++) {
+            size += files[i].length();
+        }
+        return size;
+    }
+}
@@ -0,0 +1,103 @@
+package com.mknotes.app.backup;
+
+import com.mknotes.app.db.NotesDatabaseHelper;
+
+/**
+ * Layout of the backup archive, a zip file read and written in one pass:
+ *
+ *   manifest.json            appName, format, formatVersion, type, setId,
+ *                            sequence, backupDate, counts (records per
+ *                            entry), credentials
+ *   deletions.json           delta only: ids of notes and rows and paths of
+ *                            attachments deleted since the previous archive
+ *   categories.json          JSON array of table rows, column -> value
+ *   notes.json               JSON array of notes as in the JSON backup
+ *   mantras.json             table rows
+ *   daily_sessions.json      table rows
+ *   mantra_history.json      table rows
+ *   mantra_count_log.json    table rows
+ *   note_moods.json          table rows
+ *   attachments/{noteId}/{images|files|audios}/{localName}
+ *
+ * Entries are written in this order, so every row is read after the rows it
+ * refers to (notes -> categories, mantras -> notes, sessions, history and
+ * logs -> mantras, moods -> notes, attachments -> notes). Ids in the archive
+ * are the ids on the exporting device; restore maps them to new ids.
+ *
+ * A "full" archive holds everything. Incremental backups (see BackupIndex)
+ * add "delta" archives with the same setId and the next sequence number,
+ * holding only records and files that changed since the previous archive of
+ * the set, in full, plus deletions.json. Restore replays the full archive
+ * and then each delta in sequence order.
+ *
+ * Readers skip entries and columns they do not know. formatVersion is raised
+ * only for changes an older reader would restore wrongly.
+ */
+final class BackupArchive {
+
+    static final String APP_NAME = "MKNotes";
+    static final String FORMAT = "mknotes-archive";
+    static final int FORMAT_VERSION = 1;
+
+    static final String TYPE_FULL = "full";
+    static final String TYPE_DELTA = "delta";
+
+    static final String ENTRY_MANIFEST = "manifest.json";
+    static final String ENTRY_DELETIONS = "deletions.json";
+    static final String ENTRY_NOTES = "notes.json";
+    static final String ATTACHMENTS_PREFIX = "attachments/";
+
+    /** Record entries before the notes. */
+    static final String[] TABLES_BEFORE_NOTES = {
+            NotesDatabaseHelper.TABLE_CATEGORIES
+    };
+
+    /** Record entries after the notes, in restore order. */
+    static final String[] TABLES_AFTER_NOTES = {
+            NotesDatabaseHelper.TABLE_MANTRAS,
+            NotesDatabaseHelper.TABLE_DAILY_SESSIONS,
+            NotesDatabaseHelper.TABLE_MANTRA_HISTORY,
+            NotesDatabaseHelper.TABLE_MANTRA_COUNT_LOG,
+            NotesDatabaseHelper.TABLE_NOTE_MOODS
+    };
+
+    private BackupArchive() {
+    }
+
+    static String entryName(String table) {
+        return table + ".json";
+    }
+
+    /**
+     * Path of an attachment below ATTACHMENTS_PREFIX; also its key in BackupIndex.
+     */
+    static String attachmentPath(long noteId, String subDir, String localName) {
+        return noteId + "/" + subDir + "/" + localName;
+    }
+
+    /**
+     * File name of an archive of an incremental backup set.
+     */
+    static String setFileName(String setId, int sequence) {
+        String number = String.valueOf(sequence);
+        return setId + "-" + "0000".substring(Math.min(4, number.length())) + number + ".zip";
+    }
+
+    /**
+     * Set id of an archive file name from setFileName(), or null for other names.
+     */
+    static String setIdOf(String fileName) {
+        int dash = fileName.lastIndexOf('-');
+        if (dash <= 0 || !fileName.endsWith(".zip") || fileName.length() - dash != 9) {
+            return null;
+        }
+        return fileName.substring(0, dash);
+    }
+
+    /**
+     * Magic bytes of a zip file ("PK\3\4").
+     */
+    static boolean isZipMagic(int b1, int b2, int b3, int b4) {
+        return b1 == 'P' && b2 == 'K' && b3 == 3 && b4 == 4;
+    }
+}
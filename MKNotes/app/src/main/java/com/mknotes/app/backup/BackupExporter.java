@@ -0,0 +1,319 @@
+package com.mknotes.app.backup;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import com.mknotes.app.db.ActivitySyncRepository;
+import com.mknotes.app.model.Note;
+import com.mknotes.app.util.SessionManager;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Writes backup archives as a stream (ArchiveWriter): exportArchive() the
+ * full archive, backupIncremental() adds to an incremental set of archives.
+ * Rows are read from the database in pages, so memory use does not grow
+ * with the library. Encrypted fields are exported as stored; the backup
+ * contains no plaintext.
+ *
+ * JSON backups of earlier versions (plain or gzip) are still restored by
+ * BackupImporter; writeNote() and writeCredentials() produce the same
+ * objects inside the archive.
+ *
+ * Runs on one background thread; progress and the result are delivered on
+ * the main thread. The file is written under a temporary name and renamed
+ * when complete, so a failed run keeps the previous backup.
+ */
+public class BackupExporter {
+
+    private static final String TAG = "BackupExporter";
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    /** Deltas of an incremental backup set before a new full archive. */
+    private static final int MAX_DELTAS = 30;
+
+    /**
+     * Receives progress and the result on the main thread.
+     */
+    public interface Listener {
+        void onProgress(int done, int total);
+
+        /**
+         * @param file  the finished backup, or null on failure
+         * @param error the failure, null on success
+         */
+        void onFinished(File file, Exception error);
+    }
+
+    private static BackupExporter sInstance;
+
+    private final Context appContext;
+    private final Handler mainHandler;
+    private final ExecutorService executor;
+
+    public static synchronized BackupExporter getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new BackupExporter(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private BackupExporter(Context context) {
+        appContext = context;
+        mainHandler = new Handler(Looper.getMainLooper());
+        executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "mknotes-backup");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    /**
+     * Write a backup archive to target in the background: notes, categories,
+     * mantras with their sessions, history and count logs, note moods and
+     * attachment files (see BackupArchive).
+     */
+    public void exportArchive(final File target, final Listener listener) {
+        executor.execute(new Runnable() {
+            public void run() {
+                Exception error = null;
+                try {
+                    // Every mantra gets the cloud id restore matches it by
+                    ActivitySyncRepository.getInstance(appContext).assignMantraCloudIds();
+                    writeFile(target, new ArchiveWriter(appContext, mainHandler), listener);
+                } catch (Exception e) {
+                    Log.e(TAG, "Backup failed: " + e.getMessage());
+                    error = e;
+                }
+                postFinished(listener, error == null ? target : null, error);
+            }
+        });
+    }
+
+    /**
+     * Add to the incremental backup set in dir, in the background: a delta
+     * archive with what changed since the last backup (see BackupIndex), or
+     * a new full archive for the first backup, after MAX_DELTAS deltas or if
+     * a file of the set is missing. The files of a replaced set are deleted
+     * once the new full archive is written.
+     *
+     * If nothing changed no archive is written, and the listener receives
+     * the latest archive of the set.
+     */
+    public void backupIncremental(File dir, Listener listener) {
+        backupIncremental(dir, 1, Long.MAX_VALUE, listener);
+    }
+
+    /**
+     * backupIncremental() keeping up to keepSets sets (generations) in dir:
+     * older sets are deleted, oldest first, while there are more than
+     * keepSets or the files in dir take more than maxBytes. The current set
+     * is always kept.
+     */
+    public void backupIncremental(final File dir, final int keepSets, final long maxBytes,
+                                  final Listener listener) {
+        executor.execute(new Runnable() {
+            public void run() {
+                File result = null;
+                Exception error = null;
+                try {
+                    result = writeIncremental(dir, listener);
+                    applyRetention(dir, result, keepSets, maxBytes);
+                } catch (Exception e) {
+                    Log.e(TAG, "Backup failed: " + e.getMessage());
+                    error = e;
+                }
+                postFinished(listener, result, error);
+            }
+        });
+    }
+
+    /**
+     * Default directory of the incremental backup set.
+     */
+    public static File getIncrementalBackupDir(Context context) {
+        return new File(context.getFilesDir(), "backups/incremental");
+    }
+
+    private File writeIncremental(File dir, Listener listener) throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Cannot create " + dir.getName());
+        }
+        File indexFile = new File(dir, BackupIndex.FILE_NAME);
+        BackupIndex previous = BackupIndex.read(indexFile);
+        if (previous != null && (previous.sequence >= MAX_DELTAS || !isSetComplete(dir, previous))) {
+            previous = null;
+        }
+
+        // Every mantra gets the cloud id restore matches it by
+        ActivitySyncRepository.getInstance(appContext).assignMantraCloudIds();
+        ArchiveWriter writer = new ArchiveWriter(appContext, mainHandler, previous);
+        writer.scan();
+        if (!writer.hasChanges()) {
+            return new File(dir, BackupArchive.setFileName(previous.setId, previous.sequence));
+        }
+        BackupIndex index = writer.getIndex();
+        File target = new File(dir, BackupArchive.setFileName(index.setId, index.sequence));
+        writeFile(target, writer, listener);
+        index.write(indexFile);
+        return target;
+    }
+
+    /**
+     * Delete old sets in dir beyond keepSets or maxBytes; never the set of
+     * current (an archive of the latest set).
+     */
+    private static void applyRetention(File dir, File current, int keepSets, long maxBytes) {
+        File[] files = dir.listFiles();
+        if (files == null) return;
+        String currentSet = BackupArchive.setIdOf(current.getName());
+        // Set id -> List of files, and newest modification time per set
+        Map sets = new HashMap();
+        Map newest = new HashMap();
+        long totalBytes = 0;
+        for (int i = 0; i < files.length; i++) {
+            totalBytes += files[i].length();
+            String setId = BackupArchive.setIdOf(files[i].getName());
+            if (setId == null || setId.equals(currentSet)) continue;
+            List setFiles = (List) sets.get(setId);
+            if (setFiles == null) {
+                setFiles = new ArrayList();
+                sets.put(setId, setFiles);
+                newest.put(setId, Long.valueOf(0));
+            }
+            setFiles.add(files[i]);
+            long modified = files[i].lastModified();
+            if (modified > ((Long) newest.get(setId)).longValue()) {
+                newest.put(setId, Long.valueOf(modified));
+            }
+        }
+
+        int setCount = sets.size() + 1;
+        while (!sets.isEmpty() && (setCount > keepSets || totalBytes > maxBytes)) {
+            String oldest = null;
+            Iterator it = newest.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry entry = (Map.Entry) it.next();
+                if (oldest == null || ((Long) entry.getValue()).longValue()
+                        < ((Long) newest.get(oldest)).longValue()) {
+                    oldest = (String) entry.getKey();
+                }
+            }
+            List setFiles = (List) sets.remove(oldest);
+            newest.remove(oldest);
+            for (int i = 0; i < setFiles.size(); i++) {
+                File file = (File) setFiles.get(i);
+                long length = file.length();
+                if (file.delete()) {
+                    totalBytes -= length;
+                }
+            }
+            setCount--;
+        }
+    }
+
+    private static boolean isSetComplete(File dir, BackupIndex index) {
+        for (int i = 0; i <= index.sequence; i++) {
+            if (!new File(dir, BackupArchive.setFileName(index.setId, i)).isFile()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Write the archive of writer to a temporary file and rename it to target
+     * when complete.
+     */
+    private void writeFile(File target, ArchiveWriter writer, Listener listener) throws IOException {
+        File tmp = new File(target.getPath() + ".tmp");
+        try {
+            OutputStream os = new BufferedOutputStream(new FileOutputStream(tmp), BUFFER_SIZE);
+            try {
+                writer.write(os, listener);
+            } finally {
+                os.close();
+            }
+            if (!tmp.renameTo(target)) {
+                throw new IOException("Cannot rename " + tmp.getName());
+            }
+        } catch (IOException e) {
+            tmp.delete();
+            throw e;
+        } catch (RuntimeException e) {
+            tmp.delete();
+            throw e;
+        }
+    }
+
+    private void postFinished(final Listener listener, final File file, final Exception error) {
+        mainHandler.post(new Runnable() {
+            public void run() {
+                listener.onFinished(file, error);
+            }
+        });
+    }
+
+    /**
+     * Include encryption credentials for fresh device restore (names of the
+     * current object, as in the JSON backup).
+     */
+    static void writeCredentials(BackupJsonWriter json, SessionManager sm) throws IOException {
+        String salt = sm.getSaltHex();
+        String verifyToken = sm.getVerifyToken();
+        String wrappedKey = sm.getWrappedDataKey();
+        if (salt != null && salt.length() > 0) {
+            json.name("salt").value(salt);
+        }
+        if (verifyToken != null && verifyToken.length() > 0) {
+            json.name("verifyToken").value(verifyToken);
+        }
+        if (wrappedKey != null && wrappedKey.length() > 0) {
+            json.name("wrappedKey").value(wrappedKey);
+        }
+    }
+
+    static void writeNote(BackupJsonWriter json, Note note) throws IOException {
+        json.beginObject()
+                .name("id").value(note.getId())
+                .name("title").value(note.getTitle())
+                .name("content").value(note.getContent())
+                .name("createdAt").value(note.getCreatedAt())
+                .name("modifiedAt").value(note.getModifiedAt())
+                .name("color").value(note.getColor())
+                .name("favorite").value(note.isFavorite())
+                .name("locked").value(note.isLocked())
+                .name("password").value(note.getPassword())
+                .name("categoryId").value(note.getCategoryId())
+                .name("hasChecklist").value(note.hasChecklist())
+                .name("hasImage").value(note.hasImage())
+                .name("checklistData").value(note.getChecklistData())
+                .name("isChecklistMode").value(note.isChecklistMode())
+                .name("imagesData").value(note.getImagesData())
+                .name("filesData").value(note.getFilesData())
+                .name("audiosData").value(note.getAudiosData())
+                .name("linkedNoteIds").value(note.getLinkedNoteIds())
+                .name("isRoutineMode").value(note.isRoutineMode())
+                .name("routineData").value(note.getRoutineData())
+                .name("archived").value(note.isArchived())
+                .name("cloudId").value(note.getCloudId())
+                .name("encrypted").value(true)
+                .endObject();
+    }
+}
@@ -0,0 +1,469 @@
+package com.mknotes.app.backup;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.JsonReader;
+import android.util.JsonToken;
+import android.util.Log;
+
+import com.mknotes.app.db.NotesRepository;
+import com.mknotes.app.model.Note;
+import com.mknotes.app.util.SessionManager;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Restores a notes backup (JSON of earlier versions, plain or gzip) as a
+ * stream; backup archives and incremental backup sets are passed on to
+ * ArchiveReader. Notes are parsed one at a time and inserted in batches of
+ * BATCH_SIZE, each batch in one transaction with prepared statements
+ * (NotesRepository.insertNotesRaw), so memory use does not grow with the
+ * backup and large restores are not bound by per-note commits.
+ *
+ * All or nothing: if parsing or an insert fails, the notes already inserted
+ * by this restore are deleted again and the backup credentials are not
+ * applied. Existing notes are never touched.
+ *
+ * Runs on one background thread; progress and the result are delivered on
+ * the main thread.
+ */
+public class BackupImporter {
+
+    private static final String TAG = "BackupImporter";
+
+    /** Notes inserted per transaction. */
+    private static final int BATCH_SIZE = 200;
+
+    /**
+     * Receives progress and the result on the main thread.
+     */
+    public interface Listener {
+        /**
+         * @param total notes in the backup, 0 if the backup does not say
+         */
+        void onProgress(int done, int total);
+
+        /**
+         * @param restored notes added, 0 on failure
+         * @param error    the failure, null on success
+         */
+        void onFinished(int restored, Exception error);
+    }
+
+    private static BackupImporter sInstance;
+
+    private final Context appContext;
+    private final NotesRepository repository;
+    private final Handler mainHandler;
+    private final ExecutorService executor;
+
+    public static synchronized BackupImporter getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new BackupImporter(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private BackupImporter(Context context) {
+        appContext = context;
+        repository = NotesRepository.getInstance(context);
+        mainHandler = new Handler(Looper.getMainLooper());
+        executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "mknotes-restore");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    /**
+     * Restore the backup read from in, in the background. The stream is
+     * closed when done.
+     */
+    public void restore(final InputStream in, final Listener listener) {
+        executor.execute(new Runnable() {
+            public void run() {
+                int restored = 0;
+                Exception error = null;
+                try {
+                    try {
+                        restored = readBackup(in, listener);
+                    } finally {
+                        in.close();
+                    }
+                } catch (Exception e) {
+                    Log.e(TAG, "Restore failed: " + e.getMessage());
+                    error = e;
+                }
+                postFinished(listener, restored, error);
+            }
+        });
+    }
+
+    /**
+     * Restore the incremental backup set in dir (see
+     * BackupExporter.backupIncremental()) in the background: the full
+     * archive, then each delta in order. All or nothing across the set.
+     */
+    public void restoreIncremental(final File dir, final Listener listener) {
+        executor.execute(new Runnable() {
+            public void run() {
+                int restored = 0;
+                Exception error = null;
+                try {
+                    restored = readIncremental(dir, listener);
+                } catch (Exception e) {
+                    Log.e(TAG, "Restore failed: " + e.getMessage());
+                    error = e;
+                }
+                postFinished(listener, restored, error);
+            }
+        });
+    }
+
+    /**
+     * Whether dir holds an incremental backup set.
+     */
+    public static boolean hasIncrementalBackup(File dir) {
+        return new File(dir, BackupIndex.FILE_NAME).isFile();
+    }
+
+    private void postFinished(final Listener listener, final int restored, final Exception error) {
+        mainHandler.post(new Runnable() {
+            public void run() {
+                listener.onFinished(restored, error);
+            }
+        });
+    }
+
+    private int readIncremental(File dir, Listener listener) throws IOException {
+        BackupIndex index = BackupIndex.read(new File(dir, BackupIndex.FILE_NAME));
+        if (index == null) {
+            throw new IOException("No backup found");
+        }
+        ArchiveReader archive = new ArchiveReader(appContext, mainHandler);
+        try {
+            for (int i = 0; i <= index.sequence; i++) {
+                InputStream in = new FileInputStream(new File(dir, BackupArchive.setFileName(index.setId, i)));
+                try {
+                    archive.read(BackupStreams.openForRead(in), listener);
+                } finally {
+                    in.close();
+                }
+            }
+            int restored = archive.finish();
+            applyCredentials(archive.salt, archive.verifyToken, archive.wrappedKey);
+            return restored;
+        } catch (IOException e) {
+            archive.rollback();
+            throw e;
+        }
+    }
+
+    /**
+     * Parse and insert the backup. Runs on the calling thread.
+     *
+     * @param listener receives progress on the main thread; may be null
+     * @return notes restored
+     */
+    int readBackup(InputStream in, Listener listener) throws IOException {
+        InputStream data = BackupStreams.openForRead(in);
+        if (BackupStreams.isArchive(data)) {
+            ArchiveReader archive = new ArchiveReader(appContext, mainHandler);
+            try {
+                archive.read(data, listener);
+                int restored = archive.finish();
+                applyCredentials(archive.salt, archive.verifyToken, archive.wrappedKey);
+                return restored;
+            } catch (IOException e) {
+                archive.rollback();
+                throw e;
+            }
+        }
+        JsonReader reader = new JsonReader(new InputStreamReader(data, "UTF-8"));
+        Restore restore = new Restore(listener);
+        try {
+            String appName = null;
+            String salt = "";
+            String verifyToken = "";
+            String wrappedKey = "";
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+                if ("appName".equals(name)) {
+                    appName = readString(reader, "");
+                    checkAppName(appName);
+                } else if ("notesCount".equals(name)) {
+                    restore.total = (int) readLong(reader, 0);
+                } else if ("notes".equals(name) && reader.peek() == JsonToken.BEGIN_ARRAY) {
+                    reader.beginArray();
+                    boolean[] encrypted = new boolean[1];
+                    while (reader.hasNext()) {
+                        encrypted[0] = false;
+                        Note note = readNote(reader, encrypted);
+                        restore.add(note, encrypted[0]);
+                    }
+                    reader.endArray();
+                } else if ("salt".equals(name)) {
+                    salt = readString(reader, "");
+                } else if ("verifyToken".equals(name)) {
+                    verifyToken = readString(reader, "");
+                } else if ("wrappedKey".equals(name)) {
+                    wrappedKey = readString(reader, "");
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+            checkAppName(appName);
+            restore.flush();
+            applyCredentials(salt, verifyToken, wrappedKey);
+            return restore.restored;
+        } catch (IOException e) {
+            restore.rollback();
+            throw e;
+        } catch (RuntimeException e) {
+            // Malformed values (NumberFormatException, IllegalStateException) and SQLException
+            restore.rollback();
+            throw new IOException(e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Restore encryption credentials from the backup if on a fresh device.
+     */
+    private void applyCredentials(String salt, String verifyToken, String wrappedKey) {
+        if (salt.length() > 0 && verifyToken.length() > 0) {
+            SessionManager sm = SessionManager.getInstance(appContext);
+            if (!sm.isPasswordSet()) {
+                // User MUST enter the SAME master password from original device.
+                sm.restoreFromBackup(salt, verifyToken,
+                        wrappedKey.length() > 0 ? wrappedKey : null);
+            }
+        }
+    }
+
+    private static void checkAppName(String appName) throws IOException {
+        if (!"MKNotes".equals(appName)) {
+            throw new IOException("Not a MKNotes backup");
+        }
+    }
+
+    /**
+     * Collects parsed notes into batches and remembers the inserted ids so a
+     * failed restore can be undone.
+     */
+    private class Restore {
+        private final Listener listener;
+        private final List batch = new ArrayList();
+        private final List insertedIds = new ArrayList();
+        int total = 0;
+        int restored = 0;
+        /** Taken from the first note, as the earlier restore did. */
+        private Boolean encrypted;
+
+        Restore(Listener listener) {
+            this.listener = listener;
+        }
+
+        void add(Note note, boolean noteEncrypted) {
+            if (encrypted == null) {
+                encrypted = Boolean.valueOf(noteEncrypted);
+            }
+            batch.add(note);
+            if (batch.size() >= BATCH_SIZE) {
+                flush();
+            }
+        }
+
+        void flush() {
+            if (batch.isEmpty()) return;
+            if (encrypted.booleanValue()) {
+                // Data is already encrypted -- insert raw to avoid double-encryption
+                long[] ids = repository.insertNotesRaw(batch);
+                for (int i = 0; i < ids.length; i++) {
+                    insertedIds.add(Long.valueOf(ids[i]));
+                }
+            } else {
+                // Legacy unencrypted backup -- insert normally (will encrypt)
+                for (int i = 0; i < batch.size(); i++) {
+                    long id = repository.insertNote((Note) batch.get(i));
+                    if (id <= 0) {
+                        throw new android.database.SQLException("Insert failed");
+                    }
+                    insertedIds.add(Long.valueOf(id));
+                }
+            }
+            restored += batch.size();
+            batch.clear();
+            if (listener != null) {
+                final int progress = restored;
+                final int count = total;
+                mainHandler.post(new Runnable() {
+                    public void run() {
+                        listener.onProgress(progress, count > 0 ? Math.max(count, progress) : 0);
+                    }
+                });
+            }
+        }
+
+        void rollback() {
+            if (insertedIds.isEmpty()) return;
+            long[] ids = new long[insertedIds.size()];
+            for (int i = 0; i < ids.length; i++) {
+                ids[i] = ((Long) insertedIds.get(i)).longValue();
+            }
+            try {
+                repository.deleteNotes(ids);
+            } catch (Exception e) {
+                Log.e(TAG, "Rollback failed: " + e.getMessage());
+            }
+            insertedIds.clear();
+            restored = 0;
+        }
+    }
+
+    // ============ NOTE PARSING ============
+
+    /**
+     * Read one note object as written by BackupExporter.writeNote(). The id
+     * in the backup is set as the note id; inserts ignore it.
+     *
+     * @param encrypted set to the note's "encrypted" flag
+     */
+    static Note readNote(JsonReader reader, boolean[] encrypted) throws IOException {
+        long now = System.currentTimeMillis();
+        Note note = new Note();
+        note.setTitle("");
+        note.setContent("");
+        note.setCreatedAt(now);
+        note.setModifiedAt(now);
+        note.setPassword("");
+        note.setCategoryId(-1);
+        note.setChecklistData("");
+        note.setImagesData("");
+        note.setFilesData("");
+        note.setAudiosData("");
+        note.setLinkedNoteIds("");
+        note.setRoutineData("");
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if ("id".equals(name)) {
+                note.setId(readLong(reader, -1));
+            } else if ("title".equals(name)) {
+                note.setTitle(readString(reader, ""));
+            } else if ("content".equals(name)) {
+                note.setContent(readString(reader, ""));
+            } else if ("createdAt".equals(name)) {
+                note.setCreatedAt(readLong(reader, now));
+            } else if ("modifiedAt".equals(name)) {
+                note.setModifiedAt(readLong(reader, now));
+            } else if ("color".equals(name)) {
+                note.setColor((int) readLong(reader, 0));
+            } else if ("favorite".equals(name)) {
+                note.setFavorite(readBoolean(reader));
+            } else if ("locked".equals(name)) {
+                note.setLocked(readBoolean(reader));
+            } else if ("password".equals(name)) {
+                note.setPassword(readString(reader, ""));
+            } else if ("categoryId".equals(name)) {
+                note.setCategoryId(readLong(reader, -1));
+            } else if ("hasChecklist".equals(name)) {
+                note.setHasChecklist(readBoolean(reader));
+            } else if ("hasImage".equals(name)) {
+                note.setHasImage(readBoolean(reader));
+            } else if ("checklistData".equals(name)) {
+                note.setChecklistData(readString(reader, ""));
+            } else if ("isChecklistMode".equals(name)) {
+                note.setChecklistMode(readBoolean(reader));
+            } else if ("imagesData".equals(name)) {
+                note.setImagesData(readString(reader, ""));
+            } else if ("filesData".equals(name)) {
+                note.setFilesData(readString(reader, ""));
+            } else if ("audiosData".equals(name)) {
+                note.setAudiosData(readString(reader, ""));
+            } else if ("linkedNoteIds".equals(name)) {
+                note.setLinkedNoteIds(readString(reader, ""));
+            } else if ("isRoutineMode".equals(name)) {
+                note.setRoutineMode(readBoolean(reader));
+            } else if ("routineData".equals(name)) {
+                note.setRoutineData(readString(reader, ""));
+            } else if ("archived".equals(name)) {
+                note.setArchived(readBoolean(reader));
+            } else if ("cloudId".equals(name)) {
+                // Preserved if present, otherwise a new UUID is generated on insert
+                String cloudId = readString(reader, "");
+                if (cloudId.length() > 0) {
+                    note.setCloudId(cloudId);
+                }
+            } else if ("encrypted".equals(name)) {
+                encrypted[0] = readBoolean(reader);
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        return note;
+    }
+
+    /** Like JSONObject.optString: null gives the fallback, other values their text. */
+    static String readString(JsonReader reader, String fallback) throws IOException {
+        JsonToken token = reader.peek();
+        if (token == JsonToken.NULL) {
+            reader.nextNull();
+            return fallback;
+        }
+        if (token == JsonToken.BOOLEAN) {
+            return String.valueOf(reader.nextBoolean());
+        }
+        if (token == JsonToken.STRING || token == JsonToken.NUMBER) {
+            return reader.nextString();
+        }
+        reader.skipValue();
+        return fallback;
+    }
+
+    /** Like JSONObject.optLong: numbers and numeric strings, else the fallback. */
+    static long readLong(JsonReader reader, long fallback) throws IOException {
+        JsonToken token = reader.peek();
+        if (token != JsonToken.NUMBER && token != JsonToken.STRING) {
+            reader.skipValue();
+            return fallback;
+        }
+        String value = reader.nextString();
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            try {
+                return (long) Double.parseDouble(value);
+            } catch (NumberFormatException e2) {
+                return fallback;
+            }
+        }
+    }
+
+    /** Like JSONObject.optBoolean: true or "true", anything else is false. */
+    static boolean readBoolean(JsonReader reader) throws IOException {
+        JsonToken token = reader.peek();
+        if (token == JsonToken.BOOLEAN) {
+            return reader.nextBoolean();
+        }
+        if (token == JsonToken.STRING) {
+            return "true".equalsIgnoreCase(reader.nextString());
+        }
+        reader.skipValue();
+        return false;
+    }
+}
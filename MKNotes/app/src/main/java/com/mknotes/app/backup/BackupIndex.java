@@ -0,0 +1,265 @@
+package com.mknotes.app.backup;
+
+import android.util.JsonReader;
+import android.util.JsonToken;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Content hashes of an incremental backup set as of its last archive: notes
+ * with their modified_at, table rows by table and id, and attachment files
+ * by path with their size and modification time. The next backup compares
+ * the device against it and writes only what differs (ArchiveWriter); an
+ * attachment whose size and modification time are unchanged is not read
+ * again.
+ *
+ * The encryption credentials (salt, verification token, wrapped data key)
+ * are hashed too: a password change alone is written as a delta, whose
+ * manifest carries the new credentials.
+ *
+ * Hashes are SHA-256 of a record as written to the archive, and of a file's
+ * content. The index is kept next to the archives of its set and never
+ * included in them.
+ */
+final class BackupIndex {
+
+    static final String FILE_NAME = "index.json";
+
+    /**
+     * Hash of a note or file with the values it was taken at.
+     */
+    static final class Entry {
+        final long size;
+        final long modified;
+        final String hash;
+
+        Entry(long size, long modified, String hash) {
+            this.size = size;
+            this.modified = modified;
+            this.hash = hash;
+        }
+    }
+
+    final String setId;
+    /** Sequence number of the archive this index describes. */
+    final int sequence;
+    /** Note id (Long) -> Entry; size unused. */
+    final Map notes = new HashMap();
+    /** Table -> Map row id (Long) -> hash. */
+    final Map rows = new HashMap();
+    /** BackupArchive.attachmentPath() -> Entry. */
+    final Map attachments = new HashMap();
+    /** Hash of the credentials in the archive's manifest; null in indexes written before it. */
+    String credentialsHash;
+
+    BackupIndex(String setId, int sequence) {
+        this.setId = setId;
+        this.sequence = sequence;
+    }
+
+    String noteHash(long id) {
+        Entry entry = (Entry) notes.get(Long.valueOf(id));
+        return entry != null ? entry.hash : null;
+    }
+
+    String rowHash(String table, long id) {
+        Map tableRows = (Map) rows.get(table);
+        return tableRows != null ? (String) tableRows.get(Long.valueOf(id)) : null;
+    }
+
+    void putRow(String table, long id, String hash) {
+        Map tableRows = (Map) rows.get(table);
+        if (tableRows == null) {
+            tableRows = new HashMap();
+            rows.put(table, tableRows);
+        }
+        tableRows.put(Long.valueOf(id), hash);
+    }
+
+    static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            // Required on every Android version
+            throw new IllegalStateException(e);
+        }
+    }
+
+    static String hex(byte[] digest) {
+        StringBuilder sb = new StringBuilder(digest.length * 2);
+        for (int i = 0; i < digest.length; i++) {
+            sb.append(Character.forDigit((digest[i] >> 4) & 0xf, 16));
+            sb.append(Character.forDigit(digest[i] & 0xf, 16));
+        }
+        return sb.toString();
+    }
+
+    // ============ FILE ============
+
+    /**
+     * Write the index to file, replacing it only once complete.
+     */
+    void write(File file) throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tmp), "UTF-8"));
+        try {
+            BackupJsonWriter json = new BackupJsonWriter(out);
+            json.beginObject()
+                    .name("setId").value(setId)
+                    .name("sequence").value(sequence);
+            if (credentialsHash != null) {
+                json.name("credentials").value(credentialsHash);
+            }
+            json.name("notes").beginArray();
+            Iterator it = notes.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry note = (Map.Entry) it.next();
+                Entry entry = (Entry) note.getValue();
+                json.beginArray()
+                        .value(((Long) note.getKey()).longValue())
+                        .value(entry.modified)
+                        .value(entry.hash)
+                        .endArray();
+            }
+            json.endArray();
+            json.name("rows").beginObject();
+            it = rows.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry table = (Map.Entry) it.next();
+                json.name((String) table.getKey()).beginArray();
+                Iterator rowIt = ((Map) table.getValue()).entrySet().iterator();
+                while (rowIt.hasNext()) {
+                    Map.Entry row = (Map.Entry) rowIt.next();
+                    json.beginArray()
+                            .value(((Long) row.getKey()).longValue())
+                            .value((String) row.getValue())
+                            .endArray();
+                }
+                json.endArray();
+            }
+            json.endObject();
+            json.name("attachments").beginArray();
+            it = attachments.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry attachment = (Map.Entry) it.next();
+                Entry entry = (Entry) attachment.getValue();
+                json.beginArray()
+                        .value((String) attachment.getKey())
+                        .value(entry.size)
+                        .value(entry.modified)
+                        .value(entry.hash)
+                        .endArray();
+            }
+            json.endArray();
+            json.endObject();
+            json.flush();
+        } finally {
+            out.close();
+        }
+        if (!tmp.renameTo(file)) {
+            tmp.delete();
+            throw new IOException("Cannot rename " + tmp.getName());
+        }
+    }
+
+    /**
+     * @return the index in file, or null if there is none or it cannot be read
+     */
+    static BackupIndex read(File file) {
+        if (!file.isFile()) return null;
+        JsonReader reader = null;
+        try {
+            reader = new JsonReader(new InputStreamReader(
+                    BackupStreams.openForRead(new FileInputStream(file)), "UTF-8"));
+            String setId = null;
+            int sequence = -1;
+            String credentialsHash = null;
+            Map notes = new HashMap();
+            Map rows = new HashMap();
+            Map attachments = new HashMap();
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+                if ("setId".equals(name)) {
+                    setId = reader.nextString();
+                } else if ("sequence".equals(name)) {
+                    sequence = reader.nextInt();
+                } else if ("credentials".equals(name)) {
+                    credentialsHash = reader.nextString();
+                } else if ("notes".equals(name)) {
+                    reader.beginArray();
+                    while (reader.hasNext()) {
+                        reader.beginArray();
+                        Long id = Long.valueOf(reader.nextLong());
+                        long modified = reader.nextLong();
+                        notes.put(id, new Entry(-1, modified, reader.nextString()));
+                        reader.endArray();
+                    }
+                    reader.endArray();
+                } else if ("rows".equals(name)) {
+                    reader.beginObject();
+                    while (reader.hasNext()) {
+                        String table = reader.nextName();
+                        Map tableRows = new HashMap();
+                        reader.beginArray();
+                        while (reader.hasNext()) {
+                            reader.beginArray();
+                            Long id = Long.valueOf(reader.nextLong());
+                            tableRows.put(id, reader.nextString());
+                            reader.endArray();
+                        }
+                        reader.endArray();
+                        rows.put(table, tableRows);
+                    }
+                    reader.endObject();
+                } else if ("attachments".equals(name)) {
+                    reader.beginArray();
+                    while (reader.hasNext()) {
+                        reader.beginArray();
+                        String path = reader.nextString();
+                        long size = reader.nextLong();
+                        long modified = reader.nextLong();
+                        attachments.put(path, new Entry(size, modified, reader.nextString()));
+                        reader.endArray();
+                    }
+                    reader.endArray();
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+            if (setId == null || sequence < 0 || reader.peek() != JsonToken.END_DOCUMENT) {
+                return null;
+            }
+            BackupIndex index = new BackupIndex(setId, sequence);
+            index.credentialsHash = credentialsHash;
+            index.notes.putAll(notes);
+            index.rows.putAll(rows);
+            index.attachments.putAll(attachments);
+            return index;
+        } catch (Exception e) {
+            // Damaged index: the next backup starts a new set
+            return null;
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (IOException e) {
+                    // Ignore
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,182 @@
+package com.mknotes.app.backup;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Streaming JSON writer with the exact layout of org.json's
+ * JSONObject.toString(2): two-space indent, "key": value, and '/' escaped
+ * as "\/". Backups written with it are byte-identical to the ones built as
+ * a JSONObject tree, without holding the tree or the string in memory.
+ *
+ * No validation: callers write well-formed sequences.
+ */
+final class BackupJsonWriter {
+
+    private static final String INDENT = "  ";
+
+    private final Writer out;
+    /** Per open object or array: whether it has an entry yet. */
+    private boolean[] nonEmpty = new boolean[8];
+    private int depth = 0;
+    /** A name was written; the next value follows it on the same line. */
+    private boolean afterName = false;
+
+    BackupJsonWriter(Writer out) {
+        this.out = out;
+    }
+
+    BackupJsonWriter beginObject() throws IOException {
+        return open('{');
+    }
+
+    BackupJsonWriter endObject() throws IOException {
+        return close('}');
+    }
+
+    BackupJsonWriter beginArray() throws IOException {
+        return open('[');
+    }
+
+    BackupJsonWriter endArray() throws IOException {
+        return close(']');
+    }
+
+    BackupJsonWriter name(String name) throws IOException {
+        nextEntry();
+        string(name);
+        afterName = true;
+        return this;
+    }
+
+    BackupJsonWriter value(String value) throws IOException {
+        beforeValue();
+        string(value != null ? value : "");
+        return this;
+    }
+
+    BackupJsonWriter value(long value) throws IOException {
+        beforeValue();
+        out.write(Long.toString(value));
+        return this;
+    }
+
+    BackupJsonWriter value(double value) throws IOException {
+        if (Double.isNaN(value) || Double.isInfinite(value)) {
+            return nullValue();
+        }
+        beforeValue();
+        out.write(Double.toString(value));
+        return this;
+    }
+
+    BackupJsonWriter nullValue() throws IOException {
+        beforeValue();
+        out.write("null");
+        return this;
+    }
+
+    BackupJsonWriter value(boolean value) throws IOException {
+        beforeValue();
+        out.write(value ? "true" : "false");
+        return this;
+    }
+
+    void flush() throws IOException {
+        out.flush();
+    }
+
+    private BackupJsonWriter open(char bracket) throws IOException {
+        beforeValue();
+        if (depth == nonEmpty.length) {
+            boolean[] grown = new boolean[depth * 2];
+            System.arraycopy(nonEmpty, 0, grown, 0, depth);
+            nonEmpty = grown;
+        }
+        nonEmpty[depth++] = false;
+        out.write(bracket);
+        return this;
+    }
+
+    private BackupJsonWriter close(char bracket) throws IOException {
+        boolean hadEntries = nonEmpty[--depth];
+        if (hadEntries) {
+            newline();
+        }
+        out.write(bracket);
+        return this;
+    }
+
+    private void beforeValue() throws IOException {
+        if (afterName) {
+            out.write(": ");
+            afterName = false;
+        } else if (depth > 0) {
+            // Array element
+            nextEntry();
+        }
+    }
+
+    private void nextEntry() throws IOException {
+        if (nonEmpty[depth - 1]) {
+            out.write(',');
+        }
+        nonEmpty[depth - 1] = true;
+        newline();
+    }
+
+    private void newline() throws IOException {
+        out.write('\n');
+        for (int i = 0; i < depth; i++) {
+            out.write(INDENT);
+        }
+    }
+
+    private void string(String value) throws IOException {
+        out.write('"');
+        int length = value.length();
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"':
+                case '\\':
+                case '/':
+                    out.write('\\');
+                    out.write(c);
+                    break;
+                case '\t':
+                    out.write("\\t");
+                    break;
+                case '\b':
+                    out.write("\\b");
+                    break;
+                case '\n':
+                    out.write("\\n");
+                    break;
+                case '\r':
+                    out.write("\\r");
+                    break;
+                case '\f':
+                    out.write("\\f");
+                    break;
+                case '\u2028':
+                case '\u2029':
+                    out.write(unicodeEscape(c));
+                    break;
+                default:
+                    if (c <= 0x1F) {
+                        out.write(unicodeEscape(c));
+                    } else {
+                        out.write(c);
+                    }
+                    break;
+            }
+        }
+        out.write('"');
+    }
+
+    private static String unicodeEscape(char c) {
+        String hex = Integer.toHexString(c);
+        return "\\u0000".substring(0, 6 - hex.length()) + hex;
+    }
+}
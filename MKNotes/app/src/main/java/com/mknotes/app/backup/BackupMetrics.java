@@ -0,0 +1,82 @@
+package com.mknotes.app.backup;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Cost of scheduled backups over time: one CSV line per run in
+ * filesDir/backups/backup_metrics.csv, the newest MAX_ENTRIES kept.
+ *
+ *   started (epoch ms), duration (ms), result, archive bytes, total bytes
+ *
+ * result is "full" or "delta" for a written archive, "unchanged" if nothing
+ * changed and "failed"; archive bytes is the size of the written archive
+ * and total bytes the size of all backups kept after retention.
+ */
+final class BackupMetrics {
+
+    private static final String TAG = "BackupMetrics";
+    private static final String FILE_NAME = "backup_metrics.csv";
+    private static final int MAX_ENTRIES = 200;
+
+    static final String RESULT_FULL = "full";
+    static final String RESULT_DELTA = "delta";
+    static final String RESULT_UNCHANGED = "unchanged";
+    static final String RESULT_FAILED = "failed";
+
+    private BackupMetrics() {
+    }
+
+    static synchronized void record(Context context, long started, long duration, String result,
+                                    long archiveBytes, long totalBytes) {
+        String line = started + "," + duration + "," + result + "," + archiveBytes + "," + totalBytes;
+        Log.i(TAG, "Backup " + line);
+        File file = new File(context.getFilesDir(), "backups/" + FILE_NAME);
+        try {
+            List lines = readLines(file);
+            lines.add(line);
+            int from = Math.max(0, lines.size() - MAX_ENTRIES);
+            file.getParentFile().mkdirs();
+            Writer out = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+            try {
+                for (int i = from; i < lines.size(); i++) {
+                    out.write((String) lines.get(i));
+                    out.write('\n');
+                }
+            } finally {
+                out.close();
+            }
+        } catch (IOException e) {
+            // Metrics are informational; the backup itself is not affected
+            Log.e(TAG, "Cannot record metrics: " + e.getMessage());
+        }
+    }
+
+    private static List readLines(File file) throws IOException {
+        List lines = new ArrayList();
+        if (!file.isFile()) return lines;
+        BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+        try {
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (line.length() > 0) {
+                    lines.add(line);
+                }
+            }
+        } finally {
+            in.close();
+        }
+        return lines;
+    }
+}
@@ -0,0 +1,51 @@
+package com.mknotes.app.backup;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Stream helpers shared by backup export and restore.
+ */
+public final class BackupStreams {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private BackupStreams() {
+    }
+
+    /**
+     * Wrap a backup file stream for reading: buffered, and decompressed if
+     * it is gzip (JSON backups of earlier versions), detected by its magic bytes.
+     */
+    public static InputStream openForRead(InputStream in) throws IOException {
+        BufferedInputStream buffered = new BufferedInputStream(in, BUFFER_SIZE);
+        buffered.mark(2);
+        int b1 = buffered.read();
+        int b2 = buffered.read();
+        buffered.reset();
+        if (b1 == 0x1f && b2 == 0x8b) {
+            return new GZIPInputStream(buffered, BUFFER_SIZE);
+        }
+        return buffered;
+    }
+
+    /**
+     * True if in (from openForRead()) holds a backup archive rather than
+     * JSON. Reads nothing from it.
+     */
+    public static boolean isArchive(InputStream in) throws IOException {
+        if (!in.markSupported()) {
+            // Gzip compressed: JSON
+            return false;
+        }
+        in.mark(4);
+        int b1 = in.read();
+        int b2 = in.read();
+        int b3 = in.read();
+        int b4 = in.read();
+        in.reset();
+        return BackupArchive.isZipMagic(b1, b2, b3, b4);
+    }
+}
@@ -0,0 +1,469 @@
+package com.mknotes.app.cloud;
+
+import android.content.Context;
+import android.util.Log;
+
+import com.mknotes.app.db.ActivitySyncRepository;
+import com.mknotes.app.util.CryptoUtils;
+import com.mknotes.app.util.PrefsManager;
+import com.mknotes.app.util.SessionManager;
+
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Syncs meditation and mood data (mantras, daily sessions, mantra history,
+ * count logs, note moods) after the notes, one transport collection per
+ * table, each with its own watermark. Conflict rules and document layout are
+ * described in ActivitySyncRepository.
+ *
+ * A run downloads the changes of every collection since its watermark and
+ * applies each collection in one transaction, then sends pending deletions,
+ * then uploads PENDING rows in batches of the transport's maximum size. Rows
+ * are marked synced only after their batch committed, and only if they did
+ * not change meanwhile. Unchanged rows are never uploaded again.
+ *
+ * Documents are encrypted with the session data key, as notes are: the
+ * fields of a row go into one encrypted "payload" along with its id, and the
+ * document id is an HMAC of collection and row id, so names and dates never
+ * reach the cloud. Only modifiedAt, isDeleted and the session counter entries
+ * stay readable, since the transport merges them field by field.
+ *
+ * The first sync with a key (after the upgrade from plaintext documents, or a
+ * re-key) reads every document and uploads every row again. Documents found in
+ * the plaintext layout or under the previous key are applied as usual, then
+ * removed once their rows are uploaded under the new ids.
+ *
+ * Runs on the CloudSyncManager sync thread and waits for transport callbacks.
+ * Uploading stops at the first failed commit (e.g. offline); the rest stays
+ * PENDING for the next sync.
+ */
+class ActivitySync {
+
+    private static final String TAG = "ActivitySync";
+    /** Longest wait for one query or commit; Firestore only completes a commit once online. */
+    private static final long TIMEOUT_MS = 60000L;
+
+    private static final String F_PAYLOAD = "payload";
+    /** Row id inside the payload. */
+    private static final String F_ID = "id";
+    private static final String ID_KEY_LABEL = "mknotes-activity-ids";
+    private static final String KEY_ID_LABEL = "mknotes-activity-key";
+
+    private final Context appContext;
+    private final ActivitySyncRepository repo;
+    private final String deviceId;
+    /** collection name -> SyncTransport */
+    private final Map transports = new HashMap();
+
+    /**
+     * Outcome of one transport call, awaited by the sync thread.
+     */
+    static class Result implements SyncTransport.QueryCallback, SyncTransport.CommitCallback {
+        final CountDownLatch done = new CountDownLatch(1);
+        volatile boolean ok;
+        volatile List documents;
+        volatile boolean fromServer;
+
+        public void onResult(List documents, boolean fromServer) {
+            this.documents = documents;
+            this.fromServer = fromServer;
+            ok = true;
+            done.countDown();
+        }
+
+        public void onCommitted() {
+            ok = true;
+            done.countDown();
+        }
+
+        public void onError(Exception e) {
+            onFailed(e);
+        }
+
+        public void onFailed(Exception e) {
+            Log.e(TAG, "Transport call failed: " + (e != null ? e.getMessage() : "unknown"));
+            done.countDown();
+        }
+
+        boolean await() {
+            try {
+                return done.await(TIMEOUT_MS, TimeUnit.MILLISECONDS) && ok;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Keys of one sync run, zero-filled when it ends.
+     */
+    private static class Keys {
+        final byte[] data;
+        /** Derives document ids; the same on every device with the data key. */
+        final byte[] ids;
+        /** Data key before a pending re-key, or null. */
+        final byte[] old;
+
+        Keys(byte[] data, byte[] old) {
+            this.data = data;
+            String idKey = CryptoUtils.hmacHex(data, ID_KEY_LABEL);
+            this.ids = idKey != null ? CryptoUtils.hexToBytes(idKey) : null;
+            this.old = old;
+        }
+
+        void clear() {
+            Arrays.fill(data, (byte) 0);
+            if (ids != null) Arrays.fill(ids, (byte) 0);
+            if (old != null) Arrays.fill(old, (byte) 0);
+        }
+    }
+
+    ActivitySync(Context context, SyncTransport notesTransport, String deviceId) {
+        this.appContext = context;
+        this.repo = ActivitySyncRepository.getInstance(context);
+        this.deviceId = deviceId;
+        for (int i = 0; i < ActivitySyncRepository.COLLECTIONS.length; i++) {
+            String collection = ActivitySyncRepository.COLLECTIONS[i];
+            transports.put(collection, notesTransport.forCollection(collection));
+        }
+    }
+
+    /**
+     * @return true if every collection was downloaded and every pending row sent;
+     *         false without a session key
+     */
+    boolean sync(String uid) {
+        SessionManager session = SessionManager.getInstance(appContext);
+        byte[] sessionKey = session.getCachedKey();
+        if (sessionKey == null) {
+            Log.w(TAG, "No session key, activity data not synced");
+            return false;
+        }
+        // Copied: the session may end (and clear its key) while this runs
+        Keys keys = new Keys(sessionKey.clone(), session.getReKeyOldKey());
+        try {
+            return sync(uid, keys);
+        } finally {
+            keys.clear();
+        }
+    }
+
+    private boolean sync(String uid, Keys keys) {
+        PrefsManager prefs = PrefsManager.getInstance(appContext);
+        String keyId = CryptoUtils.hmacHex(keys.data, KEY_ID_LABEL);
+        if (keys.ids == null || keyId == null) {
+            return false;
+        }
+        boolean newKey = !keyId.equals(prefs.getActivitySyncKeyId(uid));
+        if (newKey) {
+            // Read every document once, to find those not under this key yet
+            resetWatermarks(uid);
+        }
+        repo.assignMantraCloudIds();
+        String[] collections = ActivitySyncRepository.COLLECTIONS;
+        // collection -> List of ids of documents to remove after the upload
+        Map stale = new HashMap();
+        // Apply in order so mantras exist before the rows that refer to them
+        for (int i = 0; i < collections.length; i++) {
+            if (!download(uid, collections[i], keys, stale)) {
+                return false;
+            }
+        }
+        boolean moving = newKey || !stale.isEmpty();
+        if (moving) {
+            // Until the old documents are gone, the next sync reads everything again
+            prefs.setActivitySyncKeyId(uid, null);
+            repo.markAllPending();
+        }
+        if (!sendTombstones(uid, keys)) {
+            return false;
+        }
+        for (int i = 0; i < collections.length; i++) {
+            if (!upload(uid, collections[i], keys, moving)) {
+                return false;
+            }
+        }
+        if (!removeStale(uid, stale)) {
+            return false;
+        }
+        prefs.setActivitySyncKeyId(uid, keyId);
+        return true;
+    }
+
+    /**
+     * Forget the watermarks so the next sync downloads every document.
+     */
+    void resetWatermarks(String uid) {
+        PrefsManager prefs = PrefsManager.getInstance(appContext);
+        for (int i = 0; i < ActivitySyncRepository.COLLECTIONS.length; i++) {
+            prefs.setSyncWatermark(uid, ActivitySyncRepository.COLLECTIONS[i], 0);
+        }
+    }
+
+    private SyncTransport transport(String collection) {
+        return (SyncTransport) transports.get(collection);
+    }
+
+    private boolean download(String uid, String collection, Keys keys, Map stale) {
+        PrefsManager prefs = PrefsManager.getInstance(appContext);
+        long watermark = prefs.getSyncWatermark(uid, collection);
+        Result result = new Result();
+        transport(collection).querySince(uid, watermark, result);
+        if (!result.await()) {
+            return false;
+        }
+        List records = new ArrayList();
+        List staleIds = new ArrayList();
+        long newWatermark = watermark;
+        for (int i = 0; i < result.documents.size(); i++) {
+            SyncTransport.Document doc = (SyncTransport.Document) result.documents.get(i);
+            ActivitySyncRepository.Record record = open(doc, keys, staleIds);
+            if (record != null) {
+                records.add(record);
+            }
+            newWatermark = Math.max(newWatermark, doc.updatedAt);
+        }
+        if (!staleIds.isEmpty()) {
+            stale.put(collection, staleIds);
+        }
+        if (!repo.applyCloudRecords(collection, records, deviceId)) {
+            Log.e(TAG, "Apply failed for " + collection + ", watermark kept");
+            return false;
+        }
+        // A result served from the offline cache may miss server changes
+        if (result.fromServer) {
+            prefs.setSyncWatermark(uid, collection, newWatermark);
+        }
+        return true;
+    }
+
+    /**
+     * Send deletions. Those carrying fields (session counter entries) are
+     * merged into the document like an upload, the others soft-delete it.
+     */
+    private boolean sendTombstones(String uid, Keys keys) {
+        List tombstones = repo.loadTombstones();
+        for (int start = 0; start < tombstones.size(); ) {
+            String collection = ((ActivitySyncRepository.Tombstone) tombstones.get(start)).collection;
+            SyncTransport transport = transport(collection);
+            if (transport == null) {
+                start++;
+                continue;
+            }
+            // Next run of tombstones of one collection, at most one batch
+            List batch = new ArrayList();
+            Map deletes = new HashMap();
+            List upserts = new ArrayList();
+            while (start < tombstones.size() && batch.size() < transport.getMaxBatchSize()) {
+                ActivitySyncRepository.Tombstone tombstone =
+                        (ActivitySyncRepository.Tombstone) tombstones.get(start);
+                if (!tombstone.collection.equals(collection)) break;
+                batch.add(tombstone);
+                String docId = documentId(keys, collection, tombstone.docId);
+                if (tombstone.fields == null) {
+                    deletes.put(docId, Long.valueOf(tombstone.deletedAt));
+                } else {
+                    // Counter entries only, which stay readable
+                    Map<String, Object> data = new HashMap<String, Object>(tombstone.fields);
+                    data.put("isDeleted", Boolean.TRUE);
+                    data.put("modifiedAt", Long.valueOf(tombstone.deletedAt));
+                    upserts.add(new SyncTransport.Document(docId, data, 0));
+                }
+                start++;
+            }
+            if (!deletes.isEmpty()) {
+                Result result = new Result();
+                transport.delete(uid, deletes, result);
+                if (!result.await()) return false;
+            }
+            if (!upserts.isEmpty()) {
+                Result result = new Result();
+                transport.upsert(uid, upserts, result);
+                if (!result.await()) return false;
+            }
+            repo.removeTombstones(batch);
+        }
+        return true;
+    }
+
+    /**
+     * @param moving documents move to new ids: sessions carry every counter entry,
+     *               not only this device's, so none is lost with the old document
+     */
+    private boolean upload(String uid, String collection, Keys keys, boolean moving) {
+        List records = repo.loadPending(collection, deviceId, moving);
+        if (records.isEmpty()) {
+            return true;
+        }
+        SyncTransport transport = transport(collection);
+        int batchSize = transport.getMaxBatchSize();
+        for (int start = 0; start < records.size(); start += batchSize) {
+            List batch = new ArrayList(records.subList(start, Math.min(records.size(), start + batchSize)));
+            List documents = new ArrayList();
+            for (int i = 0; i < batch.size(); i++) {
+                SyncTransport.Document doc = seal(collection,
+                        (ActivitySyncRepository.Record) batch.get(i), keys);
+                if (doc == null) {
+                    return false;
+                }
+                documents.add(doc);
+            }
+            Result result = new Result();
+            transport.upsert(uid, documents, result);
+            if (!result.await()) {
+                return false;
+            }
+            repo.markSynced(collection, batch);
+        }
+        Log.d(TAG, "Uploaded " + records.size() + " " + collection);
+        return true;
+    }
+
+    /**
+     * Remove the documents replaced by encrypted ones under new ids.
+     */
+    private boolean removeStale(String uid, Map stale) {
+        Iterator it = stale.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry entry = (Map.Entry) it.next();
+            SyncTransport transport = transport((String) entry.getKey());
+            List ids = (List) entry.getValue();
+            int batchSize = transport.getMaxBatchSize();
+            for (int start = 0; start < ids.size(); start += batchSize) {
+                Result result = new Result();
+                transport.remove(uid, new ArrayList(ids.subList(start, Math.min(ids.size(), start + batchSize))),
+                        result);
+                if (!result.await()) {
+                    return false;
+                }
+            }
+            Log.d(TAG, "Removed " + ids.size() + " old " + entry.getKey());
+        }
+        return true;
+    }
+
+    // ============ ENCRYPTION ============
+
+    /**
+     * Fields stored readable: the transport merges documents field by field,
+     * so counter entries of different devices cannot share an encrypted blob.
+     * updatedAt is the transport's own write time.
+     */
+    private static boolean isPlainField(String field) {
+        return field.equals("modifiedAt") || field.equals("isDeleted") || field.equals("updatedAt")
+                || field.startsWith("p_") || field.startsWith("n_");
+    }
+
+    private static String documentId(Keys keys, String collection, String rowId) {
+        return CryptoUtils.hmacHex(keys.ids, collection + "/" + rowId);
+    }
+
+    /**
+     * Cloud document of a record: readable fields as they are, the others and
+     * the row id in the encrypted payload.
+     *
+     * @return the document, or null if it cannot be encrypted
+     */
+    private static SyncTransport.Document seal(String collection, ActivitySyncRepository.Record record,
+                                               Keys keys) {
+        try {
+            Map<String, Object> data = new HashMap<String, Object>();
+            JSONObject payload = new JSONObject();
+            payload.put(F_ID, record.docId);
+            Iterator it = record.data.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry entry = (Map.Entry) it.next();
+                String field = (String) entry.getKey();
+                if (isPlainField(field)) {
+                    data.put(field, entry.getValue());
+                } else if (entry.getValue() != null) {
+                    payload.put(field, entry.getValue());
+                }
+            }
+            String sealed = CryptoUtils.encrypt(payload.toString(), keys.data);
+            String docId = documentId(keys, collection, record.docId);
+            if (sealed == null || docId == null) {
+                Log.e(TAG, "Cannot encrypt " + collection + " document");
+                return null;
+            }
+            data.put(F_PAYLOAD, sealed);
+            return new SyncTransport.Document(docId, data, 0);
+        } catch (Exception e) {
+            Log.e(TAG, "Cannot encrypt " + collection + " document: " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Record of a cloud document, with its row id and plain fields.
+     * Documents in the plaintext layout or under the previous key are added to
+     * staleIds; they are applied like the others and removed after the upload.
+     *
+     * @return the record, or null if there is nothing to apply or it cannot be decrypted
+     */
+    private static ActivitySyncRepository.Record open(SyncTransport.Document doc, Keys keys, List staleIds) {
+        Object sealed = doc.data.get(F_PAYLOAD);
+        if (!(sealed instanceof String)) {
+            if (!hasPrivateFields(doc.data)) {
+                // Deletion of a row that was never uploaded
+                return null;
+            }
+            // Written before documents were encrypted, or by an older app version
+            staleIds.add(doc.id);
+            return new ActivitySyncRepository.Record(doc.id, doc.data);
+        }
+        String json = CryptoUtils.decryptOrNull((String) sealed, keys.data);
+        if (json == null && keys.old != null) {
+            json = CryptoUtils.decryptOrNull((String) sealed, keys.old);
+            if (json != null) {
+                staleIds.add(doc.id);
+            }
+        }
+        if (json == null) {
+            Log.w(TAG, "Skipping a document that does not decrypt with the session key");
+            return null;
+        }
+        try {
+            JSONObject payload = new JSONObject(json);
+            Map<String, Object> data = new HashMap<String, Object>();
+            Iterator it = doc.data.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry entry = (Map.Entry) it.next();
+                if (isPlainField((String) entry.getKey())) {
+                    data.put((String) entry.getKey(), entry.getValue());
+                }
+            }
+            Iterator names = payload.keys();
+            while (names.hasNext()) {
+                String name = (String) names.next();
+                if (!F_ID.equals(name)) {
+                    data.put(name, payload.get(name));
+                }
+            }
+            return new ActivitySyncRepository.Record(payload.getString(F_ID), data);
+        } catch (Exception e) {
+            Log.w(TAG, "Skipping a damaged document: " + e.getMessage());
+            return null;
+        }
+    }
+
+    private static boolean hasPrivateFields(Map<String, Object> data) {
+        Iterator it = data.keySet().iterator();
+        while (it.hasNext()) {
+            if (!isPlainField((String) it.next())) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
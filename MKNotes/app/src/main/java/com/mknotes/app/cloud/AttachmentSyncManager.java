@@ -0,0 +1,412 @@
+package com.mknotes.app.cloud;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import com.google.firebase.firestore.FirebaseFirestore;
+import com.mknotes.app.db.NotesRepository;
+import com.mknotes.app.model.Note;
+import com.mknotes.app.util.AttachmentManager;
+import com.mknotes.app.util.CryptoUtils;
+import com.mknotes.app.util.PrefsManager;
+import com.mknotes.app.util.SessionManager;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Syncs attachment content (the images, files and audio recordings under
+ * AttachmentManager's directories). Notes only carry the descriptors; the
+ * files go to a ChunkStore:
+ *
+ * - A file is split into CHUNK_SIZE pieces. Each is encrypted with the data
+ *   key and stored under a keyed hash (HMAC-SHA256) of its plaintext, so
+ *   equal content is stored once per account and ids reveal nothing.
+ * - Only chunks the store does not have are uploaded. An interrupted upload
+ *   resumes where it stopped, since the chunks already sent are found.
+ * - A manifest per file lists its chunk ids. Its id is a keyed hash of the
+ *   note's cloud id and the attachment's local name, which every device
+ *   knows from the descriptor. It is written after the chunks.
+ * - Other devices fetch a file lazily, the first time it is shown (fetch()).
+ *   Chunks are appended to a ".part" file, so an interrupted download goes
+ *   on after the last complete chunk. Each chunk is authenticated (GCM) and
+ *   checked against its id before it is written.
+ *
+ * Uploads start after a successful note sync (CloudSyncManager). Work runs
+ * on one background thread; fetch callbacks are delivered on the main thread.
+ *
+ * Chunks of deleted attachments stay in the store.
+ */
+public class AttachmentSyncManager {
+
+    private static final String TAG = "AttachmentSync";
+
+    /** Plaintext bytes per chunk; fixed, so equal files produce equal chunks. */
+    static final int CHUNK_SIZE = 256 * 1024;
+    private static final String PART_SUFFIX = ".part";
+    /** Label of the id key derived from the data key. */
+    private static final String ID_KEY_LABEL = "mknotes-attachment-ids";
+    private static final int MANIFEST_VERSION = 1;
+
+    /**
+     * Result of fetch(), on the main thread.
+     */
+    public interface FetchCallback {
+        /**
+         * @param file the local file, or null if it is not available (offline,
+         *             not uploaded by its device yet, or no session)
+         */
+        void onFetched(File file);
+    }
+
+    private static AttachmentSyncManager sInstance;
+
+    private final Context appContext;
+    private final ChunkStore store;
+    private final NotesRepository repo;
+    private final ExecutorService executor;
+    private final Handler mainHandler;
+    /** "noteId/subDir/localName" -> List of FetchCallback; main thread only */
+    private final Map pendingFetches = new HashMap();
+
+    public static synchronized AttachmentSyncManager getInstance(Context context) {
+        if (sInstance == null) {
+            Context appContext = context.getApplicationContext();
+            sInstance = new AttachmentSyncManager(appContext,
+                    new FirestoreChunkStore(FirebaseFirestore.getInstance()));
+        }
+        return sInstance;
+    }
+
+    /**
+     * Attachment sync on the given store. The app uses getInstance(); tests
+     * pass a LocalChunkStore.
+     */
+    AttachmentSyncManager(Context context, ChunkStore store) {
+        this.appContext = context;
+        this.store = store;
+        this.repo = NotesRepository.getInstance(context);
+        this.mainHandler = new Handler(Looper.getMainLooper());
+        this.executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "mknotes-attachment-sync");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    private String getSyncUid() {
+        if (!PrefsManager.getInstance(appContext).isCloudSyncEnabled()) {
+            return null;
+        }
+        FirebaseAuthManager auth = FirebaseAuthManager.getInstance(appContext);
+        return auth.isLoggedIn() ? auth.getUid() : null;
+    }
+
+    // ============ UPLOAD ============
+
+    /**
+     * Upload the attachments of this device that are not in the store yet.
+     * Does nothing without sync, a session key, or while a re-key is running.
+     *
+     * @param onUploaded run on the upload thread once every attachment is in
+     *                   the store under the current key; may be null
+     */
+    public void uploadPending(final Runnable onUploaded) {
+        final String uid = getSyncUid();
+        final SessionManager session = SessionManager.getInstance(appContext);
+        final byte[] key = session.getCachedKey();
+        if (uid == null || key == null || session.isReKeyPending()) {
+            return;
+        }
+        final int keyVersion = session.getKeyVersion();
+        executor.execute(new Runnable() {
+            public void run() {
+                if (uploadAll(uid, key, keyVersion) && onUploaded != null) {
+                    onUploaded.run();
+                }
+            }
+        });
+    }
+
+    /**
+     * Upload every local attachment file not recorded as uploaded with this
+     * key version. Runs on the calling thread; stops at the first failure.
+     *
+     * @return false if an upload failed (the rest is tried on the next call)
+     */
+    boolean uploadAll(String uid, byte[] key, int keyVersion) {
+        byte[] idKey = deriveIdKey(key);
+        List notes = repo.getNotesWithAttachmentsRaw();
+        int uploaded = 0;
+        for (int i = 0; i < notes.size(); i++) {
+            Note note = (Note) notes.get(i);
+            List refs = AttachmentManager.getAttachmentRefs(note);
+            for (int j = 0; j < refs.size(); j++) {
+                String[] ref = (String[]) refs.get(j);
+                File file = AttachmentManager.getAttachmentFile(appContext, note.getId(), ref[0], ref[1]);
+                // Files missing here belong to another device; they are fetched on view
+                if (!file.exists()) continue;
+                long size = file.length();
+                long modified = file.lastModified();
+                if (repo.isAttachmentUploaded(note.getId(), ref[1], size, modified, keyVersion)) {
+                    continue;
+                }
+                try {
+                    if (!uploadFile(uid, key, idKey, note.getCloudId(), ref[1], file)) {
+                        return false;
+                    }
+                } catch (Exception e) {
+                    Log.e(TAG, "Attachment upload failed: " + e.getMessage());
+                    return false;
+                }
+                repo.markAttachmentUploaded(note.getId(), ref[1], size, modified, keyVersion);
+                uploaded++;
+            }
+        }
+        if (uploaded > 0) {
+            Log.d(TAG, "Uploaded " + uploaded + " attachment(s)");
+        }
+        return true;
+    }
+
+    /**
+     * Send the chunks the store is missing, then the manifest.
+     *
+     * @return false if the file changed while it was read
+     */
+    private boolean uploadFile(String uid, byte[] key, byte[] idKey, String cloudId, String localName,
+                               File file) throws Exception {
+        long size = file.length();
+        List chunkIds = new ArrayList();
+        byte[] buffer = new byte[CHUNK_SIZE];
+        Mac mac = newMac(idKey);
+        InputStream in = new FileInputStream(file);
+        try {
+            int n;
+            while ((n = readFully(in, buffer)) > 0) {
+                chunkIds.add(hex(mac, buffer, n));
+            }
+        } finally {
+            in.close();
+        }
+
+        Set stored = store.findExisting(uid, new ArrayList(new LinkedHashSet(chunkIds)));
+        int sent = 0;
+        in = new FileInputStream(file);
+        try {
+            for (int i = 0; i < chunkIds.size(); i++) {
+                int n = readFully(in, buffer);
+                String chunkId = (String) chunkIds.get(i);
+                // A file still being written (recording) is retried on the next sync
+                if (!chunkId.equals(hex(mac, buffer, n))) {
+                    return false;
+                }
+                if (stored.contains(chunkId)) continue;
+                byte[] sealed = CryptoUtils.encryptBytes(buffer, 0, n, key);
+                if (sealed == null) {
+                    return false;
+                }
+                store.putChunk(uid, chunkId, sealed);
+                stored.add(chunkId);
+                sent++;
+            }
+            if (in.read() != -1) {
+                return false;
+            }
+        } finally {
+            in.close();
+        }
+
+        JSONObject manifest = new JSONObject();
+        manifest.put("v", MANIFEST_VERSION);
+        manifest.put("size", size);
+        manifest.put("chunkSize", CHUNK_SIZE);
+        manifest.put("chunks", new JSONArray(chunkIds));
+        String sealedManifest = CryptoUtils.encrypt(manifest.toString(), key);
+        if (sealedManifest == null) {
+            return false;
+        }
+        store.putManifest(uid, manifestId(idKey, cloudId, localName), sealedManifest);
+        Log.d(TAG, localName + ": " + sent + " of " + chunkIds.size() + " chunk(s) sent");
+        return true;
+    }
+
+    // ============ FETCH ============
+
+    /**
+     * Get an attachment file, downloading it first if this device does not
+     * have it. Call on the main thread; concurrent requests for the same file
+     * share one download.
+     *
+     * @param subDir "images", "files" or "audios"
+     */
+    public void fetch(final long noteId, String subDir, final String localName, FetchCallback callback) {
+        final File target = AttachmentManager.getAttachmentFile(appContext, noteId, subDir, localName);
+        if (target.exists()) {
+            callback.onFetched(target);
+            return;
+        }
+        final String uid = getSyncUid();
+        final byte[] key = SessionManager.getInstance(appContext).getCachedKey();
+        if (uid == null || key == null) {
+            callback.onFetched(null);
+            return;
+        }
+        final String fetchKey = noteId + "/" + subDir + "/" + localName;
+        List waiting = (List) pendingFetches.get(fetchKey);
+        if (waiting != null) {
+            waiting.add(callback);
+            return;
+        }
+        waiting = new ArrayList();
+        waiting.add(callback);
+        pendingFetches.put(fetchKey, waiting);
+        executor.execute(new Runnable() {
+            public void run() {
+                boolean fetched = false;
+                try {
+                    fetched = download(uid, key, noteId, localName, target);
+                } catch (Exception e) {
+                    Log.e(TAG, "Attachment download failed: " + e.getMessage());
+                }
+                final File result = fetched ? target : null;
+                mainHandler.post(new Runnable() {
+                    public void run() {
+                        List callbacks = (List) pendingFetches.remove(fetchKey);
+                        if (callbacks == null) return;
+                        for (int i = 0; i < callbacks.size(); i++) {
+                            ((FetchCallback) callbacks.get(i)).onFetched(result);
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Download a file into target, continuing a previous partial download.
+     * Runs on the calling thread.
+     *
+     * @return false if there is no manifest for it yet or a chunk is missing or invalid
+     */
+    boolean download(String uid, byte[] key, long noteId, String localName, File target) throws Exception {
+        if (target.exists()) {
+            return true;
+        }
+        Note note = repo.getNoteRawById(noteId);
+        if (note == null || note.getCloudId() == null) {
+            return false;
+        }
+        byte[] idKey = deriveIdKey(key);
+        String sealedManifest = store.getManifest(uid, manifestId(idKey, note.getCloudId(), localName));
+        String json = sealedManifest != null ? CryptoUtils.decryptOrNull(sealedManifest, key) : null;
+        if (json == null) {
+            return false;
+        }
+        JSONObject manifest = new JSONObject(json);
+        long size = manifest.getLong("size");
+        int chunkSize = manifest.getInt("chunkSize");
+        JSONArray chunks = manifest.getJSONArray("chunks");
+        if (chunkSize <= 0) {
+            return false;
+        }
+
+        File part = new File(target.getPath() + PART_SUFFIX);
+        Mac mac = newMac(idKey);
+        RandomAccessFile out = new RandomAccessFile(part, "rw");
+        try {
+            // Keep the complete chunks of an interrupted download
+            int done = (int) Math.min(chunks.length(), out.length() / chunkSize);
+            out.setLength((long) done * chunkSize);
+            out.seek(out.length());
+            for (int i = done; i < chunks.length(); i++) {
+                String chunkId = chunks.getString(i);
+                byte[] plain = CryptoUtils.decryptBytes(store.getChunk(uid, chunkId), key);
+                if (plain == null || !chunkId.equals(hex(mac, plain, plain.length))) {
+                    Log.w(TAG, "Chunk " + i + " of " + localName + " missing or invalid");
+                    return false;
+                }
+                out.write(plain);
+            }
+            if (out.length() != size) {
+                out.setLength(0);
+                return false;
+            }
+        } finally {
+            out.close();
+        }
+        return part.renameTo(target);
+    }
+
+    // ============ IDS ============
+
+    private static byte[] deriveIdKey(byte[] key) {
+        try {
+            byte[] label = ID_KEY_LABEL.getBytes("UTF-8");
+            return newMac(key).doFinal(label);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String manifestId(byte[] idKey, String cloudId, String localName) {
+        try {
+            byte[] name = (cloudId + "/" + localName).getBytes("UTF-8");
+            return hex(newMac(idKey), name, name.length);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static Mac newMac(byte[] key) {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(key, "HmacSHA256"));
+            return mac;
+        } catch (Exception e) {
+            throw new IllegalStateException("HmacSHA256 unavailable", e);
+        }
+    }
+
+    private static String hex(Mac mac, byte[] data, int length) {
+        mac.update(data, 0, length);
+        return CryptoUtils.bytesToHex(mac.doFinal());
+    }
+
+    /**
+     * Fill buffer from in, stopping only at end of stream.
+     *
+     * @return bytes read, 0 at end of stream
+     */
+    private static int readFully(InputStream in, byte[] buffer) throws IOException {
+        int off = 0;
+        while (off < buffer.length) {
+            int n = in.read(buffer, off, buffer.length - off);
+            if (n < 0) break;
+            off += n;
+        }
+        return off;
+    }
+}
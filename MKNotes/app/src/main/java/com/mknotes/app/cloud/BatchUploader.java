@@ -0,0 +1,169 @@
+package com.mknotes.app.cloud;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.mknotes.app.db.NotesRepository;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Uploads raw notes through a SyncTransport in batches, keeping at most
+ * maxInFlight batches committing at once. The next batch is sent as soon as
+ * one completes, so round trips overlap instead of adding up.
+ *
+ * A note is marked synced only after the batch holding it committed (and only
+ * if it was not modified meanwhile); notes of failed batches stay PENDING.
+ * Sync status is written by the uploading thread, not by transport callbacks
+ * (which Firestore delivers on the main thread).
+ *
+ * upload() blocks until every batch completed, or until no batch completed for
+ * STALL_TIMEOUT_MS (e.g. offline: Firestore only completes a commit once the
+ * server acknowledged it). Call it off the main thread.
+ */
+class BatchUploader {
+
+    private static final String TAG = "BatchUploader";
+    private static final long STALL_TIMEOUT_MS = 60000L;
+
+    /**
+     * Receives aggregate progress after each batch, on the uploading thread.
+     */
+    interface ProgressListener {
+        /**
+         * @param uploaded       notes committed so far
+         * @param failed         notes in failed batches so far
+         * @param total          notes to upload
+         * @param notesPerSecond committed notes per second since the upload started
+         */
+        void onProgress(int uploaded, int failed, int total, int notesPerSecond);
+    }
+
+    private final SyncTransport transport;
+    private final NotesRepository repo;
+    private final int maxInFlight;
+
+    /**
+     * State of one upload() call. Callbacks arriving after a stalled upload gave
+     * up only touch their own run.
+     */
+    private static class Run {
+        int inFlight;
+        int uploaded;
+        int failed;
+        /** Note lists of committed batches not marked synced yet. */
+        final List committed = new ArrayList();
+        boolean changed;
+    }
+
+    BatchUploader(SyncTransport transport, NotesRepository repo, int maxInFlight) {
+        this.transport = transport;
+        this.repo = repo;
+        this.maxInFlight = Math.max(1, maxInFlight);
+    }
+
+    /**
+     * @param rawNotes  List of Note (raw) to mark synced on success
+     * @param documents List of SyncTransport.Document, same order as rawNotes
+     * @param listener  may be null
+     * @return true if every batch committed
+     */
+    boolean upload(String uid, List rawNotes, List documents, ProgressListener listener) {
+        final int total = documents.size();
+        if (total == 0) {
+            return true;
+        }
+        final Run run = new Run();
+        long startedAt = SystemClock.elapsedRealtime();
+        int batchSize = transport.getMaxBatchSize();
+        for (int start = 0; start < total; start += batchSize) {
+            if (!awaitInFlightBelow(run, maxInFlight, total, startedAt, listener)) {
+                return false;
+            }
+            int end = Math.min(total, start + batchSize);
+            final List notes = new ArrayList(rawNotes.subList(start, end));
+            List batch = new ArrayList(documents.subList(start, end));
+            synchronized (run) {
+                run.inFlight++;
+            }
+            transport.upsert(uid, batch, new SyncTransport.CommitCallback() {
+                public void onCommitted() {
+                    synchronized (run) {
+                        run.uploaded += notes.size();
+                        run.committed.add(notes);
+                        run.inFlight--;
+                        run.changed = true;
+                        run.notifyAll();
+                    }
+                }
+
+                public void onFailed(Exception e) {
+                    // Notes stay PENDING and are retried by the next sync
+                    Log.e(TAG, "Upload batch failed: " + (e != null ? e.getMessage() : "unknown"));
+                    synchronized (run) {
+                        run.failed += notes.size();
+                        run.inFlight--;
+                        run.changed = true;
+                        run.notifyAll();
+                    }
+                }
+            });
+        }
+        if (!awaitInFlightBelow(run, 1, total, startedAt, listener)) {
+            return false;
+        }
+        synchronized (run) {
+            Log.d(TAG, "Uploaded " + run.uploaded + "/" + total + ", failed " + run.failed);
+            return run.failed == 0;
+        }
+    }
+
+    /**
+     * Wait until fewer than limit batches are in flight, marking committed notes
+     * synced and reporting progress as batches complete.
+     *
+     * @return false if interrupted or stalled
+     */
+    private boolean awaitInFlightBelow(Run run, int limit, int total, long startedAt,
+                                       ProgressListener listener) {
+        while (true) {
+            List committed;
+            int uploaded;
+            int failed;
+            boolean report;
+            boolean done;
+            synchronized (run) {
+                if (!run.changed && run.inFlight >= limit) {
+                    try {
+                        run.wait(STALL_TIMEOUT_MS);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return false;
+                    }
+                    if (!run.changed) {
+                        Log.w(TAG, "Upload stalled with " + run.inFlight + " batches in flight");
+                        return false;
+                    }
+                }
+                committed = new ArrayList(run.committed);
+                run.committed.clear();
+                report = run.changed;
+                run.changed = false;
+                uploaded = run.uploaded;
+                failed = run.failed;
+                done = run.inFlight < limit;
+            }
+            for (int i = 0; i < committed.size(); i++) {
+                repo.markSyncedIfUnchanged((List) committed.get(i));
+            }
+            if (report && listener != null) {
+                long elapsed = Math.max(1, SystemClock.elapsedRealtime() - startedAt);
+                listener.onProgress(uploaded, failed, total, (int) (uploaded * 1000L / elapsed));
+            }
+            if (done) {
+                return true;
+            }
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package com.mknotes.app.cloud;
+
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Cloud storage for attachment content, used by AttachmentSyncManager.
+ *
+ * Holds two kinds of per-user objects, both already encrypted by the caller:
+ * chunks, keyed by a keyed hash of their plaintext (so equal content is
+ * stored once), and manifests, which list the chunks of one attachment file.
+ *
+ * Calls block until the backend answered; never call them on the main thread.
+ *
+ * Implementations: FirestoreChunkStore (production) and LocalChunkStore
+ * (directory-backed, for tests).
+ */
+public interface ChunkStore {
+
+    /**
+     * Largest stored chunk the backend accepts, in bytes.
+     */
+    int getMaxChunkBytes();
+
+    /**
+     * @param chunkIds List of String
+     * @return the ids of chunkIds that are stored (Set of String)
+     */
+    Set findExisting(String uid, List chunkIds) throws Exception;
+
+    /**
+     * Store a chunk. Once this returns, findExisting() reports it.
+     */
+    void putChunk(String uid, String chunkId, byte[] data) throws Exception;
+
+    /**
+     * @return the stored chunk, or null if there is none
+     */
+    byte[] getChunk(String uid, String chunkId) throws Exception;
+
+    void putManifest(String uid, String manifestId, String manifest) throws Exception;
+
+    /**
+     * @return the stored manifest, or null if there is none
+     */
+    String getManifest(String uid, String manifestId) throws Exception;
+}
@@ -1,107 +1,161 @@
 package com.mknotes.app.cloud;
 
 import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
 import android.util.Log;
 
-import com.google.android.gms.tasks.OnCompleteListener;
-import com.google.android.gms.tasks.OnFailureListener;
-import com.google.android.gms.tasks.OnSuccessListener;
-import com.google.android.gms.tasks.Task;
-import com.google.firebase.firestore.DocumentChange;
-import com.google.firebase.firestore.EventListener;
 import com.google.firebase.firestore.FirebaseFirestore;
-import com.google.firebase.firestore.FirebaseFirestoreException;
-import com.google.firebase.firestore.FirebaseFirestoreSettings;
-import com.google.firebase.firestore.ListenerRegistration;
-import com.google.firebase.firestore.QueryDocumentSnapshot;
-import com.google.firebase.firestore.QuerySnapshot;
-import com.google.firebase.firestore.SetOptions;
-import com.google.firebase.firestore.WriteBatch;
 
+import com.mknotes.app.db.ActivitySyncRepository;
 import com.mknotes.app.db.NotesRepository;
 import com.mknotes.app.model.Note;
+import com.mknotes.app.util.CryptoUtils;
 import com.mknotes.app.util.PrefsManager;
 import com.mknotes.app.util.SessionManager;
 
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 
 /**
- * Core Cloud Sync Engine for Firebase Firestore.
+ * Core Cloud Sync Engine. Talks to the cloud through a SyncTransport
+ * (FirestoreSyncTransport in the app, LocalSyncTransport in tests/benchmarks).
  *
- * SECURITY: Only encrypted data from SQLite is uploaded to Firestore.
+ * SECURITY: Only encrypted data from SQLite is uploaded to the cloud.
  * Reads raw (encrypted) values via NotesRepository.getAllNotesRaw() / getNoteRawById().
  * Plaintext NEVER touches Firestore.
  *
- * Firestore structure: users/{uid}/notes/{cloudId}
+ * Merging runs on a single background thread; local changes are applied in
+ * batched transactions (NotesRepository.applyCloudChanges). Callbacks are
+ * delivered on the main thread.
+ *
+ * The transport stamps every write with its update time. syncOnAppStart only
+ * fetches documents updated after a persisted watermark and uploads the
+ * local dirty set (sync_status PENDING), so a resume with no changes costs one
+ * empty query. modifiedAt stays the client edit time used for conflict checks;
+ * it is not a safe watermark since a device may upload old edits late.
  *
  * Features:
- * - Full bidirectional sync on app start (syncOnAppStart)
- * - Real-time listener via addSnapshotListener (startRealtimeSync)
- * - Single note upload after local edit (uploadNote)
- * - Soft-delete propagation (deleteNoteFromCloud)
- * - Batch upload for password change re-encryption (uploadAllNotes)
- * - Offline persistence (Firestore default, confirmed in ensureOfflinePersistence)
+ * - Delta bidirectional sync on app start (syncOnAppStart), full sync on demand (fullSync)
+ * - Real-time listener via SyncTransport.listen (startRealtimeSync), applied in
+ *   debounced bursts (RealtimeChangeAggregator)
+ * - Single note upload after local edit (uploadNote), queued in the SyncOutbox
+ * - Soft-delete propagation (deleteNoteFromCloud), queued in the SyncOutbox
+ * - Data key shared by every device of the account (KeyringSync), checked
+ *   before the notes; notes re-encrypted by ReKeyEngine are PENDING and
+ *   uploaded like local edits, after which the old key is discarded
+ * - Mantras, sessions, history, count logs and moods synced after the notes on
+ *   app start and full sync (ActivitySync); not covered by the realtime listener
+ * - Attachment content uploaded after a successful sync (AttachmentSyncManager)
  *
  * No lambdas, no AndroidX, pure Java.
- * Compatible with firebase-firestore:16.0.0 (pre-AndroidX, Java 7 bytecode).
  */
 public class CloudSyncManager {
 
     private static final String TAG = "CloudSync";
-    private static final String COLLECTION_USERS = "users";
-    private static final String COLLECTION_NOTES = "notes";
-
+    /** Upload batches committing at once; each is a full round trip to the server. */
+    private static final int MAX_UPLOADS_IN_FLIGHT = 3;
     private static CloudSyncManager sInstance;
-    private FirebaseFirestore firestore;
+    private final SyncTransport transport;
     private Context appContext;
 
     /** Active real-time listener registration. Null if not listening. */
-    private ListenerRegistration realtimeListenerReg;
+    private SyncTransport.Registration realtimeListenerReg;
+    /** Account the listener runs for. */
+    private String realtimeUid;
 
     /** Flag to prevent processing snapshot events while we are uploading. */
-    private boolean isUploading = false;
+    private volatile boolean isUploading = false;
 
     /** Callback for notifying UI about real-time changes from cloud. */
     private RealtimeChangeCallback realtimeCallback;
 
+    /** Collects listener events so a burst is applied and reported once. */
+    private final RealtimeChangeAggregator realtimeChanges;
+
+    /** Persistent queue for single-note uploads and soft-deletes. */
+    private final SyncOutbox outbox;
+
+    /** Runs merges and bulk uploads one at a time, off the main thread. */
+    private final ExecutorService syncExecutor;
+    private final Handler mainHandler;
+    private final BatchUploader uploader;
+    /** This installation's entry in note version vectors. */
+    private final String deviceId;
+    private final NoteMergeEngine mergeEngine;
+    /** Meditation and mood tables, synced after the notes. */
+    private final ActivitySync activitySync;
+    /** Data key shared by the account's devices, checked before the notes. */
+    private final KeyringSync keyringSync;
+    /** Uploads attachment content after a successful sync; null in tests and benchmarks. */
+    private AttachmentSyncManager attachmentSync;
+
     public static synchronized CloudSyncManager getInstance(Context context) {
         if (sInstance == null) {
-            sInstance = new CloudSyncManager(context.getApplicationContext());
+            Context appContext = context.getApplicationContext();
+            sInstance = new CloudSyncManager(appContext,
+                    new FirestoreSyncTransport(FirebaseFirestore.getInstance()));
+            sInstance.attachmentSync = AttachmentSyncManager.getInstance(appContext);
         }
         return sInstance;
     }
 
-    private CloudSyncManager(Context context) {
-        this.appContext = context;
-        this.firestore = FirebaseFirestore.getInstance();
-        ensureOfflinePersistence();
-    }
-
-    // ======================== OFFLINE PERSISTENCE ========================
-
     /**
-     * Ensure Firestore offline persistence is enabled.
-     * In firebase-firestore:17.1.5, offline persistence is enabled by default.
-     * This method explicitly confirms the setting to guarantee offline caching
-     * works even if a future update changes the default.
-     *
-     * Must be called BEFORE any Firestore read/write operations.
-     * Safe to call multiple times -- Firestore ignores duplicate settings.
+     * Sync engine on the given transport. The app uses getInstance(); tests and
+     * benchmarks pass a LocalSyncTransport.
      */
-    private void ensureOfflinePersistence() {
-        try {
-            FirebaseFirestoreSettings settings = new FirebaseFirestoreSettings.Builder()
-                    .setPersistenceEnabled(true)
-                    .build();
-            firestore.setFirestoreSettings(settings);
-            Log.d(TAG, "Firestore offline persistence confirmed enabled");
-        } catch (Exception e) {
-            // Settings can only be set before any other Firestore call.
-            // If this fails, persistence is already the default (enabled).
-            Log.w(TAG, "Firestore settings already configured: " + e.getMessage());
-        }
+    CloudSyncManager(Context context, SyncTransport transport) {
+        this.appContext = context;
+        this.transport = transport;
+        this.outbox = new SyncOutbox(context, new TransportOutboxBackend());
+        this.mainHandler = new Handler(Looper.getMainLooper());
+        this.uploader = new BatchUploader(transport, NotesRepository.getInstance(context),
+                MAX_UPLOADS_IN_FLIGHT);
+        this.deviceId = PrefsManager.getInstance(context).getDeviceId();
+        this.mergeEngine = new NoteMergeEngine(deviceId, new NoteMergeEngine.Decryptor() {
+            public String decrypt(String ciphertext) {
+                return CryptoUtils.decryptOrNull(ciphertext,
+                        SessionManager.getInstance(appContext).getCachedKey());
+            }
+        });
+        this.activitySync = new ActivitySync(context, transport, deviceId);
+        this.keyringSync = new KeyringSync(context, transport);
+        this.realtimeChanges = new RealtimeChangeAggregator(mainHandler,
+                new RealtimeChangeAggregator.Sink() {
+                    public void onChanges(List changes) {
+                        applyRealtimeBurst(changes);
+                    }
+                });
+        SessionManager.getInstance(context).addSessionListener(new SessionManager.SessionListener() {
+            public void onSessionCleared() {
+                // Changes cannot be applied without the session; restarted after unlock
+                mainHandler.post(new Runnable() {
+                    public void run() {
+                        stopRealtimeSync();
+                    }
+                });
+            }
+        });
+        this.syncExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            public Thread newThread(final Runnable r) {
+                Thread t = new Thread(new Runnable() {
+                    public void run() {
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                        r.run();
+                    }
+                }, "mknotes-sync");
+                t.setDaemon(true);
+                return t;
+            }
+        });
     }
 
     // ======================== PRE-CHECKS ========================
@@ -135,15 +189,16 @@ public class CloudSyncManager {
     /**
      * Start real-time listening on the user's notes collection.
      * Any change on Firestore (from another device) will trigger local DB updates.
+     * Only documents written after the sync watermark are listened to; a
+     * running listener is kept and only gets the new callback.
      *
      * Call this after successful login and session validation.
-     * Call stopRealtimeSync() on logout or session expiry.
+     * Call stopRealtimeSync() on logout or when the app goes to background;
+     * the listener stops by itself when the session ends.
      *
      * @param callback optional callback to notify UI of changes
      */
     public void startRealtimeSync(RealtimeChangeCallback callback) {
-        this.realtimeCallback = callback;
-
         if (!canSync()) {
             Log.w(TAG, "Cannot start realtime sync: pre-checks failed");
             return;
@@ -153,136 +208,161 @@ public class CloudSyncManager {
             Log.w(TAG, "Cannot start realtime sync: no UID");
             return;
         }
+        this.realtimeCallback = callback;
+        if (realtimeListenerReg != null && uid.equals(realtimeUid)) {
+            return;
+        }
 
-        // Stop any existing listener before starting a new one
-        stopRealtimeSync();
+        // Stop a listener of another account before starting a new one
+        removeRealtimeListener();
 
+        long watermark = PrefsManager.getInstance(appContext).getSyncWatermark(uid);
         Log.d(TAG, "Starting real-time snapshot listener for uid=" + uid);
 
-        realtimeListenerReg = firestore.collection(COLLECTION_USERS).document(uid)
-                .collection(COLLECTION_NOTES)
-                .addSnapshotListener(new EventListener<QuerySnapshot>() {
-                    public void onEvent(QuerySnapshot snapshots, FirebaseFirestoreException error) {
-                        if (error != null) {
-                            Log.e(TAG, "Realtime listener error: " + error.getMessage());
-                            return;
-                        }
-                        if (snapshots == null) {
-                            return;
-                        }
-                        // Skip if we are currently uploading (to avoid feedback loop)
-                        if (isUploading) {
-                            return;
-                        }
-                        // Skip local-origin changes (from this device's cache)
-                        if (snapshots.getMetadata().hasPendingWrites()) {
-                            return;
-                        }
-                        // Re-check session before processing
-                        if (!SessionManager.getInstance(appContext).isSessionValid()) {
-                            Log.w(TAG, "Session expired during realtime event, skipping");
-                            return;
-                        }
+        realtimeUid = uid;
+        realtimeListenerReg = transport.listen(uid, watermark, new SyncTransport.ChangeListener() {
+            public void onChanges(List changes) {
+                // Skip if we are currently uploading (to avoid feedback loop)
+                if (isUploading) {
+                    return;
+                }
+                realtimeChanges.add(changes);
+            }
 
-                        try {
-                            processRealtimeChanges(snapshots);
-                        } catch (Exception e) {
-                            Log.e(TAG, "Error processing realtime changes: " + e.getMessage());
-                        }
-                    }
-                });
+            public void onError(Exception e) {
+                Log.e(TAG, "Realtime listener error: " + e.getMessage());
+            }
+        });
     }
 
     /**
-     * Process document changes from the real-time listener.
-     * Only processes ADDED and MODIFIED changes (not REMOVED, since we use soft-delete).
+     * Apply a debounced burst of listener changes on the sync thread.
+     * Changes dropped here are picked up by the next delta sync: the watermark
+     * only advances in performSync.
      */
-    private void processRealtimeChanges(QuerySnapshot snapshots) {
-        NotesRepository repo = NotesRepository.getInstance(appContext);
-        boolean hasChanges = false;
-
-        for (DocumentChange dc : snapshots.getDocumentChanges()) {
-            String cloudId = dc.getDocument().getId();
-            Map<String, Object> data = dc.getDocument().getData();
+    private void applyRealtimeBurst(final List changes) {
+        syncExecutor.execute(new Runnable() {
+            public void run() {
+                // Re-check session before processing
+                if (!SessionManager.getInstance(appContext).isSessionValid()) {
+                    Log.w(TAG, "Session expired during realtime event, skipping");
+                    return;
+                }
 
-            boolean cloudDeleted = false;
-            Object deletedObj = data.get("isDeleted");
-            if (deletedObj instanceof Boolean) {
-                cloudDeleted = ((Boolean) deletedObj).booleanValue();
+                try {
+                    processRealtimeChanges(changes);
+                } catch (Exception e) {
+                    Log.e(TAG, "Error processing realtime changes: " + e.getMessage());
+                }
             }
+        });
+    }
+
+    /**
+     * Process document changes from the real-time listener. Runs on the sync thread.
+     * Soft-deletes arrive as MODIFIED; REMOVED only for documents actually deleted.
+     * The whole burst is applied with applyCloudChanges and reported to the UI
+     * once, with the local ids of the changed and removed notes.
+     *
+     * @param changes List of SyncTransport.Change, at most one per document
+     */
+    private void processRealtimeChanges(List changes) {
+        NotesRepository repo = NotesRepository.getInstance(appContext);
 
-            long cloudModified = 0;
-            Object modObj = data.get("modifiedAt");
-            if (modObj instanceof Long) {
-                cloudModified = ((Long) modObj).longValue();
-            } else if (modObj instanceof Number) {
-                cloudModified = ((Number) modObj).longValue();
+        Set<String> cloudIds = new HashSet<String>();
+        for (int i = 0; i < changes.size(); i++) {
+            cloudIds.add(((SyncTransport.Change) changes.get(i)).document.id);
+        }
+        Map localNotes = repo.getNotesRawByCloudIds(cloudIds);
+
+        NotesRepository.CloudChanges local = new NotesRepository.CloudChanges();
+        for (int i = 0; i < changes.size(); i++) {
+            SyncTransport.Change change = (SyncTransport.Change) changes.get(i);
+            String cloudId = change.document.id;
+            Map<String, Object> data = change.document.data;
+            Note localNote = (Note) localNotes.get(cloudId);
+
+            if (change.type == SyncTransport.CHANGE_REMOVED) {
+                // Document actually deleted, not soft-delete
+                if (localNote != null) {
+                    Note removed = new Note();
+                    removed.setCloudId(cloudId);
+                    removed.setModifiedAt(Long.MAX_VALUE);
+                    local.deletes.add(removed);
+                }
+                continue;
             }
 
-            switch (dc.getType()) {
-                case ADDED:
+            if (localNote == null) {
+                if (!getBoolFromMap(data, "isDeleted")) {
                     // New note from another device
-                    Note existing = repo.getNoteRawByCloudId(cloudId);
-                    if (existing == null && !cloudDeleted) {
-                        Note cloudNote = mapToNote(data, cloudId);
-                        cloudNote.setSyncStatus(Note.SYNC_STATUS_SYNCED);
-                        repo.insertNoteRaw(cloudNote);
-                        hasChanges = true;
-                        Log.d(TAG, "Realtime: inserted new note cloudId=" + cloudId);
-                    }
-                    break;
-
-                case MODIFIED:
-                    Note localNote = repo.getNoteRawByCloudId(cloudId);
-                    if (localNote != null) {
-                        if (cloudDeleted && cloudModified >= localNote.getModifiedAt()) {
-                            // Soft-delete from another device
-                            repo.deleteNoteByCloudId(cloudId);
-                            hasChanges = true;
-                            Log.d(TAG, "Realtime: deleted note cloudId=" + cloudId);
-                        } else if (!cloudDeleted && cloudModified > localNote.getModifiedAt()) {
-                            // Cloud is newer -- update local
-                            Note cloudNote = mapToNote(data, cloudId);
-                            repo.updateNoteRaw(cloudNote);
-                            hasChanges = true;
-                            Log.d(TAG, "Realtime: updated note cloudId=" + cloudId);
-                        }
-                        // If local is newer, skip (local will upload on next edit/sync)
-                    } else if (!cloudDeleted) {
-                        // Note doesn't exist locally but was modified in cloud -- insert
-                        Note cloudNote = mapToNote(data, cloudId);
-                        cloudNote.setSyncStatus(Note.SYNC_STATUS_SYNCED);
-                        repo.insertNoteRaw(cloudNote);
-                        hasChanges = true;
-                        Log.d(TAG, "Realtime: inserted modified note cloudId=" + cloudId);
-                    }
-                    break;
-
-                case REMOVED:
-                    // Firestore REMOVED event (document actually deleted, not soft-delete)
-                    repo.deleteNoteByCloudId(cloudId);
-                    hasChanges = true;
-                    Log.d(TAG, "Realtime: removed note cloudId=" + cloudId);
-                    break;
+                    local.inserts.add(mapToNote(data, cloudId));
+                }
+            } else {
+                // If local is newer, it uploads on next edit/sync
+                resolveCloudVersion(localNote, data, cloudId, local);
             }
         }
 
-        if (hasChanges && realtimeCallback != null) {
-            realtimeCallback.onNotesChanged();
+        if (local.isEmpty()) {
+            return;
+        }
+        final Set<Long> changedIds = new HashSet<Long>();
+        repo.applyCloudChanges(local, changedIds);
+        final Set<Long> removedIds = new HashSet<Long>();
+        for (int i = 0; i < local.deletes.size(); i++) {
+            Note deleted = (Note) localNotes.get(((Note) local.deletes.get(i)).getCloudId());
+            Long id = Long.valueOf(deleted.getId());
+            if (changedIds.remove(id)) {
+                removedIds.add(id);
+            }
         }
+        Log.d(TAG, "Realtime: inserted=" + local.inserts.size()
+                + " updated=" + (local.updates.size() + local.forwards.size())
+                + " merged=" + local.merges.size() + " conflicts=" + local.conflictCopies.size()
+                + " deleted=" + local.deletes.size() + " applied=" + (changedIds.size() + removedIds.size()));
+        if (!local.merges.isEmpty() || !local.conflictCopies.isEmpty()) {
+            // Merged notes and conflict copies are PENDING; upload them
+            syncOnAppStart(null);
+        }
+        if (changedIds.isEmpty() && removedIds.isEmpty()) {
+            return;
+        }
+
+        mainHandler.post(new Runnable() {
+            public void run() {
+                if (realtimeCallback != null) {
+                    realtimeCallback.onNotesChanged(changedIds, removedIds);
+                }
+            }
+        });
     }
 
     /**
-     * Stop the real-time snapshot listener.
-     * Call on logout, session expiry, or when sync is disabled.
+     * Stop the real-time snapshot listener and forget the callback.
+     * Call on logout, when sync is disabled or the app goes to background.
      */
     public void stopRealtimeSync() {
+        removeRealtimeListener();
+        realtimeCallback = null;
+    }
+
+    /**
+     * Stop notifying the UI; the listener keeps running and applying changes.
+     * Call when the screen that passed the callback pauses.
+     */
+    public void clearRealtimeCallback() {
+        realtimeCallback = null;
+    }
+
+    private void removeRealtimeListener() {
+        realtimeChanges.cancel();
         if (realtimeListenerReg != null) {
             realtimeListenerReg.remove();
             realtimeListenerReg = null;
+            realtimeUid = null;
             Log.d(TAG, "Real-time listener stopped");
         }
-        realtimeCallback = null;
     }
 
     /**
@@ -295,209 +375,183 @@ public class CloudSyncManager {
     // ======================== UPLOAD NOTE ========================
 
     /**
-     * Upload a single note to Firestore using RAW encrypted data from local DB.
-     * Called after insertNote / updateNote in NoteEditorActivity.
+     * Queue an upload of a single note using RAW encrypted data from local DB.
+     * Called after insertNote / updateNote in NoteEditorActivity. Several edits
+     * queued before the outbox drains are sent as one write.
      *
      * @param noteId local SQLite note ID
      */
     public void uploadNote(final long noteId) {
-        if (!canSync()) return;
-        final String uid = getUid();
-        if (uid == null) return;
-
-        try {
-            isUploading = true;
-            NotesRepository repo = NotesRepository.getInstance(appContext);
-            Note rawNote = repo.getNoteRawById(noteId);
-            if (rawNote == null || rawNote.getCloudId() == null) {
-                isUploading = false;
-                return;
-            }
-
-            Map<String, Object> data = noteToMap(rawNote);
-
-            firestore.collection(COLLECTION_USERS).document(uid)
-                    .collection(COLLECTION_NOTES).document(rawNote.getCloudId())
-                    .set(data, SetOptions.merge())
-                    .addOnSuccessListener(new OnSuccessListener<Void>() {
-                        public void onSuccess(Void unused) {
-                            Log.d(TAG, "Upload success: noteId=" + noteId);
-                            NotesRepository.getInstance(appContext)
-                                    .updateSyncStatus(noteId, Note.SYNC_STATUS_SYNCED);
-                            isUploading = false;
-                        }
-                    })
-                    .addOnFailureListener(new OnFailureListener() {
-                        public void onFailure(Exception e) {
-                            Log.e(TAG, "Upload failed: noteId=" + noteId + " - " + e.getMessage());
-                            isUploading = false;
-                            // syncStatus stays PENDING, will retry on next syncOnAppStart
-                        }
-                    });
-        } catch (Exception e) {
-            Log.e(TAG, "Upload exception: " + e.getMessage());
-            isUploading = false;
-        }
+        if (!PrefsManager.getInstance(appContext).isCloudSyncEnabled()) return;
+        outbox.enqueueUpsert(noteId);
     }
 
     // ======================== DELETE NOTE (SOFT) ========================
 
     /**
-     * Soft-delete a note in Firestore by setting isDeleted=true.
+     * Queue a soft-delete of a note in Firestore (isDeleted=true).
      * Called when moveToTrash() is used.
      */
     public void deleteNoteFromCloud(final String cloudId) {
-        if (!canSync()) return;
-        if (cloudId == null || cloudId.length() == 0) return;
-        final String uid = getUid();
-        if (uid == null) return;
-
-        try {
-            isUploading = true;
-            Map<String, Object> deleteData = new HashMap<String, Object>();
-            deleteData.put("isDeleted", Boolean.TRUE);
-            deleteData.put("modifiedAt", Long.valueOf(System.currentTimeMillis()));
-
-            firestore.collection(COLLECTION_USERS).document(uid)
-                    .collection(COLLECTION_NOTES).document(cloudId)
-                    .set(deleteData, SetOptions.merge())
-                    .addOnSuccessListener(new OnSuccessListener<Void>() {
-                        public void onSuccess(Void unused) {
-                            Log.d(TAG, "Cloud soft-delete success: " + cloudId);
-                            isUploading = false;
-                        }
-                    })
-                    .addOnFailureListener(new OnFailureListener() {
-                        public void onFailure(Exception e) {
-                            Log.e(TAG, "Cloud soft-delete failed: " + e.getMessage());
-                            isUploading = false;
-                        }
-                    });
-        } catch (Exception e) {
-            Log.e(TAG, "Delete exception: " + e.getMessage());
-            isUploading = false;
-        }
+        if (!PrefsManager.getInstance(appContext).isCloudSyncEnabled()) return;
+        outbox.enqueueDelete(cloudId);
     }
 
-    // ======================== UPLOAD ALL NOTES ========================
+    // ======================== OUTBOX ========================
 
     /**
-     * Upload ALL notes to Firestore. Used after password change re-encryption.
-     * Reads ALL raw encrypted notes and pushes to cloud.
+     * Send queued writes now instead of waiting for their backoff.
      */
-    public void uploadAllNotes() {
-        if (!canSync()) return;
-        final String uid = getUid();
-        if (uid == null) return;
-
-        try {
-            isUploading = true;
-            NotesRepository repo = NotesRepository.getInstance(appContext);
-            List allRaw = repo.getAllNotesRaw();
+    public void drainOutbox() {
+        outbox.drain();
+    }
 
-            if (allRaw.isEmpty()) {
-                isUploading = false;
-                return;
+    /**
+     * Drop queued writes so they are not sent to another account, and the
+     * field hashes and version vectors of the old account's documents.
+     * Call on logout. Notes stay PENDING and upload with the next full sync;
+     * meditation and mood rows are marked PENDING and their deletions dropped,
+     * and attachments are uploaded again.
+     */
+    public void clearOutbox() {
+        outbox.clear();
+        syncExecutor.execute(new Runnable() {
+            public void run() {
+                NotesRepository.getInstance(appContext).clearSyncBase();
+                ActivitySyncRepository.getInstance(appContext).resetSyncState();
+                NotesRepository.getInstance(appContext).clearAttachmentSyncState();
             }
+        });
+    }
 
-            WriteBatch batch = firestore.batch();
-            int batchCount = 0;
+    /**
+     * Sends an outbox batch as one transport upsert plus one soft-delete commit.
+     */
+    private class TransportOutboxBackend implements SyncOutbox.Backend {
 
-            for (int i = 0; i < allRaw.size(); i++) {
-                Note rawNote = (Note) allRaw.get(i);
-                if (rawNote.getCloudId() == null || rawNote.getCloudId().length() == 0) {
-                    continue;
-                }
+        public String getSyncUid() {
+            // Writes wait while this device's data key differs from the cloud's
+            return canSync() && !SessionManager.getInstance(appContext).hasPendingCloudKey()
+                    ? getUid() : null;
+        }
 
-                Map<String, Object> data = noteToMap(rawNote);
-                batch.set(
-                        firestore.collection(COLLECTION_USERS).document(uid)
-                                .collection(COLLECTION_NOTES).document(rawNote.getCloudId()),
-                        data, SetOptions.merge()
-                );
-                batchCount++;
-
-                // Firestore batch limit is 500, commit in chunks
-                if (batchCount >= 450) {
-                    batch.commit();
-                    batch = firestore.batch();
-                    batchCount = 0;
+        public void commit(final String uid, List writes, final SyncTransport.CommitCallback callback) {
+            List upserts = new ArrayList();
+            final Map deletes = new HashMap();
+            for (int i = 0; i < writes.size(); i++) {
+                SyncOutbox.Write write = (SyncOutbox.Write) writes.get(i);
+                if (write.isDelete()) {
+                    deletes.put(write.cloudId, Long.valueOf(write.enqueuedAt));
+                } else {
+                    upserts.add(noteToDiffDocument(write.rawNote));
                 }
             }
-
-            if (batchCount > 0) {
-                batch.commit()
-                        .addOnSuccessListener(new OnSuccessListener<Void>() {
-                            public void onSuccess(Void unused) {
-                                Log.d(TAG, "Upload all notes success");
-                                isUploading = false;
-                            }
-                        })
-                        .addOnFailureListener(new OnFailureListener() {
-                            public void onFailure(Exception e) {
-                                Log.e(TAG, "Upload all notes failed: " + e.getMessage());
-                                isUploading = false;
-                            }
-                        });
-            } else {
-                isUploading = false;
+            if (upserts.isEmpty()) {
+                transport.delete(uid, deletes, callback);
+                return;
             }
-        } catch (Exception e) {
-            Log.e(TAG, "Upload all exception: " + e.getMessage());
-            isUploading = false;
+            transport.upsert(uid, upserts, new SyncTransport.CommitCallback() {
+                public void onCommitted() {
+                    if (deletes.isEmpty()) {
+                        callback.onCommitted();
+                    } else {
+                        transport.delete(uid, deletes, callback);
+                    }
+                }
+
+                public void onFailed(Exception e) {
+                    callback.onFailed(e);
+                }
+            });
         }
     }
 
     // ======================== SYNC ON APP START ========================
 
     /**
-     * Full bidirectional sync on app start.
-     * 1. Fetch ALL cloud notes
-     * 2. Fetch ALL local notes raw
-     * 3. Compare modifiedAt timestamps
-     * 4. Cloud newer -> update local
-     * 5. Local newer -> update cloud
-     * 6. Only in cloud -> insert local
-     * 7. Only in local -> upload to cloud
-     * 8. Cloud isDeleted=true -> delete local
+     * Delta bidirectional sync on app start.
+     * 1. Fetch cloud notes with updatedAt above the watermark
+     *    (ALL cloud notes if this account never completed a sync)
+     * 2. Compare modifiedAt timestamps with the local raw notes
+     * 3. Cloud newer -> update local
+     * 4. Local newer -> update cloud
+     * 5. Only in cloud -> insert local
+     * 6. Cloud isDeleted=true -> delete local
+     * 7. Upload the local dirty set (sync_status PENDING)
+     * 8. Advance the watermark to the newest updatedAt applied
+     * Nothing is synced while this device's data key differs from the cloud's
+     * (KeyringSync).
      */
-    public void syncOnAppStart(final SyncCallback callback) {
+    public void syncOnAppStart(SyncCallback callback) {
+        syncOnAppStart(callback, null);
+    }
+
+    /**
+     * @param progress receives upload progress on the main thread; may be null
+     */
+    public void syncOnAppStart(final SyncCallback callback, final UploadProgressListener progress) {
         if (!canSync()) {
             if (callback != null) callback.onSyncComplete(false);
             return;
         }
-        final String uid = getUid();
+        String uid = getUid();
         if (uid == null) {
             if (callback != null) callback.onSyncComplete(false);
             return;
         }
+        syncUser(uid, callback, progress);
+    }
 
+    /**
+     * The sync of syncOnAppStart() for uid, without the sign-in and settings
+     * checks. Tests and the sync benchmark call it with an in-process transport.
+     */
+    void syncUser(final String uid, final SyncCallback callback, final UploadProgressListener progress) {
         try {
             isUploading = true;
-            firestore.collection(COLLECTION_USERS).document(uid)
-                    .collection(COLLECTION_NOTES)
-                    .get()
-                    .addOnCompleteListener(new OnCompleteListener<QuerySnapshot>() {
-                        public void onComplete(Task<QuerySnapshot> task) {
-                            if (!task.isSuccessful()) {
-                                Log.e(TAG, "Sync fetch failed: " +
-                                        (task.getException() != null ? task.getException().getMessage() : "unknown"));
-                                isUploading = false;
-                                if (callback != null) callback.onSyncComplete(false);
-                                return;
-                            }
-
+            final long watermark = PrefsManager.getInstance(appContext).getSyncWatermark(uid);
+            transport.querySince(uid, watermark, new SyncTransport.QueryCallback() {
+                public void onResult(final List documents, final boolean fromServer) {
+                    syncExecutor.execute(new Runnable() {
+                        public void run() {
+                            boolean success = false;
                             try {
-                                performSync(task.getResult(), uid);
-                                isUploading = false;
-                                if (callback != null) callback.onSyncComplete(true);
+                                // Re-keyed rows were all PENDING before this sync read the dirty set
+                                boolean reKeyUploadPending = SessionManager.getInstance(appContext)
+                                        .isReKeyUploadPending();
+                                success = keyringSync.sync(uid)
+                                        && performSync(documents, fromServer, uid, watermark == 0, progress);
+                                // Skipped when the notes failed: the backend is likely unreachable
+                                // and every activity commit would wait for its timeout
+                                if (success) {
+                                    success = activitySync.sync(uid);
+                                }
+                                if (success && attachmentSync != null) {
+                                    attachmentSync.uploadPending(reKeyUploadPending ? new Runnable() {
+                                        public void run() {
+                                            finishReKey();
+                                        }
+                                    } : null);
+                                } else if (success && reKeyUploadPending) {
+                                    finishReKey();
+                                }
+                                // Retry queued writes now that the backend is reachable
+                                outbox.drain();
                             } catch (Exception e) {
                                 Log.e(TAG, "Sync processing error: " + e.getMessage());
-                                isUploading = false;
-                                if (callback != null) callback.onSyncComplete(false);
                             }
+                            isUploading = false;
+                            deliverSyncResult(callback, success);
                         }
                     });
+                }
+
+                public void onError(Exception e) {
+                    Log.e(TAG, "Sync fetch failed: " + (e != null ? e.getMessage() : "unknown"));
+                    isUploading = false;
+                    deliverSyncResult(callback, false);
+                }
+            });
         } catch (Exception e) {
             Log.e(TAG, "Sync exception: " + e.getMessage());
             isUploading = false;
@@ -506,137 +560,272 @@ public class CloudSyncManager {
     }
 
     /**
-     * Perform the actual sync logic after cloud data is fetched.
+     * Discard the old key of a re-key job once the cloud copy is re-encrypted too.
      */
-    private void performSync(QuerySnapshot cloudSnapshot, String uid) {
-        NotesRepository repo = NotesRepository.getInstance(appContext);
+    private void finishReKey() {
+        SessionManager session = SessionManager.getInstance(appContext);
+        if (session.isReKeyUploadPending()) {
+            session.finishReKey();
+            Log.d(TAG, "Re-encrypted notes uploaded, old key discarded");
+        }
+    }
 
-        // Build cloud map: cloudId -> document data
-        Map<String, Map<String, Object>> cloudMap = new HashMap<String, Map<String, Object>>();
-        if (cloudSnapshot != null) {
-            for (QueryDocumentSnapshot doc : cloudSnapshot) {
-                cloudMap.put(doc.getId(), doc.getData());
+    private void deliverSyncResult(final SyncCallback callback, final boolean success) {
+        if (callback == null) return;
+        mainHandler.post(new Runnable() {
+            public void run() {
+                callback.onSyncComplete(success);
             }
+        });
+    }
+
+    /**
+     * Forget the watermark and run a full sync (download every cloud note and
+     * compare with every local note). Used by the manual sync button.
+     */
+    public void fullSync(SyncCallback callback, UploadProgressListener progress) {
+        String uid = getUid();
+        if (uid != null) {
+            PrefsManager.getInstance(appContext).setSyncWatermark(uid, 0);
+            activitySync.resetWatermarks(uid);
         }
+        syncOnAppStart(callback, progress);
+    }
+
+    /**
+     * Perform the actual sync logic after cloud data is fetched. Runs on the sync thread.
+     *
+     * @param cloudDocuments changed cloud documents (SyncTransport.Document)
+     * @param fromServer     false if the result may be stale; the watermark is then kept
+     * @param fullScan       true if cloudDocuments holds the whole collection: local notes
+     *                       missing from it are uploaded even if not marked PENDING
+     * @param progress       upload progress listener, may be null
+     * @return false if local changes could not be applied (watermark kept)
+     *         or some uploads failed (those notes stay PENDING)
+     */
+    private boolean performSync(List cloudDocuments, boolean fromServer, final String uid, boolean fullScan,
+                                UploadProgressListener progress) {
+        NotesRepository repo = NotesRepository.getInstance(appContext);
 
-        // Build local map: cloudId -> Note (raw)
-        List localRawList = repo.getAllNotesRaw();
+        // Build local map once (cloudId -> Note raw) instead of a lookup per document:
+        // every note for a full scan, only the changed ones for a delta
         Map<String, Note> localMap = new HashMap<String, Note>();
-        for (int i = 0; i < localRawList.size(); i++) {
-            Note n = (Note) localRawList.get(i);
-            if (n.getCloudId() != null && n.getCloudId().length() > 0) {
-                localMap.put(n.getCloudId(), n);
+        if (fullScan) {
+            List localRawList = repo.getAllNotesRaw();
+            for (int i = 0; i < localRawList.size(); i++) {
+                Note n = (Note) localRawList.get(i);
+                if (n.getCloudId() != null && n.getCloudId().length() > 0) {
+                    localMap.put(n.getCloudId(), n);
+                }
             }
+        } else if (cloudDocuments != null && !cloudDocuments.isEmpty()) {
+            Set<String> cloudIds = new HashSet<String>();
+            for (int d = 0; d < cloudDocuments.size(); d++) {
+                cloudIds.add(((SyncTransport.Document) cloudDocuments.get(d)).id);
+            }
+            localMap.putAll(repo.getNotesRawByCloudIds(cloudIds));
         }
 
-        WriteBatch uploadBatch = firestore.batch();
-        int batchCount = 0;
+        PrefsManager prefs = PrefsManager.getInstance(appContext);
+        long newWatermark = prefs.getSyncWatermark(uid);
+        int cloudCount = 0;
+        List uploads = new ArrayList();
+        Set<String> uploadIds = new HashSet<String>();
+        NotesRepository.CloudChanges local = new NotesRepository.CloudChanges();
+
+        // Process changed cloud notes
+        if (cloudDocuments != null) {
+            for (int d = 0; d < cloudDocuments.size(); d++) {
+                SyncTransport.Document doc = (SyncTransport.Document) cloudDocuments.get(d);
+                cloudCount++;
+                String cloudId = doc.id;
+                Map<String, Object> cloudData = doc.data;
+
+                newWatermark = Math.max(newWatermark, doc.updatedAt);
+
+                Note localNote = localMap.remove(cloudId);
+                if (localNote != null) {
+                    // Note exists in both cloud and local
+                    if (resolveCloudVersion(localNote, cloudData, cloudId, local)) {
+                        uploads.add(localNote);
+                        uploadIds.add(cloudId);
+                    }
+                } else if (!getBoolFromMap(cloudData, "isDeleted")) {
+                    // Note only in cloud -- insert locally
+                    local.inserts.add(mapToNote(cloudData, cloudId));
+                }
+            }
+        }
 
-        // Process cloud notes
-        for (Map.Entry<String, Map<String, Object>> entry : cloudMap.entrySet()) {
-            String cloudId = entry.getKey();
-            Map<String, Object> cloudData = entry.getValue();
+        // Apply cloud changes in batched transactions before reading the dirty set
+        if (!repo.applyCloudChanges(local, null)) {
+            Log.e(TAG, "Sync apply failed, watermark kept");
+            return false;
+        }
 
-            boolean cloudDeleted = false;
-            Object deletedObj = cloudData.get("isDeleted");
-            if (deletedObj instanceof Boolean) {
-                cloudDeleted = ((Boolean) deletedObj).booleanValue();
+        // Notes only in local (full scan) -- upload to cloud, every field
+        if (fullScan) {
+            for (Map.Entry<String, Note> entry : localMap.entrySet()) {
+                entry.getValue().setSyncedHashes(null);
+                uploads.add(entry.getValue());
+                uploadIds.add(entry.getKey());
             }
+        }
 
-            long cloudModified = 0;
-            Object modObj = cloudData.get("modifiedAt");
-            if (modObj instanceof Long) {
-                cloudModified = ((Long) modObj).longValue();
-            } else if (modObj instanceof Number) {
-                cloudModified = ((Number) modObj).longValue();
+        // Dirty set: local edits not uploaded yet. Read after applying cloud changes,
+        // which mark the notes they overwrite as synced and add merges and conflict copies.
+        List pending = repo.getPendingNotesRaw();
+        for (int i = 0; i < pending.size(); i++) {
+            Note n = (Note) pending.get(i);
+            if (n.getCloudId() != null && n.getCloudId().length() > 0
+                    && uploadIds.add(n.getCloudId())) {
+                uploads.add(n);
             }
+        }
 
-            if (localMap.containsKey(cloudId)) {
-                // Note exists in both cloud and local
-                Note localNote = localMap.get(cloudId);
-                long localModified = localNote.getModifiedAt();
-
-                if (cloudDeleted && cloudModified >= localModified) {
-                    // Cloud says deleted and is newer -- delete locally
-                    repo.deleteNoteByCloudId(cloudId);
-                } else if (!cloudDeleted && cloudModified > localModified) {
-                    // Cloud is newer -- update local with cloud data
-                    Note cloudNote = mapToNote(cloudData, cloudId);
-                    repo.updateNoteRaw(cloudNote);
-                } else if (localModified > cloudModified) {
-                    // Local is newer -- upload to cloud
-                    Note freshRaw = repo.getNoteRawByCloudId(cloudId);
-                    if (freshRaw != null) {
-                        Map<String, Object> data = noteToMap(freshRaw);
-                        uploadBatch.set(
-                                firestore.collection(COLLECTION_USERS).document(uid)
-                                        .collection(COLLECTION_NOTES).document(cloudId),
-                                data, SetOptions.merge()
-                        );
-                        batchCount++;
-                        repo.updateSyncStatus(localNote.getId(), Note.SYNC_STATUS_SYNCED);
-                    }
-                }
-                // If equal timestamps, skip (already in sync)
-                localMap.remove(cloudId);
-            } else {
-                // Note only in cloud -- insert locally (if not deleted)
-                if (!cloudDeleted) {
-                    Note cloudNote = mapToNote(cloudData, cloudId);
-                    cloudNote.setSyncStatus(Note.SYNC_STATUS_SYNCED);
-                    repo.insertNoteRaw(cloudNote);
-                }
-            }
+        boolean uploaded = uploadRawNotes(uid, uploads, progress);
+
+        // A result served from the offline cache may miss server changes
+        if (fromServer) {
+            prefs.setSyncWatermark(uid, newWatermark);
         }
 
-        // Notes only in local -- upload to cloud
-        for (Map.Entry<String, Note> entry : localMap.entrySet()) {
-            String cloudId = entry.getKey();
-            Note localNote = entry.getValue();
-
-            Note freshRaw = repo.getNoteRawByCloudId(cloudId);
-            if (freshRaw != null) {
-                Map<String, Object> data = noteToMap(freshRaw);
-                uploadBatch.set(
-                        firestore.collection(COLLECTION_USERS).document(uid)
-                                .collection(COLLECTION_NOTES).document(cloudId),
-                        data, SetOptions.merge()
-                );
-                batchCount++;
-                repo.updateSyncStatus(localNote.getId(), Note.SYNC_STATUS_SYNCED);
+        Log.d(TAG, "Sync complete: cloud changes=" + cloudCount + " uploads=" + uploads.size()
+                + (fullScan ? " (full)" : ""));
+        return uploaded;
+    }
+
+    /**
+     * Decide what to do with the cloud version of a note that also exists
+     * locally, adding the local side to changes. Runs on the sync thread.
+     *
+     * Soft-deletes carry no version vector and win if not older than the local
+     * edit. Notes with version vectors on both sides are resolved by the
+     * NoteMergeEngine: fast-forward, keep local, or merge (plus a conflict
+     * copy). Others are compared by modifiedAt, the cloud winning ties when it
+     * holds a field-level merge.
+     *
+     * @return true if the local version should be uploaded; it is then based
+     *         on the cloud version (clock and field hashes) for the upload
+     */
+    private boolean resolveCloudVersion(Note localNote, Map<String, Object> cloudData, String cloudId,
+                                        NotesRepository.CloudChanges changes) {
+        long localModified = localNote.getModifiedAt();
+        long cloudModified = getLongFromMap(cloudData, "modifiedAt");
+        Note cloudNote = mapToNote(cloudData, cloudId);
+
+        if (getBoolFromMap(cloudData, "isDeleted")) {
+            if (cloudModified >= localModified) {
+                // Cloud says deleted and is newer -- delete locally
+                changes.deletes.add(cloudNote);
+                return false;
             }
+            // Edited locally after the delete -- upload to restore it
+            localNote.setSyncedHashes(cloudNote.getSyncedHashes());
+            return true;
+        }
 
-            if (batchCount >= 450) {
-                uploadBatch.commit();
-                uploadBatch = firestore.batch();
-                batchCount = 0;
+        if (NoteMergeEngine.hasClocks(localNote.getVclock(), cloudData)) {
+            boolean localPending = localNote.getSyncStatus() == Note.SYNC_STATUS_PENDING;
+            NoteMergeEngine.Resolution resolution = mergeEngine.resolve(noteToMap(localNote),
+                    localNote.getVclock(), localNote.getSyncedHashes(), localPending, noteToMap(cloudNote));
+            if (resolution.action == NoteMergeEngine.TAKE_CLOUD) {
+                changes.forwards.add(cloudNote);
+                return false;
+            }
+            if (resolution.action == NoteMergeEngine.MERGE) {
+                // Based on the cloud version, so the upload sends the merged fields
+                Note merged = mapToNote(resolution.merged, cloudId);
+                merged.setSyncedHashes(cloudNote.getSyncedHashes());
+                changes.merges.add(merged);
+                if (resolution.conflictCopy != null) {
+                    Note copy = mapToNote(resolution.conflictCopy, null);
+                    copy.setSyncedHashes(null);
+                    copy.setVclock(null);
+                    changes.conflictCopies.add(copy);
+                }
+                return false;
             }
+            // Cloud version already included: rebase on it and upload local edits
+            localNote.setVclock(VectorClock.parse(localNote.getVclock())
+                    .merge(VectorClock.parse(cloudNote.getVclock())).toString());
+            localNote.setSyncedHashes(cloudNote.getSyncedHashes());
+            return localPending;
         }
 
-        // Commit remaining batch
-        if (batchCount > 0) {
-            uploadBatch.commit()
-                    .addOnSuccessListener(new OnSuccessListener<Void>() {
-                        public void onSuccess(Void unused) {
-                            Log.d(TAG, "Sync upload batch committed");
-                        }
-                    })
-                    .addOnFailureListener(new OnFailureListener() {
-                        public void onFailure(Exception e) {
-                            Log.e(TAG, "Sync upload batch failed: " + e.getMessage());
+        if (cloudModified > localModified) {
+            // Cloud is newer -- update local with cloud data
+            changes.updates.add(cloudNote);
+        } else if (localModified > cloudModified) {
+            // Local is newer -- upload the fields that differ from the cloud
+            localNote.setSyncedHashes(cloudNote.getSyncedHashes());
+            return true;
+        } else if (isFieldMerge(cloudNote, localNote)) {
+            changes.updates.add(cloudNote);
+        }
+        // Otherwise equal timestamps and fields: already in sync
+        return false;
+    }
+
+    /**
+     * Upload raw notes with the pipelined BatchUploader and wait for every batch.
+     * Each note is marked synced once its batch is committed, unless it was
+     * modified again meanwhile. Runs on the sync thread.
+     *
+     * @param progress receives progress on the main thread; may be null
+     * @return true if every batch committed
+     */
+    private boolean uploadRawNotes(String uid, List rawNotes, final UploadProgressListener progress) {
+        List documents = new ArrayList();
+        for (int i = 0; i < rawNotes.size(); i++) {
+            documents.add(noteToDiffDocument((Note) rawNotes.get(i)));
+        }
+        BatchUploader.ProgressListener listener = null;
+        if (progress != null) {
+            listener = new BatchUploader.ProgressListener() {
+                public void onProgress(final int uploaded, final int failed, final int total,
+                                       final int notesPerSecond) {
+                    mainHandler.post(new Runnable() {
+                        public void run() {
+                            progress.onUploadProgress(uploaded, failed, total, notesPerSecond);
                         }
                     });
+                }
+            };
         }
-
-        Log.d(TAG, "Sync complete: cloud=" + cloudMap.size() + " local=" + localRawList.size());
+        return uploader.upload(uid, rawNotes, documents, listener);
     }
 
     // ======================== DATA CONVERSION ========================
 
     /**
-     * Convert a raw Note to a Firestore document map.
+     * Convert a raw Note to a cloud document holding only the fields changed
+     * since note.getSyncedHashes() (every field if null); the transport merges
+     * them into the stored document. The note's version vector is advanced for
+     * this device and its synced hashes set to the uploaded version; both are
+     * stored by markSyncedIfUnchanged() once committed.
      * All encrypted fields are uploaded AS-IS (no decryption).
      */
+    private SyncTransport.Document noteToDiffDocument(Note note) {
+        // Every upload is a new version of this device
+        note.setVclock(VectorClock.parse(note.getVclock()).increment(deviceId).toString());
+        Map<String, Object> full = noteToMap(note);
+        Map<String, Object> diff = FieldHashes.changed(full, note.getSyncedHashes());
+        note.setSyncedHashes(FieldHashes.of(full));
+        return new SyncTransport.Document(note.getCloudId(), diff, 0);
+    }
+
+    /**
+     * True if a cloud note with the same modifiedAt as the local one has other
+     * field values: a diff upload of this version was merged with another
+     * device's edit of different fields. The cloud then holds both changes.
+     */
+    private boolean isFieldMerge(Note cloudNote, Note localNote) {
+        String cloudHashes = cloudNote.getSyncedHashes();
+        return !cloudHashes.equals(localNote.getSyncedHashes())
+                && !cloudHashes.equals(FieldHashes.of(noteToMap(localNote)));
+    }
+
     private Map<String, Object> noteToMap(Note note) {
         Map<String, Object> map = new HashMap<String, Object>();
         map.put("title", note.getTitle() != null ? note.getTitle() : "");
@@ -661,12 +850,13 @@ public class CloudSyncManager {
         map.put("isRoutineMode", Boolean.valueOf(note.isRoutineMode()));
         map.put("archived", Boolean.valueOf(note.isArchived()));
         map.put("cloudId", note.getCloudId() != null ? note.getCloudId() : "");
+        map.put("vclock", note.getVclock() != null ? note.getVclock() : "");
         return map;
     }
 
     /**
-     * Convert a Firestore document map back to a Note with raw encrypted data.
-     * Used when downloading from cloud.
+     * Convert a cloud document map back to a Note with raw encrypted data and
+     * the field hashes of the document. Used when downloading from cloud.
      */
     private Note mapToNote(Map<String, Object> data, String cloudId) {
         Note note = new Note();
@@ -691,6 +881,9 @@ public class CloudSyncManager {
         note.setLinkedNoteIds(getStringFromMap(data, "linkedNoteIds"));
         note.setRoutineMode(getBoolFromMap(data, "isRoutineMode"));
         note.setArchived(getBoolFromMap(data, "archived"));
+        note.setVclock(getStringFromMap(data, "vclock"));
+        // Hashed in normalized form, so missing or Long-typed fields compare as written
+        note.setSyncedHashes(FieldHashes.of(noteToMap(note)));
         return note;
     }
 
@@ -726,18 +919,37 @@ public class CloudSyncManager {
     // ======================== CALLBACKS ========================
 
     /**
-     * Callback for one-time sync operations (syncOnAppStart).
+     * Callback for one-time sync operations (syncOnAppStart, fullSync).
      */
     public interface SyncCallback {
         void onSyncComplete(boolean success);
     }
 
+    /**
+     * Upload progress of a sync, delivered on the main thread after each batch.
+     */
+    public interface UploadProgressListener {
+        /**
+         * @param uploaded       notes committed so far
+         * @param failed         notes in failed batches so far (they stay pending)
+         * @param total          notes to upload in this sync
+         * @param notesPerSecond average upload throughput so far
+         */
+        void onUploadProgress(int uploaded, int failed, int total, int notesPerSecond);
+    }
+
     /**
      * Callback for real-time snapshot changes.
      * Called on main thread when cloud changes are applied to local DB.
-     * UI should refresh its note list when this fires.
+     * UI should update the listed notes with these ids when this fires.
      */
     public interface RealtimeChangeCallback {
-        void onNotesChanged();
+        /**
+         * One call per applied burst of cloud changes.
+         *
+         * @param changedIds local ids of notes inserted or updated
+         * @param removedIds local ids of notes deleted
+         */
+        void onNotesChanged(Set<Long> changedIds, Set<Long> removedIds);
     }
 }
@@ -0,0 +1,119 @@
+package com.mknotes.app.cloud;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Per-field hashes of a note document, used to upload only the fields that
+ * changed since the last sync.
+ *
+ * The hashes of the document a note was last synced with are stored with the
+ * note (notes.synced_hashes) as "field=hash;field=hash", fields sorted by
+ * name. Hashes are 64-bit FNV-1a of the field value as text, so a changed
+ * field is missed only on a 64-bit collision.
+ *
+ * Documents must be in the normalized form written by CloudSyncManager
+ * (every field present, numbers as Integer or Long).
+ */
+final class FieldHashes {
+
+    /** Sent with every write: cheap, and needed by readers of any document. */
+    private static final String[] ALWAYS_SENT = {"modifiedAt", "isDeleted", "vclock"};
+
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private FieldHashes() {
+    }
+
+    /**
+     * Hashes of every field of data except the ALWAYS_SENT ones.
+     */
+    static String of(Map<String, Object> data) {
+        TreeMap sorted = new TreeMap(data);
+        for (int i = 0; i < ALWAYS_SENT.length; i++) {
+            sorted.remove(ALWAYS_SENT[i]);
+        }
+        StringBuilder sb = new StringBuilder();
+        Iterator it = sorted.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry entry = (Map.Entry) it.next();
+            if (sb.length() > 0) sb.append(';');
+            sb.append(entry.getKey()).append('=').append(hashOf(entry.getValue()));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Fields of data whose hash differs from syncedHashes, plus the ALWAYS_SENT
+     * ones. Every field if syncedHashes is null or empty.
+     */
+    static Map<String, Object> changed(Map<String, Object> data, String syncedHashes) {
+        if (syncedHashes == null || syncedHashes.length() == 0) {
+            return new HashMap<String, Object>(data);
+        }
+        Map synced = parse(syncedHashes);
+        Map<String, Object> diff = new HashMap<String, Object>();
+        Iterator it = data.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry entry = (Map.Entry) it.next();
+            String key = (String) entry.getKey();
+            String old = (String) synced.get(key);
+            if (isAlwaysSent(key) || old == null || !old.equals(hashOf(entry.getValue()))) {
+                diff.put(key, entry.getValue());
+            }
+        }
+        return diff;
+    }
+
+    static boolean isAlwaysSent(String key) {
+        for (int i = 0; i < ALWAYS_SENT.length; i++) {
+            if (ALWAYS_SENT[i].equals(key)) return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return field name -> hash (String); empty for null
+     */
+    static Map parse(String syncedHashes) {
+        Map hashes = new HashMap();
+        if (syncedHashes == null) return hashes;
+        String[] parts = syncedHashes.split(";");
+        for (int i = 0; i < parts.length; i++) {
+            int eq = parts[i].indexOf('=');
+            if (eq > 0) {
+                hashes.put(parts[i].substring(0, eq), parts[i].substring(eq + 1));
+            }
+        }
+        return hashes;
+    }
+
+    /**
+     * Hash of one field value, as stored in the hash string.
+     */
+    static String hashOf(Object value) {
+        return Long.toHexString(hash(value));
+    }
+
+    private static long hash(Object value) {
+        String text;
+        if (value == null) {
+            text = "";
+        } else if (value instanceof Number) {
+            // Integer locally, Long when read back from Firestore
+            text = Long.toString(((Number) value).longValue());
+        } else {
+            text = value.toString();
+        }
+        long h = FNV_OFFSET;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            h = (h ^ (c & 0xff)) * FNV_PRIME;
+            h = (h ^ (c >>> 8)) * FNV_PRIME;
+        }
+        return h;
+    }
+}
@@ -0,0 +1,117 @@
+package com.mknotes.app.cloud;
+
+import com.google.android.gms.tasks.Task;
+import com.google.android.gms.tasks.Tasks;
+import com.google.firebase.firestore.Blob;
+import com.google.firebase.firestore.CollectionReference;
+import com.google.firebase.firestore.DocumentSnapshot;
+import com.google.firebase.firestore.FieldPath;
+import com.google.firebase.firestore.FieldValue;
+import com.google.firebase.firestore.FirebaseFirestore;
+import com.google.firebase.firestore.QueryDocumentSnapshot;
+import com.google.firebase.firestore.QuerySnapshot;
+import com.google.firebase.firestore.WriteBatch;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * ChunkStore on Firebase Firestore, so attachments need no extra backend.
+ *
+ * Firestore structure:
+ * - users/{uid}/chunks/{chunkId}: data (Blob, one encrypted chunk)
+ * - users/{uid}/chunk_index/{chunkId}: size, written in the same batch as
+ *   the chunk; findExisting() queries these small documents so it never
+ *   downloads chunk data
+ * - users/{uid}/attachments/{manifestId}: manifest (encrypted string), updatedAt
+ */
+public class FirestoreChunkStore implements ChunkStore {
+
+    private static final String COLLECTION_USERS = "users";
+    private static final String COLLECTION_CHUNKS = "chunks";
+    private static final String COLLECTION_CHUNK_INDEX = "chunk_index";
+    private static final String COLLECTION_MANIFESTS = "attachments";
+    private static final String FIELD_DATA = "data";
+    private static final String FIELD_SIZE = "size";
+    private static final String FIELD_MANIFEST = "manifest";
+    private static final String FIELD_UPDATED_AT = "updatedAt";
+    /** A document may hold 1 MiB including field names; leave room for them. */
+    private static final int MAX_CHUNK_BYTES = 900 * 1024;
+    /** Values per whereIn() query. */
+    private static final int MAX_IN_VALUES = 10;
+    private static final long TIMEOUT_SECONDS = 60;
+
+    private final FirebaseFirestore firestore;
+
+    public FirestoreChunkStore(FirebaseFirestore firestore) {
+        this.firestore = firestore;
+    }
+
+    private CollectionReference collection(String uid, String name) {
+        return firestore.collection(COLLECTION_USERS).document(uid).collection(name);
+    }
+
+    private static Object await(Task task) throws Exception {
+        return Tasks.await(task, TIMEOUT_SECONDS, TimeUnit.SECONDS);
+    }
+
+    public int getMaxChunkBytes() {
+        return MAX_CHUNK_BYTES;
+    }
+
+    public Set findExisting(String uid, List chunkIds) throws Exception {
+        Set existing = new HashSet();
+        CollectionReference index = collection(uid, COLLECTION_CHUNK_INDEX);
+        for (int start = 0; start < chunkIds.size(); start += MAX_IN_VALUES) {
+            List group = chunkIds.subList(start, Math.min(chunkIds.size(), start + MAX_IN_VALUES));
+            QuerySnapshot snapshot = (QuerySnapshot) await(
+                    index.whereIn(FieldPath.documentId(), group).get());
+            if (snapshot == null) continue;
+            for (QueryDocumentSnapshot doc : snapshot) {
+                existing.add(doc.getId());
+            }
+        }
+        return existing;
+    }
+
+    public void putChunk(String uid, String chunkId, byte[] data) throws Exception {
+        Map<String, Object> chunk = new HashMap<String, Object>();
+        chunk.put(FIELD_DATA, Blob.fromBytes(data));
+        Map<String, Object> entry = new HashMap<String, Object>();
+        entry.put(FIELD_SIZE, Long.valueOf(data.length));
+        WriteBatch batch = firestore.batch();
+        batch.set(collection(uid, COLLECTION_CHUNKS).document(chunkId), chunk);
+        batch.set(collection(uid, COLLECTION_CHUNK_INDEX).document(chunkId), entry);
+        await(batch.commit());
+    }
+
+    public byte[] getChunk(String uid, String chunkId) throws Exception {
+        DocumentSnapshot doc = (DocumentSnapshot) await(
+                collection(uid, COLLECTION_CHUNKS).document(chunkId).get());
+        if (doc == null || !doc.exists()) {
+            return null;
+        }
+        Blob data = doc.getBlob(FIELD_DATA);
+        return data != null ? data.toBytes() : null;
+    }
+
+    public void putManifest(String uid, String manifestId, String manifest) throws Exception {
+        Map<String, Object> data = new HashMap<String, Object>();
+        data.put(FIELD_MANIFEST, manifest);
+        data.put(FIELD_UPDATED_AT, FieldValue.serverTimestamp());
+        await(collection(uid, COLLECTION_MANIFESTS).document(manifestId).set(data));
+    }
+
+    public String getManifest(String uid, String manifestId) throws Exception {
+        DocumentSnapshot doc = (DocumentSnapshot) await(
+                collection(uid, COLLECTION_MANIFESTS).document(manifestId).get());
+        if (doc == null || !doc.exists()) {
+            return null;
+        }
+        return doc.getString(FIELD_MANIFEST);
+    }
+}
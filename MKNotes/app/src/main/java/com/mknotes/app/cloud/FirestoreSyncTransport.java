@@ -0,0 +1,252 @@
+package com.mknotes.app.cloud;
+
+import android.util.Log;
+
+import com.google.android.gms.tasks.OnCompleteListener;
+import com.google.android.gms.tasks.OnFailureListener;
+import com.google.android.gms.tasks.OnSuccessListener;
+import com.google.android.gms.tasks.Task;
+import com.google.firebase.Timestamp;
+import com.google.firebase.firestore.CollectionReference;
+import com.google.firebase.firestore.DocumentChange;
+import com.google.firebase.firestore.DocumentSnapshot;
+import com.google.firebase.firestore.EventListener;
+import com.google.firebase.firestore.FieldValue;
+import com.google.firebase.firestore.FirebaseFirestore;
+import com.google.firebase.firestore.FirebaseFirestoreException;
+import com.google.firebase.firestore.FirebaseFirestoreSettings;
+import com.google.firebase.firestore.ListenerRegistration;
+import com.google.firebase.firestore.Query;
+import com.google.firebase.firestore.QueryDocumentSnapshot;
+import com.google.firebase.firestore.QuerySnapshot;
+import com.google.firebase.firestore.SetOptions;
+import com.google.firebase.firestore.WriteBatch;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * SyncTransport on Firebase Firestore.
+ *
+ * Firestore structure: users/{uid}/notes/{cloudId}, and
+ * users/{uid}/{collection}/{docId} for the other collections (forCollection).
+ *
+ * Every write sets updatedAt to the server timestamp; querySince() filters on it.
+ * The client modifiedAt is not used as a watermark since a device may upload
+ * old edits late.
+ */
+public class FirestoreSyncTransport implements SyncTransport {
+
+    private static final String TAG = "FirestoreTransport";
+    private static final String COLLECTION_USERS = "users";
+    private static final String COLLECTION_NOTES = "notes";
+    /** Server timestamp of the last write to a note document. */
+    private static final String FIELD_UPDATED_AT = "updatedAt";
+    /** Firestore allows 500 writes per batch. */
+    private static final int MAX_BATCH_WRITES = 450;
+
+    private final FirebaseFirestore firestore;
+    private final String collection;
+
+    public FirestoreSyncTransport(FirebaseFirestore firestore) {
+        this(firestore, COLLECTION_NOTES);
+        ensureOfflinePersistence();
+    }
+
+    private FirestoreSyncTransport(FirebaseFirestore firestore, String collection) {
+        this.firestore = firestore;
+        this.collection = collection;
+    }
+
+    /**
+     * Ensure Firestore offline persistence is enabled.
+     * In firebase-firestore:17.1.5, offline persistence is enabled by default.
+     * This method explicitly confirms the setting to guarantee offline caching
+     * works even if a future update changes the default.
+     *
+     * Must be called BEFORE any Firestore read/write operations.
+     * Safe to call multiple times -- Firestore ignores duplicate settings.
+     */
+    private void ensureOfflinePersistence() {
+        try {
+            FirebaseFirestoreSettings settings = new FirebaseFirestoreSettings.Builder()
+                    .setPersistenceEnabled(true)
+                    .build();
+            firestore.setFirestoreSettings(settings);
+            Log.d(TAG, "Firestore offline persistence confirmed enabled");
+        } catch (Exception e) {
+            // Settings can only be set before any other Firestore call.
+            // If this fails, persistence is already the default (enabled).
+            Log.w(TAG, "Firestore settings already configured: " + e.getMessage());
+        }
+    }
+
+    private CollectionReference documents(String uid) {
+        return firestore.collection(COLLECTION_USERS).document(uid).collection(collection);
+    }
+
+    public SyncTransport forCollection(String collection) {
+        return new FirestoreSyncTransport(firestore, collection);
+    }
+
+    public int getMaxBatchSize() {
+        return MAX_BATCH_WRITES;
+    }
+
+    public void querySince(String uid, long watermark, final QueryCallback callback) {
+        try {
+            // Documents written before updatedAt existed only match the unfiltered query
+            Task<QuerySnapshot> fetch = watermark > 0
+                    ? documents(uid).whereGreaterThan(FIELD_UPDATED_AT, new Timestamp(new Date(watermark))).get()
+                    : documents(uid).get();
+            fetch.addOnCompleteListener(new OnCompleteListener<QuerySnapshot>() {
+                public void onComplete(Task<QuerySnapshot> task) {
+                    if (!task.isSuccessful()) {
+                        callback.onError(task.getException());
+                        return;
+                    }
+                    QuerySnapshot snapshot = task.getResult();
+                    List documents = new ArrayList();
+                    if (snapshot != null) {
+                        for (QueryDocumentSnapshot doc : snapshot) {
+                            documents.add(toDocument(doc));
+                        }
+                    }
+                    callback.onResult(documents,
+                            snapshot != null && !snapshot.getMetadata().isFromCache());
+                }
+            });
+        } catch (Exception e) {
+            callback.onError(e);
+        }
+    }
+
+    public void upsert(String uid, List documents, CommitCallback callback) {
+        try {
+            WriteBatch batch = firestore.batch();
+            CollectionReference target = documents(uid);
+            for (int i = 0; i < documents.size(); i++) {
+                Document doc = (Document) documents.get(i);
+                Map<String, Object> data = new HashMap<String, Object>(doc.data);
+                data.put(FIELD_UPDATED_AT, FieldValue.serverTimestamp());
+                batch.set(target.document(doc.id), data, SetOptions.merge());
+            }
+            commit(batch, callback);
+        } catch (Exception e) {
+            callback.onFailed(e);
+        }
+    }
+
+    public void delete(String uid, Map deletedAtById, CommitCallback callback) {
+        try {
+            WriteBatch batch = firestore.batch();
+            CollectionReference target = documents(uid);
+            Iterator it = deletedAtById.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry entry = (Map.Entry) it.next();
+                Map<String, Object> data = new HashMap<String, Object>();
+                data.put("isDeleted", Boolean.TRUE);
+                data.put("modifiedAt", entry.getValue());
+                data.put(FIELD_UPDATED_AT, FieldValue.serverTimestamp());
+                batch.set(target.document((String) entry.getKey()), data, SetOptions.merge());
+            }
+            commit(batch, callback);
+        } catch (Exception e) {
+            callback.onFailed(e);
+        }
+    }
+
+    public void remove(String uid, List ids, CommitCallback callback) {
+        try {
+            WriteBatch batch = firestore.batch();
+            CollectionReference target = documents(uid);
+            for (int i = 0; i < ids.size(); i++) {
+                batch.delete(target.document((String) ids.get(i)));
+            }
+            commit(batch, callback);
+        } catch (Exception e) {
+            callback.onFailed(e);
+        }
+    }
+
+    private void commit(WriteBatch batch, final CommitCallback callback) {
+        batch.commit()
+                .addOnSuccessListener(new OnSuccessListener<Void>() {
+                    public void onSuccess(Void unused) {
+                        callback.onCommitted();
+                    }
+                })
+                .addOnFailureListener(new OnFailureListener() {
+                    public void onFailure(Exception e) {
+                        callback.onFailed(e);
+                    }
+                });
+    }
+
+    public Registration listen(String uid, long since, final ChangeListener listener) {
+        // Only documents written after the watermark; the rest is never read
+        Query query = since > 0
+                ? documents(uid).whereGreaterThan(FIELD_UPDATED_AT, new Timestamp(new Date(since)))
+                : documents(uid);
+        final ListenerRegistration reg = query
+                .addSnapshotListener(new EventListener<QuerySnapshot>() {
+                    /** The first snapshot holds every matching document as ADDED. */
+                    private boolean initial = true;
+
+                    public void onEvent(QuerySnapshot snapshots, FirebaseFirestoreException error) {
+                        if (error != null) {
+                            listener.onError(error);
+                            return;
+                        }
+                        if (snapshots == null) {
+                            return;
+                        }
+                        if (initial) {
+                            // Already fetched by the delta sync running alongside
+                            initial = false;
+                            return;
+                        }
+                        // Skip local-origin changes (from this device's cache)
+                        if (snapshots.getMetadata().hasPendingWrites()) {
+                            return;
+                        }
+                        List changes = new ArrayList();
+                        for (DocumentChange dc : snapshots.getDocumentChanges()) {
+                            int type;
+                            switch (dc.getType()) {
+                                case ADDED:
+                                    type = CHANGE_ADDED;
+                                    break;
+                                case MODIFIED:
+                                    type = CHANGE_MODIFIED;
+                                    break;
+                                default:
+                                    type = CHANGE_REMOVED;
+                                    break;
+                            }
+                            changes.add(new Change(type, toDocument(dc.getDocument())));
+                        }
+                        if (!changes.isEmpty()) {
+                            listener.onChanges(changes);
+                        }
+                    }
+                });
+        return new Registration() {
+            public void remove() {
+                reg.remove();
+            }
+        };
+    }
+
+    private static Document toDocument(DocumentSnapshot doc) {
+        Map<String, Object> data = doc.getData();
+        Timestamp updatedAt = doc.getTimestamp(FIELD_UPDATED_AT);
+        return new Document(doc.getId(),
+                data != null ? data : new HashMap<String, Object>(),
+                updatedAt != null ? updatedAt.toDate().getTime() : 0);
+    }
+}
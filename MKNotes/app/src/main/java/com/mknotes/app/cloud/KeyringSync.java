@@ -0,0 +1,115 @@
+package com.mknotes.app.cloud;
+
+import android.content.Context;
+import android.util.Log;
+
+import com.mknotes.app.util.SessionManager;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Keeps the data key the same on every device of an account. The keyring
+ * (SessionManager.Keyring: salt, verification token, wrapped data key, key id)
+ * is stored as one document in the "keys" collection; the data key in it is
+ * only usable with the master password.
+ *
+ * Checked before the notes on every sync:
+ * - No keyring in the cloud: this device's is uploaded.
+ * - Same data key: the newer credentials win (a password change on one
+ *   device reaches the others).
+ * - Another data key: nothing is synced. On the next unlock this device
+ *   switches to the cloud key if the password opens it, and re-encrypts its
+ *   notes to it (SessionManager.adoptPendingCloudKey()).
+ *
+ * Runs on the CloudSyncManager sync thread and waits for transport callbacks.
+ */
+class KeyringSync {
+
+    private static final String TAG = "KeyringSync";
+    static final String COLLECTION = "keys";
+    private static final String DOC_ID = "keyring";
+
+    private final Context appContext;
+    private final SyncTransport transport;
+
+    KeyringSync(Context context, SyncTransport notesTransport) {
+        this.appContext = context;
+        this.transport = notesTransport.forCollection(COLLECTION);
+    }
+
+    /**
+     * @return true if this device encrypts with the account's data key (or the
+     *         install has none yet), so notes may be synced
+     */
+    boolean sync(String uid) {
+        SessionManager session = SessionManager.getInstance(appContext);
+        if (session.getWrappedDataKey() == null) {
+            // Still on the password-derived key; a keyring is published after the upgrade
+            return true;
+        }
+        ActivitySync.Result result = new ActivitySync.Result();
+        transport.querySince(uid, 0, result);
+        if (!result.await()) {
+            return false;
+        }
+        SessionManager.Keyring cloud = null;
+        for (int i = 0; result.documents != null && i < result.documents.size(); i++) {
+            SyncTransport.Document doc = (SyncTransport.Document) result.documents.get(i);
+            if (DOC_ID.equals(doc.id)) {
+                cloud = fromMap(doc.data);
+            }
+        }
+        SessionManager.Keyring local = session.getKeyring();
+        if (cloud == null) {
+            if (local == null) {
+                // Published once the running re-key job is done
+                return true;
+            }
+            // A cached result may miss the server's keyring
+            return result.fromServer && upload(uid, local);
+        }
+        if (!session.applyCloudKeyring(cloud)) {
+            Log.w(TAG, session.hasPendingCloudKey()
+                    ? "Cloud data key differs; sync paused until the next unlock"
+                    : "Keyring cannot be checked without the session key");
+            return false;
+        }
+        if (local != null && local.keyId.equals(cloud.keyId) && local.changedAt > cloud.changedAt
+                && !local.saltHex.equals(cloud.saltHex)) {
+            // Password changed here since the cloud keyring was written
+            return upload(uid, local);
+        }
+        return true;
+    }
+
+    private boolean upload(String uid, SessionManager.Keyring keyring) {
+        List documents = new ArrayList();
+        documents.add(new SyncTransport.Document(DOC_ID, toMap(keyring), 0));
+        ActivitySync.Result result = new ActivitySync.Result();
+        transport.upsert(uid, documents, result);
+        return result.await();
+    }
+
+    private static Map<String, Object> toMap(SessionManager.Keyring keyring) {
+        Map<String, Object> map = new HashMap<String, Object>();
+        map.put("salt", keyring.saltHex);
+        map.put("verifyToken", keyring.verifyToken);
+        map.put("wrappedKey", keyring.wrappedDataKey);
+        map.put("keyId", keyring.keyId);
+        map.put("changedAt", Long.valueOf(keyring.changedAt));
+        return map;
+    }
+
+    private static SessionManager.Keyring fromMap(Map<String, Object> map) {
+        Object changedAt = map.get("changedAt");
+        return new SessionManager.Keyring(
+                (String) map.get("salt"),
+                (String) map.get("verifyToken"),
+                (String) map.get("wrappedKey"),
+                (String) map.get("keyId"),
+                changedAt instanceof Number ? ((Number) changedAt).longValue() : 0);
+    }
+}
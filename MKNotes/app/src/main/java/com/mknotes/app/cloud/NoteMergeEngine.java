@@ -0,0 +1,240 @@
+package com.mknotes.app.cloud;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Decides how a cloud version of a note relates to the local one, using the
+ * version vectors of both (see VectorClock), and merges concurrent versions
+ * field by field.
+ *
+ * The local row keeps the clock and field hashes (FieldHashes) of the cloud
+ * version it is based on. Local edits since then are marked by the row being
+ * PENDING; a cloud version is new if its clock is not covered by the base.
+ *
+ * Merging is three-way against the base hashes: a field changed on one side
+ * only takes that side's value. A metadata field changed on both sides takes
+ * the value of the later edit (modifiedAt; ties go to the cloud). If a content
+ * field changed on both sides, the later version wins and the other one is
+ * returned whole as a conflict copy, to be kept as a separate note.
+ *
+ * Encrypted fields are compared by their plaintext (Decryptor) where the
+ * ciphertexts differ: the same text encrypted twice is not an edit. Without
+ * base hashes (notes synced before them) a field whose plaintext cannot be
+ * compared takes the cloud value, without a conflict copy.
+ *
+ * Works on note documents as written by CloudSyncManager (normalized maps),
+ * with no storage or transport, so it can be exercised by a device simulation.
+ */
+final class NoteMergeEngine {
+
+    /** The cloud version is already part of the local one: nothing to apply. */
+    static final int KEEP_LOCAL = 0;
+    /** The cloud version replaces the unchanged local one. */
+    static final int TAKE_CLOUD = 1;
+    /** Both changed: apply Resolution.merged locally and upload it. */
+    static final int MERGE = 2;
+
+    /** Fields whose concurrent edits are kept as a conflict copy instead of dropped. */
+    private static final String[] CONTENT_FIELDS = {
+            "title", "content", "checklistData", "routineData",
+            "imagesData", "filesData", "audiosData"
+    };
+
+    /** Fields stored as ciphertext. */
+    private static final String[] ENCRYPTED_FIELDS = {
+            "title", "content", "checklistData", "routineData"
+    };
+
+    private static final int PLAIN_SAME = 0;
+    private static final int PLAIN_DIFFERENT = 1;
+    private static final int PLAIN_UNKNOWN = 2;
+
+    private static final String FIELD_MODIFIED_AT = "modifiedAt";
+    private static final String FIELD_VCLOCK = "vclock";
+
+    static class Resolution {
+        final int action;
+        /** Merged document, with clock and modifiedAt covering both versions (MERGE only). */
+        final Map<String, Object> merged;
+        /** Losing version of a content conflict, or null. */
+        final Map<String, Object> conflictCopy;
+
+        Resolution(int action, Map<String, Object> merged, Map<String, Object> conflictCopy) {
+            this.action = action;
+            this.merged = merged;
+            this.conflictCopy = conflictCopy;
+        }
+    }
+
+    /**
+     * Decrypts field values for comparison.
+     */
+    interface Decryptor {
+        /**
+         * @return plaintext of a non-empty ciphertext, or null if it cannot be decrypted
+         */
+        String decrypt(String ciphertext);
+    }
+
+    private final String deviceId;
+    private final Decryptor decryptor;
+
+    /**
+     * @param decryptor may be null: encrypted fields are then compared as stored
+     */
+    NoteMergeEngine(String deviceId, Decryptor decryptor) {
+        this.deviceId = deviceId;
+        this.decryptor = decryptor;
+    }
+
+    /**
+     * True if both versions carry clocks. Otherwise the caller falls back to
+     * comparing modifiedAt.
+     */
+    static boolean hasClocks(String localBaseClock, Map<String, Object> cloud) {
+        return !VectorClock.parse(localBaseClock).isEmpty()
+                && !VectorClock.parse(clockOf(cloud)).isEmpty();
+    }
+
+    /**
+     * @param local          local note document (current row)
+     * @param localBaseClock clock of the cloud version the row is based on
+     * @param baseHashes     field hashes of that version, may be null
+     * @param localPending   true if the row has edits not uploaded yet
+     * @param cloud          cloud note document, not soft-deleted
+     */
+    Resolution resolve(Map<String, Object> local, String localBaseClock, String baseHashes,
+                       boolean localPending, Map<String, Object> cloud) {
+        VectorClock base = VectorClock.parse(localBaseClock);
+        VectorClock remote = VectorClock.parse(clockOf(cloud));
+        int order = remote.compare(base);
+        if (order == VectorClock.EQUAL || order == VectorClock.BEFORE) {
+            // Nothing new in the cloud
+            return new Resolution(KEEP_LOCAL, null, null);
+        }
+        if (order == VectorClock.AFTER) {
+            if (!localPending) {
+                return new Resolution(TAKE_CLOUD, null, null);
+            }
+            if (remote.advancedOnlyBy(base, deviceId)) {
+                // Our own earlier upload; the pending edits were made on top of it
+                return new Resolution(KEEP_LOCAL, null, null);
+            }
+        }
+        return merge(local, base, baseHashes, cloud, remote);
+    }
+
+    private Resolution merge(Map<String, Object> local, VectorClock base, String baseHashes,
+                             Map<String, Object> cloud, VectorClock remote) {
+        Map baseFields = FieldHashes.parse(baseHashes);
+        long localModified = longOf(local.get(FIELD_MODIFIED_AT));
+        long cloudModified = longOf(cloud.get(FIELD_MODIFIED_AT));
+        boolean cloudWins = cloudModified >= localModified;
+
+        Map<String, Object> merged = new HashMap<String, Object>();
+        boolean contentConflict = false;
+        Set keys = new HashSet(local.keySet());
+        keys.addAll(cloud.keySet());
+        Iterator it = keys.iterator();
+        while (it.hasNext()) {
+            String key = (String) it.next();
+            if (FieldHashes.isAlwaysSent(key)) continue;
+            Object localValue = local.get(key);
+            Object cloudValue = cloud.get(key);
+            String localHash = FieldHashes.hashOf(localValue);
+            String cloudHash = FieldHashes.hashOf(cloudValue);
+            if (localHash.equals(cloudHash)) {
+                merged.put(key, localValue);
+                continue;
+            }
+            int plain = comparePlaintext(key, localValue, cloudValue);
+            if (plain == PLAIN_SAME) {
+                // Same text encrypted separately: take the cloud's bytes
+                merged.put(key, cloudValue);
+                continue;
+            }
+            String baseHash = (String) baseFields.get(key);
+            if (baseHash == null && plain == PLAIN_UNKNOWN) {
+                // No base and nothing to compare: not counted as a conflict
+                merged.put(key, cloudValue);
+                continue;
+            }
+            boolean localChanged = baseHash == null || !baseHash.equals(localHash);
+            boolean cloudChanged = baseHash == null || !baseHash.equals(cloudHash);
+            if (!cloudChanged) {
+                merged.put(key, localValue);
+            } else if (!localChanged) {
+                merged.put(key, cloudValue);
+            } else {
+                if (isContentField(key)) {
+                    contentConflict = true;
+                }
+                merged.put(key, cloudWins ? cloudValue : localValue);
+            }
+        }
+        merged.put(FIELD_MODIFIED_AT, Long.valueOf(Math.max(localModified, cloudModified)));
+        merged.put("isDeleted", Boolean.FALSE);
+        merged.put(FIELD_VCLOCK, base.merge(remote).toString());
+
+        Map<String, Object> conflictCopy = null;
+        if (contentConflict) {
+            conflictCopy = new HashMap<String, Object>(cloudWins ? local : cloud);
+            conflictCopy.remove("cloudId");
+            conflictCopy.put(FIELD_VCLOCK, "");
+        }
+        return new Resolution(MERGE, merged, conflictCopy);
+    }
+
+    /**
+     * How the plaintexts of two values with different hashes compare.
+     * Unencrypted fields differ; encrypted ones are decrypted if possible.
+     */
+    private int comparePlaintext(String key, Object localValue, Object cloudValue) {
+        if (!isEncryptedField(key)) {
+            return PLAIN_DIFFERENT;
+        }
+        String localText = plaintextOf(localValue);
+        String cloudText = plaintextOf(cloudValue);
+        if (localText == null || cloudText == null) {
+            return PLAIN_UNKNOWN;
+        }
+        return localText.equals(cloudText) ? PLAIN_SAME : PLAIN_DIFFERENT;
+    }
+
+    private String plaintextOf(Object value) {
+        if (value == null || "".equals(value)) {
+            return "";
+        }
+        if (!(value instanceof String) || decryptor == null) {
+            return null;
+        }
+        return decryptor.decrypt((String) value);
+    }
+
+    private static boolean isEncryptedField(String key) {
+        for (int i = 0; i < ENCRYPTED_FIELDS.length; i++) {
+            if (ENCRYPTED_FIELDS[i].equals(key)) return true;
+        }
+        return false;
+    }
+
+    private static boolean isContentField(String key) {
+        for (int i = 0; i < CONTENT_FIELDS.length; i++) {
+            if (CONTENT_FIELDS[i].equals(key)) return true;
+        }
+        return false;
+    }
+
+    private static String clockOf(Map<String, Object> doc) {
+        Object clock = doc.get(FIELD_VCLOCK);
+        return clock instanceof String ? (String) clock : "";
+    }
+
+    private static long longOf(Object value) {
+        return value instanceof Number ? ((Number) value).longValue() : 0;
+    }
+}
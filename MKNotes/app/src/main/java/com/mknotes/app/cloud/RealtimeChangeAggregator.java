@@ -0,0 +1,98 @@
+package com.mknotes.app.cloud;
+
+import android.os.Handler;
+import android.os.SystemClock;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Collects realtime document changes and hands them on in bursts.
+ *
+ * Changes are delivered once no new change arrived for QUIET_MS, but at the
+ * latest MAX_DELAY_MS after the first change of a burst, so a steady stream
+ * is still applied. Several changes of one document are collapsed into the
+ * latest, which carries the complete document.
+ *
+ * add() may be called from any thread; the sink runs on the handler's thread.
+ */
+class RealtimeChangeAggregator {
+
+    private static final long QUIET_MS = 300L;
+    private static final long MAX_DELAY_MS = 2000L;
+
+    interface Sink {
+        /**
+         * @param changes List of SyncTransport.Change, at most one per document
+         */
+        void onChanges(List changes);
+    }
+
+    private final Handler handler;
+    private final Sink sink;
+    private final Object lock = new Object();
+    /** cloud id -> latest SyncTransport.Change, in arrival order */
+    private final Map pending = new LinkedHashMap();
+    private long burstStartedAt;
+
+    private final Runnable flushRunnable = new Runnable() {
+        public void run() {
+            flush();
+        }
+    };
+
+    RealtimeChangeAggregator(Handler handler, Sink sink) {
+        this.handler = handler;
+        this.sink = sink;
+    }
+
+    /**
+     * @param changes List of SyncTransport.Change
+     */
+    void add(List changes) {
+        if (changes == null || changes.isEmpty()) return;
+        long now = SystemClock.uptimeMillis();
+        long delay;
+        synchronized (lock) {
+            if (pending.isEmpty()) {
+                burstStartedAt = now;
+            }
+            for (int i = 0; i < changes.size(); i++) {
+                SyncTransport.Change change = (SyncTransport.Change) changes.get(i);
+                // Re-insert so the map keeps the order of the latest change
+                pending.remove(change.document.id);
+                pending.put(change.document.id, change);
+            }
+            delay = Math.min(QUIET_MS, Math.max(0, burstStartedAt + MAX_DELAY_MS - now));
+        }
+        handler.removeCallbacks(flushRunnable);
+        handler.postDelayed(flushRunnable, delay);
+    }
+
+    /**
+     * Deliver pending changes now.
+     */
+    void flush() {
+        List batch;
+        synchronized (lock) {
+            batch = new ArrayList(pending.values());
+            pending.clear();
+        }
+        handler.removeCallbacks(flushRunnable);
+        if (!batch.isEmpty()) {
+            sink.onChanges(batch);
+        }
+    }
+
+    /**
+     * Drop pending changes without delivering them.
+     */
+    void cancel() {
+        synchronized (lock) {
+            pending.clear();
+        }
+        handler.removeCallbacks(flushRunnable);
+    }
+}
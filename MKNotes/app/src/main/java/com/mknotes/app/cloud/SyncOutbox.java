@@ -0,0 +1,322 @@
+package com.mknotes.app.cloud;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import com.mknotes.app.db.NotesRepository;
+import com.mknotes.app.db.SyncOutboxRepository;
+import com.mknotes.app.model.Note;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Sends queued note writes (SyncOutboxRepository) to the cloud.
+ *
+ * Local edits and deletes are queued first and drained in batches on a
+ * single background thread, one batch in flight at a time. A failed batch
+ * stays queued with exponential backoff (plus jitter) and is retried when
+ * the backoff expires, on the next enqueue, or when a sync starts.
+ *
+ * The cloud side is a Backend (CloudSyncManager sends through its
+ * SyncTransport), so the outbox can be driven by an in-memory fake.
+ */
+public class SyncOutbox {
+
+    private static final String TAG = "SyncOutbox";
+
+    /** Writes per batch commit. Firestore allows 500. */
+    private static final int BATCH_SIZE = 450;
+    private static final long BACKOFF_BASE_MS = 5000L;
+    private static final long BACKOFF_MAX_MS = 15L * 60L * 1000L;
+
+    /**
+     * One write to send. rawNote is the note as stored (encrypted fields) for an
+     * upsert, null for a soft-delete.
+     */
+    public static class Write {
+        public final String cloudId;
+        public final Note rawNote;
+        /** Time the write was queued; used as modifiedAt of a soft-delete. */
+        public final long enqueuedAt;
+
+        Write(String cloudId, Note rawNote, long enqueuedAt) {
+            this.cloudId = cloudId;
+            this.rawNote = rawNote;
+            this.enqueuedAt = enqueuedAt;
+        }
+
+        public boolean isDelete() {
+            return rawNote == null;
+        }
+    }
+
+    /**
+     * Cloud side of the outbox.
+     */
+    public interface Backend {
+        /**
+         * @return uid to write for, or null if syncing is not possible right now
+         */
+        String getSyncUid();
+
+        /**
+         * Apply all writes, then call back exactly once. A failed batch is sent
+         * again as a whole, so writes must be idempotent.
+         */
+        void commit(String uid, List writes, SyncTransport.CommitCallback callback);
+    }
+
+    /**
+     * Runs the delayed retry drains. The app posts them to the main looper.
+     */
+    public interface Scheduler {
+        void postDelayed(Runnable task, long delayMs);
+
+        void cancel(Runnable task);
+    }
+
+    private final Backend backend;
+    private final SyncOutboxRepository outbox;
+    private final NotesRepository notes;
+    private final Scheduler scheduler;
+    private final Executor executor;
+    private final Random random = new Random();
+    private final Object lock = new Object();
+
+    /** True while a batch is being sent; further drains are merged into it. */
+    private boolean draining = false;
+    private boolean drainAgain = false;
+
+    private final Runnable drainRunnable = new Runnable() {
+        public void run() {
+            drain();
+        }
+    };
+
+    public SyncOutbox(Context context, Backend backend) {
+        this(backend, SyncOutboxRepository.getInstance(context.getApplicationContext()),
+                NotesRepository.getInstance(context.getApplicationContext()),
+                new HandlerScheduler(new Handler(Looper.getMainLooper())),
+                Executors.newSingleThreadExecutor(new ThreadFactory() {
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "mknotes-sync-outbox");
+                        t.setDaemon(true);
+                        return t;
+                    }
+                }));
+    }
+
+    /**
+     * Outbox on the given queue and notes. executor must run one task at a
+     * time; tests pass one they run by hand and a recording scheduler.
+     */
+    SyncOutbox(Backend backend, SyncOutboxRepository outbox, NotesRepository notes,
+               Scheduler scheduler, Executor executor) {
+        this.backend = backend;
+        this.outbox = outbox;
+        this.notes = notes;
+        this.scheduler = scheduler;
+        this.executor = executor;
+    }
+
+    // ============ ENQUEUE ============
+
+    /**
+     * Queue an upload of the note's current stored state and start draining.
+     */
+    public void enqueueUpsert(final long noteId) {
+        executor.execute(new Runnable() {
+            public void run() {
+                Note rawNote = notes.getNoteRawById(noteId);
+                if (rawNote == null || rawNote.getCloudId() == null) {
+                    return;
+                }
+                outbox.enqueue(rawNote.getCloudId(), noteId, SyncOutboxRepository.OP_UPSERT);
+                drainOnWorker();
+            }
+        });
+    }
+
+    /**
+     * Queue a soft-delete of a cloud document and start draining.
+     */
+    public void enqueueDelete(final String cloudId) {
+        if (cloudId == null || cloudId.length() == 0) return;
+        executor.execute(new Runnable() {
+            public void run() {
+                outbox.enqueue(cloudId, -1, SyncOutboxRepository.OP_DELETE);
+                drainOnWorker();
+            }
+        });
+    }
+
+    // ============ DRAIN ============
+
+    /**
+     * Send every due write, batch by batch. Safe to call at any time.
+     */
+    public void drain() {
+        executor.execute(new Runnable() {
+            public void run() {
+                drainOnWorker();
+            }
+        });
+    }
+
+    /**
+     * Send one batch. Runs on the executor.
+     */
+    void drainOnWorker() {
+        synchronized (lock) {
+            if (draining) {
+                drainAgain = true;
+                return;
+            }
+            draining = true;
+            drainAgain = false;
+        }
+        String uid = backend.getSyncUid();
+        if (uid == null) {
+            // Kept queued until sync is possible again
+            endDrain(false);
+            return;
+        }
+        List entries = outbox.loadDue(System.currentTimeMillis(), BATCH_SIZE);
+        if (entries.isEmpty()) {
+            endDrain(false);
+            scheduleRetry();
+            return;
+        }
+        final List sent = new ArrayList();
+        final List writes = new ArrayList();
+        final List upserted = new ArrayList();
+        for (int i = 0; i < entries.size(); i++) {
+            SyncOutboxRepository.Entry entry = (SyncOutboxRepository.Entry) entries.get(i);
+            sent.add(entry);
+            if (entry.op == SyncOutboxRepository.OP_DELETE) {
+                writes.add(new Write(entry.cloudId, null, entry.enqueuedAt));
+                continue;
+            }
+            Note rawNote = notes.getNoteRawById(entry.noteId);
+            if (rawNote == null || !entry.cloudId.equals(rawNote.getCloudId())) {
+                // Note deleted since; its delete is queued separately
+                continue;
+            }
+            writes.add(new Write(entry.cloudId, rawNote, entry.enqueuedAt));
+            upserted.add(rawNote);
+        }
+        if (writes.isEmpty()) {
+            outbox.removeSent(sent);
+            endDrain(true);
+            return;
+        }
+        backend.commit(uid, writes, new SyncTransport.CommitCallback() {
+            public void onCommitted() {
+                executor.execute(new Runnable() {
+                    public void run() {
+                        outbox.removeSent(sent);
+                        notes.markSyncedIfUnchanged(upserted);
+                        Log.d(TAG, "Outbox batch committed: " + sent.size());
+                        endDrain(true);
+                    }
+                });
+            }
+
+            public void onFailed(final Exception e) {
+                executor.execute(new Runnable() {
+                    public void run() {
+                        int attempts = 0;
+                        for (int i = 0; i < sent.size(); i++) {
+                            attempts = Math.max(attempts, ((SyncOutboxRepository.Entry) sent.get(i)).attempts);
+                        }
+                        long delay = backoffDelay(attempts);
+                        outbox.markFailed(sent, System.currentTimeMillis() + delay);
+                        Log.w(TAG, "Outbox batch failed, retry in " + delay + " ms: "
+                                + (e != null ? e.getMessage() : "unknown"));
+                        // The backend is likely unreachable: wait for the backoff
+                        // instead of sending the remaining entries now
+                        endDrain(false);
+                        scheduleRetry();
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Finish the current drain; continue with the next batch if requested.
+     */
+    private void endDrain(boolean continueDraining) {
+        boolean again;
+        synchronized (lock) {
+            draining = false;
+            again = drainAgain || continueDraining;
+        }
+        if (again) {
+            drain();
+        }
+    }
+
+    /**
+     * Wake up when the earliest held-back entry becomes due.
+     */
+    private void scheduleRetry() {
+        long next = outbox.getNextAttemptAt();
+        scheduler.cancel(drainRunnable);
+        if (next > 0) {
+            long delay = Math.max(0, next - System.currentTimeMillis());
+            scheduler.postDelayed(drainRunnable, delay);
+        }
+    }
+
+    /**
+     * Exponential backoff from BACKOFF_BASE_MS, capped at BACKOFF_MAX_MS,
+     * with +/-20% jitter so devices do not retry in lockstep.
+     */
+    private long backoffDelay(int attempts) {
+        long delay = BACKOFF_BASE_MS << Math.min(attempts, 16);
+        if (delay > BACKOFF_MAX_MS || delay <= 0) {
+            delay = BACKOFF_MAX_MS;
+        }
+        double jitter = 0.8 + random.nextDouble() * 0.4;
+        return (long) (delay * jitter);
+    }
+
+    public int getPendingCount() {
+        return outbox.getCount();
+    }
+
+    /**
+     * Drop every queued write. Call when the signed-in account changes.
+     */
+    public void clear() {
+        executor.execute(new Runnable() {
+            public void run() {
+                outbox.clear();
+            }
+        });
+    }
+
+    private static class HandlerScheduler implements Scheduler {
+        private final Handler handler;
+
+        HandlerScheduler(Handler handler) {
+            this.handler = handler;
+        }
+
+        public void postDelayed(Runnable task, long delayMs) {
+            handler.postDelayed(task, delayMs);
+        }
+
+        public void cancel(Runnable task) {
+            handler.removeCallbacks(task);
+        }
+    }
+}
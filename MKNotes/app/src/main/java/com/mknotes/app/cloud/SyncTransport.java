@@ -0,0 +1,131 @@
+package com.mknotes.app.cloud;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Cloud backend used by CloudSyncManager: a per-user collection of note
+ * documents keyed by cloud id.
+ *
+ * Documents hold the fields written by CloudSyncManager (encrypted note
+ * fields, modifiedAt, isDeleted). The transport stamps every write with its
+ * own update time, which is what querySince() filters on.
+ *
+ * Callbacks may arrive on any thread.
+ *
+ * Implementations: FirestoreSyncTransport (production) and LocalSyncTransport
+ * (in-process, in the unit tests and load benchmarks).
+ */
+public interface SyncTransport {
+
+    int CHANGE_ADDED = 1;
+    int CHANGE_MODIFIED = 2;
+    int CHANGE_REMOVED = 3;
+
+    /**
+     * A stored note document.
+     */
+    class Document {
+        public final String id;
+        public final Map<String, Object> data;
+        /** Transport update time in millis, 0 if not known (e.g. a pending local write). */
+        public final long updatedAt;
+
+        public Document(String id, Map<String, Object> data, long updatedAt) {
+            this.id = id;
+            this.data = data;
+            this.updatedAt = updatedAt;
+        }
+    }
+
+    /**
+     * A document change reported by listen().
+     */
+    class Change {
+        public final int type;
+        public final Document document;
+
+        public Change(int type, Document document) {
+            this.type = type;
+            this.document = document;
+        }
+    }
+
+    interface QueryCallback {
+        /**
+         * @param documents  List of Document
+         * @param fromServer false if the result may be stale (served from an offline cache);
+         *                   such a result must not advance the sync watermark
+         */
+        void onResult(List documents, boolean fromServer);
+
+        void onError(Exception e);
+    }
+
+    interface CommitCallback {
+        void onCommitted();
+
+        void onFailed(Exception e);
+    }
+
+    interface ChangeListener {
+        /**
+         * Changes made by other clients. Writes from this client are not reported.
+         *
+         * @param changes List of Change
+         */
+        void onChanges(List changes);
+
+        void onError(Exception e);
+    }
+
+    interface Registration {
+        void remove();
+    }
+
+    /** Maximum number of documents per upsert(), delete() or remove() call. */
+    int getMaxBatchSize();
+
+    /**
+     * Fetch documents updated after watermark (transport time, millis).
+     * A watermark of 0 returns every document, including ones without an update time.
+     */
+    void querySince(String uid, long watermark, QueryCallback callback);
+
+    /**
+     * Merge the given fields into each document (created if missing), atomically.
+     *
+     * @param documents List of Document; updatedAt is ignored
+     */
+    void upsert(String uid, List documents, CommitCallback callback);
+
+    /**
+     * Soft-delete documents: set isDeleted=true and modifiedAt to the deletion
+     * time of each, atomically.
+     *
+     * @param deletedAtById cloud id (String) -> deletion time in millis (Long)
+     */
+    void delete(String uid, Map deletedAtById, CommitCallback callback);
+
+    /**
+     * Remove documents for good, atomically. Other clients are not told; only
+     * for documents replaced by copies under other ids.
+     *
+     * @param ids List of cloud id (String)
+     */
+    void remove(String uid, List ids, CommitCallback callback);
+
+    /**
+     * Listen for changes by other clients to documents updated after since
+     * (transport time, millis) until the registration is removed. Documents
+     * that already match when listening starts are not reported: the caller's
+     * delta query (querySince) fetches them.
+     */
+    Registration listen(String uid, long since, ChangeListener listener);
+
+    /**
+     * Transport on another per-user collection (e.g. "mantras"), with the same
+     * write stamping and merge semantics as the note collection.
+     */
+    SyncTransport forCollection(String collection);
+}
@@ -0,0 +1,141 @@
+package com.mknotes.app.cloud;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Version vector of a note: one counter per device, raised by one for every
+ * version the device uploads.
+ *
+ * Stored with the note (notes.vclock) and in the cloud document as
+ * "deviceId:counter,deviceId:counter", devices sorted, so equal clocks have
+ * equal text. An empty clock belongs to a note last written by a version
+ * without clocks; such notes are compared by modifiedAt instead.
+ */
+final class VectorClock {
+
+    static final int EQUAL = 0;
+    /** This clock happened before the other one. */
+    static final int BEFORE = 1;
+    /** This clock happened after (includes) the other one. */
+    static final int AFTER = 2;
+    static final int CONCURRENT = 3;
+
+    /** deviceId -> Long, sorted */
+    private final TreeMap counters = new TreeMap();
+
+    private VectorClock() {
+    }
+
+    static VectorClock parse(String text) {
+        VectorClock clock = new VectorClock();
+        if (text == null || text.length() == 0) {
+            return clock;
+        }
+        String[] parts = text.split(",");
+        for (int i = 0; i < parts.length; i++) {
+            int colon = parts[i].lastIndexOf(':');
+            if (colon <= 0) continue;
+            try {
+                long n = Long.parseLong(parts[i].substring(colon + 1));
+                if (n > 0) {
+                    clock.counters.put(parts[i].substring(0, colon), Long.valueOf(n));
+                }
+            } catch (NumberFormatException e) {
+                // Skip a damaged entry
+            }
+        }
+        return clock;
+    }
+
+    boolean isEmpty() {
+        return counters.isEmpty();
+    }
+
+    long get(String deviceId) {
+        Long n = (Long) counters.get(deviceId);
+        return n != null ? n.longValue() : 0;
+    }
+
+    /**
+     * Copy of this clock with deviceId's counter raised by one.
+     */
+    VectorClock increment(String deviceId) {
+        VectorClock next = copy();
+        next.counters.put(deviceId, Long.valueOf(get(deviceId) + 1));
+        return next;
+    }
+
+    /**
+     * Entry-wise maximum of both clocks: a version that has seen both.
+     */
+    VectorClock merge(VectorClock other) {
+        VectorClock merged = copy();
+        Iterator it = other.counters.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry entry = (Map.Entry) it.next();
+            String device = (String) entry.getKey();
+            long n = ((Long) entry.getValue()).longValue();
+            if (n > merged.get(device)) {
+                merged.counters.put(device, Long.valueOf(n));
+            }
+        }
+        return merged;
+    }
+
+    /**
+     * @return EQUAL, BEFORE, AFTER or CONCURRENT, seen from this clock
+     */
+    int compare(VectorClock other) {
+        boolean less = false;
+        boolean greater = false;
+        TreeMap devices = new TreeMap(counters);
+        devices.putAll(other.counters);
+        Iterator it = devices.keySet().iterator();
+        while (it.hasNext()) {
+            String device = (String) it.next();
+            long mine = get(device);
+            long theirs = other.get(device);
+            if (mine < theirs) less = true;
+            if (mine > theirs) greater = true;
+        }
+        if (less && greater) return CONCURRENT;
+        if (less) return BEFORE;
+        if (greater) return AFTER;
+        return EQUAL;
+    }
+
+    /**
+     * True if this clock is ahead of base only in deviceId's entry: every
+     * version it adds over base was uploaded by that device.
+     */
+    boolean advancedOnlyBy(VectorClock base, String deviceId) {
+        Iterator it = counters.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry entry = (Map.Entry) it.next();
+            String device = (String) entry.getKey();
+            if (!device.equals(deviceId) && ((Long) entry.getValue()).longValue() > base.get(device)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private VectorClock copy() {
+        VectorClock clock = new VectorClock();
+        clock.counters.putAll(counters);
+        return clock;
+    }
+
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        Iterator it = counters.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry entry = (Map.Entry) it.next();
+            if (sb.length() > 0) sb.append(',');
+            sb.append(entry.getKey()).append(':').append(entry.getValue());
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,1121 @@
+package com.mknotes.app.db;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import com.mknotes.app.model.Note;
+
+import org.json.JSONObject;
+
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Local side of the cloud sync of meditation and mood data: mantras, daily
+ * sessions, mantra history, mantra count logs and note moods.
+ *
+ * Rows carry modified_at and sync_status like notes: every local write marks
+ * the row PENDING, and a deleted row leaves a tombstone (sync_tombstones)
+ * until the deletion is sent. Documents are keyed by cloud ids, since local
+ * row ids differ per device:
+ *   mantras           mantra cloud id ("builtin-" + raw name for built-ins)
+ *   mantra_sessions   mantraCloudId_date
+ *   mantra_history    mantraCloudId_date
+ *   mantra_count_log  mantraCloudId_date_deviceId
+ *   note_moods        noteCloudId_moodName (URL-encoded)
+ *
+ * Mantras, history and moods are last-writer-wins by modifiedAt. Session
+ * counts are PN-counters (GCounter) with one entry per session row, stored as
+ * document fields "p_replica" / "n_replica": each device only writes its own
+ * entries, so the transport's field merge never drops another device's
+ * counts. Count logs are append-only; each device owns one document per
+ * mantra and day holding its whole log for that day, and the rows of other
+ * devices are replaced by the contents of their documents.
+ *
+ * History rows mirror the session count of their day, so they are refreshed
+ * from the merged session count whenever a session exists.
+ *
+ * Ids and fields here are the plain ones; ActivitySync encrypts them before
+ * they leave the device.
+ */
+public class ActivitySyncRepository {
+
+    public static final String COLLECTION_MANTRAS = "mantras";
+    public static final String COLLECTION_SESSIONS = "mantra_sessions";
+    public static final String COLLECTION_HISTORY = "mantra_history";
+    public static final String COLLECTION_COUNT_LOG = "mantra_count_log";
+    public static final String COLLECTION_MOODS = "note_moods";
+
+    /** In apply order: sessions, history and logs refer to mantras, moods to notes. */
+    public static final String[] COLLECTIONS = {
+            COLLECTION_MANTRAS, COLLECTION_SESSIONS, COLLECTION_HISTORY,
+            COLLECTION_COUNT_LOG, COLLECTION_MOODS
+    };
+
+    private static final String F_MODIFIED_AT = "modifiedAt";
+    private static final String F_IS_DELETED = "isDeleted";
+    private static final String F_MANTRA_ID = "mantraId";
+    private static final String F_NOTE_ID = "noteId";
+    private static final String F_DATE = "date";
+    private static final String F_COUNT = "count";
+    private static final String F_DEVICE_ID = "deviceId";
+    private static final String F_TIMESTAMPS = "timestamps";
+    private static final String F_COUNTER_P = "p_";
+    private static final String F_COUNTER_N = "n_";
+
+    private static final String BUILT_IN_ID_PREFIX = "builtin-";
+    private static final String RAW_AUDIO_PREFIX = "raw:";
+
+    private NotesDatabaseHelper dbHelper;
+    private static ActivitySyncRepository sInstance;
+
+    /**
+     * A document: read from local rows to upload, or received from the cloud to apply.
+     */
+    public static class Record {
+        public final String docId;
+        public final Map<String, Object> data;
+        /** Selects the local rows this record was read from, to mark them synced. */
+        final String syncedWhere;
+        final String[] syncedArgs;
+
+        public Record(String docId, Map<String, Object> data) {
+            this(docId, data, null, null);
+        }
+
+        Record(String docId, Map<String, Object> data, String syncedWhere, String[] syncedArgs) {
+            this.docId = docId;
+            this.data = data;
+            this.syncedWhere = syncedWhere;
+            this.syncedArgs = syncedArgs;
+        }
+    }
+
+    /**
+     * A deletion not sent yet.
+     */
+    public static class Tombstone {
+        public final String collection;
+        public final String docId;
+        public final long deletedAt;
+        /** Fields written along with the deletion, or null. */
+        public final Map<String, Object> fields;
+
+        Tombstone(String collection, String docId, long deletedAt, Map<String, Object> fields) {
+            this.collection = collection;
+            this.docId = docId;
+            this.deletedAt = deletedAt;
+            this.fields = fields;
+        }
+    }
+
+    /**
+     * Session row with its counter state.
+     */
+    private static class SessionState {
+        long rowId;
+        long count;
+        long syncedCount;
+        String replica;
+        GCounter p;
+        GCounter n;
+        long speedModifiedAt;
+        long modifiedAt;
+    }
+
+    private static final String[] SESSION_COLUMNS = {
+            NotesDatabaseHelper.COL_SESSION_ID,
+            NotesDatabaseHelper.COL_SESSION_COUNT,
+            NotesDatabaseHelper.COL_SESSION_SYNCED_COUNT,
+            NotesDatabaseHelper.COL_SESSION_REPLICA,
+            NotesDatabaseHelper.COL_SESSION_COUNTER_P,
+            NotesDatabaseHelper.COL_SESSION_COUNTER_N,
+            NotesDatabaseHelper.COL_SESSION_SPEED_MODIFIED,
+            NotesDatabaseHelper.COL_ROW_MODIFIED
+    };
+
+    public static synchronized ActivitySyncRepository getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new ActivitySyncRepository(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private ActivitySyncRepository(Context context) {
+        dbHelper = NotesDatabaseHelper.getInstance(context);
+    }
+
+    // ============ UPLOAD ============
+
+    /**
+     * Give every mantra a cloud id. Built-in mantras get one derived from their
+     * raw resource name, so the copies seeded on each device share a document.
+     */
+    public void assignMantraCloudIds() {
+        SQLiteDatabase db = dbHelper.getWritableDatabase();
+        db.beginTransaction();
+        try {
+            db.execSQL("UPDATE " + NotesDatabaseHelper.TABLE_MANTRAS + " SET " +
+                    NotesDatabaseHelper.COL_MANTRA_CLOUD_ID + "='" + BUILT_IN_ID_PREFIX + "' || substr(" +
+                    NotesDatabaseHelper.COL_MANTRA_AUDIO_PATH + ", " + (RAW_AUDIO_PREFIX.length() + 1) +
+                    ") WHERE " + NotesDatabaseHelper.COL_MANTRA_CLOUD_ID + " IS NULL AND " +
+                    NotesDatabaseHelper.COL_MANTRA_BUILT_IN + "=1 AND " +
+                    NotesDatabaseHelper.COL_MANTRA_AUDIO_PATH + " LIKE '" + RAW_AUDIO_PREFIX + "%'");
+            Cursor cursor = db.query(NotesDatabaseHelper.TABLE_MANTRAS,
+                    new String[]{NotesDatabaseHelper.COL_MANTRA_ID},
+                    NotesDatabaseHelper.COL_MANTRA_CLOUD_ID + " IS NULL", null, null, null, null);
+            if (cursor != null) {
+                while (cursor.moveToNext()) {
+                    ContentValues values = new ContentValues();
+                    values.put(NotesDatabaseHelper.COL_MANTRA_CLOUD_ID, UUID.randomUUID().toString());
+                    db.update(NotesDatabaseHelper.TABLE_MANTRAS, values,
+                            NotesDatabaseHelper.COL_MANTRA_ID + "=?",
+                            new String[]{String.valueOf(cursor.getLong(0))});
+                }
+                cursor.close();
+            }
+            db.setTransactionSuccessful();
+        } catch (Exception e) {
+            // Mantras without a cloud id are not uploaded this time
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * Documents for every PENDING row of a collection. Session count changes
+     * are first folded into the row's own counter entry.
+     *
+     * @param deviceId            this device's id, stamped on count log documents
+     * @param allCounterEntries   write every session counter entry instead of only
+     *                            the row's own (when the documents are moved)
+     * @return List of Record; empty on error
+     */
+    public List loadPending(String collection, String deviceId, boolean allCounterEntries) {
+        SQLiteDatabase db = dbHelper.getWritableDatabase();
+        List records = new ArrayList();
+        db.beginTransaction();
+        try {
+            if (COLLECTION_MANTRAS.equals(collection)) {
+                loadPendingMantras(db, records);
+            } else if (COLLECTION_SESSIONS.equals(collection)) {
+                loadPendingSessions(db, records, allCounterEntries);
+            } else if (COLLECTION_HISTORY.equals(collection)) {
+                loadPendingHistory(db, records);
+            } else if (COLLECTION_COUNT_LOG.equals(collection)) {
+                loadPendingCountLogs(db, records, deviceId);
+            } else if (COLLECTION_MOODS.equals(collection)) {
+                loadPendingMoods(db, records);
+            }
+            db.setTransactionSuccessful();
+        } catch (Exception e) {
+            // Rows stay PENDING and are read again by the next sync
+            records.clear();
+        } finally {
+            db.endTransaction();
+        }
+        return records;
+    }
+
+    /**
+     * Mark the rows of uploaded records synced, unless they changed since they were read.
+     */
+    public void markSynced(String collection, List records) {
+        if (records == null || records.isEmpty()) return;
+        SQLiteDatabase db = dbHelper.getWritableDatabase();
+        ContentValues values = new ContentValues();
+        values.put(NotesDatabaseHelper.COL_ROW_SYNC_STATUS, Note.SYNC_STATUS_SYNCED);
+        db.beginTransaction();
+        try {
+            for (int i = 0; i < records.size(); i++) {
+                Record record = (Record) records.get(i);
+                if (record.syncedWhere != null) {
+                    db.update(tableOf(collection), values, record.syncedWhere, record.syncedArgs);
+                }
+            }
+            db.setTransactionSuccessful();
+        } catch (Exception e) {
+            // Rows stay PENDING; uploading them again is harmless
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    private void loadPendingMantras(SQLiteDatabase db, List records) {
+        Cursor cursor = db.rawQuery("SELECT m." + NotesDatabaseHelper.COL_MANTRA_ID +
+                ", m." + NotesDatabaseHelper.COL_MANTRA_CLOUD_ID +
+                ", m." + NotesDatabaseHelper.COL_MANTRA_NAME +
+                ", m." + NotesDatabaseHelper.COL_MANTRA_AUDIO_PATH +
+                ", m." + NotesDatabaseHelper.COL_MANTRA_CREATED +
+                ", m." + NotesDatabaseHelper.COL_MANTRA_SPEED +
+                ", m." + NotesDatabaseHelper.COL_MANTRA_IS_DELETED +
+                ", m." + NotesDatabaseHelper.COL_MANTRA_BUILT_IN +
+                ", m." + NotesDatabaseHelper.COL_ROW_MODIFIED +
+                ", n." + NotesDatabaseHelper.COL_CLOUD_ID +
+                " FROM " + NotesDatabaseHelper.TABLE_MANTRAS + " m LEFT JOIN " +
+                NotesDatabaseHelper.TABLE_NOTES + " n ON m." + NotesDatabaseHelper.COL_MANTRA_NOTE_ID +
+                " = n." + NotesDatabaseHelper.COL_ID +
+                " WHERE m." + NotesDatabaseHelper.COL_ROW_SYNC_STATUS + "=" + Note.SYNC_STATUS_PENDING +
+                " AND m." + NotesDatabaseHelper.COL_MANTRA_CLOUD_ID + " IS NOT NULL", null);
+        if (cursor == null) return;
+        while (cursor.moveToNext()) {
+            long modified = cursor.getLong(8);
+            Map<String, Object> data = new HashMap<String, Object>();
+            data.put("name", cursor.getString(2));
+            data.put("audioPath", cursor.getString(3));
+            data.put("createdAt", Long.valueOf(cursor.getLong(4)));
+            data.put("playbackSpeed", Double.valueOf(cursor.getDouble(5)));
+            data.put("softDeleted", Boolean.valueOf(cursor.getInt(6) == 1));
+            data.put("builtIn", Boolean.valueOf(cursor.getInt(7) == 1));
+            data.put(F_NOTE_ID, cursor.isNull(9) ? "" : cursor.getString(9));
+            data.put(F_MODIFIED_AT, Long.valueOf(modified));
+            data.put(F_IS_DELETED, Boolean.FALSE);
+            records.add(new Record(cursor.getString(1), data, rowUnchanged(),
+                    new String[]{String.valueOf(cursor.getLong(0)), String.valueOf(modified)}));
+        }
+        cursor.close();
+    }
+
+    private void loadPendingSessions(SQLiteDatabase db, List records, boolean allCounterEntries) {
+        Cursor cursor = db.rawQuery("SELECT s." + NotesDatabaseHelper.COL_SESSION_ID +
+                ", s." + NotesDatabaseHelper.COL_SESSION_DATE +
+                ", s." + NotesDatabaseHelper.COL_SESSION_SPEED +
+                ", m." + NotesDatabaseHelper.COL_MANTRA_CLOUD_ID +
+                " FROM " + NotesDatabaseHelper.TABLE_DAILY_SESSIONS + " s INNER JOIN " +
+                NotesDatabaseHelper.TABLE_MANTRAS + " m ON s." + NotesDatabaseHelper.COL_SESSION_MANTRA_ID +
+                " = m." + NotesDatabaseHelper.COL_MANTRA_ID +
+                " WHERE s." + NotesDatabaseHelper.COL_ROW_SYNC_STATUS + "=" + Note.SYNC_STATUS_PENDING +
+                " AND m." + NotesDatabaseHelper.COL_MANTRA_CLOUD_ID + " IS NOT NULL", null);
+        if (cursor == null) return;
+        while (cursor.moveToNext()) {
+            SessionState session = readSession(db, NotesDatabaseHelper.COL_SESSION_ID + "=?",
+                    new String[]{String.valueOf(cursor.getLong(0))});
+            if (session == null) continue;
+            foldSession(db, session);
+            String mantraCloudId = cursor.getString(3);
+            String date = cursor.getString(1);
+            Map<String, Object> data = new HashMap<String, Object>();
+            data.put(F_MANTRA_ID, mantraCloudId);
+            data.put(F_DATE, date);
+            data.put("speed", Double.valueOf(cursor.getDouble(2)));
+            data.put("speedModifiedAt", Long.valueOf(session.speedModifiedAt));
+            if (allCounterEntries) {
+                putCounterEntries(data, F_COUNTER_P, session.p);
+                putCounterEntries(data, F_COUNTER_N, session.n);
+            } else {
+                data.put(F_COUNTER_P + session.replica, Long.valueOf(session.p.get(session.replica)));
+                data.put(F_COUNTER_N + session.replica, Long.valueOf(session.n.get(session.replica)));
+            }
+            data.put(F_MODIFIED_AT, Long.valueOf(session.modifiedAt));
+            data.put(F_IS_DELETED, Boolean.FALSE);
+            records.add(new Record(sessionDocId(mantraCloudId, date), data, rowUnchanged(),
+                    new String[]{String.valueOf(session.rowId), String.valueOf(session.modifiedAt)}));
+        }
+        cursor.close();
+    }
+
+    private static void putCounterEntries(Map<String, Object> data, String prefix, GCounter counter) {
+        Iterator it = counter.entries().entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry entry = (Map.Entry) it.next();
+            data.put(prefix + entry.getKey(), entry.getValue());
+        }
+    }
+
+    private void loadPendingHistory(SQLiteDatabase db, List records) {
+        Cursor cursor = db.rawQuery("SELECT h." + NotesDatabaseHelper.COL_HIST_ID +
+                ", h." + NotesDatabaseHelper.COL_HIST_DATE +
+                ", h." + NotesDatabaseHelper.COL_HIST_COUNT +
+                ", h." + NotesDatabaseHelper.COL_ROW_MODIFIED +
+                ", m." + NotesDatabaseHelper.COL_MANTRA_CLOUD_ID +
+                " FROM " + NotesDatabaseHelper.TABLE_MANTRA_HISTORY + " h INNER JOIN " +
+                NotesDatabaseHelper.TABLE_MANTRAS + " m ON h." + NotesDatabaseHelper.COL_HIST_MANTRA_ID +
+                " = m." + NotesDatabaseHelper.COL_MANTRA_ID +
+                " WHERE h." + NotesDatabaseHelper.COL_ROW_SYNC_STATUS + "=" + Note.SYNC_STATUS_PENDING +
+                " AND m." + NotesDatabaseHelper.COL_MANTRA_CLOUD_ID + " IS NOT NULL", null);
+        if (cursor == null) return;
+        while (cursor.moveToNext()) {
+            long modified = cursor.getLong(3);
+            String mantraCloudId = cursor.getString(4);
+            String date = cursor.getString(1);
+            Map<String, Object> data = new HashMap<String, Object>();
+            data.put(F_MANTRA_ID, mantraCloudId);
+            data.put(F_DATE, date);
+            data.put(F_COUNT, Long.valueOf(cursor.getLong(2)));
+            data.put(F_MODIFIED_AT, Long.valueOf(modified));
+            data.put(F_IS_DELETED, Boolean.FALSE);
+            records.add(new Record(sessionDocId(mantraCloudId, date), data, rowUnchanged(),
+                    new String[]{String.valueOf(cursor.getLong(0)), String.valueOf(modified)}));
+        }
+        cursor.close();
+    }
+
+    /**
+     * One document per mantra and day with a PENDING count: every count this
+     * device logged that day, rewritten whole.
+     */
+    private void loadPendingCountLogs(SQLiteDatabase db, List records, String deviceId) {
+        Cursor groups = db.rawQuery("SELECT l." + NotesDatabaseHelper.COL_LOG_MANTRA_ID +
+                ", l." + NotesDatabaseHelper.COL_LOG_SESSION_DATE +
+                ", m." + NotesDatabaseHelper.COL_MANTRA_CLOUD_ID +
+                ", MAX(l." + NotesDatabaseHelper.COL_LOG_ID + ")" +
+                " FROM " + NotesDatabaseHelper.TABLE_MANTRA_COUNT_LOG + " l INNER JOIN " +
+                NotesDatabaseHelper.TABLE_MANTRAS + " m ON l." + NotesDatabaseHelper.COL_LOG_MANTRA_ID +
+                " = m." + NotesDatabaseHelper.COL_MANTRA_ID +
+                " WHERE l." + NotesDatabaseHelper.COL_LOG_DEVICE_ID + " IS NULL" +
+                " AND m." + NotesDatabaseHelper.COL_MANTRA_CLOUD_ID + " IS NOT NULL" +
+                " GROUP BY l." + NotesDatabaseHelper.COL_LOG_MANTRA_ID +
+                ", l." + NotesDatabaseHelper.COL_LOG_SESSION_DATE +
+                " HAVING MAX(l." + NotesDatabaseHelper.COL_ROW_SYNC_STATUS + ")=" + Note.SYNC_STATUS_PENDING,
+                null);
+        if (groups == null) return;
+        String where = NotesDatabaseHelper.COL_LOG_MANTRA_ID + "=? AND " +
+                NotesDatabaseHelper.COL_LOG_SESSION_DATE + "=? AND " +
+                NotesDatabaseHelper.COL_LOG_DEVICE_ID + " IS NULL AND " +
+                NotesDatabaseHelper.COL_LOG_ID + "<=?";
+        while (groups.moveToNext()) {
+            String[] args = {String.valueOf(groups.getLong(0)), groups.getString(1),
+                    String.valueOf(groups.getLong(3))};
+            List timestamps = new ArrayList();
+            Cursor rows = db.query(NotesDatabaseHelper.TABLE_MANTRA_COUNT_LOG,
+                    new String[]{NotesDatabaseHelper.COL_LOG_TIMESTAMP}, where, args,
+                    null, null, NotesDatabaseHelper.COL_LOG_TIMESTAMP + " ASC");
+            if (rows != null) {
+                while (rows.moveToNext()) {
+                    timestamps.add(Long.valueOf(rows.getLong(0)));
+                }
+                rows.close();
+            }
+            String mantraCloudId = groups.getString(2);
+            String date = groups.getString(1);
+            Map<String, Object> data = new HashMap<String, Object>();
+            data.put(F_MANTRA_ID, mantraCloudId);
+            data.put(F_DATE, date);
+            data.put(F_DEVICE_ID, deviceId);
+            data.put(F_COUNT, Long.valueOf(timestamps.size()));
+            data.put(F_TIMESTAMPS, encodeTimestamps(timestamps));
+            data.put(F_MODIFIED_AT, Long.valueOf(System.currentTimeMillis()));
+            data.put(F_IS_DELETED, Boolean.FALSE);
+            records.add(new Record(sessionDocId(mantraCloudId, date) + "_" + deviceId, data, where, args));
+        }
+        groups.close();
+    }
+
+    private void loadPendingMoods(SQLiteDatabase db, List records) {
+        Cursor cursor = db.rawQuery("SELECT mo." + NotesDatabaseHelper.COL_MOOD_ID +
+                ", mo." + NotesDatabaseHelper.COL_MOOD_DATE +
+                ", mo." + NotesDatabaseHelper.COL_MOOD_TIMESTAMP +
+                ", mo." + NotesDatabaseHelper.COL_MOOD_EMOJI +
+                ", mo." + NotesDatabaseHelper.COL_MOOD_NAME +
+                ", mo." + NotesDatabaseHelper.COL_MOOD_INTENSITY +
+                ", mo." + NotesDatabaseHelper.COL_ROW_MODIFIED +
+                ", n." + NotesDatabaseHelper.COL_CLOUD_ID +
+                " FROM " + NotesDatabaseHelper.TABLE_NOTE_MOODS + " mo INNER JOIN " +
+                NotesDatabaseHelper.TABLE_NOTES + " n ON mo." + NotesDatabaseHelper.COL_MOOD_NOTE_ID +
+                " = n." + NotesDatabaseHelper.COL_ID +
+                " WHERE mo." + NotesDatabaseHelper.COL_ROW_SYNC_STATUS + "=" + Note.SYNC_STATUS_PENDING +
+                " AND n." + NotesDatabaseHelper.COL_CLOUD_ID + " IS NOT NULL", null);
+        if (cursor == null) return;
+        while (cursor.moveToNext()) {
+            String docId = moodDocId(cursor.getString(7), cursor.getString(4));
+            if (docId == null) continue;
+            long modified = cursor.getLong(6);
+            Map<String, Object> data = new HashMap<String, Object>();
+            data.put(F_NOTE_ID, cursor.getString(7));
+            data.put(F_DATE, cursor.getString(1));
+            data.put("timestamp", Long.valueOf(cursor.getLong(2)));
+            data.put("emoji", cursor.getString(3));
+            data.put("name", cursor.getString(4));
+            data.put("intensity", Long.valueOf(cursor.getLong(5)));
+            data.put(F_MODIFIED_AT, Long.valueOf(modified));
+            data.put(F_IS_DELETED, Boolean.FALSE);
+            records.add(new Record(docId, data, rowUnchanged(),
+                    new String[]{String.valueOf(cursor.getLong(0)), String.valueOf(modified)}));
+        }
+        cursor.close();
+    }
+
+    // ============ APPLY ============
+
+    /**
+     * Apply cloud documents of a collection in one transaction. Documents
+     * referring to a mantra or note missing locally are skipped.
+     *
+     * @param records  List of Record
+     * @param deviceId this device's id; its own count log documents are skipped
+     * @return false if nothing was applied
+     */
+    public boolean applyCloudRecords(String collection, List records, String deviceId) {
+        if (records == null || records.isEmpty()) return true;
+        SQLiteDatabase db = dbHelper.getWritableDatabase();
+        Map idCache = new HashMap();
+        // "mantraId|date" -> {mantraId, date} of sessions and history rows written
+        Map touchedDays = new HashMap();
+        db.beginTransaction();
+        try {
+            for (int i = 0; i < records.size(); i++) {
+                Record record = (Record) records.get(i);
+                if (COLLECTION_MANTRAS.equals(collection)) {
+                    applyMantra(db, record, idCache);
+                } else if (COLLECTION_SESSIONS.equals(collection)) {
+                    applySession(db, record, idCache, touchedDays);
+                } else if (COLLECTION_HISTORY.equals(collection)) {
+                    applyHistory(db, record, idCache, touchedDays);
+                } else if (COLLECTION_COUNT_LOG.equals(collection)) {
+                    applyCountLog(db, record, idCache, deviceId);
+                } else if (COLLECTION_MOODS.equals(collection)) {
+                    applyMood(db, record, idCache);
+                }
+            }
+            Iterator it = touchedDays.values().iterator();
+            while (it.hasNext()) {
+                String[] day = (String[]) it.next();
+                refreshHistoryFromSession(db, day[0], day[1]);
+            }
+            db.setTransactionSuccessful();
+            return true;
+        } catch (Exception e) {
+            // Nothing applied; the caller keeps its watermark
+            return false;
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    private void applyMantra(SQLiteDatabase db, Record record, Map idCache) {
+        Map<String, Object> data = record.data;
+        long modified = longOf(data.get(F_MODIFIED_AT));
+        long rowId = -1;
+        long localModified = 0;
+        boolean builtIn = false;
+        Cursor cursor = db.query(NotesDatabaseHelper.TABLE_MANTRAS,
+                new String[]{NotesDatabaseHelper.COL_MANTRA_ID, NotesDatabaseHelper.COL_ROW_MODIFIED,
+                        NotesDatabaseHelper.COL_MANTRA_BUILT_IN},
+                NotesDatabaseHelper.COL_MANTRA_CLOUD_ID + "=?", new String[]{record.docId},
+                null, null, null);
+        if (cursor != null) {
+            if (cursor.moveToFirst()) {
+                rowId = cursor.getLong(0);
+                localModified = cursor.getLong(1);
+                builtIn = cursor.getInt(2) == 1;
+            }
+            cursor.close();
+        }
+        String[] rowArgs = {String.valueOf(rowId)};
+        if (boolOf(data.get(F_IS_DELETED))) {
+            if (rowId < 0 || modified < localModified) return;
+            if (builtIn) {
+                // Built-in mantras are never removed, only hidden
+                ContentValues values = new ContentValues();
+                values.put(NotesDatabaseHelper.COL_MANTRA_IS_DELETED, 1);
+                values.put(NotesDatabaseHelper.COL_ROW_MODIFIED, modified);
+                values.put(NotesDatabaseHelper.COL_ROW_SYNC_STATUS, Note.SYNC_STATUS_SYNCED);
+                db.update(NotesDatabaseHelper.TABLE_MANTRAS, values,
+                        NotesDatabaseHelper.COL_MANTRA_ID + "=?", rowArgs);
+            } else {
+                // Rows of a removed mantra would be left without it; the caller's
+                // transaction removes them together
+                db.delete(NotesDatabaseHelper.TABLE_DAILY_SESSIONS,
+                        NotesDatabaseHelper.COL_SESSION_MANTRA_ID + "=?", rowArgs);
+                db.delete(NotesDatabaseHelper.TABLE_MANTRA_HISTORY,
+                        NotesDatabaseHelper.COL_HIST_MANTRA_ID + "=?", rowArgs);
+                db.delete(NotesDatabaseHelper.TABLE_MANTRA_COUNT_LOG,
+                        NotesDatabaseHelper.COL_LOG_MANTRA_ID + "=?", rowArgs);
+                db.delete(NotesDatabaseHelper.TABLE_MANTRAS, NotesDatabaseHelper.COL_MANTRA_ID + "=?", rowArgs);
+            }
+            return;
+        }
+        if (rowId >= 0 && modified <= localModified) return;
+        ContentValues values = new ContentValues();
+        values.put(NotesDatabaseHelper.COL_MANTRA_NAME, stringOf(data.get("name")));
+        values.put(NotesDatabaseHelper.COL_MANTRA_AUDIO_PATH, stringOf(data.get("audioPath")));
+        values.put(NotesDatabaseHelper.COL_MANTRA_NOTE_ID, noteIdFor(db, stringOf(data.get(F_NOTE_ID)), idCache));
+        values.put(NotesDatabaseHelper.COL_MANTRA_CREATED, longOf(data.get("createdAt")));
+        values.put(NotesDatabaseHelper.COL_MANTRA_SPEED, (float) doubleOf(data.get("playbackSpeed"), 1.0));
+        values.put(NotesDatabaseHelper.COL_MANTRA_IS_DELETED, boolOf(data.get("softDeleted")) ? 1 : 0);
+        values.put(NotesDatabaseHelper.COL_MANTRA_BUILT_IN, boolOf(data.get("builtIn")) ? 1 : 0);
+        values.put(NotesDatabaseHelper.COL_ROW_MODIFIED, modified);
+        values.put(NotesDatabaseHelper.COL_ROW_SYNC_STATUS, Note.SYNC_STATUS_SYNCED);
+        if (rowId < 0) {
+            values.put(NotesDatabaseHelper.COL_MANTRA_CLOUD_ID, record.docId);
+            db.insert(NotesDatabaseHelper.TABLE_MANTRAS, null, values);
+        } else {
+            db.update(NotesDatabaseHelper.TABLE_MANTRAS, values, NotesDatabaseHelper.COL_MANTRA_ID + "=?", rowArgs);
+        }
+    }
+
+    private void applySession(SQLiteDatabase db, Record record, Map idCache, Map touchedDays) {
+        Map<String, Object> data = record.data;
+        long mantraId = mantraIdFor(db, stringOf(data.get(F_MANTRA_ID)), idCache);
+        if (mantraId < 0) return;
+        String date = stringOf(data.get(F_DATE));
+        String[] dayArgs = {String.valueOf(mantraId), date};
+        SessionState session = readSession(db, NotesDatabaseHelper.COL_SESSION_MANTRA_ID + "=? AND " +
+                NotesDatabaseHelper.COL_SESSION_DATE + "=?", dayArgs);
+        long modified = longOf(data.get(F_MODIFIED_AT));
+        boolean deleted = boolOf(data.get(F_IS_DELETED));
+        if (deleted && (session == null || modified >= session.modifiedAt)) {
+            if (session != null) {
+                db.delete(NotesDatabaseHelper.TABLE_DAILY_SESSIONS, NotesDatabaseHelper.COL_SESSION_ID + "=?",
+                        new String[]{String.valueOf(session.rowId)});
+            }
+            return;
+        }
+        GCounter p = countersOf(data, F_COUNTER_P);
+        GCounter n = countersOf(data, F_COUNTER_N);
+        long speedModified = longOf(data.get("speedModifiedAt"));
+        ContentValues values = new ContentValues();
+        if (session == null) {
+            long total = p.sum() - n.sum();
+            values.put(NotesDatabaseHelper.COL_SESSION_MANTRA_ID, mantraId);
+            values.put(NotesDatabaseHelper.COL_SESSION_DATE, date);
+            values.put(NotesDatabaseHelper.COL_SESSION_COUNT, total);
+            values.put(NotesDatabaseHelper.COL_SESSION_SYNCED_COUNT, total);
+            values.put(NotesDatabaseHelper.COL_SESSION_COUNTER_P, p.toString());
+            values.put(NotesDatabaseHelper.COL_SESSION_COUNTER_N, n.toString());
+            values.put(NotesDatabaseHelper.COL_SESSION_SPEED, (float) doubleOf(data.get("speed"), 1.0));
+            values.put(NotesDatabaseHelper.COL_SESSION_SPEED_MODIFIED, speedModified);
+            values.put(NotesDatabaseHelper.COL_ROW_MODIFIED, modified);
+            values.put(NotesDatabaseHelper.COL_ROW_SYNC_STATUS, Note.SYNC_STATUS_SYNCED);
+            db.insert(NotesDatabaseHelper.TABLE_DAILY_SESSIONS, null, values);
+        } else {
+            // Local counts not folded yet stay on top of the merged total
+            session.p.merge(p);
+            session.n.merge(n);
+            long total = session.p.sum() - session.n.sum();
+            values.put(NotesDatabaseHelper.COL_SESSION_COUNT, total + session.count - session.syncedCount);
+            values.put(NotesDatabaseHelper.COL_SESSION_SYNCED_COUNT, total);
+            values.put(NotesDatabaseHelper.COL_SESSION_COUNTER_P, session.p.toString());
+            values.put(NotesDatabaseHelper.COL_SESSION_COUNTER_N, session.n.toString());
+            if (!deleted && speedModified > session.speedModifiedAt) {
+                values.put(NotesDatabaseHelper.COL_SESSION_SPEED, (float) doubleOf(data.get("speed"), 1.0));
+                values.put(NotesDatabaseHelper.COL_SESSION_SPEED_MODIFIED, speedModified);
+            }
+            db.update(NotesDatabaseHelper.TABLE_DAILY_SESSIONS, values, NotesDatabaseHelper.COL_SESSION_ID + "=?",
+                    new String[]{String.valueOf(session.rowId)});
+        }
+        touchedDays.put(dayArgs[0] + "|" + date, dayArgs);
+    }
+
+    private void applyHistory(SQLiteDatabase db, Record record, Map idCache, Map touchedDays) {
+        Map<String, Object> data = record.data;
+        long mantraId = mantraIdFor(db, stringOf(data.get(F_MANTRA_ID)), idCache);
+        if (mantraId < 0) return;
+        String date = stringOf(data.get(F_DATE));
+        String[] dayArgs = {String.valueOf(mantraId), date};
+        String where = NotesDatabaseHelper.COL_HIST_MANTRA_ID + "=? AND " + NotesDatabaseHelper.COL_HIST_DATE + "=?";
+        long modified = longOf(data.get(F_MODIFIED_AT));
+        long localModified = localModified(db, NotesDatabaseHelper.TABLE_MANTRA_HISTORY, where, dayArgs);
+        if (boolOf(data.get(F_IS_DELETED))) {
+            if (localModified >= 0 && modified >= localModified) {
+                db.delete(NotesDatabaseHelper.TABLE_MANTRA_HISTORY, where, dayArgs);
+            }
+            return;
+        }
+        if (localModified >= 0 && modified <= localModified) return;
+        ContentValues values = new ContentValues();
+        values.put(NotesDatabaseHelper.COL_HIST_COUNT, longOf(data.get(F_COUNT)));
+        values.put(NotesDatabaseHelper.COL_ROW_MODIFIED, modified);
+        values.put(NotesDatabaseHelper.COL_ROW_SYNC_STATUS, Note.SYNC_STATUS_SYNCED);
+        if (localModified < 0) {
+            values.put(NotesDatabaseHelper.COL_HIST_MANTRA_ID, mantraId);
+            values.put(NotesDatabaseHelper.COL_HIST_DATE, date);
+            db.insert(NotesDatabaseHelper.TABLE_MANTRA_HISTORY, null, values);
+        } else {
+            db.update(NotesDatabaseHelper.TABLE_MANTRA_HISTORY, values, where, dayArgs);
+        }
+        touchedDays.put(dayArgs[0] + "|" + date, dayArgs);
+    }
+
+    private void applyCountLog(SQLiteDatabase db, Record record, Map idCache, String deviceId) {
+        Map<String, Object> data = record.data;
+        String sourceDevice = stringOf(data.get(F_DEVICE_ID));
+        // Our own documents mirror rows kept with device_id NULL
+        if (sourceDevice.length() == 0 || sourceDevice.equals(deviceId)) return;
+        long mantraId = mantraIdFor(db, stringOf(data.get(F_MANTRA_ID)), idCache);
+        if (mantraId < 0) return;
+        String date = stringOf(data.get(F_DATE));
+        db.delete(NotesDatabaseHelper.TABLE_MANTRA_COUNT_LOG,
+                NotesDatabaseHelper.COL_LOG_MANTRA_ID + "=? AND " +
+                        NotesDatabaseHelper.COL_LOG_SESSION_DATE + "=? AND " +
+                        NotesDatabaseHelper.COL_LOG_DEVICE_ID + "=?",
+                new String[]{String.valueOf(mantraId), date, sourceDevice});
+        if (boolOf(data.get(F_IS_DELETED))) return;
+        List timestamps = decodeTimestamps(stringOf(data.get(F_TIMESTAMPS)));
+        ContentValues values = new ContentValues();
+        values.put(NotesDatabaseHelper.COL_LOG_MANTRA_ID, mantraId);
+        values.put(NotesDatabaseHelper.COL_LOG_SESSION_DATE, date);
+        values.put(NotesDatabaseHelper.COL_LOG_DEVICE_ID, sourceDevice);
+        values.put(NotesDatabaseHelper.COL_ROW_SYNC_STATUS, Note.SYNC_STATUS_SYNCED);
+        for (int i = 0; i < timestamps.size(); i++) {
+            values.put(NotesDatabaseHelper.COL_LOG_TIMESTAMP, (Long) timestamps.get(i));
+            db.insert(NotesDatabaseHelper.TABLE_MANTRA_COUNT_LOG, null, values);
+        }
+    }
+
+    private void applyMood(SQLiteDatabase db, Record record, Map idCache) {
+        Map<String, Object> data = record.data;
+        long noteId = noteIdFor(db, stringOf(data.get(F_NOTE_ID)), idCache);
+        if (noteId < 0) return;
+        String name = stringOf(data.get("name"));
+        String[] moodArgs = {String.valueOf(noteId), name};
+        String where = NotesDatabaseHelper.COL_MOOD_NOTE_ID + "=? AND " + NotesDatabaseHelper.COL_MOOD_NAME + "=?";
+        long modified = longOf(data.get(F_MODIFIED_AT));
+        long localModified = localModified(db, NotesDatabaseHelper.TABLE_NOTE_MOODS, where, moodArgs);
+        if (boolOf(data.get(F_IS_DELETED))) {
+            if (localModified >= 0 && modified >= localModified) {
+                db.delete(NotesDatabaseHelper.TABLE_NOTE_MOODS, where, moodArgs);
+            }
+            return;
+        }
+        if (localModified >= 0 && modified <= localModified) return;
+        ContentValues values = new ContentValues();
+        values.put(NotesDatabaseHelper.COL_MOOD_DATE, stringOf(data.get(F_DATE)));
+        values.put(NotesDatabaseHelper.COL_MOOD_TIMESTAMP, longOf(data.get("timestamp")));
+        values.put(NotesDatabaseHelper.COL_MOOD_EMOJI, stringOf(data.get("emoji")));
+        values.put(NotesDatabaseHelper.COL_MOOD_INTENSITY, longOf(data.get("intensity")));
+        values.put(NotesDatabaseHelper.COL_ROW_MODIFIED, modified);
+        values.put(NotesDatabaseHelper.COL_ROW_SYNC_STATUS, Note.SYNC_STATUS_SYNCED);
+        if (localModified < 0) {
+            values.put(NotesDatabaseHelper.COL_MOOD_NOTE_ID, noteId);
+            values.put(NotesDatabaseHelper.COL_MOOD_NAME, name);
+            db.insert(NotesDatabaseHelper.TABLE_NOTE_MOODS, null, values);
+        } else {
+            db.update(NotesDatabaseHelper.TABLE_NOTE_MOODS, values, where, moodArgs);
+        }
+    }
+
+    /**
+     * History mirrors the session count of its day; keep it equal to the merged count.
+     */
+    private static void refreshHistoryFromSession(SQLiteDatabase db, String mantraId, String date) {
+        String sessionCount = "(SELECT " + NotesDatabaseHelper.COL_SESSION_COUNT +
+                " FROM " + NotesDatabaseHelper.TABLE_DAILY_SESSIONS +
+                " WHERE " + NotesDatabaseHelper.COL_SESSION_MANTRA_ID + "=? AND " +
+                NotesDatabaseHelper.COL_SESSION_DATE + "=?)";
+        db.execSQL("UPDATE " + NotesDatabaseHelper.TABLE_MANTRA_HISTORY +
+                        " SET " + NotesDatabaseHelper.COL_HIST_COUNT + "=" + sessionCount +
+                        " WHERE " + NotesDatabaseHelper.COL_HIST_MANTRA_ID + "=? AND " +
+                        NotesDatabaseHelper.COL_HIST_DATE + "=? AND " + sessionCount + " IS NOT NULL",
+                new Object[]{mantraId, date, mantraId, date, mantraId, date});
+    }
+
+    // ============ TOMBSTONES ============
+
+    /**
+     * @return List of Tombstone, oldest first
+     */
+    public List loadTombstones() {
+        List tombstones = new ArrayList();
+        SQLiteDatabase db = dbHelper.getReadableDatabase();
+        Cursor cursor = db.query(NotesDatabaseHelper.TABLE_SYNC_TOMBSTONES,
+                new String[]{NotesDatabaseHelper.COL_TOMB_COLLECTION, NotesDatabaseHelper.COL_TOMB_DOC_ID,
+                        NotesDatabaseHelper.COL_TOMB_DELETED_AT, NotesDatabaseHelper.COL_TOMB_FIELDS},
+                null, null, null, null, NotesDatabaseHelper.COL_TOMB_DELETED_AT + " ASC");
+        if (cursor != null) {
+            while (cursor.moveToNext()) {
+                tombstones.add(new Tombstone(cursor.getString(0), cursor.getString(1), cursor.getLong(2),
+                        parseFields(cursor.getString(3))));
+            }
+            cursor.close();
+        }
+        return tombstones;
+    }
+
+    /**
+     * Remove sent tombstones, unless the row was deleted again meanwhile.
+     */
+    public void removeTombstones(List tombstones) {
+        if (tombstones == null || tombstones.isEmpty()) return;
+        SQLiteDatabase db = dbHelper.getWritableDatabase();
+        db.beginTransaction();
+        try {
+            for (int i = 0; i < tombstones.size(); i++) {
+                Tombstone tombstone = (Tombstone) tombstones.get(i);
+                db.delete(NotesDatabaseHelper.TABLE_SYNC_TOMBSTONES,
+                        NotesDatabaseHelper.COL_TOMB_COLLECTION + "=? AND " +
+                                NotesDatabaseHelper.COL_TOMB_DOC_ID + "=? AND " +
+                                NotesDatabaseHelper.COL_TOMB_DELETED_AT + "=?",
+                        new String[]{tombstone.collection, tombstone.docId, String.valueOf(tombstone.deletedAt)});
+            }
+            db.setTransactionSuccessful();
+        } catch (Exception e) {
+            // Sent again; deleting twice is harmless
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * Mark every row of this device PENDING and drop unsent deletions, so the
+     * next sync uploads everything to the account signed in then.
+     */
+    public void resetSyncState() {
+        SQLiteDatabase db = dbHelper.getWritableDatabase();
+        db.beginTransaction();
+        try {
+            db.delete(NotesDatabaseHelper.TABLE_SYNC_TOMBSTONES, null, null);
+            markAllPending(db);
+            db.setTransactionSuccessful();
+        } catch (Exception e) {
+            // Rows keep their state; only PENDING ones upload to the new account
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * Mark every row of this device PENDING, so the next upload writes all of
+     * them again (after the cloud documents moved to new ids).
+     */
+    public void markAllPending() {
+        SQLiteDatabase db = dbHelper.getWritableDatabase();
+        db.beginTransaction();
+        try {
+            markAllPending(db);
+            db.setTransactionSuccessful();
+        } catch (Exception e) {
+            // Rows keep their state; the caller finds the moved documents again
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    private static void markAllPending(SQLiteDatabase db) {
+        ContentValues values = new ContentValues();
+        values.put(NotesDatabaseHelper.COL_ROW_SYNC_STATUS, Note.SYNC_STATUS_PENDING);
+        db.update(NotesDatabaseHelper.TABLE_MANTRAS, values, null, null);
+        db.update(NotesDatabaseHelper.TABLE_DAILY_SESSIONS, values, null, null);
+        db.update(NotesDatabaseHelper.TABLE_MANTRA_HISTORY, values, null, null);
+        db.update(NotesDatabaseHelper.TABLE_NOTE_MOODS, values, null, null);
+        db.update(NotesDatabaseHelper.TABLE_MANTRA_COUNT_LOG, values,
+                NotesDatabaseHelper.COL_LOG_DEVICE_ID + " IS NULL", null);
+    }
+
+    /**
+     * Add the columns marking a locally edited row for upload.
+     */
+    static void markPending(ContentValues values) {
+        values.put(NotesDatabaseHelper.COL_ROW_MODIFIED, System.currentTimeMillis());
+        values.put(NotesDatabaseHelper.COL_ROW_SYNC_STATUS, Note.SYNC_STATUS_PENDING);
+    }
+
+    /**
+     * Record the deletion of a mantra, if it was ever given a cloud id.
+     * Called by NotesRepository inside its delete.
+     */
+    static void tombstoneMantra(SQLiteDatabase db, long mantraId) {
+        String cloudId = mantraCloudId(db, mantraId);
+        if (cloudId != null) {
+            addTombstone(db, COLLECTION_MANTRAS, cloudId, null);
+        }
+    }
+
+    /**
+     * Record the deletion of a session. The deletion also cancels the count
+     * this row has seen (n entry), so a session recreated for the same day
+     * does not bring the old counts back on other devices.
+     */
+    static void tombstoneSession(SQLiteDatabase db, long mantraId, String date) {
+        String mantraCloudId = mantraCloudId(db, mantraId);
+        if (mantraCloudId == null) return;
+        SessionState session = readSession(db, NotesDatabaseHelper.COL_SESSION_MANTRA_ID + "=? AND " +
+                NotesDatabaseHelper.COL_SESSION_DATE + "=?", new String[]{String.valueOf(mantraId), date});
+        if (session == null) return;
+        foldSession(db, session);
+        session.n.add(session.replica, session.p.sum() - session.n.sum());
+        Map<String, Object> fields = new HashMap<String, Object>();
+        fields.put(F_COUNTER_P + session.replica, Long.valueOf(session.p.get(session.replica)));
+        fields.put(F_COUNTER_N + session.replica, Long.valueOf(session.n.get(session.replica)));
+        addTombstone(db, COLLECTION_SESSIONS, sessionDocId(mantraCloudId, date), fields);
+    }
+
+    /**
+     * Record the deletion of every history row of a mantra.
+     */
+    static void tombstoneHistory(SQLiteDatabase db, long mantraId) {
+        String mantraCloudId = mantraCloudId(db, mantraId);
+        if (mantraCloudId == null) return;
+        Cursor cursor = db.query(NotesDatabaseHelper.TABLE_MANTRA_HISTORY,
+                new String[]{NotesDatabaseHelper.COL_HIST_DATE},
+                NotesDatabaseHelper.COL_HIST_MANTRA_ID + "=?", new String[]{String.valueOf(mantraId)},
+                null, null, null);
+        if (cursor == null) return;
+        while (cursor.moveToNext()) {
+            addTombstone(db, COLLECTION_HISTORY, sessionDocId(mantraCloudId, cursor.getString(0)), null);
+        }
+        cursor.close();
+    }
+
+    /**
+     * Record the deletion of the mood rows matching where, on notes with a cloud id.
+     */
+    static void tombstoneMoods(SQLiteDatabase db, String where, String[] whereArgs) {
+        Cursor cursor = db.query(NotesDatabaseHelper.TABLE_NOTE_MOODS,
+                new String[]{NotesDatabaseHelper.COL_MOOD_NOTE_ID, NotesDatabaseHelper.COL_MOOD_NAME},
+                where, whereArgs, null, null, null);
+        if (cursor == null) return;
+        while (cursor.moveToNext()) {
+            String docId = moodDocId(noteCloudId(db, cursor.getLong(0)), cursor.getString(1));
+            if (docId != null) {
+                addTombstone(db, COLLECTION_MOODS, docId, null);
+            }
+        }
+        cursor.close();
+    }
+
+    private static void addTombstone(SQLiteDatabase db, String collection, String docId, Map fields) {
+        ContentValues values = new ContentValues();
+        values.put(NotesDatabaseHelper.COL_TOMB_COLLECTION, collection);
+        values.put(NotesDatabaseHelper.COL_TOMB_DOC_ID, docId);
+        values.put(NotesDatabaseHelper.COL_TOMB_DELETED_AT, System.currentTimeMillis());
+        values.put(NotesDatabaseHelper.COL_TOMB_FIELDS, fields != null ? new JSONObject(fields).toString() : null);
+        db.insertWithOnConflict(NotesDatabaseHelper.TABLE_SYNC_TOMBSTONES, null, values,
+                SQLiteDatabase.CONFLICT_REPLACE);
+    }
+
+    private static Map<String, Object> parseFields(String json) {
+        if (json == null || json.length() == 0) return null;
+        Map<String, Object> fields = new HashMap<String, Object>();
+        try {
+            JSONObject object = new JSONObject(json);
+            Iterator it = object.keys();
+            while (it.hasNext()) {
+                String key = (String) it.next();
+                fields.put(key, Long.valueOf(object.getLong(key)));
+            }
+        } catch (Exception e) {
+            // Sent as a plain deletion
+            return null;
+        }
+        return fields;
+    }
+
+    // ============ SESSION COUNTERS ============
+
+    private static SessionState readSession(SQLiteDatabase db, String where, String[] whereArgs) {
+        Cursor cursor = db.query(NotesDatabaseHelper.TABLE_DAILY_SESSIONS, SESSION_COLUMNS,
+                where, whereArgs, null, null, null);
+        if (cursor == null) return null;
+        SessionState session = null;
+        if (cursor.moveToFirst()) {
+            session = new SessionState();
+            session.rowId = cursor.getLong(0);
+            session.count = cursor.getLong(1);
+            session.syncedCount = cursor.getLong(2);
+            session.replica = cursor.getString(3);
+            session.p = GCounter.parse(cursor.getString(4));
+            session.n = GCounter.parse(cursor.getString(5));
+            session.speedModifiedAt = cursor.getLong(6);
+            session.modifiedAt = cursor.getLong(7);
+        }
+        cursor.close();
+        return session;
+    }
+
+    /**
+     * Move count changes made since the last fold into the row's own counter
+     * entry (p for increments, n for resets). Caller holds a transaction.
+     */
+    private static void foldSession(SQLiteDatabase db, SessionState session) {
+        long delta = session.count - session.syncedCount;
+        if (delta == 0 && session.replica != null) return;
+        if (session.replica == null) {
+            // Per row, not per device: a recreated row never reuses an entry
+            session.replica = UUID.randomUUID().toString().replace("-", "").substring(0, 16);
+        }
+        if (delta > 0) {
+            session.p.add(session.replica, delta);
+        } else {
+            session.n.add(session.replica, -delta);
+        }
+        session.syncedCount = session.count;
+        ContentValues values = new ContentValues();
+        values.put(NotesDatabaseHelper.COL_SESSION_REPLICA, session.replica);
+        values.put(NotesDatabaseHelper.COL_SESSION_COUNTER_P, session.p.toString());
+        values.put(NotesDatabaseHelper.COL_SESSION_COUNTER_N, session.n.toString());
+        values.put(NotesDatabaseHelper.COL_SESSION_SYNCED_COUNT, session.syncedCount);
+        db.update(NotesDatabaseHelper.TABLE_DAILY_SESSIONS, values, NotesDatabaseHelper.COL_SESSION_ID + "=?",
+                new String[]{String.valueOf(session.rowId)});
+    }
+
+    private static GCounter countersOf(Map<String, Object> data, String prefix) {
+        GCounter counter = new GCounter();
+        Iterator it = data.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry entry = (Map.Entry) it.next();
+            String key = (String) entry.getKey();
+            if (key.startsWith(prefix) && key.length() > prefix.length()) {
+                counter.raise(key.substring(prefix.length()), longOf(entry.getValue()));
+            }
+        }
+        return counter;
+    }
+
+    // ============ COUNT LOG ENCODING ============
+
+    /**
+     * Sorted timestamps as base-36 deltas: "first,delta,delta". A day of counts
+     * at a few seconds apart takes about three characters per count.
+     */
+    private static String encodeTimestamps(List timestamps) {
+        StringBuilder sb = new StringBuilder();
+        long previous = 0;
+        for (int i = 0; i < timestamps.size(); i++) {
+            long t = ((Long) timestamps.get(i)).longValue();
+            if (i > 0) sb.append(',');
+            sb.append(Long.toString(t - previous, 36));
+            previous = t;
+        }
+        return sb.toString();
+    }
+
+    private static List decodeTimestamps(String text) {
+        List timestamps = new ArrayList();
+        if (text == null || text.length() == 0) return timestamps;
+        long previous = 0;
+        String[] parts = text.split(",");
+        for (int i = 0; i < parts.length; i++) {
+            try {
+                previous += Long.parseLong(parts[i], 36);
+                timestamps.add(Long.valueOf(previous));
+            } catch (NumberFormatException e) {
+                // Skip a damaged entry
+            }
+        }
+        return timestamps;
+    }
+
+    // ============ IDS ============
+
+    static String sessionDocId(String mantraCloudId, String date) {
+        return mantraCloudId + "_" + date;
+    }
+
+    /**
+     * @return null if the note has no cloud id
+     */
+    static String moodDocId(String noteCloudId, String moodName) {
+        if (noteCloudId == null || noteCloudId.length() == 0) return null;
+        try {
+            return noteCloudId + "_" + URLEncoder.encode(moodName != null ? moodName : "", "UTF-8");
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    static String mantraCloudId(SQLiteDatabase db, long mantraId) {
+        return cloudIdOf(db, NotesDatabaseHelper.TABLE_MANTRAS, NotesDatabaseHelper.COL_MANTRA_CLOUD_ID,
+                NotesDatabaseHelper.COL_MANTRA_ID, mantraId);
+    }
+
+    static String noteCloudId(SQLiteDatabase db, long noteId) {
+        return cloudIdOf(db, NotesDatabaseHelper.TABLE_NOTES, NotesDatabaseHelper.COL_CLOUD_ID,
+                NotesDatabaseHelper.COL_ID, noteId);
+    }
+
+    private static String cloudIdOf(SQLiteDatabase db, String table, String cloudIdColumn,
+                                    String idColumn, long id) {
+        String cloudId = null;
+        Cursor cursor = db.query(table, new String[]{cloudIdColumn}, idColumn + "=?",
+                new String[]{String.valueOf(id)}, null, null, null);
+        if (cursor != null) {
+            if (cursor.moveToFirst() && !cursor.isNull(0) && cursor.getString(0).length() > 0) {
+                cloudId = cursor.getString(0);
+            }
+            cursor.close();
+        }
+        return cloudId;
+    }
+
+    private long mantraIdFor(SQLiteDatabase db, String cloudId, Map cache) {
+        return localIdFor(db, NotesDatabaseHelper.TABLE_MANTRAS, NotesDatabaseHelper.COL_MANTRA_ID,
+                NotesDatabaseHelper.COL_MANTRA_CLOUD_ID, cloudId, cache);
+    }
+
+    private long noteIdFor(SQLiteDatabase db, String cloudId, Map cache) {
+        return localIdFor(db, NotesDatabaseHelper.TABLE_NOTES, NotesDatabaseHelper.COL_ID,
+                NotesDatabaseHelper.COL_CLOUD_ID, cloudId, cache);
+    }
+
+    /**
+     * @return local row id for cloudId, -1 if missing
+     */
+    private long localIdFor(SQLiteDatabase db, String table, String idColumn, String cloudIdColumn,
+                            String cloudId, Map cache) {
+        if (cloudId == null || cloudId.length() == 0) return -1;
+        String key = table + "/" + cloudId;
+        Long cached = (Long) cache.get(key);
+        if (cached != null) return cached.longValue();
+        long id = -1;
+        Cursor cursor = db.query(table, new String[]{idColumn}, cloudIdColumn + "=?",
+                new String[]{cloudId}, null, null, null);
+        if (cursor != null) {
+            if (cursor.moveToFirst()) {
+                id = cursor.getLong(0);
+            }
+            cursor.close();
+        }
+        // Only hits are cached: a mantra inserted by this batch must be found later
+        if (id >= 0) {
+            cache.put(key, Long.valueOf(id));
+        }
+        return id;
+    }
+
+    // ============ HELPERS ============
+
+    private static String tableOf(String collection) {
+        if (COLLECTION_MANTRAS.equals(collection)) return NotesDatabaseHelper.TABLE_MANTRAS;
+        if (COLLECTION_SESSIONS.equals(collection)) return NotesDatabaseHelper.TABLE_DAILY_SESSIONS;
+        if (COLLECTION_HISTORY.equals(collection)) return NotesDatabaseHelper.TABLE_MANTRA_HISTORY;
+        if (COLLECTION_COUNT_LOG.equals(collection)) return NotesDatabaseHelper.TABLE_MANTRA_COUNT_LOG;
+        return NotesDatabaseHelper.TABLE_NOTE_MOODS;
+    }
+
+    /**
+     * WHERE clause selecting a row by _id, only if modified_at is unchanged.
+     */
+    private static String rowUnchanged() {
+        return NotesDatabaseHelper.COL_ID + "=? AND " + NotesDatabaseHelper.COL_ROW_MODIFIED + "=?";
+    }
+
+    /**
+     * @return modified_at of the row matching where, -1 if there is none
+     */
+    private static long localModified(SQLiteDatabase db, String table, String where, String[] whereArgs) {
+        long modified = -1;
+        Cursor cursor = db.query(table, new String[]{NotesDatabaseHelper.COL_ROW_MODIFIED},
+                where, whereArgs, null, null, null);
+        if (cursor != null) {
+            if (cursor.moveToFirst()) {
+                modified = cursor.getLong(0);
+            }
+            cursor.close();
+        }
+        return modified;
+    }
+
+    private static String stringOf(Object value) {
+        return value != null ? value.toString() : "";
+    }
+
+    private static long longOf(Object value) {
+        return value instanceof Number ? ((Number) value).longValue() : 0;
+    }
+
+    private static double doubleOf(Object value, double fallback) {
+        return value instanceof Number ? ((Number) value).doubleValue() : fallback;
+    }
+
+    private static boolean boolOf(Object value) {
+        return value instanceof Boolean && ((Boolean) value).booleanValue();
+    }
+}
@@ -0,0 +1,346 @@
+package com.mknotes.app.db;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.util.Log;
+
+import com.mknotes.app.model.Note;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Background execution layer for NotesRepository and MoodRepository.
+ *
+ * Per-row AES-GCM decryption makes most repository calls too slow for the UI
+ * thread on large libraries. Screens submit work here instead:
+ *
+ * - Writes run one at a time, in submission order, on a single writer thread.
+ * - Reads run on a small bounded pool and always observe every write that was
+ *   submitted before them (each read first waits for the last queued write).
+ * - Results are delivered on the main thread through a Callback.
+ * - Every task is tagged with an owner (usually the Activity). cancelAll(owner)
+ *   from onDestroy() drops pending reads and all callbacks of that owner.
+ *   Writes are never aborted -- only their callback is dropped -- so an edit
+ *   submitted right before the screen closes is still persisted.
+ *
+ * Tasks are plain Callables; a failing task is logged and delivers null.
+ */
+public class AsyncRepository {
+
+    private static final String TAG = "AsyncRepository";
+
+    /** Reader threads. SQLite in WAL mode serves concurrent readers; more buys little on phones. */
+    private static final int READER_THREADS = 2;
+    private static final long READER_KEEP_ALIVE_SECONDS = 30;
+
+    private static AsyncRepository sInstance;
+
+    private final NotesRepository notesRepository;
+    private final MoodRepository moodRepository;
+    private final ExecutorService writeExecutor;
+    private final ThreadPoolExecutor readExecutor;
+    private final Handler mainHandler;
+
+    // owner -> list of DbTask still pending or awaiting delivery
+    private final Map ownerTasks = new HashMap();
+    private final Object lock = new Object();
+    private Future lastWrite;
+
+    /**
+     * Receives the result of a task on the main thread.
+     */
+    public interface Callback {
+        void onResult(Object result);
+    }
+
+    public static synchronized AsyncRepository getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new AsyncRepository(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private AsyncRepository(Context context) {
+        notesRepository = NotesRepository.getInstance(context);
+        moodRepository = MoodRepository.getInstance(context);
+        mainHandler = new Handler(Looper.getMainLooper());
+
+        ThreadPoolExecutor writer = new ThreadPoolExecutor(1, 1,
+                READER_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new LinkedBlockingQueue(), new DbThreadFactory("mknotes-db-write"));
+        writer.allowCoreThreadTimeOut(true);
+        writeExecutor = writer;
+
+        readExecutor = new ThreadPoolExecutor(READER_THREADS, READER_THREADS,
+                READER_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new LinkedBlockingQueue(), new DbThreadFactory("mknotes-db-read"));
+        readExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    public NotesRepository notes() {
+        return notesRepository;
+    }
+
+    public MoodRepository moods() {
+        return moodRepository;
+    }
+
+    // ============ SUBMISSION ============
+
+    /**
+     * Run a read-only task on the reader pool.
+     *
+     * @param owner    tag used by cancelAll(), may be null (never cancelled)
+     * @param task     work to run off the main thread
+     * @param callback receives the task result on the main thread, may be null
+     * @return handle; cancel() drops the task if not started and always drops the callback
+     */
+    public Future read(Object owner, final Callable task, Callback callback) {
+        final Future barrier;
+        synchronized (lock) {
+            barrier = lastWrite;
+        }
+        Callable ordered = new Callable() {
+            public Object call() throws Exception {
+                awaitQuietly(barrier);
+                return task.call();
+            }
+        };
+        DbTask dbTask = new DbTask(owner, ordered, callback, false);
+        track(dbTask);
+        readExecutor.execute(dbTask);
+        return dbTask;
+    }
+
+    /**
+     * Run a task that modifies the database on the single writer thread.
+     * Writes execute strictly in submission order.
+     *
+     * @param owner    tag used by cancelAll(), may be null
+     * @param task     work to run off the main thread
+     * @param callback receives the task result on the main thread, may be null
+     * @return handle; cancel() only drops the callback, the write still completes
+     */
+    public Future write(Object owner, Callable task, Callback callback) {
+        DbTask dbTask = new DbTask(owner, task, callback, true);
+        track(dbTask);
+        synchronized (lock) {
+            lastWrite = dbTask;
+            writeExecutor.execute(dbTask);
+        }
+        return dbTask;
+    }
+
+    /**
+     * Cancel pending reads and drop every callback registered by the owner.
+     * Call from Activity.onDestroy().
+     */
+    public void cancelAll(Object owner) {
+        if (owner == null) return;
+        List tasks;
+        synchronized (lock) {
+            tasks = (List) ownerTasks.remove(owner);
+        }
+        if (tasks == null) return;
+        for (int i = 0; i < tasks.size(); i++) {
+            ((DbTask) tasks.get(i)).cancel(false);
+        }
+    }
+
+    // ============ COMMON CALLS ============
+
+    public Future getAllNoteSummaries(Object owner, final String sortBy, final int offset,
+                                      final int limit, Callback callback) {
+        return read(owner, new Callable() {
+            public Object call() {
+                return notesRepository.getAllNoteSummaries(sortBy, offset, limit);
+            }
+        }, callback);
+    }
+
+    public Future getFavoriteNoteSummaries(Object owner, final int offset, final int limit,
+                                           Callback callback) {
+        return read(owner, new Callable() {
+            public Object call() {
+                return notesRepository.getFavoriteNoteSummaries(offset, limit);
+            }
+        }, callback);
+    }
+
+    public Future getNoteSummariesByCategory(Object owner, final long categoryId, final int offset,
+                                             final int limit, Callback callback) {
+        return read(owner, new Callable() {
+            public Object call() {
+                return notesRepository.getNoteSummariesByCategory(categoryId, offset, limit);
+            }
+        }, callback);
+    }
+
+    public Future getNoteById(Object owner, final long id, Callback callback) {
+        return read(owner, new Callable() {
+            public Object call() {
+                return notesRepository.getNoteById(id);
+            }
+        }, callback);
+    }
+
+    public Future searchNotes(Object owner, final String query, Callback callback) {
+        return read(owner, new Callable() {
+            public Object call() {
+                return notesRepository.searchNotes(query);
+            }
+        }, callback);
+    }
+
+    public Future getNotesByIds(Object owner, final List<Long> ids, final int offset, final int limit,
+                                Callback callback) {
+        return read(owner, new Callable() {
+            public Object call() {
+                return notesRepository.getNotesByIds(ids, offset, limit);
+            }
+        }, callback);
+    }
+
+    /**
+     * Update a note. A snapshot of the note is written, so the caller may keep
+     * editing its instance while the write is queued.
+     */
+    public Future updateNote(Object owner, Note note, Callback callback) {
+        final Note snapshot = note.copy();
+        return write(owner, new Callable() {
+            public Object call() {
+                return Integer.valueOf(notesRepository.updateNote(snapshot));
+            }
+        }, callback);
+    }
+
+    public Future moveToTrash(Object owner, Note note, Callback callback) {
+        final Note snapshot = note.copy();
+        return write(owner, new Callable() {
+            public Object call() {
+                return Long.valueOf(notesRepository.moveToTrash(snapshot));
+            }
+        }, callback);
+    }
+
+    // ============ INTERNALS ============
+
+    private void track(DbTask task) {
+        if (task.owner == null) return;
+        synchronized (lock) {
+            List tasks = (List) ownerTasks.get(task.owner);
+            if (tasks == null) {
+                tasks = new ArrayList();
+                ownerTasks.put(task.owner, tasks);
+            }
+            tasks.add(task);
+        }
+    }
+
+    private void untrack(DbTask task) {
+        if (task.owner == null) return;
+        synchronized (lock) {
+            List tasks = (List) ownerTasks.get(task.owner);
+            if (tasks != null) {
+                tasks.remove(task);
+                if (tasks.isEmpty()) {
+                    ownerTasks.remove(task.owner);
+                }
+            }
+        }
+    }
+
+    private static void awaitQuietly(Future future) {
+        if (future == null) return;
+        try {
+            future.get();
+        } catch (Exception e) {
+            // A failed or cancelled write must not block reads
+        }
+    }
+
+    /**
+     * FutureTask that posts its result to the main thread when done.
+     * For writes, cancel() only detaches the callback.
+     */
+    private class DbTask extends FutureTask {
+
+        final Object owner;
+        final boolean isWrite;
+        private volatile Callback callback;
+
+        DbTask(Object owner, Callable task, Callback callback, boolean isWrite) {
+            super(task);
+            this.owner = owner;
+            this.callback = callback;
+            this.isWrite = isWrite;
+        }
+
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            callback = null;
+            if (isWrite) {
+                untrack(this);
+                return false;
+            }
+            return super.cancel(mayInterruptIfRunning);
+        }
+
+        protected void done() {
+            if (isCancelled()) {
+                untrack(this);
+                return;
+            }
+            Object result = null;
+            try {
+                result = get();
+            } catch (Exception e) {
+                Log.e(TAG, "Database task failed", e);
+            }
+            final Object delivered = result;
+            mainHandler.post(new Runnable() {
+                public void run() {
+                    untrack(DbTask.this);
+                    Callback cb = callback;
+                    if (cb != null) {
+                        cb.onResult(delivered);
+                    }
+                }
+            });
+        }
+    }
+
+    private static class DbThreadFactory implements ThreadFactory {
+
+        private final String name;
+        private int count = 0;
+
+        DbThreadFactory(String name) {
+            this.name = name;
+        }
+
+        public synchronized Thread newThread(final Runnable r) {
+            count++;
+            Thread t = new Thread(new Runnable() {
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    r.run();
+                }
+            }, name + "-" + count);
+            t.setDaemon(true);
+            return t;
+        }
+    }
+}
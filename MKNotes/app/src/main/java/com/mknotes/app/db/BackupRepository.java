@@ -0,0 +1,203 @@
+package com.mknotes.app.db;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.SQLException;
+import android.database.sqlite.SQLiteDatabase;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Row level access for the backup archive (see backup.ArchiveWriter and
+ * backup.ArchiveReader): tables without an encrypted column are exported and
+ * restored column by column, so new columns are carried without changes
+ * here. Every table handled has an AUTOINCREMENT "_id" primary key, so
+ * ids are never reused and identify a row across incremental backups.
+ *
+ * Notes are not handled here; they go through NotesRepository, which keeps
+ * their previews, search index and FTS rows.
+ */
+public class BackupRepository {
+
+    private NotesDatabaseHelper dbHelper;
+    private static BackupRepository sInstance;
+
+    /** Column names per table, read once. */
+    private final Map columnCache = new HashMap();
+
+    public static synchronized BackupRepository getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new BackupRepository(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private BackupRepository(Context context) {
+        dbHelper = NotesDatabaseHelper.getInstance(context);
+    }
+
+    // ============ EXPORT ============
+
+    public int getRowCount(String table) {
+        SQLiteDatabase db = dbHelper.getReadableDatabase();
+        Cursor cursor = db.rawQuery("SELECT COUNT(*) FROM " + table, null);
+        int count = 0;
+        if (cursor != null) {
+            if (cursor.moveToFirst()) {
+                count = cursor.getInt(0);
+            }
+            cursor.close();
+        }
+        return count;
+    }
+
+    /**
+     * Up to limit rows with an id above afterId, in id order. For paging
+     * through a table without holding all of it.
+     *
+     * @return List of Map column name -> Long, Double, String or null
+     */
+    public List getRowsAfter(String table, long afterId, int limit) {
+        List rows = new ArrayList();
+        SQLiteDatabase db = dbHelper.getReadableDatabase();
+        Cursor cursor = db.query(table, null,
+                NotesDatabaseHelper.COL_ID + ">?", new String[]{String.valueOf(afterId)},
+                null, null, NotesDatabaseHelper.COL_ID + " ASC", String.valueOf(limit));
+        if (cursor != null) {
+            String[] columns = cursor.getColumnNames();
+            while (cursor.moveToNext()) {
+                Map row = new LinkedHashMap();
+                for (int i = 0; i < columns.length; i++) {
+                    switch (cursor.getType(i)) {
+                        case Cursor.FIELD_TYPE_INTEGER:
+                            row.put(columns[i], Long.valueOf(cursor.getLong(i)));
+                            break;
+                        case Cursor.FIELD_TYPE_FLOAT:
+                            row.put(columns[i], Double.valueOf(cursor.getDouble(i)));
+                            break;
+                        case Cursor.FIELD_TYPE_STRING:
+                            row.put(columns[i], cursor.getString(i));
+                            break;
+                        case Cursor.FIELD_TYPE_NULL:
+                            row.put(columns[i], null);
+                            break;
+                        default:
+                            // No blob columns in the tables handled here
+                            break;
+                    }
+                }
+                rows.add(row);
+            }
+            cursor.close();
+        }
+        return rows;
+    }
+
+    // ============ RESTORE ============
+
+    /**
+     * Column names of a table in this schema version. Restored values for
+     * other columns are dropped.
+     */
+    public synchronized Set getColumns(String table) {
+        Set columns = (Set) columnCache.get(table);
+        if (columns == null) {
+            columns = new HashSet();
+            SQLiteDatabase db = dbHelper.getReadableDatabase();
+            Cursor cursor = db.query(table, null, null, null, null, null, null, "0");
+            if (cursor != null) {
+                String[] names = cursor.getColumnNames();
+                for (int i = 0; i < names.length; i++) {
+                    columns.add(names[i]);
+                }
+                cursor.close();
+            }
+            columnCache.put(table, columns);
+        }
+        return columns;
+    }
+
+    /**
+     * Id of the first row whose column equals value, or -1.
+     */
+    public long findId(String table, String column, String value) {
+        if (value == null) return -1;
+        SQLiteDatabase db = dbHelper.getReadableDatabase();
+        Cursor cursor = db.query(table, new String[]{NotesDatabaseHelper.COL_ID},
+                column + "=?", new String[]{value}, null, null,
+                NotesDatabaseHelper.COL_ID + " ASC", "1");
+        long id = -1;
+        if (cursor != null) {
+            if (cursor.moveToFirst()) {
+                id = cursor.getLong(0);
+            }
+            cursor.close();
+        }
+        return id;
+    }
+
+    /**
+     * Insert rows in one transaction.
+     *
+     * @param rows List of ContentValues
+     * @return new ids, in list order
+     * @throws SQLException if an insert fails; none of the rows is kept
+     */
+    public long[] insertRows(String table, List rows) {
+        SQLiteDatabase db = dbHelper.getWritableDatabase();
+        long[] ids = new long[rows.size()];
+        db.beginTransaction();
+        try {
+            for (int i = 0; i < rows.size(); i++) {
+                ids[i] = db.insertOrThrow(table, null, (ContentValues) rows.get(i));
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        return ids;
+    }
+
+    /**
+     * Update rows by id in one transaction.
+     *
+     * @param rows List of ContentValues, in the order of ids
+     */
+    public void updateRows(String table, long[] ids, List rows) {
+        SQLiteDatabase db = dbHelper.getWritableDatabase();
+        db.beginTransaction();
+        try {
+            for (int i = 0; i < ids.length; i++) {
+                db.update(table, (ContentValues) rows.get(i), NotesDatabaseHelper.COL_ID + "=?",
+                        new String[]{String.valueOf(ids[i])});
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * Delete rows by id in one transaction.
+     */
+    public void deleteRows(String table, long[] ids) {
+        SQLiteDatabase db = dbHelper.getWritableDatabase();
+        db.beginTransaction();
+        try {
+            for (int i = 0; i < ids.length; i++) {
+                db.delete(table, NotesDatabaseHelper.COL_ID + "=?",
+                        new String[]{String.valueOf(ids[i])});
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+}
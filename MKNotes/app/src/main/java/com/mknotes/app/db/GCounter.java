@@ -0,0 +1,97 @@
+package com.mknotes.app.db;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Grow-only counter: one entry per replica, each only ever raised by the
+ * replica that owns it. Two states merge by taking the larger value of every
+ * entry, so merging is order-independent and repeated merges change nothing.
+ *
+ * Session counts use two of them (PN-counter): increments in p, resets and
+ * deletions in n, count = p.sum() - n.sum().
+ *
+ * Stored as "replica:n,replica:n", replicas sorted.
+ */
+final class GCounter {
+
+    /** replica -> Long, sorted */
+    private final TreeMap entries = new TreeMap();
+
+    GCounter() {
+    }
+
+    static GCounter parse(String text) {
+        GCounter counter = new GCounter();
+        if (text == null || text.length() == 0) {
+            return counter;
+        }
+        String[] parts = text.split(",");
+        for (int i = 0; i < parts.length; i++) {
+            int colon = parts[i].lastIndexOf(':');
+            if (colon <= 0) continue;
+            try {
+                counter.raise(parts[i].substring(0, colon), Long.parseLong(parts[i].substring(colon + 1)));
+            } catch (NumberFormatException e) {
+                // Skip a damaged entry
+            }
+        }
+        return counter;
+    }
+
+    long get(String replica) {
+        Long n = (Long) entries.get(replica);
+        return n != null ? n.longValue() : 0;
+    }
+
+    /**
+     * Raise replica's entry to value; a lower value is ignored.
+     */
+    void raise(String replica, long value) {
+        if (value > get(replica)) {
+            entries.put(replica, Long.valueOf(value));
+        }
+    }
+
+    void add(String replica, long delta) {
+        if (delta > 0) {
+            entries.put(replica, Long.valueOf(get(replica) + delta));
+        }
+    }
+
+    void merge(GCounter other) {
+        Iterator it = other.entries.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry entry = (Map.Entry) it.next();
+            raise((String) entry.getKey(), ((Long) entry.getValue()).longValue());
+        }
+    }
+
+    long sum() {
+        long sum = 0;
+        Iterator it = entries.values().iterator();
+        while (it.hasNext()) {
+            sum += ((Long) it.next()).longValue();
+        }
+        return sum;
+    }
+
+    /**
+     * @return replica -> Long
+     */
+    Map entries() {
+        return new TreeMap(entries);
+    }
+
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        Iterator it = entries.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry entry = (Map.Entry) it.next();
+            if (sb.length() > 0) sb.append(',');
+            sb.append(entry.getKey()).append(':').append(entry.getValue());
+        }
+        return sb.toString();
+    }
+}
@@ -82,33 +82,44 @@ public class MoodRepository {
         values.put(NotesDatabaseHelper.COL_MOOD_EMOJI, mood.getEmojiUnicode());
         values.put(NotesDatabaseHelper.COL_MOOD_NAME, mood.getMoodName());
         values.put(NotesDatabaseHelper.COL_MOOD_INTENSITY, mood.getIntensityLevel());
+        ActivitySyncRepository.markPending(values);
         return values;
     }
 
     // ============ DELETE ============
 
     public int deleteMood(long moodId) {
-        SQLiteDatabase db = dbHelper.getWritableDatabase();
-        return db.delete(NotesDatabaseHelper.TABLE_NOTE_MOODS,
-                NotesDatabaseHelper.COL_MOOD_ID + "=?",
+        return deleteMoods(NotesDatabaseHelper.COL_MOOD_ID + "=?",
                 new String[]{String.valueOf(moodId)});
     }
 
     public int deleteMoodsForNote(long noteId) {
-        SQLiteDatabase db = dbHelper.getWritableDatabase();
-        return db.delete(NotesDatabaseHelper.TABLE_NOTE_MOODS,
-                NotesDatabaseHelper.COL_MOOD_NOTE_ID + "=?",
+        return deleteMoods(NotesDatabaseHelper.COL_MOOD_NOTE_ID + "=?",
                 new String[]{String.valueOf(noteId)});
     }
 
     public int deleteMoodByNoteAndName(long noteId, String moodName) {
-        SQLiteDatabase db = dbHelper.getWritableDatabase();
-        return db.delete(NotesDatabaseHelper.TABLE_NOTE_MOODS,
-                NotesDatabaseHelper.COL_MOOD_NOTE_ID + "=? AND " +
+        return deleteMoods(NotesDatabaseHelper.COL_MOOD_NOTE_ID + "=? AND " +
                         NotesDatabaseHelper.COL_MOOD_NAME + "=?",
                 new String[]{String.valueOf(noteId), moodName});
     }
 
+    /**
+     * Delete moods, leaving tombstones so the deletion reaches other devices.
+     */
+    private int deleteMoods(String where, String[] whereArgs) {
+        SQLiteDatabase db = dbHelper.getWritableDatabase();
+        db.beginTransaction();
+        try {
+            ActivitySyncRepository.tombstoneMoods(db, where, whereArgs);
+            int rows = db.delete(NotesDatabaseHelper.TABLE_NOTE_MOODS, where, whereArgs);
+            db.setTransactionSuccessful();
+            return rows;
+        } finally {
+            db.endTransaction();
+        }
+    }
+
     // ============ QUERY ============
 
     /**
@@ -0,0 +1,133 @@
+package com.mknotes.app.db;
+
+import com.mknotes.app.model.Note;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Small LRU cache of decrypted notes for NotesRepository.getNoteById().
+ *
+ * Entries are keyed by note id and only served while the stored modified_at
+ * still matches, so a row changed behind the repository's back is re-read.
+ * NotesRepository also invalidates entries after every committed write; not
+ * every write changes modified_at (archiving, sync status).
+ *
+ * A reader may load a row just before a write commits and put it after the
+ * write's invalidation. Every invalidation therefore advances a generation:
+ * readers take generation() before reading the row, and put() drops a note
+ * read in an older generation.
+ *
+ * Bounded by entry count and by total characters of the cached text fields,
+ * so a few very large notes cannot pin megabytes of plaintext in memory.
+ * Notes are copied in and out; callers may modify what they get.
+ *
+ * Holds decrypted data: it is cleared whenever the session ends (see
+ * SessionManager.SessionListener). Java strings cannot be overwritten in
+ * place, so clearing drops every reference and leaves the text to the GC.
+ */
+class NoteCache {
+
+    private static final int MAX_ENTRIES = 64;
+    /** About 2 MB of UTF-16 text. */
+    private static final long MAX_CHARS = 1024L * 1024L;
+
+    private final LinkedHashMap entries = new LinkedHashMap(16, 0.75f, true);
+    private long totalChars = 0;
+    private long generation = 0;
+
+    private static class Entry {
+        final Note note;
+        final long modifiedAt;
+        final long weight;
+
+        Entry(Note note, long modifiedAt, long weight) {
+            this.note = note;
+            this.modifiedAt = modifiedAt;
+            this.weight = weight;
+        }
+    }
+
+    /**
+     * @return a copy of the cached note if present and still at modifiedAt, else null
+     */
+    synchronized Note get(long id, long modifiedAt) {
+        Long key = Long.valueOf(id);
+        Entry entry = (Entry) entries.get(key);
+        if (entry == null) {
+            return null;
+        }
+        if (entry.modifiedAt != modifiedAt) {
+            entries.remove(key);
+            totalChars -= entry.weight;
+            return null;
+        }
+        return entry.note.copy();
+    }
+
+    /**
+     * @return the current generation, to pass to put() for a note read after this call
+     */
+    synchronized long generation() {
+        return generation;
+    }
+
+    /**
+     * Cache a note read from the database, unless an invalidation happened
+     * since readGeneration (the note may predate that write).
+     */
+    synchronized void put(Note note, long readGeneration) {
+        if (readGeneration != generation) {
+            return;
+        }
+        long weight = weightOf(note);
+        Long key = Long.valueOf(note.getId());
+        Entry old = (Entry) entries.remove(key);
+        if (old != null) {
+            totalChars -= old.weight;
+        }
+        if (weight > MAX_CHARS) {
+            return;
+        }
+        entries.put(key, new Entry(note.copy(), note.getModifiedAt(), weight));
+        totalChars += weight;
+        trim();
+    }
+
+    synchronized void remove(long id) {
+        generation++;
+        Entry old = (Entry) entries.remove(Long.valueOf(id));
+        if (old != null) {
+            totalChars -= old.weight;
+        }
+    }
+
+    synchronized void clear() {
+        generation++;
+        entries.clear();
+        totalChars = 0;
+    }
+
+    /** Evict least recently used entries until both limits hold. */
+    private void trim() {
+        Iterator it = entries.entrySet().iterator();
+        while ((entries.size() > MAX_ENTRIES || totalChars > MAX_CHARS) && it.hasNext()) {
+            Entry eldest = (Entry) ((Map.Entry) it.next()).getValue();
+            it.remove();
+            totalChars -= eldest.weight;
+        }
+    }
+
+    private static long weightOf(Note note) {
+        return length(note.getTitle()) + length(note.getContent())
+                + length(note.getChecklistData()) + length(note.getRoutineData())
+                + length(note.getImagesData()) + length(note.getFilesData())
+                + length(note.getAudiosData()) + length(note.getLinkedNoteIds())
+                + length(note.getPassword());
+    }
+
+    private static int length(String s) {
+        return s != null ? s.length() : 0;
+    }
+}
@@ -7,7 +7,7 @@ import android.database.sqlite.SQLiteOpenHelper;
 public class NotesDatabaseHelper extends SQLiteOpenHelper {
 
     private static final String DATABASE_NAME = "mknotes.db";
-    private static final int DATABASE_VERSION = 16;
+    private static final int DATABASE_VERSION = 25;
 
     public static final String TABLE_NOTES = "notes";
     public static final String TABLE_CATEGORIES = "categories";
@@ -17,12 +17,47 @@ public class NotesDatabaseHelper extends SQLiteOpenHelper {
     public static final String TABLE_DAILY_SESSIONS = "daily_sessions";
     public static final String TABLE_MANTRA_COUNT_LOG = "mantra_count_log";
     public static final String TABLE_NOTE_MOODS = "note_moods";
+    public static final String TABLE_NOTES_FTS = "notes_fts";
+    public static final String TABLE_SYNC_OUTBOX = "sync_outbox";
+    public static final String TABLE_SYNC_TOMBSTONES = "sync_tombstones";
+    public static final String TABLE_ATTACHMENT_SYNC = "attachment_sync";
+
+    // Notes FTS columns (docid = notes._id). Hold HMAC tokens only, never plaintext.
+    public static final String COL_FTS_WORDS = "words";
+    public static final String COL_FTS_PREFIXES = "prefixes";
+
+    // Sync Outbox columns (one row per cloud document with an unsent write)
+    public static final String COL_OUTBOX_CLOUD_ID = "cloud_id";
+    public static final String COL_OUTBOX_NOTE_ID = "note_id";
+    public static final String COL_OUTBOX_OP = "op";
+    public static final String COL_OUTBOX_ENQUEUED_AT = "enqueued_at";
+    public static final String COL_OUTBOX_ATTEMPTS = "attempts";
+    public static final String COL_OUTBOX_NEXT_ATTEMPT = "next_attempt_at";
+
+    // Sync Tombstones columns (deleted rows of the meditation and mood tables, not sent yet)
+    public static final String COL_TOMB_COLLECTION = "collection";
+    public static final String COL_TOMB_DOC_ID = "doc_id";
+    public static final String COL_TOMB_DELETED_AT = "deleted_at";
+    public static final String COL_TOMB_FIELDS = "fields";
+
+    // Attachment Sync columns (one row per attachment file whose chunks and manifest are uploaded)
+    public static final String COL_ATT_NOTE_ID = "note_id";
+    public static final String COL_ATT_LOCAL_NAME = "local_name";
+    public static final String COL_ATT_SIZE = "file_size";
+    public static final String COL_ATT_FILE_MODIFIED = "file_modified";
+    public static final String COL_ATT_KEY_VERSION = "key_version";
+
+    // Sync columns shared by the meditation and mood tables
+    public static final String COL_ROW_MODIFIED = "modified_at";
+    public static final String COL_ROW_SYNC_STATUS = "sync_status";
 
     // Mantra Count Log columns
     public static final String COL_LOG_ID = "_id";
     public static final String COL_LOG_MANTRA_ID = "mantra_id";
     public static final String COL_LOG_SESSION_DATE = "session_date";
     public static final String COL_LOG_TIMESTAMP = "timestamp";
+    /** NULL for counts made on this device, else the device the row was synced from. */
+    public static final String COL_LOG_DEVICE_ID = "device_id";
 
     // Note Moods columns
     public static final String COL_MOOD_ID = "_id";
@@ -58,6 +93,13 @@ public class NotesDatabaseHelper extends SQLiteOpenHelper {
     public static final String COL_SEARCH_INDEX = "search_index";
     public static final String COL_CLOUD_ID = "cloud_id";
     public static final String COL_SYNC_STATUS = "sync_status";
+    public static final String COL_PREVIEW = "preview";
+    /** Version of the master key the encrypted fields of a row are written with. */
+    public static final String COL_KEY_VERSION = "key_version";
+    /** Field hashes of the cloud document as of the last sync; see cloud.FieldHashes. */
+    public static final String COL_SYNCED_HASHES = "synced_hashes";
+    /** Version vector of the cloud version a row is based on; see cloud.VectorClock. */
+    public static final String COL_VCLOCK = "vclock";
 
     // Mantras columns
     public static final String COL_MANTRA_ID = "_id";
@@ -71,6 +113,7 @@ public class NotesDatabaseHelper extends SQLiteOpenHelper {
     public static final String COL_MANTRA_IS_DELETED = "is_deleted";
     public static final String COL_MANTRA_RAW_RES_ID = "raw_res_id";
     public static final String COL_MANTRA_BUILT_IN = "built_in";
+    public static final String COL_MANTRA_CLOUD_ID = "cloud_id";
 
     // Mantra History columns
     public static final String COL_HIST_ID = "_id";
@@ -84,6 +127,12 @@ public class NotesDatabaseHelper extends SQLiteOpenHelper {
     public static final String COL_SESSION_DATE = "session_date";
     public static final String COL_SESSION_COUNT = "count";
     public static final String COL_SESSION_SPEED = "speed";
+    // Session count as a PN-counter (see GCounter); count = sum(p) - sum(n) + (count - synced_count)
+    public static final String COL_SESSION_REPLICA = "counter_replica";
+    public static final String COL_SESSION_COUNTER_P = "counter_p";
+    public static final String COL_SESSION_COUNTER_N = "counter_n";
+    public static final String COL_SESSION_SYNCED_COUNT = "synced_count";
+    public static final String COL_SESSION_SPEED_MODIFIED = "speed_modified_at";
 
     // Categories columns
     public static final String COL_CAT_ID = "_id";
@@ -105,6 +154,7 @@ public class NotesDatabaseHelper extends SQLiteOpenHelper {
     public static final String COL_TRASH_FILES_DATA = "files_data";
     public static final String COL_TRASH_AUDIOS_DATA = "audios_data";
     public static final String COL_TRASH_LINKED_NOTE_IDS = "linked_note_ids";
+    public static final String COL_TRASH_KEY_VERSION = "key_version";
 
     private static final String CREATE_NOTES_TABLE =
             "CREATE TABLE " + TABLE_NOTES + " (" +
@@ -131,7 +181,11 @@ public class NotesDatabaseHelper extends SQLiteOpenHelper {
                     COL_IS_ARCHIVED + " INTEGER DEFAULT 0, " +
                     COL_SEARCH_INDEX + " TEXT DEFAULT '', " +
                     COL_CLOUD_ID + " TEXT, " +
-                    COL_SYNC_STATUS + " INTEGER DEFAULT 1" +
+                    COL_SYNC_STATUS + " INTEGER DEFAULT 1, " +
+                    COL_PREVIEW + " TEXT, " +
+                    COL_KEY_VERSION + " INTEGER DEFAULT 1, " +
+                    COL_SYNCED_HASHES + " TEXT, " +
+                    COL_VCLOCK + " TEXT" +
                     ");";
 
     private static final String CREATE_CATEGORIES_TABLE =
@@ -156,7 +210,8 @@ public class NotesDatabaseHelper extends SQLiteOpenHelper {
                     COL_TRASH_IMAGES_DATA + " TEXT DEFAULT '', " +
                     COL_TRASH_FILES_DATA + " TEXT DEFAULT '', " +
                     COL_TRASH_AUDIOS_DATA + " TEXT DEFAULT '', " +
-                    COL_TRASH_LINKED_NOTE_IDS + " TEXT DEFAULT ''" +
+                    COL_TRASH_LINKED_NOTE_IDS + " TEXT DEFAULT '', " +
+                    COL_TRASH_KEY_VERSION + " INTEGER DEFAULT 1" +
                     ");";
 
     private static final String CREATE_MANTRAS_TABLE =
@@ -171,7 +226,10 @@ public class NotesDatabaseHelper extends SQLiteOpenHelper {
                     COL_MANTRA_SPEED + " REAL DEFAULT 1.0, " +
                     COL_MANTRA_IS_DELETED + " INTEGER DEFAULT 0, " +
                     COL_MANTRA_RAW_RES_ID + " INTEGER DEFAULT 0, " +
-                    COL_MANTRA_BUILT_IN + " INTEGER DEFAULT 0" +
+                    COL_MANTRA_BUILT_IN + " INTEGER DEFAULT 0, " +
+                    COL_MANTRA_CLOUD_ID + " TEXT, " +
+                    COL_ROW_MODIFIED + " INTEGER DEFAULT 0, " +
+                    COL_ROW_SYNC_STATUS + " INTEGER DEFAULT 1" +
                     ");";
 
     private static final String CREATE_MANTRA_HISTORY_TABLE =
@@ -179,7 +237,9 @@ public class NotesDatabaseHelper extends SQLiteOpenHelper {
                     COL_HIST_ID + " INTEGER PRIMARY KEY AUTOINCREMENT, " +
                     COL_HIST_MANTRA_ID + " INTEGER, " +
                     COL_HIST_DATE + " TEXT NOT NULL, " +
-                    COL_HIST_COUNT + " INTEGER DEFAULT 0" +
+                    COL_HIST_COUNT + " INTEGER DEFAULT 0, " +
+                    COL_ROW_MODIFIED + " INTEGER DEFAULT 0, " +
+                    COL_ROW_SYNC_STATUS + " INTEGER DEFAULT 1" +
                     ");";
 
     private static final String CREATE_DAILY_SESSIONS_TABLE =
@@ -188,7 +248,14 @@ public class NotesDatabaseHelper extends SQLiteOpenHelper {
                     COL_SESSION_MANTRA_ID + " INTEGER, " +
                     COL_SESSION_DATE + " TEXT NOT NULL, " +
                     COL_SESSION_COUNT + " INTEGER DEFAULT 0, " +
-                    COL_SESSION_SPEED + " REAL DEFAULT 1.0" +
+                    COL_SESSION_SPEED + " REAL DEFAULT 1.0, " +
+                    COL_SESSION_REPLICA + " TEXT, " +
+                    COL_SESSION_COUNTER_P + " TEXT, " +
+                    COL_SESSION_COUNTER_N + " TEXT, " +
+                    COL_SESSION_SYNCED_COUNT + " INTEGER DEFAULT 0, " +
+                    COL_SESSION_SPEED_MODIFIED + " INTEGER DEFAULT 0, " +
+                    COL_ROW_MODIFIED + " INTEGER DEFAULT 0, " +
+                    COL_ROW_SYNC_STATUS + " INTEGER DEFAULT 1" +
                     ");";
 
     private static final String CREATE_MANTRA_COUNT_LOG_TABLE =
@@ -196,7 +263,9 @@ public class NotesDatabaseHelper extends SQLiteOpenHelper {
                     COL_LOG_ID + " INTEGER PRIMARY KEY AUTOINCREMENT, " +
                     COL_LOG_MANTRA_ID + " INTEGER, " +
                     COL_LOG_SESSION_DATE + " TEXT NOT NULL, " +
-                    COL_LOG_TIMESTAMP + " INTEGER NOT NULL" +
+                    COL_LOG_TIMESTAMP + " INTEGER NOT NULL, " +
+                    COL_LOG_DEVICE_ID + " TEXT, " +
+                    COL_ROW_SYNC_STATUS + " INTEGER DEFAULT 1" +
                     ");";
 
     private static final String CREATE_NOTE_MOODS_TABLE =
@@ -207,7 +276,9 @@ public class NotesDatabaseHelper extends SQLiteOpenHelper {
                     COL_MOOD_TIMESTAMP + " INTEGER, " +
                     COL_MOOD_EMOJI + " TEXT, " +
                     COL_MOOD_NAME + " TEXT, " +
-                    COL_MOOD_INTENSITY + " INTEGER DEFAULT 3" +
+                    COL_MOOD_INTENSITY + " INTEGER DEFAULT 3, " +
+                    COL_ROW_MODIFIED + " INTEGER DEFAULT 0, " +
+                    COL_ROW_SYNC_STATUS + " INTEGER DEFAULT 1" +
                     ");";
 
     private static final String CREATE_NOTE_MOODS_INDEX_NOTE =
@@ -216,6 +287,45 @@ public class NotesDatabaseHelper extends SQLiteOpenHelper {
     private static final String CREATE_NOTE_MOODS_INDEX_DATE =
             "CREATE INDEX IF NOT EXISTS idx_mood_date ON " + TABLE_NOTE_MOODS + " (" + COL_MOOD_DATE + ");";
 
+    // FTS4 is compiled into every Android SQLite build; FTS5 is not.
+    private static final String CREATE_NOTES_FTS_TABLE =
+            "CREATE VIRTUAL TABLE IF NOT EXISTS " + TABLE_NOTES_FTS + " USING fts4(" +
+                    COL_FTS_WORDS + ", " +
+                    COL_FTS_PREFIXES + ")";
+
+    private static final String CREATE_SYNC_OUTBOX_TABLE =
+            "CREATE TABLE IF NOT EXISTS " + TABLE_SYNC_OUTBOX + " (" +
+                    COL_OUTBOX_CLOUD_ID + " TEXT PRIMARY KEY, " +
+                    COL_OUTBOX_NOTE_ID + " INTEGER DEFAULT -1, " +
+                    COL_OUTBOX_OP + " INTEGER NOT NULL, " +
+                    COL_OUTBOX_ENQUEUED_AT + " INTEGER NOT NULL, " +
+                    COL_OUTBOX_ATTEMPTS + " INTEGER DEFAULT 0, " +
+                    COL_OUTBOX_NEXT_ATTEMPT + " INTEGER DEFAULT 0" +
+                    ");";
+
+    private static final String CREATE_SYNC_TOMBSTONES_TABLE =
+            "CREATE TABLE IF NOT EXISTS " + TABLE_SYNC_TOMBSTONES + " (" +
+                    COL_TOMB_COLLECTION + " TEXT NOT NULL, " +
+                    COL_TOMB_DOC_ID + " TEXT NOT NULL, " +
+                    COL_TOMB_DELETED_AT + " INTEGER NOT NULL, " +
+                    COL_TOMB_FIELDS + " TEXT, " +
+                    "PRIMARY KEY (" + COL_TOMB_COLLECTION + ", " + COL_TOMB_DOC_ID + ")" +
+                    ");";
+
+    private static final String CREATE_ATTACHMENT_SYNC_TABLE =
+            "CREATE TABLE IF NOT EXISTS " + TABLE_ATTACHMENT_SYNC + " (" +
+                    COL_ATT_NOTE_ID + " INTEGER NOT NULL, " +
+                    COL_ATT_LOCAL_NAME + " TEXT NOT NULL, " +
+                    COL_ATT_SIZE + " INTEGER NOT NULL, " +
+                    COL_ATT_FILE_MODIFIED + " INTEGER NOT NULL, " +
+                    COL_ATT_KEY_VERSION + " INTEGER NOT NULL, " +
+                    "PRIMARY KEY (" + COL_ATT_NOTE_ID + ", " + COL_ATT_LOCAL_NAME + ")" +
+                    ");";
+
+    // Cloud sync looks notes up by cloud id
+    private static final String CREATE_NOTES_INDEX_CLOUD_ID =
+            "CREATE INDEX IF NOT EXISTS idx_notes_cloud_id ON " + TABLE_NOTES + " (" + COL_CLOUD_ID + ");";
+
     private static NotesDatabaseHelper sInstance;
 
     public static synchronized NotesDatabaseHelper getInstance(Context context) {
@@ -227,6 +337,8 @@ public class NotesDatabaseHelper extends SQLiteOpenHelper {
 
     private NotesDatabaseHelper(Context context) {
         super(context, DATABASE_NAME, null, DATABASE_VERSION);
+        // WAL lets AsyncRepository readers run while the writer thread commits
+        setWriteAheadLoggingEnabled(true);
     }
 
     public void onCreate(SQLiteDatabase db) {
@@ -240,6 +352,11 @@ public class NotesDatabaseHelper extends SQLiteOpenHelper {
         db.execSQL(CREATE_NOTE_MOODS_TABLE);
         db.execSQL(CREATE_NOTE_MOODS_INDEX_NOTE);
         db.execSQL(CREATE_NOTE_MOODS_INDEX_DATE);
+        db.execSQL(CREATE_NOTES_FTS_TABLE);
+        db.execSQL(CREATE_SYNC_OUTBOX_TABLE);
+        db.execSQL(CREATE_NOTES_INDEX_CLOUD_ID);
+        db.execSQL(CREATE_SYNC_TOMBSTONES_TABLE);
+        db.execSQL(CREATE_ATTACHMENT_SYNC_TABLE);
         seedBuiltInMantras(db);
     }
 
@@ -370,6 +487,112 @@ public class NotesDatabaseHelper extends SQLiteOpenHelper {
                 // Column may already exist
             }
         }
+        if (oldVersion < 17) {
+            // Full-text index is filled lazily by NotesRepository on first search
+            try {
+                db.execSQL(CREATE_NOTES_FTS_TABLE);
+            } catch (Exception e) {
+                // Table may already exist
+            }
+        }
+        if (oldVersion < 18) {
+            // NULL preview = not built yet; NotesRepository fills it lazily
+            try {
+                db.execSQL("ALTER TABLE " + TABLE_NOTES + " ADD COLUMN " +
+                        COL_PREVIEW + " TEXT");
+            } catch (Exception e) {
+                // Column may already exist
+            }
+        }
+        if (oldVersion < 19) {
+            // Existing rows are all written with the first key version
+            try {
+                db.execSQL("ALTER TABLE " + TABLE_NOTES + " ADD COLUMN " +
+                        COL_KEY_VERSION + " INTEGER DEFAULT 1");
+            } catch (Exception e) {
+                // Column may already exist
+            }
+            try {
+                db.execSQL("ALTER TABLE " + TABLE_TRASH + " ADD COLUMN " +
+                        COL_TRASH_KEY_VERSION + " INTEGER DEFAULT 1");
+            } catch (Exception e) {
+                // Column may already exist
+            }
+        }
+        if (oldVersion < 20) {
+            // Notes still marked PENDING are picked up by the next sync, not the outbox
+            try {
+                db.execSQL(CREATE_SYNC_OUTBOX_TABLE);
+            } catch (Exception e) {
+                // Table may already exist
+            }
+        }
+        if (oldVersion < 21) {
+            try {
+                db.execSQL(CREATE_NOTES_INDEX_CLOUD_ID);
+            } catch (Exception e) {
+                // Index may already exist
+            }
+        }
+        if (oldVersion < 22) {
+            // NULL: the next upload of each note sends every field
+            try {
+                db.execSQL("ALTER TABLE " + TABLE_NOTES + " ADD COLUMN " +
+                        COL_SYNCED_HASHES + " TEXT");
+            } catch (Exception e) {
+                // Column may already exist
+            }
+        }
+        if (oldVersion < 23) {
+            // NULL: conflicts of existing notes are resolved by modifiedAt until their next upload
+            try {
+                db.execSQL("ALTER TABLE " + TABLE_NOTES + " ADD COLUMN " +
+                        COL_VCLOCK + " TEXT");
+            } catch (Exception e) {
+                // Column may already exist
+            }
+        }
+        if (oldVersion < 24) {
+            // Existing rows start PENDING and are uploaded by the first sync. Session counts
+            // have synced_count 0, so each device's count so far becomes its own counter entry.
+            String[] alters = {
+                    TABLE_MANTRAS + " ADD COLUMN " + COL_MANTRA_CLOUD_ID + " TEXT",
+                    TABLE_MANTRAS + " ADD COLUMN " + COL_ROW_MODIFIED + " INTEGER DEFAULT 0",
+                    TABLE_MANTRAS + " ADD COLUMN " + COL_ROW_SYNC_STATUS + " INTEGER DEFAULT 1",
+                    TABLE_MANTRA_HISTORY + " ADD COLUMN " + COL_ROW_MODIFIED + " INTEGER DEFAULT 0",
+                    TABLE_MANTRA_HISTORY + " ADD COLUMN " + COL_ROW_SYNC_STATUS + " INTEGER DEFAULT 1",
+                    TABLE_DAILY_SESSIONS + " ADD COLUMN " + COL_SESSION_REPLICA + " TEXT",
+                    TABLE_DAILY_SESSIONS + " ADD COLUMN " + COL_SESSION_COUNTER_P + " TEXT",
+                    TABLE_DAILY_SESSIONS + " ADD COLUMN " + COL_SESSION_COUNTER_N + " TEXT",
+                    TABLE_DAILY_SESSIONS + " ADD COLUMN " + COL_SESSION_SYNCED_COUNT + " INTEGER DEFAULT 0",
+                    TABLE_DAILY_SESSIONS + " ADD COLUMN " + COL_SESSION_SPEED_MODIFIED + " INTEGER DEFAULT 0",
+                    TABLE_DAILY_SESSIONS + " ADD COLUMN " + COL_ROW_MODIFIED + " INTEGER DEFAULT 0",
+                    TABLE_DAILY_SESSIONS + " ADD COLUMN " + COL_ROW_SYNC_STATUS + " INTEGER DEFAULT 1",
+                    TABLE_MANTRA_COUNT_LOG + " ADD COLUMN " + COL_LOG_DEVICE_ID + " TEXT",
+                    TABLE_MANTRA_COUNT_LOG + " ADD COLUMN " + COL_ROW_SYNC_STATUS + " INTEGER DEFAULT 1",
+                    TABLE_NOTE_MOODS + " ADD COLUMN " + COL_ROW_MODIFIED + " INTEGER DEFAULT 0",
+                    TABLE_NOTE_MOODS + " ADD COLUMN " + COL_ROW_SYNC_STATUS + " INTEGER DEFAULT 1"
+            };
+            for (int i = 0; i < alters.length; i++) {
+                try {
+                    db.execSQL("ALTER TABLE " + alters[i]);
+                } catch (Exception e) {
+                    // Column may already exist
+                }
+            }
+            try {
+                db.execSQL(CREATE_SYNC_TOMBSTONES_TABLE);
+            } catch (Exception e) {
+                // Table may already exist
+            }
+        }
+        if (oldVersion < 25) {
+            try {
+                db.execSQL(CREATE_ATTACHMENT_SYNC_TABLE);
+            } catch (Exception e) {
+                // Table may already exist
+            }
+        }
     }
 
     /**
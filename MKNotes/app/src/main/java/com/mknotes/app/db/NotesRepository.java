@@ -3,25 +3,87 @@ package com.mknotes.app.db;
 import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
 
 import com.mknotes.app.model.Category;
 import com.mknotes.app.model.Mantra;
 import com.mknotes.app.model.Note;
 import com.mknotes.app.util.CryptoUtils;
+import com.mknotes.app.util.NotePreviewUtils;
+import com.mknotes.app.util.SearchIndexUtils;
 import com.mknotes.app.util.SessionManager;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
 
 public class NotesRepository {
 
+    /** BM25 weights for the notes_fts columns: words (phrases), prefixes. */
+    private static final double[] FTS_COLUMN_WEIGHTS = new double[]{1.0, 1.0};
+
+    /** Bound parameters per cloud id IN query; SQLite allows 999. */
+    private static final int CLOUD_ID_QUERY_CHUNK = 500;
+    /** Rows per transaction in applyCloudChanges(). */
+    private static final int SYNC_APPLY_BATCH = 100;
+    private static final int SYNC_OP_INSERT = 1;
+    private static final int SYNC_OP_UPDATE = 2;
+    private static final int SYNC_OP_DELETE = 3;
+    private static final int SYNC_OP_FORWARD = 4;
+    private static final int SYNC_OP_MERGE = 5;
+    private static final int SYNC_OP_COPY = 6;
+    /** updateNoteRaw() guards */
+    private static final int UPDATE_ALWAYS = 0;
+    private static final int UPDATE_IF_NOT_NEWER = 1;
+    private static final int UPDATE_IF_SYNCED = 2;
+
+    /**
+     * Columns read by the list queries: the stored preview instead of content,
+     * and no checklist, routine or attachment data.
+     */
+    private static final String[] SUMMARY_COLUMNS = new String[]{
+            NotesDatabaseHelper.COL_ID,
+            NotesDatabaseHelper.COL_TITLE,
+            NotesDatabaseHelper.COL_PREVIEW,
+            NotesDatabaseHelper.COL_CREATED,
+            NotesDatabaseHelper.COL_MODIFIED,
+            NotesDatabaseHelper.COL_COLOR,
+            NotesDatabaseHelper.COL_FAVORITE,
+            NotesDatabaseHelper.COL_LOCKED,
+            NotesDatabaseHelper.COL_PASSWORD,
+            NotesDatabaseHelper.COL_CATEGORY_ID,
+            NotesDatabaseHelper.COL_HAS_CHECKLIST,
+            NotesDatabaseHelper.COL_HAS_IMAGE,
+            NotesDatabaseHelper.COL_IS_CHECKLIST_MODE,
+            NotesDatabaseHelper.COL_IS_ROUTINE_MODE,
+            NotesDatabaseHelper.COL_IS_ARCHIVED,
+            NotesDatabaseHelper.COL_CLOUD_ID,
+            NotesDatabaseHelper.COL_SYNC_STATUS
+    };
+
     private NotesDatabaseHelper dbHelper;
     private Context appContext;
     private static NotesRepository sInstance;
+    /** Set once every note has a search index row; cleared by writes made without a key. */
+    private volatile boolean searchIndexComplete = false;
+    /** Set once every note has a stored preview; cleared by raw writes made without a key. */
+    private volatile boolean previewsComplete = false;
+    /** Decrypted notes served by getNoteById(); wiped when the session ends. */
+    private final NoteCache noteCache = new NoteCache();
+    /** Previous master key while a ReKeyEngine job runs, else null. */
+    private volatile byte[] reKeyFallbackKey;
+
+    /** key_version of rows written raw (sync, restore): key unknown, re-checked by the next re-key. */
+    static final int KEY_VERSION_UNKNOWN = 0;
 
     public static synchronized NotesRepository getInstance(Context context) {
         if (sInstance == null) {
@@ -33,6 +95,11 @@ public class NotesRepository {
     private NotesRepository(Context context) {
         dbHelper = NotesDatabaseHelper.getInstance(context);
         appContext = context.getApplicationContext();
+        SessionManager.getInstance(appContext).addSessionListener(new SessionManager.SessionListener() {
+            public void onSessionCleared() {
+                noteCache.clear();
+            }
+        });
     }
 
     /**
@@ -43,6 +110,13 @@ public class NotesRepository {
         return SessionManager.getInstance(appContext).getCachedKey();
     }
 
+    /**
+     * Key version written with rows encrypted under the current key.
+     */
+    private int getKeyVersion() {
+        return SessionManager.getInstance(appContext).getKeyVersion();
+    }
+
     /**
      * Encrypt a string field using the current key.
      * Returns encrypted string or empty string if input is null/empty.
@@ -59,6 +133,16 @@ public class NotesRepository {
         return encrypted != null ? encrypted : plaintext;
     }
 
+    /**
+     * encryptField(), keeping stored if it already holds plaintext under key.
+     */
+    private String encryptField(String plaintext, String stored, byte[] key) {
+        if (key != null && CryptoUtils.isEncryptionOf(stored, plaintext, key)) {
+            return stored;
+        }
+        return encryptField(plaintext, key);
+    }
+
     /**
      * Decrypt a string field using the current key.
      * Returns decrypted string or original value if decryption fails.
@@ -71,6 +155,14 @@ public class NotesRepository {
             return ciphertext;
         }
         String decrypted = CryptoUtils.decrypt(ciphertext, key);
+        byte[] fallback = reKeyFallbackKey;
+        if (fallback != null && ciphertext.equals(decrypted) && CryptoUtils.isEncrypted(ciphertext)) {
+            // Row not re-encrypted yet by the running ReKeyEngine job
+            String old = CryptoUtils.decryptOrNull(ciphertext, fallback);
+            if (old != null) {
+                return old;
+            }
+        }
         return decrypted != null ? decrypted : ciphertext;
     }
 
@@ -104,52 +196,113 @@ public class NotesRepository {
         values.put(NotesDatabaseHelper.COL_IS_ROUTINE_MODE, note.isRoutineMode() ? 1 : 0);
         values.put(NotesDatabaseHelper.COL_ROUTINE_DATA, encryptField(note.getRoutineData(), key));
         values.put(NotesDatabaseHelper.COL_IS_ARCHIVED, note.isArchived() ? 1 : 0);
-        values.put(NotesDatabaseHelper.COL_SEARCH_INDEX, "");
+        values.put(NotesDatabaseHelper.COL_PREVIEW, encryptField(NotePreviewUtils.buildPreview(
+                note.getContent(), note.getChecklistData(), note.isChecklistMode()), key));
+        values.put(NotesDatabaseHelper.COL_KEY_VERSION, getKeyVersion());
+        SearchIndexUtils.IndexEntry entry =
+                SearchIndexUtils.buildEntry(note.getTitle(), note.getContent(), key);
+        values.put(NotesDatabaseHelper.COL_SEARCH_INDEX, entry != null ? entry.prefixes : "");
         values.put(NotesDatabaseHelper.COL_CLOUD_ID, note.getCloudId());
         values.put(NotesDatabaseHelper.COL_SYNC_STATUS, Note.SYNC_STATUS_PENDING);
-        long id = db.insert(NotesDatabaseHelper.TABLE_NOTES, null, values);
-        return id;
+        db.beginTransaction();
+        try {
+            long id = db.insert(NotesDatabaseHelper.TABLE_NOTES, null, values);
+            writeFtsRow(db, id, entry);
+            db.setTransactionSuccessful();
+            return id;
+        } finally {
+            db.endTransaction();
+        }
     }
 
     public int updateNote(Note note) {
+        if (note.isSummary()) {
+            // A list summary only holds a preview -- saving it would truncate the note
+            return 0;
+        }
         SQLiteDatabase db = dbHelper.getWritableDatabase();
         byte[] key = getKey();
-        ContentValues values = new ContentValues();
-        values.put(NotesDatabaseHelper.COL_TITLE, encryptField(note.getTitle(), key));
-        values.put(NotesDatabaseHelper.COL_CONTENT, encryptField(note.getContent(), key));
-        values.put(NotesDatabaseHelper.COL_MODIFIED, System.currentTimeMillis());
-        values.put(NotesDatabaseHelper.COL_COLOR, note.getColor());
-        values.put(NotesDatabaseHelper.COL_FAVORITE, note.isFavorite() ? 1 : 0);
-        values.put(NotesDatabaseHelper.COL_LOCKED, note.isLocked() ? 1 : 0);
-        values.put(NotesDatabaseHelper.COL_PASSWORD, note.getPassword());
-        values.put(NotesDatabaseHelper.COL_CATEGORY_ID, note.getCategoryId());
-        values.put(NotesDatabaseHelper.COL_HAS_CHECKLIST, note.hasChecklist() ? 1 : 0);
-        values.put(NotesDatabaseHelper.COL_HAS_IMAGE, note.hasImage() ? 1 : 0);
-        values.put(NotesDatabaseHelper.COL_CHECKLIST_DATA, encryptField(note.getChecklistData(), key));
-        values.put(NotesDatabaseHelper.COL_IS_CHECKLIST_MODE, note.isChecklistMode() ? 1 : 0);
-        values.put(NotesDatabaseHelper.COL_IMAGES_DATA, note.getImagesData());
-        values.put(NotesDatabaseHelper.COL_FILES_DATA, note.getFilesData());
-        values.put(NotesDatabaseHelper.COL_AUDIOS_DATA, note.getAudiosData());
-        values.put(NotesDatabaseHelper.COL_LINKED_NOTE_IDS, note.getLinkedNoteIds());
-        values.put(NotesDatabaseHelper.COL_IS_ROUTINE_MODE, note.isRoutineMode() ? 1 : 0);
-        values.put(NotesDatabaseHelper.COL_ROUTINE_DATA, encryptField(note.getRoutineData(), key));
-        values.put(NotesDatabaseHelper.COL_IS_ARCHIVED, note.isArchived() ? 1 : 0);
-        values.put(NotesDatabaseHelper.COL_SEARCH_INDEX, "");
-        values.put(NotesDatabaseHelper.COL_SYNC_STATUS, Note.SYNC_STATUS_PENDING);
-        return db.update(NotesDatabaseHelper.TABLE_NOTES, values,
-                NotesDatabaseHelper.COL_ID + "=?",
-                new String[]{String.valueOf(note.getId())});
+        db.beginTransaction();
+        try {
+            // Fields not edited keep their ciphertext, so sync sends only what changed
+            String[] stored = getEncryptedFields(db, note.getId());
+            ContentValues values = new ContentValues();
+            values.put(NotesDatabaseHelper.COL_TITLE, encryptField(note.getTitle(), stored[0], key));
+            values.put(NotesDatabaseHelper.COL_CONTENT, encryptField(note.getContent(), stored[1], key));
+            values.put(NotesDatabaseHelper.COL_MODIFIED, System.currentTimeMillis());
+            values.put(NotesDatabaseHelper.COL_COLOR, note.getColor());
+            values.put(NotesDatabaseHelper.COL_FAVORITE, note.isFavorite() ? 1 : 0);
+            values.put(NotesDatabaseHelper.COL_LOCKED, note.isLocked() ? 1 : 0);
+            values.put(NotesDatabaseHelper.COL_PASSWORD, note.getPassword());
+            values.put(NotesDatabaseHelper.COL_CATEGORY_ID, note.getCategoryId());
+            values.put(NotesDatabaseHelper.COL_HAS_CHECKLIST, note.hasChecklist() ? 1 : 0);
+            values.put(NotesDatabaseHelper.COL_HAS_IMAGE, note.hasImage() ? 1 : 0);
+            values.put(NotesDatabaseHelper.COL_CHECKLIST_DATA, encryptField(note.getChecklistData(), stored[2], key));
+            values.put(NotesDatabaseHelper.COL_IS_CHECKLIST_MODE, note.isChecklistMode() ? 1 : 0);
+            values.put(NotesDatabaseHelper.COL_IMAGES_DATA, note.getImagesData());
+            values.put(NotesDatabaseHelper.COL_FILES_DATA, note.getFilesData());
+            values.put(NotesDatabaseHelper.COL_AUDIOS_DATA, note.getAudiosData());
+            values.put(NotesDatabaseHelper.COL_LINKED_NOTE_IDS, note.getLinkedNoteIds());
+            values.put(NotesDatabaseHelper.COL_IS_ROUTINE_MODE, note.isRoutineMode() ? 1 : 0);
+            values.put(NotesDatabaseHelper.COL_ROUTINE_DATA, encryptField(note.getRoutineData(), stored[3], key));
+            values.put(NotesDatabaseHelper.COL_IS_ARCHIVED, note.isArchived() ? 1 : 0);
+            values.put(NotesDatabaseHelper.COL_PREVIEW, encryptField(NotePreviewUtils.buildPreview(
+                    note.getContent(), note.getChecklistData(), note.isChecklistMode()), stored[4], key));
+            values.put(NotesDatabaseHelper.COL_KEY_VERSION, getKeyVersion());
+            SearchIndexUtils.IndexEntry entry =
+                    SearchIndexUtils.buildEntry(note.getTitle(), note.getContent(), key);
+            values.put(NotesDatabaseHelper.COL_SEARCH_INDEX, entry != null ? entry.prefixes : "");
+            values.put(NotesDatabaseHelper.COL_SYNC_STATUS, Note.SYNC_STATUS_PENDING);
+            int rows = db.update(NotesDatabaseHelper.TABLE_NOTES, values,
+                    NotesDatabaseHelper.COL_ID + "=?",
+                    new String[]{String.valueOf(note.getId())});
+            if (rows > 0) {
+                writeFtsRow(db, note.getId(), entry);
+            }
+            db.setTransactionSuccessful();
+            return rows;
+        } finally {
+            db.endTransaction();
+            noteCache.remove(note.getId());
+        }
     }
 
     public int deleteNote(long id) {
         SQLiteDatabase db = dbHelper.getWritableDatabase();
-        return db.delete(NotesDatabaseHelper.TABLE_NOTES,
-                NotesDatabaseHelper.COL_ID + "=?",
-                new String[]{String.valueOf(id)});
+        db.beginTransaction();
+        try {
+            deleteFtsRow(db, id);
+            int rows = db.delete(NotesDatabaseHelper.TABLE_NOTES,
+                    NotesDatabaseHelper.COL_ID + "=?",
+                    new String[]{String.valueOf(id)});
+            db.setTransactionSuccessful();
+            return rows;
+        } finally {
+            db.endTransaction();
+            noteCache.remove(id);
+        }
     }
 
+    /**
+     * Load and decrypt one note. Served from the in-memory cache when the row's
+     * modified_at is unchanged since it was cached; never cached without a key.
+     */
     public Note getNoteById(long id) {
         SQLiteDatabase db = dbHelper.getReadableDatabase();
+        boolean cacheable = getKey() != null;
+        // Taken before the row is read: a write committed meanwhile keeps it out of the cache
+        long generation = noteCache.generation();
+        if (cacheable) {
+            long modifiedAt = getModifiedAt(db, id);
+            if (modifiedAt < 0) {
+                noteCache.remove(id);
+                return null;
+            }
+            Note cached = noteCache.get(id, modifiedAt);
+            if (cached != null) {
+                return cached;
+            }
+        }
         Cursor cursor = db.query(NotesDatabaseHelper.TABLE_NOTES,
                 null,
                 NotesDatabaseHelper.COL_ID + "=?",
@@ -160,9 +313,64 @@ public class NotesRepository {
             note = cursorToNote(cursor);
             cursor.close();
         }
+        if (note != null && cacheable) {
+            noteCache.put(note, generation);
+        }
         return note;
     }
 
+    /**
+     * Drop notes from the cache once their write has committed (or rolled back).
+     */
+    private void uncache(long[] ids) {
+        for (int i = 0; i < ids.length; i++) {
+            noteCache.remove(ids[i]);
+        }
+    }
+
+    /**
+     * Stored title, content, checklist data, routine data and preview of a
+     * note; nulls if it does not exist.
+     */
+    private String[] getEncryptedFields(SQLiteDatabase db, long id) {
+        String[] fields = new String[5];
+        Cursor cursor = db.query(NotesDatabaseHelper.TABLE_NOTES,
+                new String[]{NotesDatabaseHelper.COL_TITLE, NotesDatabaseHelper.COL_CONTENT,
+                        NotesDatabaseHelper.COL_CHECKLIST_DATA, NotesDatabaseHelper.COL_ROUTINE_DATA,
+                        NotesDatabaseHelper.COL_PREVIEW},
+                NotesDatabaseHelper.COL_ID + "=?",
+                new String[]{String.valueOf(id)},
+                null, null, null);
+        if (cursor != null) {
+            if (cursor.moveToFirst()) {
+                for (int i = 0; i < fields.length; i++) {
+                    fields[i] = cursor.getString(i);
+                }
+            }
+            cursor.close();
+        }
+        return fields;
+    }
+
+    /**
+     * modified_at of a note, or -1 if it does not exist. Cheap cache validation.
+     */
+    private long getModifiedAt(SQLiteDatabase db, long id) {
+        long modifiedAt = -1;
+        Cursor cursor = db.query(NotesDatabaseHelper.TABLE_NOTES,
+                new String[]{NotesDatabaseHelper.COL_MODIFIED},
+                NotesDatabaseHelper.COL_ID + "=?",
+                new String[]{String.valueOf(id)},
+                null, null, null);
+        if (cursor != null) {
+            if (cursor.moveToFirst()) {
+                modifiedAt = cursor.getLong(0);
+            }
+            cursor.close();
+        }
+        return modifiedAt;
+    }
+
     public List getAllNotes(String sortBy) {
         List notes = new ArrayList();
         SQLiteDatabase db = dbHelper.getReadableDatabase();
@@ -227,82 +435,136 @@ public class NotesRepository {
         return notes;
     }
 
+    // ============ LIST SUMMARIES ============
+
     /**
-     * Search notes by decrypting all notes and matching query words in-memory.
-     * Supports partial matching: "medi" matches "meditation", "medical", etc.
-     * All query words must appear in the note for a match (AND logic).
-     *
-     * @param query the search query string
-     * @return matched notes sorted by modified date DESC
+     * One page of the main list, same order as getAllNotes(sortBy).
+     * Returns summary notes (see Note.isSummary()); only title and a content
+     * preview are decrypted.
      */
-    public List searchNotes(String query) {
-        List results = new ArrayList();
-        if (query == null || query.trim().length() == 0) {
-            return results;
+    public List getAllNoteSummaries(String sortBy, int offset, int limit) {
+        ensurePreviews(getKey());
+        String selection = NotesDatabaseHelper.COL_IS_ARCHIVED + "=0";
+        if ("title".equals(sortBy)) {
+            return getSummariesSortedByTitle(selection, null, offset, limit);
+        }
+        String orderBy;
+        if ("created".equals(sortBy)) {
+            orderBy = NotesDatabaseHelper.COL_CREATED + " DESC";
+        } else {
+            orderBy = NotesDatabaseHelper.COL_MODIFIED + " DESC";
         }
+        return querySummaries(selection, null, orderBy, offset, limit);
+    }
+
+    /**
+     * One page of favorite notes as summaries, same order as getFavoriteNotes().
+     */
+    public List getFavoriteNoteSummaries(int offset, int limit) {
+        ensurePreviews(getKey());
+        return querySummaries(
+                NotesDatabaseHelper.COL_FAVORITE + "=1 AND " + NotesDatabaseHelper.COL_IS_ARCHIVED + "=0",
+                null, NotesDatabaseHelper.COL_MODIFIED + " DESC", offset, limit);
+    }
+
+    /**
+     * One page of a category as summaries, same order as getNotesByCategory().
+     */
+    public List getNoteSummariesByCategory(long categoryId, int offset, int limit) {
+        ensurePreviews(getKey());
+        return querySummaries(
+                NotesDatabaseHelper.COL_CATEGORY_ID + "=? AND " + NotesDatabaseHelper.COL_IS_ARCHIVED + "=0",
+                new String[]{String.valueOf(categoryId)},
+                NotesDatabaseHelper.COL_MODIFIED + " DESC", offset, limit);
+    }
 
-        // Load all non-trashed, non-archived notes (auto-decrypted via cursorToNote)
+    private List querySummaries(String selection, String[] args, String orderBy, int offset, int limit) {
+        List notes = new ArrayList();
+        if (limit <= 0) {
+            return notes;
+        }
         SQLiteDatabase db = dbHelper.getReadableDatabase();
+        byte[] key = getKey();
+        // _id as tie-breaker keeps pages stable when timestamps are equal
         Cursor cursor = db.query(NotesDatabaseHelper.TABLE_NOTES,
-                null,
-                NotesDatabaseHelper.COL_IS_ARCHIVED + "=0",
-                null, null, null,
-                NotesDatabaseHelper.COL_MODIFIED + " DESC");
-
-        List allNotes = new ArrayList();
+                SUMMARY_COLUMNS, selection, args, null, null,
+                orderBy + ", " + NotesDatabaseHelper.COL_ID + " DESC",
+                offset + "," + limit);
         if (cursor != null) {
             while (cursor.moveToNext()) {
-                allNotes.add(cursorToNote(cursor));
+                notes.add(cursorToSummary(cursor, key));
             }
             cursor.close();
         }
+        return notes;
+    }
 
-        // Split query into words (lowercased, trimmed)
-        String queryLower = query.toLowerCase().trim();
-        String[] queryWords = queryLower.split("\\s+");
-
-        // Filter notes: all query words must appear in decrypted title+content
-        for (int i = 0; i < allNotes.size(); i++) {
-            Note note = (Note) allNotes.get(i);
-            String title = note.getTitle() != null ? note.getTitle() : "";
-            String content = note.getContent() != null ? note.getContent() : "";
-            // Strip HTML tags from content for better matching
-            String stripped = content.replaceAll("<[^>]*>", " ");
-            String searchable = (title + " " + stripped).toLowerCase();
-
-            boolean matchAll = true;
-            for (int w = 0; w < queryWords.length; w++) {
-                String word = queryWords[w].trim();
-                if (word.length() == 0) {
-                    continue;
-                }
-                if (!searchable.contains(word)) {
-                    matchAll = false;
-                    break;
-                }
-            }
-            if (matchAll) {
-                results.add(note);
+    /**
+     * Title order needs every decrypted title, so only ids and titles are read
+     * for the whole selection; summaries are then loaded for the requested page.
+     */
+    private List getSummariesSortedByTitle(String selection, String[] args, int offset, int limit) {
+        List titled = new ArrayList();
+        SQLiteDatabase db = dbHelper.getReadableDatabase();
+        byte[] key = getKey();
+        Cursor cursor = db.query(NotesDatabaseHelper.TABLE_NOTES,
+                new String[]{NotesDatabaseHelper.COL_ID, NotesDatabaseHelper.COL_TITLE},
+                selection, args, null, null, NotesDatabaseHelper.COL_MODIFIED + " DESC");
+        if (cursor != null) {
+            while (cursor.moveToNext()) {
+                Note note = new Note();
+                note.setId(cursor.getLong(0));
+                note.setTitle(decryptField(cursor.getString(1), key));
+                titled.add(note);
             }
+            cursor.close();
         }
+        sortNotesByTitle(titled);
 
-        return results;
-    }
+        List notes = new ArrayList();
+        int end = Math.min(titled.size(), offset + limit);
+        if (offset >= end) {
+            return notes;
+        }
+        StringBuilder where = new StringBuilder(NotesDatabaseHelper.COL_ID + " IN (");
+        String[] idArgs = new String[end - offset];
+        for (int i = offset; i < end; i++) {
+            where.append(i > offset ? ",?" : "?");
+            idArgs[i - offset] = String.valueOf(((Note) titled.get(i)).getId());
+        }
+        where.append(")");
 
-    public void toggleFavorite(long noteId) {
-        Note note = getNoteById(noteId);
-        if (note != null) {
-            note.setFavorite(!note.isFavorite());
-            updateNote(note);
+        Map byId = new HashMap();
+        cursor = db.query(NotesDatabaseHelper.TABLE_NOTES,
+                SUMMARY_COLUMNS, where.toString(), idArgs, null, null, null);
+        if (cursor != null) {
+            while (cursor.moveToNext()) {
+                Note note = cursorToSummary(cursor, key);
+                byId.put(Long.valueOf(note.getId()), note);
+            }
+            cursor.close();
+        }
+        for (int i = offset; i < end; i++) {
+            Note note = (Note) byId.get(Long.valueOf(((Note) titled.get(i)).getId()));
+            if (note != null) {
+                notes.add(note);
+            }
         }
+        return notes;
     }
 
-    private Note cursorToNote(Cursor cursor) {
-        byte[] key = getKey();
+    /**
+     * Build a summary note from a SUMMARY_COLUMNS row. The preview is empty for
+     * a row whose preview is not built yet (ensurePreviews() has not run).
+     */
+    private Note cursorToSummary(Cursor cursor, byte[] key) {
         Note note = new Note();
+        note.setSummary(true);
         note.setId(cursor.getLong(cursor.getColumnIndex(NotesDatabaseHelper.COL_ID)));
         note.setTitle(decryptField(cursor.getString(cursor.getColumnIndex(NotesDatabaseHelper.COL_TITLE)), key));
-        note.setContent(decryptField(cursor.getString(cursor.getColumnIndex(NotesDatabaseHelper.COL_CONTENT)), key));
+        note.setContent("");
+        int previewIdx = cursor.getColumnIndex(NotesDatabaseHelper.COL_PREVIEW);
+        note.setPreview(cursor.isNull(previewIdx) ? "" : decryptField(cursor.getString(previewIdx), key));
         note.setCreatedAt(cursor.getLong(cursor.getColumnIndex(NotesDatabaseHelper.COL_CREATED)));
         note.setModifiedAt(cursor.getLong(cursor.getColumnIndex(NotesDatabaseHelper.COL_MODIFIED)));
         note.setColor(cursor.getInt(cursor.getColumnIndex(NotesDatabaseHelper.COL_COLOR)));
@@ -312,98 +574,484 @@ public class NotesRepository {
         note.setCategoryId(cursor.getLong(cursor.getColumnIndex(NotesDatabaseHelper.COL_CATEGORY_ID)));
         note.setHasChecklist(cursor.getInt(cursor.getColumnIndex(NotesDatabaseHelper.COL_HAS_CHECKLIST)) == 1);
         note.setHasImage(cursor.getInt(cursor.getColumnIndex(NotesDatabaseHelper.COL_HAS_IMAGE)) == 1);
-        int clDataIdx = cursor.getColumnIndex(NotesDatabaseHelper.COL_CHECKLIST_DATA);
-        if (clDataIdx >= 0) {
-            note.setChecklistData(decryptField(cursor.getString(clDataIdx), key));
-        }
-        int clModeIdx = cursor.getColumnIndex(NotesDatabaseHelper.COL_IS_CHECKLIST_MODE);
-        if (clModeIdx >= 0) {
-            note.setChecklistMode(cursor.getInt(clModeIdx) == 1);
-        }
-        int imgIdx = cursor.getColumnIndex(NotesDatabaseHelper.COL_IMAGES_DATA);
-        if (imgIdx >= 0) {
-            note.setImagesData(cursor.getString(imgIdx));
-        }
-        int filesIdx = cursor.getColumnIndex(NotesDatabaseHelper.COL_FILES_DATA);
-        if (filesIdx >= 0) {
-            note.setFilesData(cursor.getString(filesIdx));
-        }
-        int audiosIdx = cursor.getColumnIndex(NotesDatabaseHelper.COL_AUDIOS_DATA);
-        if (audiosIdx >= 0) {
-            note.setAudiosData(cursor.getString(audiosIdx));
-        }
-        int linkedIdx = cursor.getColumnIndex(NotesDatabaseHelper.COL_LINKED_NOTE_IDS);
-        if (linkedIdx >= 0) {
-            note.setLinkedNoteIds(cursor.getString(linkedIdx));
-        }
-        int routineModeIdx = cursor.getColumnIndex(NotesDatabaseHelper.COL_IS_ROUTINE_MODE);
-        if (routineModeIdx >= 0) {
-            note.setRoutineMode(cursor.getInt(routineModeIdx) == 1);
-        }
-        int routineDataIdx = cursor.getColumnIndex(NotesDatabaseHelper.COL_ROUTINE_DATA);
-        if (routineDataIdx >= 0) {
-            note.setRoutineData(decryptField(cursor.getString(routineDataIdx), key));
-        }
-        int archivedIdx = cursor.getColumnIndex(NotesDatabaseHelper.COL_IS_ARCHIVED);
-        if (archivedIdx >= 0) {
-            note.setArchived(cursor.getInt(archivedIdx) == 1);
-        }
-        int cloudIdIdx = cursor.getColumnIndex(NotesDatabaseHelper.COL_CLOUD_ID);
-        if (cloudIdIdx >= 0) {
-            note.setCloudId(cursor.getString(cloudIdIdx));
-        }
-        int syncStatusIdx = cursor.getColumnIndex(NotesDatabaseHelper.COL_SYNC_STATUS);
-        if (syncStatusIdx >= 0) {
-            note.setSyncStatus(cursor.getInt(syncStatusIdx));
-        }
+        note.setChecklistMode(cursor.getInt(cursor.getColumnIndex(NotesDatabaseHelper.COL_IS_CHECKLIST_MODE)) == 1);
+        note.setRoutineMode(cursor.getInt(cursor.getColumnIndex(NotesDatabaseHelper.COL_IS_ROUTINE_MODE)) == 1);
+        note.setArchived(cursor.getInt(cursor.getColumnIndex(NotesDatabaseHelper.COL_IS_ARCHIVED)) == 1);
+        note.setCloudId(cursor.getString(cursor.getColumnIndex(NotesDatabaseHelper.COL_CLOUD_ID)));
+        note.setSyncStatus(cursor.getInt(cursor.getColumnIndex(NotesDatabaseHelper.COL_SYNC_STATUS)));
         return note;
     }
 
-    // ============ ARCHIVE ============
-
-    public void archiveNote(long noteId) {
-        SQLiteDatabase db = dbHelper.getWritableDatabase();
-        ContentValues values = new ContentValues();
-        values.put(NotesDatabaseHelper.COL_IS_ARCHIVED, 1);
-        db.update(NotesDatabaseHelper.TABLE_NOTES, values,
-                NotesDatabaseHelper.COL_ID + "=?",
-                new String[]{String.valueOf(noteId)});
-    }
-
-    public void unarchiveNote(long noteId) {
+    /**
+     * Build the stored preview of every note that has none yet (rows from before
+     * the preview column, or written raw without a key). Runs once per session.
+     */
+    private void ensurePreviews(byte[] key) {
+        if (key == null || previewsComplete) return;
         SQLiteDatabase db = dbHelper.getWritableDatabase();
-        ContentValues values = new ContentValues();
-        values.put(NotesDatabaseHelper.COL_IS_ARCHIVED, 0);
-        db.update(NotesDatabaseHelper.TABLE_NOTES, values,
-                NotesDatabaseHelper.COL_ID + "=?",
-                new String[]{String.valueOf(noteId)});
-    }
-
-    public List getArchivedNotes() {
-        List notes = new ArrayList();
-        SQLiteDatabase db = dbHelper.getReadableDatabase();
         Cursor cursor = db.query(NotesDatabaseHelper.TABLE_NOTES,
-                null,
-                NotesDatabaseHelper.COL_IS_ARCHIVED + "=1",
-                null, null, null,
-                NotesDatabaseHelper.COL_MODIFIED + " DESC");
-        if (cursor != null) {
+                new String[]{NotesDatabaseHelper.COL_ID, NotesDatabaseHelper.COL_CONTENT,
+                        NotesDatabaseHelper.COL_CHECKLIST_DATA, NotesDatabaseHelper.COL_IS_CHECKLIST_MODE},
+                NotesDatabaseHelper.COL_PREVIEW + " IS NULL",
+                null, null, null, null);
+        if (cursor == null) return;
+        db.beginTransaction();
+        try {
             while (cursor.moveToNext()) {
-                notes.add(cursorToNote(cursor));
+                String preview = NotePreviewUtils.buildPreview(
+                        decryptField(cursor.getString(1), key),
+                        decryptField(cursor.getString(2), key),
+                        cursor.getInt(3) == 1);
+                ContentValues values = new ContentValues();
+                values.put(NotesDatabaseHelper.COL_PREVIEW, encryptField(preview, key));
+                db.update(NotesDatabaseHelper.TABLE_NOTES, values,
+                        NotesDatabaseHelper.COL_ID + "=?",
+                        new String[]{String.valueOf(cursor.getLong(0))});
             }
+            db.setTransactionSuccessful();
+            previewsComplete = true;
+        } finally {
+            db.endTransaction();
             cursor.close();
         }
-        return notes;
     }
 
-    // ============ CATEGORIES ============
+    /**
+     * Put the encrypted preview for a note holding raw (encrypted) field values.
+     * Without a key the preview is left NULL and built later by ensurePreviews().
+     */
+    private void putPreviewFromRaw(ContentValues values, Note rawNote) {
+        values.put(NotesDatabaseHelper.COL_PREVIEW, previewFromRaw(rawNote));
+    }
 
-    public long insertCategory(Category category) {
-        SQLiteDatabase db = dbHelper.getWritableDatabase();
-        ContentValues values = new ContentValues();
-        values.put(NotesDatabaseHelper.COL_CAT_NAME, category.getName());
-        values.put(NotesDatabaseHelper.COL_CAT_COLOR, category.getColor());
-        values.put(NotesDatabaseHelper.COL_CAT_ORDER, category.getSortOrder());
+    /**
+     * Encrypted preview of a note holding raw field values, or null without a
+     * key (built lazily later).
+     */
+    private String previewFromRaw(Note rawNote) {
+        byte[] key = getKey();
+        if (key == null) {
+            previewsComplete = false;
+            return null;
+        }
+        String preview = NotePreviewUtils.buildPreview(
+                decryptField(rawNote.getContent(), key),
+                decryptField(rawNote.getChecklistData(), key),
+                rawNote.isChecklistMode());
+        return encryptField(preview, key);
+    }
+
+    /**
+     * Full-text search over the encrypted notes via the notes_fts table.
+     *
+     * Query words are turned into HMAC tokens (see SearchIndexUtils), so the FTS
+     * index never sees plaintext. Plain words are prefix matches ("medi" matches
+     * "meditation"), text in double quotes is an exact word or phrase, and all
+     * parts must match (AND logic). Archived notes are excluded.
+     *
+     * Results are ranked by BM25 (ties broken by modified date DESC). Only ids are
+     * returned; decrypt the visible page with getNotesByIds().
+     *
+     * Rows not yet indexed (legacy data, raw inserts without key) are indexed
+     * lazily before the lookup.
+     *
+     * @param query the search query string
+     * @return ranked note ids, best match first
+     */
+    public List<Long> searchNotes(String query) {
+        List<Long> ids = new ArrayList<Long>();
+        if (query == null || query.trim().length() == 0) {
+            return ids;
+        }
+        byte[] key = getKey();
+        String match = SearchIndexUtils.buildFtsQuery(query,
+                NotesDatabaseHelper.COL_FTS_PREFIXES, key);
+        if (match == null || match.length() == 0) {
+            return ids;
+        }
+
+        ensureSearchIndex(key);
+
+        final List hits = new ArrayList();
+        SQLiteDatabase db = dbHelper.getReadableDatabase();
+        Cursor cursor = null;
+        try {
+            cursor = db.rawQuery(
+                    "SELECT " + NotesDatabaseHelper.TABLE_NOTES_FTS + ".docid, " +
+                            "matchinfo(" + NotesDatabaseHelper.TABLE_NOTES_FTS + ", 'pcnalx'), " +
+                            NotesDatabaseHelper.TABLE_NOTES + "." + NotesDatabaseHelper.COL_MODIFIED +
+                            " FROM " + NotesDatabaseHelper.TABLE_NOTES_FTS +
+                            " JOIN " + NotesDatabaseHelper.TABLE_NOTES + " ON " +
+                            NotesDatabaseHelper.TABLE_NOTES + "." + NotesDatabaseHelper.COL_ID + " = " +
+                            NotesDatabaseHelper.TABLE_NOTES_FTS + ".docid" +
+                            " WHERE " + NotesDatabaseHelper.TABLE_NOTES_FTS + " MATCH ?" +
+                            " AND " + NotesDatabaseHelper.TABLE_NOTES + "." +
+                            NotesDatabaseHelper.COL_IS_ARCHIVED + "=0",
+                    new String[]{match});
+            while (cursor.moveToNext()) {
+                SearchHit hit = new SearchHit();
+                hit.id = cursor.getLong(0);
+                hit.score = SearchIndexUtils.bm25(cursor.getBlob(1), FTS_COLUMN_WEIGHTS);
+                hit.modified = cursor.getLong(2);
+                hits.add(hit);
+            }
+        } catch (Exception e) {
+            // FTS table unavailable -- fall back to the plain token index
+            if (cursor != null) cursor.close();
+            return searchNoteIdsByIndex(query, key);
+        }
+        cursor.close();
+
+        Collections.sort(hits, new Comparator() {
+            public int compare(Object a, Object b) {
+                SearchHit ha = (SearchHit) a;
+                SearchHit hb = (SearchHit) b;
+                if (ha.score != hb.score) {
+                    return ha.score > hb.score ? -1 : 1;
+                }
+                if (ha.modified != hb.modified) {
+                    return ha.modified > hb.modified ? -1 : 1;
+                }
+                return 0;
+            }
+        });
+        for (int i = 0; i < hits.size(); i++) {
+            ids.add(Long.valueOf(((SearchHit) hits.get(i)).id));
+        }
+        return ids;
+    }
+
+    /**
+     * Fallback search via LIKE on the search_index column (no ranking, no phrases).
+     * Quotes are ignored; every word is a prefix match.
+     */
+    private List<Long> searchNoteIdsByIndex(String query, byte[] key) {
+        List<Long> ids = new ArrayList<Long>();
+        List tokens = SearchIndexUtils.queryTokens(query, key);
+        if (tokens == null || tokens.isEmpty()) {
+            return ids;
+        }
+        StringBuilder where = new StringBuilder(NotesDatabaseHelper.COL_IS_ARCHIVED + "=0");
+        String[] args = new String[tokens.size()];
+        for (int i = 0; i < tokens.size(); i++) {
+            where.append(" AND ").append(NotesDatabaseHelper.COL_SEARCH_INDEX).append(" LIKE ?");
+            args[i] = SearchIndexUtils.likePattern((String) tokens.get(i));
+        }
+        SQLiteDatabase db = dbHelper.getReadableDatabase();
+        Cursor cursor = db.query(NotesDatabaseHelper.TABLE_NOTES,
+                new String[]{NotesDatabaseHelper.COL_ID}, where.toString(), args, null, null,
+                NotesDatabaseHelper.COL_MODIFIED + " DESC");
+        if (cursor != null) {
+            while (cursor.moveToNext()) {
+                ids.add(Long.valueOf(cursor.getLong(0)));
+            }
+            cursor.close();
+        }
+        return ids;
+    }
+
+    /**
+     * Load and decrypt notes for one page of ids, keeping the order of the id list.
+     * Ids of notes that no longer exist are skipped.
+     *
+     * @param ids    ranked ids from searchNotes()
+     * @param offset index of the first id of the page
+     * @param limit  maximum number of notes to load
+     */
+    public List getNotesByIds(List<Long> ids, int offset, int limit) {
+        List notes = new ArrayList();
+        if (ids == null || offset >= ids.size() || limit <= 0) {
+            return notes;
+        }
+        int end = Math.min(ids.size(), offset + limit);
+        StringBuilder where = new StringBuilder(NotesDatabaseHelper.COL_ID + " IN (");
+        String[] args = new String[end - offset];
+        for (int i = offset; i < end; i++) {
+            where.append(i > offset ? ",?" : "?");
+            args[i - offset] = String.valueOf(ids.get(i));
+        }
+        where.append(")");
+
+        Map byId = new HashMap();
+        SQLiteDatabase db = dbHelper.getReadableDatabase();
+        Cursor cursor = db.query(NotesDatabaseHelper.TABLE_NOTES,
+                null, where.toString(), args, null, null, null);
+        if (cursor != null) {
+            while (cursor.moveToNext()) {
+                Note note = cursorToNote(cursor);
+                byId.put(Long.valueOf(note.getId()), note);
+            }
+            cursor.close();
+        }
+        for (int i = offset; i < end; i++) {
+            Note note = (Note) byId.get(ids.get(i));
+            if (note != null) {
+                notes.add(note);
+            }
+        }
+        return notes;
+    }
+
+    /**
+     * Index every note whose search_index is still empty or that has no FTS row.
+     * Decrypts only title and content of those rows, once.
+     */
+    private void ensureSearchIndex(byte[] key) {
+        if (key == null || searchIndexComplete) return;
+        SQLiteDatabase db = dbHelper.getWritableDatabase();
+        if (!indexNotesWhere(db, NotesDatabaseHelper.COL_SEARCH_INDEX + " IS NULL OR " +
+                NotesDatabaseHelper.COL_SEARCH_INDEX + "=''", key)) {
+            return;
+        }
+        // A separate pass: this query fails where notes_fts is unavailable, and
+        // search then falls back to the search_index column filled above
+        indexNotesWhere(db, NotesDatabaseHelper.COL_ID + " NOT IN (SELECT docid FROM " +
+                NotesDatabaseHelper.TABLE_NOTES_FTS + ")", key);
+        searchIndexComplete = true;
+    }
+
+    /**
+     * Index the notes matching selection, in one transaction.
+     *
+     * @return false if the notes could not be queried
+     */
+    private boolean indexNotesWhere(SQLiteDatabase db, String selection, byte[] key) {
+        Cursor cursor;
+        try {
+            cursor = db.query(NotesDatabaseHelper.TABLE_NOTES,
+                    new String[]{NotesDatabaseHelper.COL_ID, NotesDatabaseHelper.COL_TITLE,
+                            NotesDatabaseHelper.COL_CONTENT},
+                    selection, null, null, null, null);
+        } catch (Exception e) {
+            return false;
+        }
+        if (cursor == null) return false;
+        db.beginTransaction();
+        try {
+            while (cursor.moveToNext()) {
+                indexNote(db, cursor.getLong(0),
+                        decryptField(cursor.getString(1), key),
+                        decryptField(cursor.getString(2), key),
+                        key);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            cursor.close();
+        }
+        return true;
+    }
+
+    /**
+     * Drop and regenerate the whole search index (search_index column and
+     * notes_fts) with the given key. Tokens are keyed, so this is required
+     * whenever the encryption key changes.
+     */
+    public void rebuildSearchIndex(byte[] key) {
+        if (key == null) return;
+        SQLiteDatabase db = dbHelper.getWritableDatabase();
+        db.beginTransaction();
+        try {
+            try {
+                db.delete(NotesDatabaseHelper.TABLE_NOTES_FTS, null, null);
+            } catch (Exception e) {
+                // FTS table unavailable; search_index column is still rebuilt
+            }
+            ContentValues values = new ContentValues();
+            values.put(NotesDatabaseHelper.COL_SEARCH_INDEX, "");
+            db.update(NotesDatabaseHelper.TABLE_NOTES, values, null, null);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        searchIndexComplete = false;
+        ensureSearchIndex(key);
+    }
+
+    /**
+     * Write both index representations for one note from its plaintext.
+     * Must be called inside the caller's transaction.
+     */
+    private void indexNote(SQLiteDatabase db, long noteId, String title, String content, byte[] key) {
+        SearchIndexUtils.IndexEntry entry = SearchIndexUtils.buildEntry(title, content, key);
+        ContentValues values = new ContentValues();
+        values.put(NotesDatabaseHelper.COL_SEARCH_INDEX, entry != null ? entry.prefixes : "");
+        db.update(NotesDatabaseHelper.TABLE_NOTES, values,
+                NotesDatabaseHelper.COL_ID + "=?",
+                new String[]{String.valueOf(noteId)});
+        writeFtsRow(db, noteId, entry);
+    }
+
+    /**
+     * Replace the notes_fts row of a note. A null entry (no key available)
+     * leaves the note without a row so it is indexed lazily on next search.
+     */
+    private void writeFtsRow(SQLiteDatabase db, long noteId, SearchIndexUtils.IndexEntry entry) {
+        if (noteId <= 0) return;
+        deleteFtsRow(db, noteId);
+        if (entry == null) {
+            searchIndexComplete = false;
+            return;
+        }
+        try {
+            ContentValues values = new ContentValues();
+            values.put("docid", noteId);
+            values.put(NotesDatabaseHelper.COL_FTS_WORDS, entry.words);
+            values.put(NotesDatabaseHelper.COL_FTS_PREFIXES, entry.prefixOccurrences);
+            db.insert(NotesDatabaseHelper.TABLE_NOTES_FTS, null, values);
+        } catch (Exception e) {
+            // FTS table unavailable; search falls back to search_index
+        }
+    }
+
+    private void deleteFtsRow(SQLiteDatabase db, long noteId) {
+        try {
+            db.delete(NotesDatabaseHelper.TABLE_NOTES_FTS, "docid=?",
+                    new String[]{String.valueOf(noteId)});
+        } catch (Exception e) {
+            // FTS table unavailable
+        }
+    }
+
+    /**
+     * Build the search index entry for a note holding raw (encrypted) field values.
+     * Returns null when no key is available; the row is then indexed lazily on next search.
+     */
+    private SearchIndexUtils.IndexEntry buildIndexEntryFromRaw(Note rawNote) {
+        byte[] key = getKey();
+        if (key == null) {
+            return null;
+        }
+        return SearchIndexUtils.buildEntry(
+                decryptField(rawNote.getTitle(), key),
+                decryptField(rawNote.getContent(), key),
+                key);
+    }
+
+    /** One FTS match with its BM25 score, used for ranking in searchNotes(). */
+    private static class SearchHit {
+        long id;
+        double score;
+        long modified;
+    }
+
+    public void toggleFavorite(long noteId) {
+        Note note = getNoteById(noteId);
+        if (note != null) {
+            note.setFavorite(!note.isFavorite());
+            updateNote(note);
+        }
+    }
+
+    private Note cursorToNote(Cursor cursor) {
+        byte[] key = getKey();
+        Note note = new Note();
+        note.setId(cursor.getLong(cursor.getColumnIndex(NotesDatabaseHelper.COL_ID)));
+        note.setTitle(decryptField(cursor.getString(cursor.getColumnIndex(NotesDatabaseHelper.COL_TITLE)), key));
+        note.setContent(decryptField(cursor.getString(cursor.getColumnIndex(NotesDatabaseHelper.COL_CONTENT)), key));
+        note.setCreatedAt(cursor.getLong(cursor.getColumnIndex(NotesDatabaseHelper.COL_CREATED)));
+        note.setModifiedAt(cursor.getLong(cursor.getColumnIndex(NotesDatabaseHelper.COL_MODIFIED)));
+        note.setColor(cursor.getInt(cursor.getColumnIndex(NotesDatabaseHelper.COL_COLOR)));
+        note.setFavorite(cursor.getInt(cursor.getColumnIndex(NotesDatabaseHelper.COL_FAVORITE)) == 1);
+        note.setLocked(cursor.getInt(cursor.getColumnIndex(NotesDatabaseHelper.COL_LOCKED)) == 1);
+        note.setPassword(cursor.getString(cursor.getColumnIndex(NotesDatabaseHelper.COL_PASSWORD)));
+        note.setCategoryId(cursor.getLong(cursor.getColumnIndex(NotesDatabaseHelper.COL_CATEGORY_ID)));
+        note.setHasChecklist(cursor.getInt(cursor.getColumnIndex(NotesDatabaseHelper.COL_HAS_CHECKLIST)) == 1);
+        note.setHasImage(cursor.getInt(cursor.getColumnIndex(NotesDatabaseHelper.COL_HAS_IMAGE)) == 1);
+        int clDataIdx = cursor.getColumnIndex(NotesDatabaseHelper.COL_CHECKLIST_DATA);
+        if (clDataIdx >= 0) {
+            note.setChecklistData(decryptField(cursor.getString(clDataIdx), key));
+        }
+        int clModeIdx = cursor.getColumnIndex(NotesDatabaseHelper.COL_IS_CHECKLIST_MODE);
+        if (clModeIdx >= 0) {
+            note.setChecklistMode(cursor.getInt(clModeIdx) == 1);
+        }
+        int imgIdx = cursor.getColumnIndex(NotesDatabaseHelper.COL_IMAGES_DATA);
+        if (imgIdx >= 0) {
+            note.setImagesData(cursor.getString(imgIdx));
+        }
+        int filesIdx = cursor.getColumnIndex(NotesDatabaseHelper.COL_FILES_DATA);
+        if (filesIdx >= 0) {
+            note.setFilesData(cursor.getString(filesIdx));
+        }
+        int audiosIdx = cursor.getColumnIndex(NotesDatabaseHelper.COL_AUDIOS_DATA);
+        if (audiosIdx >= 0) {
+            note.setAudiosData(cursor.getString(audiosIdx));
+        }
+        int linkedIdx = cursor.getColumnIndex(NotesDatabaseHelper.COL_LINKED_NOTE_IDS);
+        if (linkedIdx >= 0) {
+            note.setLinkedNoteIds(cursor.getString(linkedIdx));
+        }
+        int routineModeIdx = cursor.getColumnIndex(NotesDatabaseHelper.COL_IS_ROUTINE_MODE);
+        if (routineModeIdx >= 0) {
+            note.setRoutineMode(cursor.getInt(routineModeIdx) == 1);
+        }
+        int routineDataIdx = cursor.getColumnIndex(NotesDatabaseHelper.COL_ROUTINE_DATA);
+        if (routineDataIdx >= 0) {
+            note.setRoutineData(decryptField(cursor.getString(routineDataIdx), key));
+        }
+        int archivedIdx = cursor.getColumnIndex(NotesDatabaseHelper.COL_IS_ARCHIVED);
+        if (archivedIdx >= 0) {
+            note.setArchived(cursor.getInt(archivedIdx) == 1);
+        }
+        int cloudIdIdx = cursor.getColumnIndex(NotesDatabaseHelper.COL_CLOUD_ID);
+        if (cloudIdIdx >= 0) {
+            note.setCloudId(cursor.getString(cloudIdIdx));
+        }
+        int syncStatusIdx = cursor.getColumnIndex(NotesDatabaseHelper.COL_SYNC_STATUS);
+        if (syncStatusIdx >= 0) {
+            note.setSyncStatus(cursor.getInt(syncStatusIdx));
+        }
+        return note;
+    }
+
+    // ============ ARCHIVE ============
+
+    public void archiveNote(long noteId) {
+        SQLiteDatabase db = dbHelper.getWritableDatabase();
+        ContentValues values = new ContentValues();
+        values.put(NotesDatabaseHelper.COL_IS_ARCHIVED, 1);
+        db.update(NotesDatabaseHelper.TABLE_NOTES, values,
+                NotesDatabaseHelper.COL_ID + "=?",
+                new String[]{String.valueOf(noteId)});
+        noteCache.remove(noteId);
+    }
+
+    public void unarchiveNote(long noteId) {
+        SQLiteDatabase db = dbHelper.getWritableDatabase();
+        ContentValues values = new ContentValues();
+        values.put(NotesDatabaseHelper.COL_IS_ARCHIVED, 0);
+        db.update(NotesDatabaseHelper.TABLE_NOTES, values,
+                NotesDatabaseHelper.COL_ID + "=?",
+                new String[]{String.valueOf(noteId)});
+        noteCache.remove(noteId);
+    }
+
+    public List getArchivedNotes() {
+        List notes = new ArrayList();
+        SQLiteDatabase db = dbHelper.getReadableDatabase();
+        Cursor cursor = db.query(NotesDatabaseHelper.TABLE_NOTES,
+                null,
+                NotesDatabaseHelper.COL_IS_ARCHIVED + "=1",
+                null, null, null,
+                NotesDatabaseHelper.COL_MODIFIED + " DESC");
+        if (cursor != null) {
+            while (cursor.moveToNext()) {
+                notes.add(cursorToNote(cursor));
+            }
+            cursor.close();
+        }
+        return notes;
+    }
+
+    // ============ CATEGORIES ============
+
+    public long insertCategory(Category category) {
+        SQLiteDatabase db = dbHelper.getWritableDatabase();
+        ContentValues values = new ContentValues();
+        values.put(NotesDatabaseHelper.COL_CAT_NAME, category.getName());
+        values.put(NotesDatabaseHelper.COL_CAT_COLOR, category.getColor());
+        values.put(NotesDatabaseHelper.COL_CAT_ORDER, category.getSortOrder());
         return db.insert(NotesDatabaseHelper.TABLE_CATEGORIES, null, values);
     }
 
@@ -425,6 +1073,8 @@ public class NotesRepository {
         db.update(NotesDatabaseHelper.TABLE_NOTES, values,
                 NotesDatabaseHelper.COL_CATEGORY_ID + "=?",
                 new String[]{String.valueOf(id)});
+        // Any cached note may have been in this category
+        noteCache.clear();
         return db.delete(NotesDatabaseHelper.TABLE_CATEGORIES,
                 NotesDatabaseHelper.COL_CAT_ID + "=?",
                 new String[]{String.valueOf(id)});
@@ -485,6 +1135,13 @@ public class NotesRepository {
     // ============ TRASH ============
 
     public long moveToTrash(Note note) {
+        if (note.isSummary()) {
+            // Trash keeps the full note for restore
+            note = getNoteById(note.getId());
+            if (note == null) {
+                return -1;
+            }
+        }
         SQLiteDatabase db = dbHelper.getWritableDatabase();
         byte[] key = getKey();
         ContentValues values = new ContentValues();
@@ -500,6 +1157,7 @@ public class NotesRepository {
         values.put(NotesDatabaseHelper.COL_TRASH_FILES_DATA, note.getFilesData());
         values.put(NotesDatabaseHelper.COL_TRASH_AUDIOS_DATA, note.getAudiosData());
         values.put(NotesDatabaseHelper.COL_TRASH_LINKED_NOTE_IDS, note.getLinkedNoteIds());
+        values.put(NotesDatabaseHelper.COL_TRASH_KEY_VERSION, getKeyVersion());
         long trashId = db.insert(NotesDatabaseHelper.TABLE_TRASH, null, values);
         deleteNote(note.getId());
         return trashId;
@@ -631,6 +1289,7 @@ public class NotesRepository {
         values.put(NotesDatabaseHelper.COL_MANTRA_SPEED, mantra.getPlaybackSpeed());
         values.put(NotesDatabaseHelper.COL_MANTRA_RAW_RES_ID, mantra.getRawResId());
         values.put(NotesDatabaseHelper.COL_MANTRA_BUILT_IN, mantra.isBuiltIn() ? 1 : 0);
+        values.put(NotesDatabaseHelper.COL_ROW_MODIFIED, System.currentTimeMillis());
         return db.insert(NotesDatabaseHelper.TABLE_MANTRAS, null, values);
     }
 
@@ -645,6 +1304,7 @@ public class NotesRepository {
         values.put(NotesDatabaseHelper.COL_MANTRA_SPEED, mantra.getPlaybackSpeed());
         values.put(NotesDatabaseHelper.COL_MANTRA_RAW_RES_ID, mantra.getRawResId());
         values.put(NotesDatabaseHelper.COL_MANTRA_BUILT_IN, mantra.isBuiltIn() ? 1 : 0);
+        ActivitySyncRepository.markPending(values);
         return db.update(NotesDatabaseHelper.TABLE_MANTRAS, values,
                 NotesDatabaseHelper.COL_MANTRA_ID + "=?",
                 new String[]{String.valueOf(mantra.getId())});
@@ -652,9 +1312,17 @@ public class NotesRepository {
 
     public int deleteMantra(long mantraId) {
         SQLiteDatabase db = dbHelper.getWritableDatabase();
-        return db.delete(NotesDatabaseHelper.TABLE_MANTRAS,
-                NotesDatabaseHelper.COL_MANTRA_ID + "=?",
-                new String[]{String.valueOf(mantraId)});
+        db.beginTransaction();
+        try {
+            ActivitySyncRepository.tombstoneMantra(db, mantraId);
+            int rows = db.delete(NotesDatabaseHelper.TABLE_MANTRAS,
+                    NotesDatabaseHelper.COL_MANTRA_ID + "=?",
+                    new String[]{String.valueOf(mantraId)});
+            db.setTransactionSuccessful();
+            return rows;
+        } finally {
+            db.endTransaction();
+        }
     }
 
     public List getMantrasByNoteId(long noteId) {
@@ -816,11 +1484,18 @@ public class NotesRepository {
             return false;
         }
         SQLiteDatabase db = dbHelper.getWritableDatabase();
-        int rows = db.delete(NotesDatabaseHelper.TABLE_MANTRAS,
-                NotesDatabaseHelper.COL_MANTRA_ID + "=? AND " +
-                        NotesDatabaseHelper.COL_MANTRA_BUILT_IN + "=0",
-                new String[]{String.valueOf(mantraId)});
-        return rows > 0;
+        db.beginTransaction();
+        try {
+            ActivitySyncRepository.tombstoneMantra(db, mantraId);
+            int rows = db.delete(NotesDatabaseHelper.TABLE_MANTRAS,
+                    NotesDatabaseHelper.COL_MANTRA_ID + "=? AND " +
+                            NotesDatabaseHelper.COL_MANTRA_BUILT_IN + "=0",
+                    new String[]{String.valueOf(mantraId)});
+            db.setTransactionSuccessful();
+            return rows > 0;
+        } finally {
+            db.endTransaction();
+        }
     }
 
     /**
@@ -831,6 +1506,7 @@ public class NotesRepository {
         SQLiteDatabase db = dbHelper.getWritableDatabase();
         ContentValues values = new ContentValues();
         values.put(NotesDatabaseHelper.COL_MANTRA_IS_DELETED, 1);
+        ActivitySyncRepository.markPending(values);
         db.update(NotesDatabaseHelper.TABLE_MANTRAS, values,
                 NotesDatabaseHelper.COL_MANTRA_ID + "=?",
                 new String[]{String.valueOf(mantraId)});
@@ -919,6 +1595,7 @@ public class NotesRepository {
         values.put(NotesDatabaseHelper.COL_SESSION_DATE, date);
         values.put(NotesDatabaseHelper.COL_SESSION_COUNT, 0);
         values.put(NotesDatabaseHelper.COL_SESSION_SPEED, 1.0f);
+        values.put(NotesDatabaseHelper.COL_ROW_MODIFIED, System.currentTimeMillis());
         return db.insert(NotesDatabaseHelper.TABLE_DAILY_SESSIONS, null, values);
     }
 
@@ -952,10 +1629,12 @@ public class NotesRepository {
         SQLiteDatabase db = dbHelper.getWritableDatabase();
         db.execSQL("UPDATE " + NotesDatabaseHelper.TABLE_DAILY_SESSIONS +
                 " SET " + NotesDatabaseHelper.COL_SESSION_COUNT + " = " +
-                NotesDatabaseHelper.COL_SESSION_COUNT + " + 1 WHERE " +
+                NotesDatabaseHelper.COL_SESSION_COUNT + " + 1, " +
+                NotesDatabaseHelper.COL_ROW_MODIFIED + "=?, " +
+                NotesDatabaseHelper.COL_ROW_SYNC_STATUS + "=" + Note.SYNC_STATUS_PENDING + " WHERE " +
                 NotesDatabaseHelper.COL_SESSION_MANTRA_ID + "=? AND " +
                 NotesDatabaseHelper.COL_SESSION_DATE + "=?",
-                new Object[]{Long.valueOf(mantraId), date});
+                new Object[]{Long.valueOf(System.currentTimeMillis()), Long.valueOf(mantraId), date});
         return getSessionCount(mantraId, date);
     }
 
@@ -966,6 +1645,7 @@ public class NotesRepository {
         SQLiteDatabase db = dbHelper.getWritableDatabase();
         ContentValues values = new ContentValues();
         values.put(NotesDatabaseHelper.COL_SESSION_COUNT, 0);
+        ActivitySyncRepository.markPending(values);
         db.update(NotesDatabaseHelper.TABLE_DAILY_SESSIONS, values,
                 NotesDatabaseHelper.COL_SESSION_MANTRA_ID + "=? AND " +
                         NotesDatabaseHelper.COL_SESSION_DATE + "=?",
@@ -977,10 +1657,17 @@ public class NotesRepository {
      */
     public void deleteSessionForDate(long mantraId, String date) {
         SQLiteDatabase db = dbHelper.getWritableDatabase();
-        db.delete(NotesDatabaseHelper.TABLE_DAILY_SESSIONS,
-                NotesDatabaseHelper.COL_SESSION_MANTRA_ID + "=? AND " +
-                        NotesDatabaseHelper.COL_SESSION_DATE + "=?",
-                new String[]{String.valueOf(mantraId), date});
+        db.beginTransaction();
+        try {
+            ActivitySyncRepository.tombstoneSession(db, mantraId, date);
+            db.delete(NotesDatabaseHelper.TABLE_DAILY_SESSIONS,
+                    NotesDatabaseHelper.COL_SESSION_MANTRA_ID + "=? AND " +
+                            NotesDatabaseHelper.COL_SESSION_DATE + "=?",
+                    new String[]{String.valueOf(mantraId), date});
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
     }
 
     /**
@@ -1022,6 +1709,8 @@ public class NotesRepository {
         SQLiteDatabase db = dbHelper.getWritableDatabase();
         ContentValues values = new ContentValues();
         values.put(NotesDatabaseHelper.COL_SESSION_SPEED, speed);
+        values.put(NotesDatabaseHelper.COL_SESSION_SPEED_MODIFIED, System.currentTimeMillis());
+        ActivitySyncRepository.markPending(values);
         db.update(NotesDatabaseHelper.TABLE_DAILY_SESSIONS, values,
                 NotesDatabaseHelper.COL_SESSION_MANTRA_ID + "=? AND " +
                         NotesDatabaseHelper.COL_SESSION_DATE + "=?",
@@ -1054,9 +1743,16 @@ public class NotesRepository {
      */
     public void deleteMantraHistory(long mantraId) {
         SQLiteDatabase db = dbHelper.getWritableDatabase();
-        db.delete(NotesDatabaseHelper.TABLE_MANTRA_HISTORY,
-                NotesDatabaseHelper.COL_HIST_MANTRA_ID + "=?",
-                new String[]{String.valueOf(mantraId)});
+        db.beginTransaction();
+        try {
+            ActivitySyncRepository.tombstoneHistory(db, mantraId);
+            db.delete(NotesDatabaseHelper.TABLE_MANTRA_HISTORY,
+                    NotesDatabaseHelper.COL_HIST_MANTRA_ID + "=?",
+                    new String[]{String.valueOf(mantraId)});
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
     }
 
     // ============ MANTRA COUNT LOG (Timestamp-based) ============
@@ -1192,10 +1888,29 @@ public class NotesRepository {
         if (note.getCloudId() == null || note.getCloudId().length() == 0) {
             note.setCloudId(UUID.randomUUID().toString());
         }
+        SearchIndexUtils.IndexEntry entry = buildIndexEntryFromRaw(note);
+        ContentValues values = rawNoteValues(note, entry);
+        values.put(NotesDatabaseHelper.COL_CREATED, note.getCreatedAt());
+        values.put(NotesDatabaseHelper.COL_SYNC_STATUS, note.getSyncStatus());
+        db.beginTransaction();
+        try {
+            long id = db.insert(NotesDatabaseHelper.TABLE_NOTES, null, values);
+            writeFtsRow(db, id, entry);
+            db.setTransactionSuccessful();
+            return id;
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * Column values of a note holding raw (encrypted) field values, with the
+     * derived preview and search index; without created_at and sync_status.
+     */
+    private ContentValues rawNoteValues(Note note, SearchIndexUtils.IndexEntry entry) {
         ContentValues values = new ContentValues();
         values.put(NotesDatabaseHelper.COL_TITLE, note.getTitle());
         values.put(NotesDatabaseHelper.COL_CONTENT, note.getContent());
-        values.put(NotesDatabaseHelper.COL_CREATED, note.getCreatedAt());
         values.put(NotesDatabaseHelper.COL_MODIFIED, note.getModifiedAt());
         values.put(NotesDatabaseHelper.COL_COLOR, note.getColor());
         values.put(NotesDatabaseHelper.COL_FAVORITE, note.isFavorite() ? 1 : 0);
@@ -1213,22 +1928,238 @@ public class NotesRepository {
         values.put(NotesDatabaseHelper.COL_IS_ROUTINE_MODE, note.isRoutineMode() ? 1 : 0);
         values.put(NotesDatabaseHelper.COL_ROUTINE_DATA, note.getRoutineData());
         values.put(NotesDatabaseHelper.COL_IS_ARCHIVED, note.isArchived() ? 1 : 0);
-        values.put(NotesDatabaseHelper.COL_SEARCH_INDEX, "");
+        putPreviewFromRaw(values, note);
+        values.put(NotesDatabaseHelper.COL_KEY_VERSION, KEY_VERSION_UNKNOWN);
+        values.put(NotesDatabaseHelper.COL_SEARCH_INDEX, entry != null ? entry.prefixes : "");
         values.put(NotesDatabaseHelper.COL_CLOUD_ID, note.getCloudId());
-        values.put(NotesDatabaseHelper.COL_SYNC_STATUS, note.getSyncStatus());
-        return db.insert(NotesDatabaseHelper.TABLE_NOTES, null, values);
+        values.put(NotesDatabaseHelper.COL_SYNCED_HASHES, note.getSyncedHashes());
+        values.put(NotesDatabaseHelper.COL_VCLOCK, note.getVclock());
+        return values;
+    }
+
+    /**
+     * Replace several notes by id with raw (already-encrypted) data, in one
+     * transaction (restore of an incremental backup). Rows become PENDING.
+     *
+     * @param ids local ids, in the order of rawNotes
+     */
+    public void updateNotesRaw(long[] ids, List rawNotes) {
+        SQLiteDatabase db = dbHelper.getWritableDatabase();
+        db.beginTransaction();
+        try {
+            for (int i = 0; i < ids.length; i++) {
+                Note note = (Note) rawNotes.get(i);
+                SearchIndexUtils.IndexEntry entry = buildIndexEntryFromRaw(note);
+                ContentValues values = rawNoteValues(note, entry);
+                values.put(NotesDatabaseHelper.COL_CREATED, note.getCreatedAt());
+                values.put(NotesDatabaseHelper.COL_SYNC_STATUS, Note.SYNC_STATUS_PENDING);
+                int rows = db.update(NotesDatabaseHelper.TABLE_NOTES, values, NotesDatabaseHelper.COL_ID + "=?",
+                        new String[]{String.valueOf(ids[i])});
+                if (rows > 0) {
+                    writeFtsRow(db, ids[i], entry);
+                }
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            uncache(ids);
+        }
+    }
+
+    /**
+     * insertNoteRaw() for many notes: one transaction and one prepared
+     * statement for the whole list (restore of large backups). Rows get the
+     * same derived values (preview, search index, FTS row, cloud id).
+     *
+     * @return new ids, in list order
+     * @throws android.database.SQLException if an insert fails; nothing of the list is kept
+     */
+    public long[] insertNotesRaw(List rawNotes) {
+        SQLiteDatabase db = dbHelper.getWritableDatabase();
+        long[] ids = new long[rawNotes.size()];
+        SQLiteStatement insert = db.compileStatement("INSERT INTO " + NotesDatabaseHelper.TABLE_NOTES + " ("
+                + NotesDatabaseHelper.COL_TITLE + ", " + NotesDatabaseHelper.COL_CONTENT + ", "
+                + NotesDatabaseHelper.COL_CREATED + ", " + NotesDatabaseHelper.COL_MODIFIED + ", "
+                + NotesDatabaseHelper.COL_COLOR + ", " + NotesDatabaseHelper.COL_FAVORITE + ", "
+                + NotesDatabaseHelper.COL_LOCKED + ", " + NotesDatabaseHelper.COL_PASSWORD + ", "
+                + NotesDatabaseHelper.COL_CATEGORY_ID + ", " + NotesDatabaseHelper.COL_HAS_CHECKLIST + ", "
+                + NotesDatabaseHelper.COL_HAS_IMAGE + ", " + NotesDatabaseHelper.COL_CHECKLIST_DATA + ", "
+                + NotesDatabaseHelper.COL_IS_CHECKLIST_MODE + ", " + NotesDatabaseHelper.COL_IMAGES_DATA + ", "
+                + NotesDatabaseHelper.COL_FILES_DATA + ", " + NotesDatabaseHelper.COL_AUDIOS_DATA + ", "
+                + NotesDatabaseHelper.COL_LINKED_NOTE_IDS + ", " + NotesDatabaseHelper.COL_IS_ROUTINE_MODE + ", "
+                + NotesDatabaseHelper.COL_ROUTINE_DATA + ", " + NotesDatabaseHelper.COL_IS_ARCHIVED + ", "
+                + NotesDatabaseHelper.COL_PREVIEW + ", " + NotesDatabaseHelper.COL_KEY_VERSION + ", "
+                + NotesDatabaseHelper.COL_SEARCH_INDEX + ", " + NotesDatabaseHelper.COL_CLOUD_ID + ", "
+                + NotesDatabaseHelper.COL_SYNC_STATUS + ", " + NotesDatabaseHelper.COL_SYNCED_HASHES + ", "
+                + NotesDatabaseHelper.COL_VCLOCK
+                + ") VALUES (?,?,?,?,?,?,?,?,?,?,?,?,?,?,?,?,?,?,?,?,?,?,?,?,?,?,?)");
+        SQLiteStatement fts = null;
+        try {
+            fts = db.compileStatement("INSERT INTO " + NotesDatabaseHelper.TABLE_NOTES_FTS + " (docid, "
+                    + NotesDatabaseHelper.COL_FTS_WORDS + ", " + NotesDatabaseHelper.COL_FTS_PREFIXES
+                    + ") VALUES (?,?,?)");
+        } catch (Exception e) {
+            // FTS table unavailable; search falls back to search_index
+        }
+        db.beginTransaction();
+        try {
+            for (int i = 0; i < rawNotes.size(); i++) {
+                Note note = (Note) rawNotes.get(i);
+                if (note.getCloudId() == null || note.getCloudId().length() == 0) {
+                    note.setCloudId(UUID.randomUUID().toString());
+                }
+                SearchIndexUtils.IndexEntry entry = buildIndexEntryFromRaw(note);
+                insert.clearBindings();
+                bindText(insert, 1, note.getTitle());
+                bindText(insert, 2, note.getContent());
+                insert.bindLong(3, note.getCreatedAt());
+                insert.bindLong(4, note.getModifiedAt());
+                insert.bindLong(5, note.getColor());
+                insert.bindLong(6, note.isFavorite() ? 1 : 0);
+                insert.bindLong(7, note.isLocked() ? 1 : 0);
+                bindText(insert, 8, note.getPassword());
+                insert.bindLong(9, note.getCategoryId());
+                insert.bindLong(10, note.hasChecklist() ? 1 : 0);
+                insert.bindLong(11, note.hasImage() ? 1 : 0);
+                bindText(insert, 12, note.getChecklistData());
+                insert.bindLong(13, note.isChecklistMode() ? 1 : 0);
+                bindText(insert, 14, note.getImagesData());
+                bindText(insert, 15, note.getFilesData());
+                bindText(insert, 16, note.getAudiosData());
+                bindText(insert, 17, note.getLinkedNoteIds());
+                insert.bindLong(18, note.isRoutineMode() ? 1 : 0);
+                bindText(insert, 19, note.getRoutineData());
+                insert.bindLong(20, note.isArchived() ? 1 : 0);
+                bindText(insert, 21, previewFromRaw(note));
+                insert.bindLong(22, KEY_VERSION_UNKNOWN);
+                bindText(insert, 23, entry != null ? entry.prefixes : "");
+                bindText(insert, 24, note.getCloudId());
+                insert.bindLong(25, note.getSyncStatus());
+                bindText(insert, 26, note.getSyncedHashes());
+                bindText(insert, 27, note.getVclock());
+                long id = insert.executeInsert();
+                if (id <= 0) {
+                    throw new android.database.SQLException("Insert failed");
+                }
+                ids[i] = id;
+                if (entry == null) {
+                    searchIndexComplete = false;
+                } else if (fts != null) {
+                    try {
+                        fts.clearBindings();
+                        fts.bindLong(1, id);
+                        bindText(fts, 2, entry.words);
+                        bindText(fts, 3, entry.prefixOccurrences);
+                        fts.executeInsert();
+                    } catch (Exception e) {
+                        // FTS table unavailable; search falls back to search_index
+                    }
+                }
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            insert.close();
+            if (fts != null) fts.close();
+        }
+        return ids;
+    }
+
+    private static void bindText(SQLiteStatement statement, int index, String value) {
+        if (value == null) {
+            statement.bindNull(index);
+        } else {
+            statement.bindString(index, value);
+        }
+    }
+
+    /**
+     * Delete notes by id with their FTS rows, in one transaction. Undoes a
+     * partially restored backup and applies deletions of incremental ones.
+     */
+    public void deleteNotes(long[] ids) {
+        SQLiteDatabase db = dbHelper.getWritableDatabase();
+        db.beginTransaction();
+        try {
+            for (int i = 0; i < ids.length; i++) {
+                deleteFtsRow(db, ids[i]);
+                db.delete(NotesDatabaseHelper.TABLE_NOTES, NotesDatabaseHelper.COL_ID + "=?",
+                        new String[]{String.valueOf(ids[i])});
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            uncache(ids);
+        }
+    }
+
+    /**
+     * Set linked_note_ids of several notes in one transaction (links of
+     * restored notes remapped to their new ids).
+     *
+     * @param linksById Map Long note id -> linked ids JSON
+     */
+    public void updateLinkedNoteIds(Map linksById) {
+        SQLiteDatabase db = dbHelper.getWritableDatabase();
+        db.beginTransaction();
+        try {
+            Iterator it = linksById.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry entry = (Map.Entry) it.next();
+                long id = ((Long) entry.getKey()).longValue();
+                ContentValues values = new ContentValues();
+                values.put(NotesDatabaseHelper.COL_LINKED_NOTE_IDS, (String) entry.getValue());
+                db.update(NotesDatabaseHelper.TABLE_NOTES, values, NotesDatabaseHelper.COL_ID + "=?",
+                        new String[]{String.valueOf(id)});
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            Iterator it = linksById.keySet().iterator();
+            while (it.hasNext()) {
+                noteCache.remove(((Long) it.next()).longValue());
+            }
+        }
+    }
+
+    /**
+     * Get all notes with RAW (encrypted) data for backup purposes.
+     * Does NOT decrypt -- reads directly from DB.
+     */
+    public List getAllNotesRaw() {
+        List notes = new ArrayList();
+        SQLiteDatabase db = dbHelper.getReadableDatabase();
+        Cursor cursor = db.query(NotesDatabaseHelper.TABLE_NOTES,
+                null, null, null, null, null,
+                NotesDatabaseHelper.COL_ID + " ASC");
+        if (cursor != null) {
+            while (cursor.moveToNext()) {
+                notes.add(cursorToNoteRaw(cursor));
+            }
+            cursor.close();
+        }
+        return notes;
     }
 
     /**
-     * Get all notes with RAW (encrypted) data for backup purposes.
-     * Does NOT decrypt -- reads directly from DB.
+     * Number of rows in the notes table (backup header).
      */
-    public List getAllNotesRaw() {
+    public int getNotesRawCount() {
+        SQLiteDatabase db = dbHelper.getReadableDatabase();
+        return (int) DatabaseUtils.queryNumEntries(db, NotesDatabaseHelper.TABLE_NOTES);
+    }
+
+    /**
+     * One page of getAllNotesRaw(): up to limit notes with an id above afterId,
+     * by id. Lets a backup stream the library instead of loading all of it.
+     */
+    public List getNotesRawAfter(long afterId, int limit) {
         List notes = new ArrayList();
         SQLiteDatabase db = dbHelper.getReadableDatabase();
         Cursor cursor = db.query(NotesDatabaseHelper.TABLE_NOTES,
-                null, null, null, null, null,
-                NotesDatabaseHelper.COL_ID + " ASC");
+                null, NotesDatabaseHelper.COL_ID + ">?",
+                new String[]{String.valueOf(afterId)}, null, null,
+                NotesDatabaseHelper.COL_ID + " ASC", String.valueOf(limit));
         if (cursor != null) {
             while (cursor.moveToNext()) {
                 notes.add(cursorToNoteRaw(cursor));
@@ -1278,6 +2209,10 @@ public class NotesRepository {
         if (cloudIdIdx >= 0) note.setCloudId(cursor.getString(cloudIdIdx));
         int syncStatusIdx = cursor.getColumnIndex(NotesDatabaseHelper.COL_SYNC_STATUS);
         if (syncStatusIdx >= 0) note.setSyncStatus(cursor.getInt(syncStatusIdx));
+        int hashesIdx = cursor.getColumnIndex(NotesDatabaseHelper.COL_SYNCED_HASHES);
+        if (hashesIdx >= 0) note.setSyncedHashes(cursor.getString(hashesIdx));
+        int vclockIdx = cursor.getColumnIndex(NotesDatabaseHelper.COL_VCLOCK);
+        if (vclockIdx >= 0) note.setVclock(cursor.getString(vclockIdx));
         return note;
     }
 
@@ -1323,6 +2258,39 @@ public class NotesRepository {
         return note;
     }
 
+    /**
+     * Notes with the given cloud ids, RAW (encrypted), keyed by cloud id.
+     * One query per CLOUD_ID_QUERY_CHUNK ids instead of one per note.
+     *
+     * @param cloudIds Collection of String
+     */
+    public Map getNotesRawByCloudIds(Collection cloudIds) {
+        Map notes = new HashMap();
+        if (cloudIds == null || cloudIds.isEmpty()) return notes;
+        SQLiteDatabase db = dbHelper.getReadableDatabase();
+        List ids = new ArrayList(cloudIds);
+        for (int start = 0; start < ids.size(); start += CLOUD_ID_QUERY_CHUNK) {
+            int end = Math.min(ids.size(), start + CLOUD_ID_QUERY_CHUNK);
+            String[] args = new String[end - start];
+            StringBuilder in = new StringBuilder();
+            for (int i = start; i < end; i++) {
+                args[i - start] = (String) ids.get(i);
+                in.append(i > start ? ",?" : "?");
+            }
+            Cursor cursor = db.query(NotesDatabaseHelper.TABLE_NOTES, null,
+                    NotesDatabaseHelper.COL_CLOUD_ID + " IN (" + in + ")",
+                    args, null, null, null);
+            if (cursor != null) {
+                while (cursor.moveToNext()) {
+                    Note note = cursorToNoteRaw(cursor);
+                    notes.put(note.getCloudId(), note);
+                }
+                cursor.close();
+            }
+        }
+        return notes;
+    }
+
     /**
      * Get a note by local ID with RAW (encrypted) data.
      * Used by CloudSyncManager after insert/update to read encrypted values.
@@ -1342,6 +2310,88 @@ public class NotesRepository {
         return note;
     }
 
+    /**
+     * Notes changed locally and not uploaded yet (sync_status PENDING), raw.
+     * This is the local side of a delta sync.
+     */
+    public List getPendingNotesRaw() {
+        List notes = new ArrayList();
+        SQLiteDatabase db = dbHelper.getReadableDatabase();
+        Cursor cursor = db.query(NotesDatabaseHelper.TABLE_NOTES,
+                null, NotesDatabaseHelper.COL_SYNC_STATUS + "=?",
+                new String[]{String.valueOf(Note.SYNC_STATUS_PENDING)}, null, null,
+                NotesDatabaseHelper.COL_ID + " ASC");
+        if (cursor != null) {
+            while (cursor.moveToNext()) {
+                notes.add(cursorToNoteRaw(cursor));
+            }
+            cursor.close();
+        }
+        return notes;
+    }
+
+    /**
+     * Record a committed upload: the note's cloud base (synced hashes and
+     * version vector) becomes the uploaded version, and the note is marked
+     * synced unless it was modified again meanwhile (then it stays PENDING for
+     * the next sync, based on the uploaded version). The caller uncaches the
+     * note after its transaction.
+     */
+    private void markSyncedIfUnchanged(SQLiteDatabase db, Note uploaded) {
+        String[] idArg = new String[]{String.valueOf(uploaded.getId())};
+        if (uploaded.getSyncedHashes() != null) {
+            ContentValues base = new ContentValues();
+            base.put(NotesDatabaseHelper.COL_SYNCED_HASHES, uploaded.getSyncedHashes());
+            base.put(NotesDatabaseHelper.COL_VCLOCK, uploaded.getVclock());
+            db.update(NotesDatabaseHelper.TABLE_NOTES, base, NotesDatabaseHelper.COL_ID + "=?", idArg);
+        }
+        ContentValues values = new ContentValues();
+        values.put(NotesDatabaseHelper.COL_SYNC_STATUS, Note.SYNC_STATUS_SYNCED);
+        db.update(NotesDatabaseHelper.TABLE_NOTES, values,
+                NotesDatabaseHelper.COL_ID + "=? AND " + NotesDatabaseHelper.COL_MODIFIED + "=?",
+                new String[]{idArg[0], String.valueOf(uploaded.getModifiedAt())});
+    }
+
+    /**
+     * markSyncedIfUnchanged() for a committed upload batch, in one transaction.
+     *
+     * @param rawNotes List of Note as uploaded (id, modifiedAt, syncedHashes and
+     *                 vclock are used)
+     */
+    public void markSyncedIfUnchanged(List rawNotes) {
+        if (rawNotes == null || rawNotes.isEmpty()) return;
+        SQLiteDatabase db = dbHelper.getWritableDatabase();
+        db.beginTransaction();
+        try {
+            for (int i = 0; i < rawNotes.size(); i++) {
+                Note n = (Note) rawNotes.get(i);
+                markSyncedIfUnchanged(db, n);
+            }
+            db.setTransactionSuccessful();
+        } catch (Exception e) {
+            // Notes stay PENDING and are uploaded again by the next sync
+        } finally {
+            db.endTransaction();
+            for (int i = 0; i < rawNotes.size(); i++) {
+                noteCache.remove(((Note) rawNotes.get(i)).getId());
+            }
+        }
+    }
+
+    /**
+     * Forget the cloud base (field hashes and version vector) of every note, so
+     * the next upload of each sends the whole document. Call when the
+     * signed-in account changes.
+     */
+    public void clearSyncBase() {
+        SQLiteDatabase db = dbHelper.getWritableDatabase();
+        ContentValues values = new ContentValues();
+        values.putNull(NotesDatabaseHelper.COL_SYNCED_HASHES);
+        values.putNull(NotesDatabaseHelper.COL_VCLOCK);
+        db.update(NotesDatabaseHelper.TABLE_NOTES, values, null, null);
+        noteCache.clear();
+    }
+
     /**
      * Update sync status for a note by local ID.
      */
@@ -1352,6 +2402,7 @@ public class NotesRepository {
         db.update(NotesDatabaseHelper.TABLE_NOTES, values,
                 NotesDatabaseHelper.COL_ID + "=?",
                 new String[]{String.valueOf(noteId)});
+        noteCache.remove(noteId);
     }
 
     /**
@@ -1360,32 +2411,50 @@ public class NotesRepository {
      */
     public void updateNoteRaw(Note note) {
         SQLiteDatabase db = dbHelper.getWritableDatabase();
-        ContentValues values = new ContentValues();
-        values.put(NotesDatabaseHelper.COL_TITLE, note.getTitle());
-        values.put(NotesDatabaseHelper.COL_CONTENT, note.getContent());
-        values.put(NotesDatabaseHelper.COL_MODIFIED, note.getModifiedAt());
-        values.put(NotesDatabaseHelper.COL_COLOR, note.getColor());
-        values.put(NotesDatabaseHelper.COL_FAVORITE, note.isFavorite() ? 1 : 0);
-        values.put(NotesDatabaseHelper.COL_LOCKED, note.isLocked() ? 1 : 0);
-        values.put(NotesDatabaseHelper.COL_PASSWORD, note.getPassword());
-        values.put(NotesDatabaseHelper.COL_CATEGORY_ID, note.getCategoryId());
-        values.put(NotesDatabaseHelper.COL_HAS_CHECKLIST, note.hasChecklist() ? 1 : 0);
-        values.put(NotesDatabaseHelper.COL_HAS_IMAGE, note.hasImage() ? 1 : 0);
-        values.put(NotesDatabaseHelper.COL_CHECKLIST_DATA, note.getChecklistData());
-        values.put(NotesDatabaseHelper.COL_IS_CHECKLIST_MODE, note.isChecklistMode() ? 1 : 0);
-        values.put(NotesDatabaseHelper.COL_IMAGES_DATA, note.getImagesData());
-        values.put(NotesDatabaseHelper.COL_FILES_DATA, note.getFilesData());
-        values.put(NotesDatabaseHelper.COL_AUDIOS_DATA, note.getAudiosData());
-        values.put(NotesDatabaseHelper.COL_LINKED_NOTE_IDS, note.getLinkedNoteIds());
-        values.put(NotesDatabaseHelper.COL_IS_ROUTINE_MODE, note.isRoutineMode() ? 1 : 0);
-        values.put(NotesDatabaseHelper.COL_ROUTINE_DATA, note.getRoutineData());
-        values.put(NotesDatabaseHelper.COL_IS_ARCHIVED, note.isArchived() ? 1 : 0);
-        values.put(NotesDatabaseHelper.COL_SEARCH_INDEX, "");
-        values.put(NotesDatabaseHelper.COL_CLOUD_ID, note.getCloudId());
-        values.put(NotesDatabaseHelper.COL_SYNC_STATUS, Note.SYNC_STATUS_SYNCED);
-        db.update(NotesDatabaseHelper.TABLE_NOTES, values,
-                NotesDatabaseHelper.COL_CLOUD_ID + "=?",
-                new String[]{note.getCloudId()});
+        long id = -1;
+        db.beginTransaction();
+        try {
+            id = updateNoteRaw(db, note, UPDATE_ALWAYS, Note.SYNC_STATUS_SYNCED);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            noteCache.remove(id);
+        }
+    }
+
+    /**
+     * @param guard UPDATE_ALWAYS; UPDATE_IF_NOT_NEWER to only update if the local row's
+     *              modified_at is at most note's, so a local edit made after the sync
+     *              compared them is kept (equal times are replaced: the cloud then holds
+     *              a field-level merge of this version); UPDATE_IF_SYNCED to only update
+     *              a row without local edits
+     * @return local id of the updated row, -1 if none was updated; the caller
+     *         uncaches it after its transaction
+     */
+    private long updateNoteRaw(SQLiteDatabase db, Note note, int guard, int syncStatus) {
+        SearchIndexUtils.IndexEntry entry = buildIndexEntryFromRaw(note);
+        ContentValues values = rawNoteValues(note, entry);
+        values.put(NotesDatabaseHelper.COL_SYNC_STATUS, syncStatus);
+        int updated;
+        if (guard == UPDATE_IF_NOT_NEWER) {
+            updated = db.update(NotesDatabaseHelper.TABLE_NOTES, values,
+                    NotesDatabaseHelper.COL_CLOUD_ID + "=? AND " + NotesDatabaseHelper.COL_MODIFIED + "<=?",
+                    new String[]{note.getCloudId(), String.valueOf(note.getModifiedAt())});
+        } else if (guard == UPDATE_IF_SYNCED) {
+            updated = db.update(NotesDatabaseHelper.TABLE_NOTES, values,
+                    NotesDatabaseHelper.COL_CLOUD_ID + "=? AND " + NotesDatabaseHelper.COL_SYNC_STATUS + "=?",
+                    new String[]{note.getCloudId(), String.valueOf(Note.SYNC_STATUS_SYNCED)});
+        } else {
+            updated = db.update(NotesDatabaseHelper.TABLE_NOTES, values,
+                    NotesDatabaseHelper.COL_CLOUD_ID + "=?",
+                    new String[]{note.getCloudId()});
+        }
+        if (updated <= 0) {
+            return -1;
+        }
+        long id = findIdByCloudId(db, note.getCloudId());
+        writeFtsRow(db, id, entry);
+        return id;
     }
 
     /**
@@ -1394,176 +2463,440 @@ public class NotesRepository {
     public void deleteNoteByCloudId(String cloudId) {
         if (cloudId == null || cloudId.length() == 0) return;
         SQLiteDatabase db = dbHelper.getWritableDatabase();
-        db.delete(NotesDatabaseHelper.TABLE_NOTES,
-                NotesDatabaseHelper.COL_CLOUD_ID + "=?",
-                new String[]{cloudId});
+        long id = -1;
+        db.beginTransaction();
+        try {
+            id = deleteNoteByCloudId(db, cloudId, Long.MAX_VALUE);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            noteCache.remove(id);
+        }
+    }
+
+    /**
+     * Delete the note with cloudId if its modified_at is at most maxModifiedAt.
+     *
+     * @return local id of the deleted row, -1 if none was deleted; the caller
+     *         uncaches it after its transaction
+     */
+    private long deleteNoteByCloudId(SQLiteDatabase db, String cloudId, long maxModifiedAt) {
+        long id = findIdByCloudId(db, cloudId);
+        if (id <= 0) return -1;
+        int deleted = db.delete(NotesDatabaseHelper.TABLE_NOTES,
+                NotesDatabaseHelper.COL_ID + "=? AND " + NotesDatabaseHelper.COL_MODIFIED + "<=?",
+                new String[]{String.valueOf(id), String.valueOf(maxModifiedAt)});
+        if (deleted <= 0) {
+            return -1;
+        }
+        deleteFtsRow(db, id);
+        return id;
     }
 
-    // ============ ENCRYPTION MIGRATION ============
+    /**
+     * Local side of a sync pass, filled by CloudSyncManager. All notes are raw
+     * (encrypted), as from the transport. Cloud notes carry syncedHashes and
+     * vclock of their cloud document.
+     */
+    public static class CloudChanges {
+        /** Cloud notes missing locally. */
+        public final List inserts = new ArrayList();
+        /** Cloud notes newer than the local row by modifiedAt (notes without version vectors). */
+        public final List updates = new ArrayList();
+        /** Cloud notes soft-deleted (cloud id + modifiedAt used). */
+        public final List deletes = new ArrayList();
+        /** Cloud notes whose version vector follows the local row's; replace rows without local edits. */
+        public final List forwards = new ArrayList();
+        /** Merges of concurrent versions; written PENDING so they are uploaded. */
+        public final List merges = new ArrayList();
+        /** Losing versions of content conflicts, inserted as new PENDING notes. */
+        public final List conflictCopies = new ArrayList();
+
+        public boolean isEmpty() {
+            return inserts.isEmpty() && updates.isEmpty() && deletes.isEmpty()
+                    && forwards.isEmpty() && merges.isEmpty() && conflictCopies.isEmpty();
+        }
+    }
 
     /**
-     * Migrate all existing plaintext notes to encrypted format.
-     * Wrapped in a DB transaction for crash safety -- if any note fails,
-     * the entire migration rolls back (no partial encryption).
-     * Idempotent: already-encrypted notes are skipped via isEncrypted() check.
+     * Apply the local side of a sync pass. Rows are written in transactions of
+     * SYNC_APPLY_BATCH, so readers and the editor are not blocked for the whole
+     * pass and a large download does not cost one commit per note.
+     *
+     * A local edit made while the sync ran is kept: updates, merges and deletes
+     * only touch rows whose modified_at is still at most the cloud's (merged)
+     * one, forwards only rows still SYNCED. Inserts skip cloud ids that
+     * appeared locally meanwhile.
      *
-     * @param key the derived encryption key
-     * @return true if migration succeeded, false on failure (rolled back)
+     * @param appliedIds receives the local id (Long) of every row inserted, updated
+     *                   or deleted (of committed batches); may be null
+     * @return false if a batch failed; earlier batches stay applied
      */
-    public boolean migrateToEncrypted(byte[] key) {
-        if (key == null) return false;
+    public boolean applyCloudChanges(CloudChanges changes, Set appliedIds) {
+        List ops = new ArrayList();
+        List kinds = new ArrayList();
+        addOps(ops, kinds, changes.inserts, SYNC_OP_INSERT);
+        addOps(ops, kinds, changes.updates, SYNC_OP_UPDATE);
+        addOps(ops, kinds, changes.forwards, SYNC_OP_FORWARD);
+        addOps(ops, kinds, changes.merges, SYNC_OP_MERGE);
+        addOps(ops, kinds, changes.conflictCopies, SYNC_OP_COPY);
+        addOps(ops, kinds, changes.deletes, SYNC_OP_DELETE);
         SQLiteDatabase db = dbHelper.getWritableDatabase();
-        db.beginTransaction();
-        try {
-            // Migrate notes table
-            Cursor cursor = db.query(NotesDatabaseHelper.TABLE_NOTES,
-                    null, null, null, null, null, null);
-            if (cursor != null) {
-                while (cursor.moveToNext()) {
-                    long id = cursor.getLong(cursor.getColumnIndex(NotesDatabaseHelper.COL_ID));
-                    String rawTitle = cursor.getString(cursor.getColumnIndex(NotesDatabaseHelper.COL_TITLE));
-                    String rawContent = cursor.getString(cursor.getColumnIndex(NotesDatabaseHelper.COL_CONTENT));
-                    String rawChecklist = "";
-                    int clIdx = cursor.getColumnIndex(NotesDatabaseHelper.COL_CHECKLIST_DATA);
-                    if (clIdx >= 0) {
-                        rawChecklist = cursor.getString(clIdx);
+        for (int start = 0; start < ops.size(); start += SYNC_APPLY_BATCH) {
+            int end = Math.min(ops.size(), start + SYNC_APPLY_BATCH);
+            List batchIds = new ArrayList();
+            db.beginTransaction();
+            try {
+                for (int i = start; i < end; i++) {
+                    Note note = (Note) ops.get(i);
+                    int kind = ((Integer) kinds.get(i)).intValue();
+                    long id = -1;
+                    if (kind == SYNC_OP_INSERT) {
+                        if (findIdByCloudId(db, note.getCloudId()) < 0) {
+                            note.setSyncStatus(Note.SYNC_STATUS_SYNCED);
+                            id = insertNoteRaw(note);
+                        }
+                    } else if (kind == SYNC_OP_UPDATE) {
+                        id = updateNoteRaw(db, note, UPDATE_IF_NOT_NEWER, Note.SYNC_STATUS_SYNCED);
+                    } else if (kind == SYNC_OP_FORWARD) {
+                        id = updateNoteRaw(db, note, UPDATE_IF_SYNCED, Note.SYNC_STATUS_SYNCED);
+                    } else if (kind == SYNC_OP_MERGE) {
+                        id = updateNoteRaw(db, note, UPDATE_IF_NOT_NEWER, Note.SYNC_STATUS_PENDING);
+                    } else if (kind == SYNC_OP_COPY) {
+                        note.setCloudId(null);
+                        note.setSyncStatus(Note.SYNC_STATUS_PENDING);
+                        id = insertNoteRaw(note);
+                    } else {
+                        id = deleteNoteByCloudId(db, note.getCloudId(), note.getModifiedAt());
                     }
-                    String rawRoutine = "";
-                    int rtIdx = cursor.getColumnIndex(NotesDatabaseHelper.COL_ROUTINE_DATA);
-                    if (rtIdx >= 0) {
-                        rawRoutine = cursor.getString(rtIdx);
+                    if (id > 0) {
+                        batchIds.add(Long.valueOf(id));
                     }
-
-                    // Skip if already encrypted
-                    if (rawTitle != null && CryptoUtils.isEncrypted(rawTitle)) {
-                        continue;
-                    }
-
-                    ContentValues values = new ContentValues();
-                    values.put(NotesDatabaseHelper.COL_TITLE, encryptFieldWithKey(rawTitle, key));
-                    values.put(NotesDatabaseHelper.COL_CONTENT, encryptFieldWithKey(rawContent, key));
-                    values.put(NotesDatabaseHelper.COL_CHECKLIST_DATA, encryptFieldWithKey(rawChecklist, key));
-                    values.put(NotesDatabaseHelper.COL_ROUTINE_DATA, encryptFieldWithKey(rawRoutine, key));
-                    values.put(NotesDatabaseHelper.COL_SEARCH_INDEX, "");
-                    db.update(NotesDatabaseHelper.TABLE_NOTES, values,
-                            NotesDatabaseHelper.COL_ID + "=?",
-                            new String[]{String.valueOf(id)});
                 }
-                cursor.close();
+                db.setTransactionSuccessful();
+                if (appliedIds != null) {
+                    appliedIds.addAll(batchIds);
+                }
+            } catch (Exception e) {
+                return false;
+            } finally {
+                db.endTransaction();
+                for (int i = 0; i < batchIds.size(); i++) {
+                    noteCache.remove(((Long) batchIds.get(i)).longValue());
+                }
             }
+        }
+        return true;
+    }
 
-            // Migrate trash table
-            Cursor trashCursor = db.query(NotesDatabaseHelper.TABLE_TRASH,
-                    null, null, null, null, null, null);
-            if (trashCursor != null) {
-                while (trashCursor.moveToNext()) {
-                    long id = trashCursor.getLong(trashCursor.getColumnIndex(NotesDatabaseHelper.COL_TRASH_ID));
-                    String rawTitle = trashCursor.getString(trashCursor.getColumnIndex(NotesDatabaseHelper.COL_TRASH_NOTE_TITLE));
-                    String rawContent = trashCursor.getString(trashCursor.getColumnIndex(NotesDatabaseHelper.COL_TRASH_NOTE_CONTENT));
-                    String rawChecklist = "";
-                    int clIdx = trashCursor.getColumnIndex(NotesDatabaseHelper.COL_TRASH_CHECKLIST_DATA);
-                    if (clIdx >= 0) {
-                        rawChecklist = trashCursor.getString(clIdx);
-                    }
+    private static void addOps(List ops, List kinds, List notes, int kind) {
+        if (notes == null) return;
+        Integer boxed = Integer.valueOf(kind);
+        for (int i = 0; i < notes.size(); i++) {
+            ops.add(notes.get(i));
+            kinds.add(boxed);
+        }
+    }
 
-                    // Skip if already encrypted
-                    if (rawTitle != null && CryptoUtils.isEncrypted(rawTitle)) {
-                        continue;
-                    }
+    private long findIdByCloudId(SQLiteDatabase db, String cloudId) {
+        long id = -1;
+        Cursor cursor = db.query(NotesDatabaseHelper.TABLE_NOTES,
+                new String[]{NotesDatabaseHelper.COL_ID},
+                NotesDatabaseHelper.COL_CLOUD_ID + "=?",
+                new String[]{cloudId}, null, null, null, "1");
+        if (cursor != null) {
+            if (cursor.moveToFirst()) {
+                id = cursor.getLong(0);
+            }
+            cursor.close();
+        }
+        return id;
+    }
 
-                    ContentValues values = new ContentValues();
-                    values.put(NotesDatabaseHelper.COL_TRASH_NOTE_TITLE, encryptFieldWithKey(rawTitle, key));
-                    values.put(NotesDatabaseHelper.COL_TRASH_NOTE_CONTENT, encryptFieldWithKey(rawContent, key));
-                    values.put(NotesDatabaseHelper.COL_TRASH_CHECKLIST_DATA, encryptFieldWithKey(rawChecklist, key));
-                    db.update(NotesDatabaseHelper.TABLE_TRASH, values,
-                            NotesDatabaseHelper.COL_TRASH_ID + "=?",
-                            new String[]{String.valueOf(id)});
-                }
-                trashCursor.close();
+    // ============ ATTACHMENT SYNC (see AttachmentSyncManager) ============
+
+    /**
+     * Notes that have a cloud id and at least one attachment descriptor, raw.
+     * Only id, cloud id and the three descriptor columns are filled in.
+     */
+    public List getNotesWithAttachmentsRaw() {
+        List notes = new ArrayList();
+        SQLiteDatabase db = dbHelper.getReadableDatabase();
+        Cursor cursor = db.query(NotesDatabaseHelper.TABLE_NOTES,
+                new String[]{NotesDatabaseHelper.COL_ID, NotesDatabaseHelper.COL_CLOUD_ID,
+                        NotesDatabaseHelper.COL_IMAGES_DATA, NotesDatabaseHelper.COL_FILES_DATA,
+                        NotesDatabaseHelper.COL_AUDIOS_DATA},
+                NotesDatabaseHelper.COL_CLOUD_ID + " IS NOT NULL AND ("
+                        + "length(" + NotesDatabaseHelper.COL_IMAGES_DATA + ")>2 OR "
+                        + "length(" + NotesDatabaseHelper.COL_FILES_DATA + ")>2 OR "
+                        + "length(" + NotesDatabaseHelper.COL_AUDIOS_DATA + ")>2)",
+                null, null, null, NotesDatabaseHelper.COL_ID + " ASC");
+        if (cursor != null) {
+            while (cursor.moveToNext()) {
+                Note note = new Note();
+                note.setId(cursor.getLong(0));
+                note.setCloudId(cursor.getString(1));
+                note.setImagesData(cursor.getString(2));
+                note.setFilesData(cursor.getString(3));
+                note.setAudiosData(cursor.getString(4));
+                notes.add(note);
             }
+            cursor.close();
+        }
+        return notes;
+    }
 
-            db.setTransactionSuccessful();
-            return true;
-        } catch (Exception e) {
-            // Transaction rolls back -- no partial encryption
-            return false;
-        } finally {
-            db.endTransaction();
+    /**
+     * True if this exact file (size and modification time) was uploaded with
+     * the given key version.
+     */
+    public boolean isAttachmentUploaded(long noteId, String localName, long size, long fileModified,
+                                        int keyVersion) {
+        SQLiteDatabase db = dbHelper.getReadableDatabase();
+        Cursor cursor = db.query(NotesDatabaseHelper.TABLE_ATTACHMENT_SYNC,
+                new String[]{NotesDatabaseHelper.COL_ATT_NOTE_ID},
+                NotesDatabaseHelper.COL_ATT_NOTE_ID + "=? AND "
+                        + NotesDatabaseHelper.COL_ATT_LOCAL_NAME + "=? AND "
+                        + NotesDatabaseHelper.COL_ATT_SIZE + "=? AND "
+                        + NotesDatabaseHelper.COL_ATT_FILE_MODIFIED + "=? AND "
+                        + NotesDatabaseHelper.COL_ATT_KEY_VERSION + "=?",
+                new String[]{String.valueOf(noteId), localName, String.valueOf(size),
+                        String.valueOf(fileModified), String.valueOf(keyVersion)},
+                null, null, null, "1");
+        boolean uploaded = false;
+        if (cursor != null) {
+            uploaded = cursor.moveToFirst();
+            cursor.close();
         }
+        return uploaded;
     }
 
     /**
-     * Re-encrypt all notes when master password is changed.
-     * Decrypts with oldKey, encrypts with newKey.
-     *
-     * @param oldKey the previous derived encryption key
-     * @param newKey the new derived encryption key
+     * Record that a file's chunks and manifest are in the cloud.
+     */
+    public void markAttachmentUploaded(long noteId, String localName, long size, long fileModified,
+                                       int keyVersion) {
+        SQLiteDatabase db = dbHelper.getWritableDatabase();
+        ContentValues values = new ContentValues();
+        values.put(NotesDatabaseHelper.COL_ATT_NOTE_ID, noteId);
+        values.put(NotesDatabaseHelper.COL_ATT_LOCAL_NAME, localName);
+        values.put(NotesDatabaseHelper.COL_ATT_SIZE, size);
+        values.put(NotesDatabaseHelper.COL_ATT_FILE_MODIFIED, fileModified);
+        values.put(NotesDatabaseHelper.COL_ATT_KEY_VERSION, keyVersion);
+        db.insertWithOnConflict(NotesDatabaseHelper.TABLE_ATTACHMENT_SYNC, null, values,
+                SQLiteDatabase.CONFLICT_REPLACE);
+    }
+
+    /**
+     * Forget which attachments were uploaded (logout): the next account gets
+     * all of them again.
      */
-    public void reEncryptAllNotes(byte[] oldKey, byte[] newKey) {
-        if (oldKey == null || newKey == null) return;
+    public void clearAttachmentSyncState() {
         SQLiteDatabase db = dbHelper.getWritableDatabase();
+        db.delete(NotesDatabaseHelper.TABLE_ATTACHMENT_SYNC, null, null);
+    }
 
-        // Re-encrypt notes table
-        Cursor cursor = db.query(NotesDatabaseHelper.TABLE_NOTES,
-                null, null, null, null, null, null);
+    // ============ ENCRYPTION MIGRATION AND RE-KEY (see ReKeyEngine) ============
+
+    /**
+     * Row of notes or trash as stored, for encryption migration and re-encryption.
+     * Field order matches REKEY_NOTE_FIELDS / REKEY_TRASH_FIELDS.
+     */
+    static class ReKeyRow {
+        final long id;
+        final String[] fields;
+        final boolean checklistMode;
+        /** Decrypted fields; null for a field under neither key. */
+        String[] plainFields;
+        boolean changed;
+
+        ReKeyRow(long id, String[] fields, boolean checklistMode) {
+            this.id = id;
+            this.fields = fields;
+            this.checklistMode = checklistMode;
+        }
+
+        /**
+         * False if a field could not be decrypted; its preview and search
+         * index are then kept rather than rebuilt from ciphertext.
+         */
+        boolean isReadable() {
+            for (int f = 0; f < plainFields.length; f++) {
+                if (plainFields[f] == null) return false;
+            }
+            return true;
+        }
+    }
+
+    /** Encrypted columns of notes; title and content first (search index). */
+    private static final String[] REKEY_NOTE_FIELDS = new String[]{
+            NotesDatabaseHelper.COL_TITLE,
+            NotesDatabaseHelper.COL_CONTENT,
+            NotesDatabaseHelper.COL_CHECKLIST_DATA,
+            NotesDatabaseHelper.COL_ROUTINE_DATA
+    };
+
+    private static final String[] REKEY_TRASH_FIELDS = new String[]{
+            NotesDatabaseHelper.COL_TRASH_NOTE_TITLE,
+            NotesDatabaseHelper.COL_TRASH_NOTE_CONTENT,
+            NotesDatabaseHelper.COL_TRASH_CHECKLIST_DATA
+    };
+
+    /**
+     * Set the previous key while a re-key job runs, so rows it has not reached
+     * yet stay readable. Pass null when the job stops.
+     */
+    void setReKeyFallbackKey(byte[] oldKey) {
+        reKeyFallbackKey = oldKey;
+        noteCache.clear();
+    }
+
+    /**
+     * Number of notes and trash rows not yet at the target key version.
+     */
+    int countRowsBelowKeyVersion(int targetVersion) {
+        SQLiteDatabase db = dbHelper.getReadableDatabase();
+        String[] args = new String[]{String.valueOf(targetVersion)};
+        long notes = DatabaseUtils.queryNumEntries(db, NotesDatabaseHelper.TABLE_NOTES,
+                NotesDatabaseHelper.COL_KEY_VERSION + "<?", args);
+        long trash = DatabaseUtils.queryNumEntries(db, NotesDatabaseHelper.TABLE_TRASH,
+                NotesDatabaseHelper.COL_TRASH_KEY_VERSION + "<?", args);
+        return (int) (notes + trash);
+    }
+
+    /**
+     * Number of notes and trash rows after the given ids (migration checkpoints).
+     */
+    int countRowsAfterId(long afterNoteId, long afterTrashId) {
+        SQLiteDatabase db = dbHelper.getReadableDatabase();
+        long notes = DatabaseUtils.queryNumEntries(db, NotesDatabaseHelper.TABLE_NOTES,
+                NotesDatabaseHelper.COL_ID + ">?", new String[]{String.valueOf(afterNoteId)});
+        long trash = DatabaseUtils.queryNumEntries(db, NotesDatabaseHelper.TABLE_TRASH,
+                NotesDatabaseHelper.COL_TRASH_ID + ">?", new String[]{String.valueOf(afterTrashId)});
+        return (int) (notes + trash);
+    }
+
+    /**
+     * Load the next batch of rows below the target key version, raw (encrypted).
+     * Committed rows move to the target version, so repeated calls make progress.
+     */
+    List loadRowsBelowKeyVersion(boolean trash, int targetVersion, int limit) {
+        String versionCol = trash ? NotesDatabaseHelper.COL_TRASH_KEY_VERSION
+                : NotesDatabaseHelper.COL_KEY_VERSION;
+        return loadCryptoRows(trash, versionCol + "<?", String.valueOf(targetVersion), limit);
+    }
+
+    /**
+     * Load the next batch of rows with an id above afterId, as stored.
+     */
+    List loadRowsAfterId(boolean trash, long afterId, int limit) {
+        String idCol = trash ? NotesDatabaseHelper.COL_TRASH_ID : NotesDatabaseHelper.COL_ID;
+        return loadCryptoRows(trash, idCol + ">?", String.valueOf(afterId), limit);
+    }
+
+    private List loadCryptoRows(boolean trash, String selection, String arg, int limit) {
+        List rows = new ArrayList();
+        SQLiteDatabase db = dbHelper.getReadableDatabase();
+        String[] fields = trash ? REKEY_TRASH_FIELDS : REKEY_NOTE_FIELDS;
+        String idCol = trash ? NotesDatabaseHelper.COL_TRASH_ID : NotesDatabaseHelper.COL_ID;
+        String modeCol = trash ? NotesDatabaseHelper.COL_TRASH_IS_CHECKLIST_MODE
+                : NotesDatabaseHelper.COL_IS_CHECKLIST_MODE;
+        String[] columns = new String[fields.length + 2];
+        columns[0] = idCol;
+        columns[1] = modeCol;
+        System.arraycopy(fields, 0, columns, 2, fields.length);
+        Cursor cursor = db.query(trash ? NotesDatabaseHelper.TABLE_TRASH : NotesDatabaseHelper.TABLE_NOTES,
+                columns, selection, new String[]{arg},
+                null, null, idCol + " ASC", String.valueOf(limit));
         if (cursor != null) {
             while (cursor.moveToNext()) {
-                long id = cursor.getLong(cursor.getColumnIndex(NotesDatabaseHelper.COL_ID));
-                String encTitle = cursor.getString(cursor.getColumnIndex(NotesDatabaseHelper.COL_TITLE));
-                String encContent = cursor.getString(cursor.getColumnIndex(NotesDatabaseHelper.COL_CONTENT));
-                String encChecklist = "";
-                int clIdx = cursor.getColumnIndex(NotesDatabaseHelper.COL_CHECKLIST_DATA);
-                if (clIdx >= 0) encChecklist = cursor.getString(clIdx);
-                String encRoutine = "";
-                int rtIdx = cursor.getColumnIndex(NotesDatabaseHelper.COL_ROUTINE_DATA);
-                if (rtIdx >= 0) encRoutine = cursor.getString(rtIdx);
-
-                // Decrypt with old key
-                String plainTitle = CryptoUtils.decrypt(encTitle, oldKey);
-                String plainContent = CryptoUtils.decrypt(encContent, oldKey);
-                String plainChecklist = CryptoUtils.decrypt(encChecklist, oldKey);
-                String plainRoutine = CryptoUtils.decrypt(encRoutine, oldKey);
-
-                // Encrypt with new key
-                ContentValues values = new ContentValues();
-                values.put(NotesDatabaseHelper.COL_TITLE, encryptFieldWithKey(plainTitle, newKey));
-                values.put(NotesDatabaseHelper.COL_CONTENT, encryptFieldWithKey(plainContent, newKey));
-                values.put(NotesDatabaseHelper.COL_CHECKLIST_DATA, encryptFieldWithKey(plainChecklist, newKey));
-                values.put(NotesDatabaseHelper.COL_ROUTINE_DATA, encryptFieldWithKey(plainRoutine, newKey));
-                db.update(NotesDatabaseHelper.TABLE_NOTES, values,
-                        NotesDatabaseHelper.COL_ID + "=?",
-                        new String[]{String.valueOf(id)});
+                String[] values = new String[fields.length];
+                for (int i = 0; i < fields.length; i++) {
+                    values[i] = cursor.getString(i + 2);
+                }
+                rows.add(new ReKeyRow(cursor.getLong(0), values, cursor.getInt(1) == 1));
             }
             cursor.close();
         }
+        return rows;
+    }
+
+    /**
+     * Write one re-encrypted batch in a single transaction and move its rows to
+     * the target key version. A row changed since it was loaded already has the
+     * target version (every write tags it), so the version guard skips it.
+     * Re-encrypted notes are marked PENDING in the same transaction, so the
+     * next sync uploads the new ciphertext.
+     *
+     * @param rows    batch from loadRowsBelowKeyVersion(); fields hold the values to store
+     * @param newKey  key the batch was encrypted with (search index tokens are keyed)
+     * @return false if the transaction failed and was rolled back
+     */
+    boolean commitReKeyedRows(boolean trash, List rows, int targetVersion, byte[] newKey) {
+        return writeCryptoRows(trash, rows, targetVersion, newKey, true);
+    }
+
+    /**
+     * Write one batch of the plaintext-to-encrypted migration in a single
+     * transaction. Fields that were already encrypted are left as loaded.
+     */
+    boolean commitMigratedRows(boolean trash, List rows, int keyVersion, byte[] key) {
+        return writeCryptoRows(trash, rows, keyVersion, key, false);
+    }
 
-        // Re-encrypt trash table
-        Cursor trashCursor = db.query(NotesDatabaseHelper.TABLE_TRASH,
-                null, null, null, null, null, null);
-        if (trashCursor != null) {
-            while (trashCursor.moveToNext()) {
-                long id = trashCursor.getLong(trashCursor.getColumnIndex(NotesDatabaseHelper.COL_TRASH_ID));
-                String encTitle = trashCursor.getString(trashCursor.getColumnIndex(NotesDatabaseHelper.COL_TRASH_NOTE_TITLE));
-                String encContent = trashCursor.getString(trashCursor.getColumnIndex(NotesDatabaseHelper.COL_TRASH_NOTE_CONTENT));
-                String encChecklist = "";
-                int clIdx = trashCursor.getColumnIndex(NotesDatabaseHelper.COL_TRASH_CHECKLIST_DATA);
-                if (clIdx >= 0) encChecklist = trashCursor.getString(clIdx);
-
-                // Decrypt with old key
-                String plainTitle = CryptoUtils.decrypt(encTitle, oldKey);
-                String plainContent = CryptoUtils.decrypt(encContent, oldKey);
-                String plainChecklist = CryptoUtils.decrypt(encChecklist, oldKey);
-
-                // Encrypt with new key
+    private boolean writeCryptoRows(boolean trash, List rows, int targetVersion, byte[] newKey,
+                                    boolean onlyBelowVersion) {
+        String[] fields = trash ? REKEY_TRASH_FIELDS : REKEY_NOTE_FIELDS;
+        String table = trash ? NotesDatabaseHelper.TABLE_TRASH : NotesDatabaseHelper.TABLE_NOTES;
+        String where = (trash ? NotesDatabaseHelper.COL_TRASH_ID : NotesDatabaseHelper.COL_ID) + "=?";
+        if (onlyBelowVersion) {
+            where += " AND " + (trash ? NotesDatabaseHelper.COL_TRASH_KEY_VERSION
+                    : NotesDatabaseHelper.COL_KEY_VERSION) + "<?";
+        }
+        SQLiteDatabase db = dbHelper.getWritableDatabase();
+        db.beginTransaction();
+        try {
+            for (int i = 0; i < rows.size(); i++) {
+                ReKeyRow row = (ReKeyRow) rows.get(i);
                 ContentValues values = new ContentValues();
-                values.put(NotesDatabaseHelper.COL_TRASH_NOTE_TITLE, encryptFieldWithKey(plainTitle, newKey));
-                values.put(NotesDatabaseHelper.COL_TRASH_NOTE_CONTENT, encryptFieldWithKey(plainContent, newKey));
-                values.put(NotesDatabaseHelper.COL_TRASH_CHECKLIST_DATA, encryptFieldWithKey(plainChecklist, newKey));
-                db.update(NotesDatabaseHelper.TABLE_TRASH, values,
-                        NotesDatabaseHelper.COL_TRASH_ID + "=?",
-                        new String[]{String.valueOf(id)});
+                values.put(trash ? NotesDatabaseHelper.COL_TRASH_KEY_VERSION
+                        : NotesDatabaseHelper.COL_KEY_VERSION, targetVersion);
+                if (row.changed) {
+                    for (int f = 0; f < fields.length; f++) {
+                        values.put(fields[f], row.fields[f]);
+                    }
+                    if (!trash) {
+                        // The cloud copy is still under the old key (or plaintext)
+                        values.put(NotesDatabaseHelper.COL_SYNC_STATUS, Note.SYNC_STATUS_PENDING);
+                        if (row.isReadable()) {
+                            values.put(NotesDatabaseHelper.COL_PREVIEW, encryptFieldWithKey(
+                                    NotePreviewUtils.buildPreview(row.plainFields[1], row.plainFields[2],
+                                            row.checklistMode), newKey));
+                        }
+                    }
+                }
+                String[] args = onlyBelowVersion
+                        ? new String[]{String.valueOf(row.id), String.valueOf(targetVersion)}
+                        : new String[]{String.valueOf(row.id)};
+                int updated = db.update(table, values, where, args);
+                if (updated > 0 && row.changed && !trash && row.isReadable()) {
+                    // Index tokens are keyed, so they must be regenerated with the new key
+                    indexNote(db, row.id, row.plainFields[0], row.plainFields[1], newKey);
+                }
+            }
+            db.setTransactionSuccessful();
+            return true;
+        } catch (Exception e) {
+            // Batch rolls back; the job retries it on resume
+            return false;
+        } finally {
+            db.endTransaction();
+            for (int i = 0; !trash && i < rows.size(); i++) {
+                ReKeyRow row = (ReKeyRow) rows.get(i);
+                if (row.changed) {
+                    noteCache.remove(row.id);
+                }
             }
-            trashCursor.close();
         }
     }
 
@@ -1606,6 +2939,7 @@ public class NotesRepository {
             // Update existing
             ContentValues values = new ContentValues();
             values.put(NotesDatabaseHelper.COL_HIST_COUNT, count);
+            ActivitySyncRepository.markPending(values);
             db.update(NotesDatabaseHelper.TABLE_MANTRA_HISTORY, values,
                     NotesDatabaseHelper.COL_HIST_MANTRA_ID + "=? AND " +
                             NotesDatabaseHelper.COL_HIST_DATE + "=?",
@@ -1618,6 +2952,7 @@ public class NotesRepository {
             values.put(NotesDatabaseHelper.COL_HIST_MANTRA_ID, mantraId);
             values.put(NotesDatabaseHelper.COL_HIST_DATE, date);
             values.put(NotesDatabaseHelper.COL_HIST_COUNT, count);
+            values.put(NotesDatabaseHelper.COL_ROW_MODIFIED, System.currentTimeMillis());
             db.insert(NotesDatabaseHelper.TABLE_MANTRA_HISTORY, null, values);
         }
     }
@@ -0,0 +1,436 @@
+package com.mknotes.app.db;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.util.Log;
+
+import com.mknotes.app.util.CryptoUtils;
+import com.mknotes.app.util.PrefsManager;
+import com.mknotes.app.util.SessionManager;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Encrypts notes and trash in the background, in two kinds of job:
+ *
+ * - Re-key when an install switches from the password-derived key to a data
+ *   key. SessionManager records the job (target key version + old key wrapped
+ *   with the new key) in the same commit as the new key. Rows still below the
+ *   target key_version are selected; rows not reached yet stay readable
+ *   through the repository's fallback key. Re-encrypted rows are marked
+ *   PENDING for upload; with cloud sync the old key is kept until a sync has
+ *   uploaded them (CloudSyncManager calls SessionManager.finishReKey()).
+ * - Migration of plaintext notes to encrypted format (first unlock). Rows are
+ *   walked by id from a checkpoint kept in SessionManager.
+ *
+ * Both load rows in batches of BATCH_SIZE, encrypt each batch in parallel on a
+ * small worker pool and write it in its own transaction, so a killed process
+ * resumes where it stopped. Progress and completion are delivered on the main thread.
+ */
+public class ReKeyEngine {
+
+    private static final String TAG = "ReKeyEngine";
+
+    /** Rows per transaction. Small enough to keep write locks short. */
+    private static final int BATCH_SIZE = 64;
+    private static final int MAX_WORKERS = 4;
+
+    private static ReKeyEngine sInstance;
+
+    private final Context appContext;
+    private final NotesRepository repository;
+    private final Handler mainHandler;
+    private final Object lock = new Object();
+
+    /** Job currently running, or null. */
+    private Job runningJob = null;
+    private final List listeners = new ArrayList();
+    private volatile boolean cancelled = false;
+
+    /**
+     * Receives progress on the main thread.
+     */
+    public interface ProgressListener {
+        void onProgress(int done, int total);
+
+        /**
+         * @param success true if every row was processed and the job is recorded as done
+         */
+        void onFinished(boolean success);
+    }
+
+    public static synchronized ReKeyEngine getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new ReKeyEngine(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private ReKeyEngine(Context context) {
+        appContext = context;
+        repository = NotesRepository.getInstance(context);
+        mainHandler = new Handler(Looper.getMainLooper());
+        SessionManager.getInstance(context).addSessionListener(new SessionManager.SessionListener() {
+            public void onSessionCleared() {
+                // Without the session key the job cannot continue; it resumes after unlock
+                cancelled = true;
+            }
+        });
+    }
+
+    /**
+     * Start or resume the pending re-key job, if any. Safe to call repeatedly;
+     * while the job runs, the listener is attached to it instead.
+     *
+     * @param listener may be null
+     * @return true if a re-key job is running (or was started)
+     */
+    public boolean resumeIfPending(ProgressListener listener) {
+        SessionManager session = SessionManager.getInstance(appContext);
+        if (!session.isReKeyPending()) {
+            return false;
+        }
+        return start(new ReKeyJob(session), listener);
+    }
+
+    /**
+     * Start or resume the plaintext-to-encrypted migration, if not done yet.
+     *
+     * @param listener may be null
+     * @return true if the migration is running (or was started)
+     */
+    public boolean migrateIfNeeded(ProgressListener listener) {
+        SessionManager session = SessionManager.getInstance(appContext);
+        if (session.isEncryptionMigrated()) {
+            return false;
+        }
+        return start(new MigrationJob(session), listener);
+    }
+
+    public void removeListener(ProgressListener listener) {
+        synchronized (lock) {
+            listeners.remove(listener);
+        }
+    }
+
+    public boolean isRunning() {
+        synchronized (lock) {
+            return runningJob != null;
+        }
+    }
+
+    private boolean start(final Job job, ProgressListener listener) {
+        synchronized (lock) {
+            if (runningJob != null) {
+                if (runningJob.getClass() != job.getClass()) {
+                    // The other kind of job holds the engine; callers retry on next resume
+                    return false;
+                }
+                if (listener != null && !listeners.contains(listener)) {
+                    listeners.add(listener);
+                }
+                return true;
+            }
+            if (SessionManager.getInstance(appContext).getCachedKey() == null) {
+                return false;
+            }
+            if (listener != null) {
+                listeners.add(listener);
+            }
+            runningJob = job;
+            cancelled = false;
+        }
+        Thread thread = new Thread(new Runnable() {
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                boolean success = false;
+                try {
+                    success = runJob(job);
+                } catch (Exception e) {
+                    Log.e(TAG, "Encryption job failed", e);
+                }
+                finish(success);
+            }
+        }, "mknotes-rekey");
+        thread.start();
+        return true;
+    }
+
+    // ============ JOBS ============
+
+    /**
+     * One kind of batched encryption job. Keys are private copies, zero-filled
+     * by runJob() when the job ends.
+     */
+    private abstract class Job {
+        final SessionManager session;
+        byte[] oldKey;
+        byte[] newKey;
+
+        Job(SessionManager session) {
+            this.session = session;
+        }
+
+        /** Load keys; false if the job cannot run in this session. */
+        abstract boolean prepare();
+
+        abstract int countRows();
+
+        abstract List loadBatch(boolean trash);
+
+        abstract boolean commitBatch(boolean trash, List rows);
+
+        /** Record completion once every batch is committed. */
+        abstract void complete();
+
+        void release() {
+            if (oldKey != null) Arrays.fill(oldKey, (byte) 0);
+            if (newKey != null) Arrays.fill(newKey, (byte) 0);
+        }
+    }
+
+    private class ReKeyJob extends Job {
+        private int target;
+
+        ReKeyJob(SessionManager session) {
+            super(session);
+        }
+
+        boolean prepare() {
+            byte[] sessionKey = session.getCachedKey();
+            oldKey = session.getReKeyOldKey();
+            if (sessionKey == null || oldKey == null) {
+                return false;
+            }
+            // Private copy: the session zero-fills its key on lock
+            newKey = (byte[]) sessionKey.clone();
+            target = session.getReKeyTargetVersion();
+            repository.setReKeyFallbackKey(oldKey);
+            return true;
+        }
+
+        int countRows() {
+            return repository.countRowsBelowKeyVersion(target);
+        }
+
+        List loadBatch(boolean trash) {
+            return repository.loadRowsBelowKeyVersion(trash, target, BATCH_SIZE);
+        }
+
+        boolean commitBatch(boolean trash, List rows) {
+            return repository.commitReKeyedRows(trash, rows, target, newKey);
+        }
+
+        void complete() {
+            if (PrefsManager.getInstance(appContext).isCloudSyncEnabled()) {
+                // Rows are PENDING; the cloud copy stays under the old key until uploaded
+                session.completeLocalReKey();
+            } else {
+                session.finishReKey();
+            }
+        }
+
+        void release() {
+            repository.setReKeyFallbackKey(null);
+            super.release();
+        }
+    }
+
+    private class MigrationJob extends Job {
+        private final long[] checkpoints = new long[2];
+        private int keyVersion;
+
+        MigrationJob(SessionManager session) {
+            super(session);
+        }
+
+        boolean prepare() {
+            byte[] sessionKey = session.getCachedKey();
+            if (sessionKey == null) {
+                return false;
+            }
+            newKey = (byte[]) sessionKey.clone();
+            keyVersion = session.getKeyVersion();
+            checkpoints[0] = session.getMigrationCheckpoint(false);
+            checkpoints[1] = session.getMigrationCheckpoint(true);
+            return true;
+        }
+
+        int countRows() {
+            return repository.countRowsAfterId(checkpoints[0], checkpoints[1]);
+        }
+
+        List loadBatch(boolean trash) {
+            return repository.loadRowsAfterId(trash, checkpoints[trash ? 1 : 0], BATCH_SIZE);
+        }
+
+        boolean commitBatch(boolean trash, List rows) {
+            if (!repository.commitMigratedRows(trash, rows, keyVersion, newKey)) {
+                return false;
+            }
+            // Written after the commit: a crash in between only redoes this batch,
+            // whose already-encrypted fields are left alone
+            long lastId = ((NotesRepository.ReKeyRow) rows.get(rows.size() - 1)).id;
+            checkpoints[trash ? 1 : 0] = lastId;
+            session.setMigrationCheckpoint(trash, lastId);
+            return true;
+        }
+
+        void complete() {
+            session.setEncryptionMigrated(true);
+        }
+    }
+
+    private boolean runJob(Job job) throws Exception {
+        if (!job.prepare()) {
+            job.release();
+            return false;
+        }
+        int workers = Math.max(1, Math.min(MAX_WORKERS, Runtime.getRuntime().availableProcessors() - 1));
+        ExecutorService pool = Executors.newFixedThreadPool(workers, new ThreadFactory() {
+            private int count = 0;
+
+            public synchronized Thread newThread(final Runnable r) {
+                count++;
+                Thread t = new Thread(new Runnable() {
+                    public void run() {
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                        r.run();
+                    }
+                }, "mknotes-rekey-" + count);
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        try {
+            int total = job.countRows();
+            int done = 0;
+            postProgress(done, total);
+            for (int pass = 0; pass < 2; pass++) {
+                boolean trash = pass == 1;
+                while (!cancelled) {
+                    List rows = job.loadBatch(trash);
+                    if (rows.isEmpty()) {
+                        break;
+                    }
+                    reKeyBatch(pool, rows, workers, job.oldKey, job.newKey);
+                    if (!job.commitBatch(trash, rows)) {
+                        return false;
+                    }
+                    done += rows.size();
+                    // Rows written meanwhile may be new; never report more than 100%
+                    postProgress(Math.min(done, total), Math.max(done, total));
+                }
+            }
+            if (cancelled) {
+                return false;
+            }
+            job.complete();
+            return true;
+        } finally {
+            pool.shutdownNow();
+            job.release();
+        }
+    }
+
+    /**
+     * Decrypt and re-encrypt a batch on the pool, split in one slice per worker.
+     */
+    private void reKeyBatch(ExecutorService pool, final List rows, int workers,
+                            final byte[] oldKey, final byte[] newKey) throws Exception {
+        List tasks = new ArrayList();
+        int slice = (rows.size() + workers - 1) / workers;
+        for (int start = 0; start < rows.size(); start += slice) {
+            final int from = start;
+            final int to = Math.min(rows.size(), start + slice);
+            tasks.add(new Callable() {
+                public Object call() {
+                    for (int i = from; i < to; i++) {
+                        reKeyRow((NotesRepository.ReKeyRow) rows.get(i), oldKey, newKey);
+                    }
+                    return null;
+                }
+            });
+        }
+        List futures = pool.invokeAll(tasks);
+        for (int i = 0; i < futures.size(); i++) {
+            // Rethrows a worker failure
+            ((Future) futures.get(i)).get();
+        }
+    }
+
+    /**
+     * Encrypt the fields of one row with newKey in place. Fields under oldKey
+     * (null for migration) and plaintext fields are (re-)encrypted; a field
+     * already under newKey, or under neither key, is kept. The plaintext of a
+     * field under neither key is left null.
+     */
+    private static void reKeyRow(NotesRepository.ReKeyRow row, byte[] oldKey, byte[] newKey) {
+        row.plainFields = new String[row.fields.length];
+        for (int f = 0; f < row.fields.length; f++) {
+            String stored = row.fields[f];
+            if (stored == null || stored.length() == 0) {
+                row.fields[f] = "";
+                row.plainFields[f] = "";
+                continue;
+            }
+            String plain = CryptoUtils.decryptOrNull(stored, oldKey);
+            if (plain == null) {
+                String current = CryptoUtils.decryptOrNull(stored, newKey);
+                if (current != null || CryptoUtils.isEncrypted(stored)) {
+                    row.plainFields[f] = current;
+                    continue;
+                }
+                // Plaintext left over from before encryption
+                plain = stored;
+            }
+            String encrypted = CryptoUtils.encrypt(plain, newKey);
+            if (encrypted != null) {
+                row.fields[f] = encrypted;
+                row.changed = true;
+            }
+            row.plainFields[f] = plain;
+        }
+    }
+
+    // ============ DELIVERY ============
+
+    private void postProgress(final int done, final int total) {
+        mainHandler.post(new Runnable() {
+            public void run() {
+                List snapshot;
+                synchronized (lock) {
+                    snapshot = new ArrayList(listeners);
+                }
+                for (int i = 0; i < snapshot.size(); i++) {
+                    ((ProgressListener) snapshot.get(i)).onProgress(done, total);
+                }
+            }
+        });
+    }
+
+    private void finish(final boolean success) {
+        final List snapshot;
+        synchronized (lock) {
+            runningJob = null;
+            snapshot = new ArrayList(listeners);
+            listeners.clear();
+        }
+        mainHandler.post(new Runnable() {
+            public void run() {
+                for (int i = 0; i < snapshot.size(); i++) {
+                    ((ProgressListener) snapshot.get(i)).onFinished(success);
+                }
+            }
+        });
+    }
+}
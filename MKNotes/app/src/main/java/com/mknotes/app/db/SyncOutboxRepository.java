@@ -0,0 +1,193 @@
+package com.mknotes.app.db;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Persistent queue of cloud writes that have not been acknowledged yet.
+ *
+ * Keyed by cloud id, so repeated edits of one note coalesce into a single
+ * row: the latest operation wins and the note content is read when the row
+ * is sent. Rows are removed only after the write is committed, and only if
+ * they were not re-queued while the write was in flight.
+ */
+public class SyncOutboxRepository {
+
+    public static final int OP_UPSERT = 1;
+    public static final int OP_DELETE = 2;
+
+    private NotesDatabaseHelper dbHelper;
+    private static SyncOutboxRepository sInstance;
+
+    /**
+     * One queued write.
+     */
+    public static class Entry {
+        public String cloudId;
+        public long noteId;
+        public int op;
+        public long enqueuedAt;
+        public int attempts;
+    }
+
+    public static synchronized SyncOutboxRepository getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new SyncOutboxRepository(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private SyncOutboxRepository(Context context) {
+        dbHelper = NotesDatabaseHelper.getInstance(context);
+    }
+
+    // ============ ENQUEUE ============
+
+    /**
+     * Queue a write for a cloud document, replacing any write already queued
+     * for it. Attempts and backoff of the existing row are kept, so editing a
+     * note while offline does not reset the retry schedule.
+     */
+    public void enqueue(String cloudId, long noteId, int op) {
+        if (cloudId == null || cloudId.length() == 0) return;
+        SQLiteDatabase db = dbHelper.getWritableDatabase();
+        ContentValues values = new ContentValues();
+        values.put(NotesDatabaseHelper.COL_OUTBOX_NOTE_ID, noteId);
+        values.put(NotesDatabaseHelper.COL_OUTBOX_OP, op);
+        values.put(NotesDatabaseHelper.COL_OUTBOX_ENQUEUED_AT, System.currentTimeMillis());
+        db.beginTransaction();
+        try {
+            int updated = db.update(NotesDatabaseHelper.TABLE_SYNC_OUTBOX, values,
+                    NotesDatabaseHelper.COL_OUTBOX_CLOUD_ID + "=?", new String[]{cloudId});
+            if (updated == 0) {
+                values.put(NotesDatabaseHelper.COL_OUTBOX_CLOUD_ID, cloudId);
+                db.insert(NotesDatabaseHelper.TABLE_SYNC_OUTBOX, null, values);
+            }
+            db.setTransactionSuccessful();
+        } catch (Exception e) {
+            // Not queued; the note stays PENDING and is picked up by the next sync
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    // ============ DRAIN ============
+
+    /**
+     * Oldest queued writes whose backoff has expired.
+     */
+    public List loadDue(long now, int limit) {
+        List entries = new ArrayList();
+        SQLiteDatabase db = dbHelper.getReadableDatabase();
+        Cursor cursor = db.query(NotesDatabaseHelper.TABLE_SYNC_OUTBOX,
+                new String[]{NotesDatabaseHelper.COL_OUTBOX_CLOUD_ID,
+                        NotesDatabaseHelper.COL_OUTBOX_NOTE_ID,
+                        NotesDatabaseHelper.COL_OUTBOX_OP,
+                        NotesDatabaseHelper.COL_OUTBOX_ENQUEUED_AT,
+                        NotesDatabaseHelper.COL_OUTBOX_ATTEMPTS},
+                NotesDatabaseHelper.COL_OUTBOX_NEXT_ATTEMPT + "<=?",
+                new String[]{String.valueOf(now)},
+                null, null, NotesDatabaseHelper.COL_OUTBOX_ENQUEUED_AT + " ASC",
+                String.valueOf(limit));
+        if (cursor != null) {
+            while (cursor.moveToNext()) {
+                Entry entry = new Entry();
+                entry.cloudId = cursor.getString(0);
+                entry.noteId = cursor.getLong(1);
+                entry.op = cursor.getInt(2);
+                entry.enqueuedAt = cursor.getLong(3);
+                entry.attempts = cursor.getInt(4);
+                entries.add(entry);
+            }
+            cursor.close();
+        }
+        return entries;
+    }
+
+    /**
+     * Remove sent entries in one transaction. An entry re-queued after it was
+     * loaded (newer enqueued_at) is kept and sent again.
+     */
+    public void removeSent(List entries) {
+        if (entries == null || entries.isEmpty()) return;
+        SQLiteDatabase db = dbHelper.getWritableDatabase();
+        db.beginTransaction();
+        try {
+            for (int i = 0; i < entries.size(); i++) {
+                Entry entry = (Entry) entries.get(i);
+                db.delete(NotesDatabaseHelper.TABLE_SYNC_OUTBOX,
+                        NotesDatabaseHelper.COL_OUTBOX_CLOUD_ID + "=? AND " +
+                                NotesDatabaseHelper.COL_OUTBOX_ENQUEUED_AT + "=?",
+                        new String[]{entry.cloudId, String.valueOf(entry.enqueuedAt)});
+            }
+            db.setTransactionSuccessful();
+        } catch (Exception e) {
+            // Entries are sent again; the writes are idempotent merges
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * Record a failed attempt for the given entries and hold them back until nextAttemptAt.
+     */
+    public void markFailed(List entries, long nextAttemptAt) {
+        if (entries == null || entries.isEmpty()) return;
+        SQLiteDatabase db = dbHelper.getWritableDatabase();
+        db.beginTransaction();
+        try {
+            for (int i = 0; i < entries.size(); i++) {
+                Entry entry = (Entry) entries.get(i);
+                db.execSQL("UPDATE " + NotesDatabaseHelper.TABLE_SYNC_OUTBOX + " SET " +
+                                NotesDatabaseHelper.COL_OUTBOX_ATTEMPTS + "=" +
+                                NotesDatabaseHelper.COL_OUTBOX_ATTEMPTS + "+1, " +
+                                NotesDatabaseHelper.COL_OUTBOX_NEXT_ATTEMPT + "=? WHERE " +
+                                NotesDatabaseHelper.COL_OUTBOX_CLOUD_ID + "=?",
+                        new Object[]{Long.valueOf(nextAttemptAt), entry.cloudId});
+            }
+            db.setTransactionSuccessful();
+        } catch (Exception e) {
+            // Retried without backoff on the next drain
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    // ============ QUERIES ============
+
+    /**
+     * @return earliest next_attempt_at of all queued entries, or -1 if the outbox is empty
+     */
+    public long getNextAttemptAt() {
+        SQLiteDatabase db = dbHelper.getReadableDatabase();
+        Cursor cursor = db.rawQuery("SELECT MIN(" + NotesDatabaseHelper.COL_OUTBOX_NEXT_ATTEMPT +
+                "), COUNT(*) FROM " + NotesDatabaseHelper.TABLE_SYNC_OUTBOX, null);
+        long next = -1;
+        if (cursor != null) {
+            if (cursor.moveToFirst() && cursor.getLong(1) > 0) {
+                next = cursor.getLong(0);
+            }
+            cursor.close();
+        }
+        return next;
+    }
+
+    public int getCount() {
+        SQLiteDatabase db = dbHelper.getReadableDatabase();
+        return (int) DatabaseUtils.queryNumEntries(db, NotesDatabaseHelper.TABLE_SYNC_OUTBOX);
+    }
+
+    /**
+     * Drop every queued write, e.g. when the signed-in account changes.
+     */
+    public void clear() {
+        SQLiteDatabase db = dbHelper.getWritableDatabase();
+        db.delete(NotesDatabaseHelper.TABLE_SYNC_OUTBOX, null, null);
+    }
+}
@@ -1,5 +1,7 @@
 package com.mknotes.app.model;
 
+import com.mknotes.app.util.NotePreviewUtils;
+
 import java.io.Serializable;
 
 public class Note implements Serializable {
@@ -27,6 +29,10 @@ public class Note implements Serializable {
     private boolean archived;
     private String cloudId;
     private int syncStatus; // 0=synced, 1=pending_upload, 2=pending_delete
+    private boolean summary; // list projection: content is only a preview, no checklist/routine/attachments
+    private String preview; // stored list preview, null when not loaded
+    private String syncedHashes; // field hashes of the cloud document, null if unknown
+    private String vclock; // version vector of the cloud version, null if unknown
 
     public static final int SYNC_STATUS_SYNCED = 0;
     public static final int SYNC_STATUS_PENDING = 1;
@@ -56,6 +62,43 @@ public class Note implements Serializable {
         this.archived = false;
         this.cloudId = null;
         this.syncStatus = SYNC_STATUS_PENDING;
+        this.summary = false;
+        this.preview = null;
+    }
+
+    /**
+     * Field-by-field copy. Used to hand a stable snapshot to background writers.
+     */
+    public Note copy() {
+        Note n = new Note();
+        n.id = id;
+        n.title = title;
+        n.content = content;
+        n.createdAt = createdAt;
+        n.modifiedAt = modifiedAt;
+        n.color = color;
+        n.favorite = favorite;
+        n.locked = locked;
+        n.password = password;
+        n.categoryId = categoryId;
+        n.hasChecklist = hasChecklist;
+        n.hasImage = hasImage;
+        n.checklistData = checklistData;
+        n.isChecklistMode = isChecklistMode;
+        n.imagesData = imagesData;
+        n.filesData = filesData;
+        n.audiosData = audiosData;
+        n.linkedNoteIds = linkedNoteIds;
+        n.isRoutineMode = isRoutineMode;
+        n.routineData = routineData;
+        n.archived = archived;
+        n.cloudId = cloudId;
+        n.syncStatus = syncStatus;
+        n.summary = summary;
+        n.preview = preview;
+        n.syncedHashes = syncedHashes;
+        n.vclock = vclock;
+        return n;
     }
 
     public long getId() {
@@ -80,6 +123,8 @@ public class Note implements Serializable {
 
     public void setContent(String content) {
         this.content = content;
+        // A stored preview no longer matches edited content
+        this.preview = null;
     }
 
     public long getCreatedAt() {
@@ -242,23 +287,59 @@ public class Note implements Serializable {
         this.syncStatus = syncStatus;
     }
 
+    /**
+     * Field hashes of the cloud document this note was last synced with
+     * (see cloud.FieldHashes). Null if unknown; the next upload then sends
+     * every field.
+     */
+    public String getSyncedHashes() {
+        return syncedHashes;
+    }
+
+    public void setSyncedHashes(String syncedHashes) {
+        this.syncedHashes = syncedHashes;
+    }
+
+    /**
+     * Version vector of the cloud version this note is based on
+     * (see cloud.VectorClock). Null or empty if unknown.
+     */
+    public String getVclock() {
+        return vclock;
+    }
+
+    public void setVclock(String vclock) {
+        this.vclock = vclock;
+    }
+
+    /**
+     * True for notes loaded by the list queries (NotesRepository.get*Summaries).
+     * Such a note only holds a content preview; load it with getNoteById()
+     * before editing or saving it.
+     */
+    public boolean isSummary() {
+        return summary;
+    }
+
+    public void setSummary(boolean summary) {
+        this.summary = summary;
+    }
+
+    /**
+     * Set the preview read from the notes.preview column. Call after setContent().
+     */
+    public void setPreview(String preview) {
+        this.preview = preview;
+    }
+
+    /**
+     * List preview text. Uses the stored preview when loaded, otherwise builds
+     * it from content and checklist data (see NotePreviewUtils).
+     */
     public String getPreview() {
-        // For checklist notes, show checklist summary
-        if (isChecklistMode && checklistData != null && checklistData.length() > 2) {
-            // Plain text content already has the checklist items as text
-            if (content != null && content.length() > 0) {
-                if (content.length() > 150) {
-                    return content.substring(0, 150) + "...";
-                }
-                return content;
-            }
-        }
-        if (content == null || content.length() == 0) {
-            return "";
+        if (preview != null) {
+            return preview;
         }
-        if (content.length() > 150) {
-            return content.substring(0, 150) + "...";
-        }
-        return content;
+        return NotePreviewUtils.buildPreview(content, checklistData, isChecklistMode);
     }
 }
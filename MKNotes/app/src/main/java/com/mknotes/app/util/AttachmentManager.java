@@ -7,12 +7,16 @@ import android.net.Uri;
 import android.provider.OpenableColumns;
 import android.webkit.MimeTypeMap;
 
+import com.mknotes.app.model.AudioAttachment;
 import com.mknotes.app.model.FileAttachment;
+import com.mknotes.app.model.Note;
 
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * Manages all attachment file operations using app-internal storage.
@@ -134,6 +138,62 @@ public class AttachmentManager {
         return new File(getAudiosDir(context, noteId), localName);
     }
 
+    /**
+     * Get an attachment file by sub-directory ("images", "files" or "audios").
+     */
+    public static File getAttachmentFile(Context context, long noteId, String subDir, String localName) {
+        if (IMAGES_DIR.equals(subDir)) {
+            return getImageFile(context, noteId, localName);
+        } else if (AUDIOS_DIR.equals(subDir)) {
+            return getAudioFile(context, noteId, localName);
+        }
+        return getFileFile(context, noteId, localName);
+    }
+
+    /**
+     * Attachments referenced by a note's images, files and audios data.
+     *
+     * @return List of String[]{subDir, localName}; damaged descriptors are skipped
+     */
+    public static List getAttachmentRefs(Note note) {
+        List refs = new ArrayList();
+        List images = AttachmentConverter.jsonToFiles(note.getImagesData());
+        for (int i = 0; i < images.size(); i++) {
+            refs.add(new String[]{IMAGES_DIR, ((FileAttachment) images.get(i)).getLocalName()});
+        }
+        List files = AttachmentConverter.jsonToFiles(note.getFilesData());
+        for (int i = 0; i < files.size(); i++) {
+            refs.add(new String[]{FILES_DIR, ((FileAttachment) files.get(i)).getLocalName()});
+        }
+        List audios = AttachmentConverter.jsonToAudios(note.getAudiosData());
+        for (int i = 0; i < audios.size(); i++) {
+            refs.add(new String[]{AUDIOS_DIR, ((AudioAttachment) audios.get(i)).getLocalName()});
+        }
+        List valid = new ArrayList();
+        for (int i = 0; i < refs.size(); i++) {
+            String localName = ((String[]) refs.get(i))[1];
+            if (isValidLocalName(localName)) {
+                valid.add(refs.get(i));
+            }
+        }
+        return valid;
+    }
+
+    /**
+     * True for "images", "files" and "audios".
+     */
+    public static boolean isAttachmentSubDir(String subDir) {
+        return IMAGES_DIR.equals(subDir) || FILES_DIR.equals(subDir) || AUDIOS_DIR.equals(subDir);
+    }
+
+    /**
+     * A plain file name, safe to resolve inside an attachments directory.
+     */
+    public static boolean isValidLocalName(String localName) {
+        return localName != null && localName.length() > 0 && localName.indexOf('/') < 0
+                && localName.indexOf('\\') < 0 && !".".equals(localName) && !"..".equals(localName);
+    }
+
     /**
      * Delete a specific attachment file.
      */
@@ -1,8 +1,12 @@
 package com.mknotes.app.util;
 
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
 import java.security.SecureRandom;
 import java.util.Arrays;
+import java.util.Base64;
 import javax.crypto.Cipher;
+import javax.crypto.Mac;
 import javax.crypto.SecretKeyFactory;
 import javax.crypto.spec.GCMParameterSpec;
 import javax.crypto.spec.PBEKeySpec;
@@ -18,6 +22,7 @@ import javax.crypto.spec.SecretKeySpec;
  * - AES-256-GCM with random 12-byte IV per encryption call
  * - Verification token approach (no key hash stored on disk)
  * - Derived key NEVER persisted -- only cached in memory during active session
+ * - Stored as "$" + base64; legacy ivHex:ciphertextHex values are still readable
  */
 public class CryptoUtils {
 
@@ -27,6 +32,39 @@ public class CryptoUtils {
     private static final int GCM_IV_LENGTH = 12;
     private static final int GCM_TAG_LENGTH = 128; // bits
 
+    /**
+     * Compact format: "$" + base64(version + iv + ciphertext + tag), about 1.33x
+     * the binary size instead of 2x for the legacy ivHex:ciphertextHex format.
+     */
+    private static final char COMPACT_MARKER_CHAR = '$';
+    private static final String COMPACT_MARKER = "$";
+    private static final byte FORMAT_VERSION_COMPACT = 2;
+    private static final int COMPACT_HEADER_LENGTH = 1 + GCM_IV_LENGTH;
+    /** Marker + base64 of header and tag (29 bytes -> 40 chars). */
+    private static final int COMPACT_MIN_LENGTH = 1 + 40;
+
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+    private static final byte[] HEX_VALUES = new byte[128];
+
+    static {
+        Arrays.fill(HEX_VALUES, (byte) -1);
+        for (int i = 0; i < 10; i++) {
+            HEX_VALUES['0' + i] = (byte) i;
+        }
+        for (int i = 0; i < 6; i++) {
+            HEX_VALUES['a' + i] = (byte) (10 + i);
+            HEX_VALUES['A' + i] = (byte) (10 + i);
+        }
+    }
+
+    private static final ThreadLocal sGcmCipher = new ThreadLocal();
+
+    private static final int KEY_CACHE_SLOTS = 2;
+    private static final Object sKeyCacheLock = new Object();
+    private static final byte[][] sKeyRefs = new byte[KEY_CACHE_SLOTS][];
+    private static final byte[][] sKeyCopies = new byte[KEY_CACHE_SLOTS][];
+    private static final SecretKeySpec[] sKeySpecs = new SecretKeySpec[KEY_CACHE_SLOTS];
+
     /** Known plaintext token used for password verification. */
     private static final String VERIFY_TOKEN_PLAINTEXT = "MKNOTES_VERIFY_TOKEN_V2";
 
@@ -42,6 +80,15 @@ public class CryptoUtils {
         return salt;
     }
 
+    /**
+     * Generate a random 256-bit data encryption key (stored wrapped, see SessionManager).
+     */
+    public static byte[] generateDataKey() {
+        byte[] key = new byte[KEY_LENGTH / 8];
+        sRandom.nextBytes(key);
+        return key;
+    }
+
     /**
      * Generate a random 12-byte IV for AES-GCM.
      */
@@ -78,12 +125,15 @@ public class CryptoUtils {
 
     /**
      * Encrypt plaintext using AES-256-GCM.
-     * Returns hex string in format: ivHex + ":" + ciphertextHex
+     * Returns the compact format: "$" + base64(version byte + iv + ciphertext).
      * The GCM authentication tag is appended to ciphertext by the Cipher.
      *
+     * Values in the legacy ivHex + ":" + ciphertextHex format are still read by
+     * decrypt(); they move to the compact format the next time they are saved.
+     *
      * @param plaintext the text to encrypt
      * @param keyBytes  the 256-bit derived key
-     * @return encrypted string (iv:ciphertext), or null on failure
+     * @return encrypted string, or null on failure
      */
     public static String encrypt(String plaintext, byte[] keyBytes) {
         if (plaintext == null || plaintext.length() == 0) {
@@ -93,13 +143,15 @@ public class CryptoUtils {
             return null;
         }
         try {
+            byte[] plainBytes = plaintext.getBytes("UTF-8");
             byte[] iv = generateIV();
-            SecretKeySpec keySpec = new SecretKeySpec(keyBytes, "AES");
-            GCMParameterSpec gcmSpec = new GCMParameterSpec(GCM_TAG_LENGTH, iv);
-            Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
-            cipher.init(Cipher.ENCRYPT_MODE, keySpec, gcmSpec);
-            byte[] ciphertext = cipher.doFinal(plaintext.getBytes("UTF-8"));
-            return bytesToHex(iv) + ":" + bytesToHex(ciphertext);
+            byte[] out = new byte[COMPACT_HEADER_LENGTH + plainBytes.length + GCM_TAG_LENGTH / 8];
+            out[0] = FORMAT_VERSION_COMPACT;
+            System.arraycopy(iv, 0, out, 1, GCM_IV_LENGTH);
+            Cipher cipher = gcmCipher();
+            cipher.init(Cipher.ENCRYPT_MODE, keySpec(keyBytes), new GCMParameterSpec(GCM_TAG_LENGTH, iv));
+            cipher.doFinal(plainBytes, 0, plainBytes.length, out, COMPACT_HEADER_LENGTH);
+            return COMPACT_MARKER + Base64.getEncoder().encodeToString(out);
         } catch (Exception e) {
             return null;
         }
@@ -107,9 +159,9 @@ public class CryptoUtils {
 
     /**
      * Decrypt ciphertext using AES-256-GCM.
-     * Input format: ivHex + ":" + ciphertextHex
+     * Accepts both the compact format and the legacy ivHex:ciphertextHex format.
      *
-     * @param encryptedData the encrypted string (iv:ciphertext)
+     * @param encryptedData the encrypted string
      * @param keyBytes      the 256-bit derived key
      * @return decrypted plaintext, or null on failure
      */
@@ -121,28 +173,11 @@ public class CryptoUtils {
             return null;
         }
         try {
-            int colonIdx = encryptedData.indexOf(':');
-            if (colonIdx <= 0) {
-                // Not encrypted data, return as-is (migration support)
-                return encryptedData;
-            }
-            String ivHex = encryptedData.substring(0, colonIdx);
-            String cipherHex = encryptedData.substring(colonIdx + 1);
-
-            // Validate IV length (12 bytes = 24 hex chars)
-            if (ivHex.length() != GCM_IV_LENGTH * 2) {
+            byte[] plainBytes = decryptToBytes(encryptedData, keyBytes);
+            if (plainBytes == null) {
                 // Not encrypted data, return as-is (migration support)
                 return encryptedData;
             }
-
-            byte[] iv = hexToBytes(ivHex);
-            byte[] ciphertext = hexToBytes(cipherHex);
-
-            SecretKeySpec keySpec = new SecretKeySpec(keyBytes, "AES");
-            GCMParameterSpec gcmSpec = new GCMParameterSpec(GCM_TAG_LENGTH, iv);
-            Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
-            cipher.init(Cipher.DECRYPT_MODE, keySpec, gcmSpec);
-            byte[] plainBytes = cipher.doFinal(ciphertext);
             return new String(plainBytes, "UTF-8");
         } catch (Exception e) {
             // Decryption failed - could be unencrypted legacy data
@@ -150,6 +185,209 @@ public class CryptoUtils {
         }
     }
 
+    /**
+     * Strict variant of decrypt(): null instead of the input when the data is
+     * not encrypted or does not decrypt with this key. Used where the caller
+     * must tell "decrypted" apart from "passed through" (key rotation).
+     */
+    public static String decryptOrNull(String encryptedData, byte[] keyBytes) {
+        if (encryptedData == null || encryptedData.length() == 0 || keyBytes == null) {
+            return null;
+        }
+        try {
+            byte[] plainBytes = decryptToBytes(encryptedData, keyBytes);
+            return plainBytes != null ? new String(plainBytes, "UTF-8") : null;
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    /**
+     * True if stored is plaintext encrypted with this key. Lets a save keep
+     * the ciphertext of a field that was not edited: a fresh IV would give it
+     * new bytes, and sync would upload it as changed.
+     */
+    public static boolean isEncryptionOf(String stored, String plaintext, byte[] keyBytes) {
+        if (plaintext == null || plaintext.length() == 0) {
+            return false;
+        }
+        return plaintext.equals(decryptOrNull(stored, keyBytes));
+    }
+
+    /**
+     * Encrypt raw key material with another key (compact format).
+     *
+     * @return wrapped key, or null on failure
+     */
+    public static String wrapKey(byte[] keyToWrap, byte[] wrappingKey) {
+        if (keyToWrap == null || wrappingKey == null) {
+            return null;
+        }
+        try {
+            byte[] iv = generateIV();
+            byte[] out = new byte[COMPACT_HEADER_LENGTH + keyToWrap.length + GCM_TAG_LENGTH / 8];
+            out[0] = FORMAT_VERSION_COMPACT;
+            System.arraycopy(iv, 0, out, 1, GCM_IV_LENGTH);
+            Cipher cipher = gcmCipher();
+            cipher.init(Cipher.ENCRYPT_MODE, keySpec(wrappingKey), new GCMParameterSpec(GCM_TAG_LENGTH, iv));
+            cipher.doFinal(keyToWrap, 0, keyToWrap.length, out, COMPACT_HEADER_LENGTH);
+            return COMPACT_MARKER + Base64.getEncoder().encodeToString(out);
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    /**
+     * Reverse of wrapKey(). The caller owns the result and must zero-fill it.
+     *
+     * @return key bytes, or null if the wrapping key is wrong or data is invalid
+     */
+    public static byte[] unwrapKey(String wrapped, byte[] wrappingKey) {
+        if (wrapped == null || wrapped.length() == 0 || wrappingKey == null) {
+            return null;
+        }
+        try {
+            return decryptToBytes(wrapped, wrappingKey);
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    /**
+     * Encrypt binary data (attachment chunks): version byte + iv + ciphertext,
+     * the compact format without the "$" marker and base64.
+     *
+     * @return encrypted bytes, or null on failure
+     */
+    public static byte[] encryptBytes(byte[] plain, int offset, int length, byte[] keyBytes) {
+        if (plain == null || keyBytes == null) {
+            return null;
+        }
+        try {
+            byte[] iv = generateIV();
+            byte[] out = new byte[COMPACT_HEADER_LENGTH + length + GCM_TAG_LENGTH / 8];
+            out[0] = FORMAT_VERSION_COMPACT;
+            System.arraycopy(iv, 0, out, 1, GCM_IV_LENGTH);
+            Cipher cipher = gcmCipher();
+            cipher.init(Cipher.ENCRYPT_MODE, keySpec(keyBytes), new GCMParameterSpec(GCM_TAG_LENGTH, iv));
+            cipher.doFinal(plain, offset, length, out, COMPACT_HEADER_LENGTH);
+            return out;
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    /**
+     * Reverse of encryptBytes().
+     *
+     * @return plaintext, or null if the key is wrong or the data invalid or tampered with
+     */
+    public static byte[] decryptBytes(byte[] data, byte[] keyBytes) {
+        if (data == null || keyBytes == null
+                || data.length < COMPACT_HEADER_LENGTH + GCM_TAG_LENGTH / 8
+                || data[0] != FORMAT_VERSION_COMPACT) {
+            return null;
+        }
+        try {
+            Cipher cipher = gcmCipher();
+            cipher.init(Cipher.DECRYPT_MODE, keySpec(keyBytes),
+                    new GCMParameterSpec(GCM_TAG_LENGTH, data, 1, GCM_IV_LENGTH));
+            return cipher.doFinal(data, COMPACT_HEADER_LENGTH, data.length - COMPACT_HEADER_LENGTH);
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    /**
+     * Parse and decrypt either format.
+     *
+     * @return plaintext bytes, or null if the data is in neither format
+     * @throws Exception on a wrong key or tampered data (AEADBadTagException)
+     */
+    private static byte[] decryptToBytes(String data, byte[] keyBytes) throws Exception {
+        if (hasCompactHeader(data)) {
+            byte[] raw = Base64.getDecoder().decode(data.substring(1));
+            if (raw.length < COMPACT_HEADER_LENGTH + GCM_TAG_LENGTH / 8
+                    || raw[0] != FORMAT_VERSION_COMPACT) {
+                return null;
+            }
+            Cipher cipher = gcmCipher();
+            cipher.init(Cipher.DECRYPT_MODE, keySpec(keyBytes),
+                    new GCMParameterSpec(GCM_TAG_LENGTH, raw, 1, GCM_IV_LENGTH));
+            return cipher.doFinal(raw, COMPACT_HEADER_LENGTH, raw.length - COMPACT_HEADER_LENGTH);
+        }
+        int colonIdx = data.indexOf(':');
+        // Legacy format: IV must be 12 bytes = 24 hex chars
+        if (colonIdx != GCM_IV_LENGTH * 2) {
+            return null;
+        }
+        byte[] iv = hexToBytes(data, 0, colonIdx);
+        byte[] ciphertext = hexToBytes(data, colonIdx + 1, data.length());
+        Cipher cipher = gcmCipher();
+        cipher.init(Cipher.DECRYPT_MODE, keySpec(keyBytes), new GCMParameterSpec(GCM_TAG_LENGTH, iv));
+        return cipher.doFinal(ciphertext);
+    }
+
+    /**
+     * Per-thread GCM cipher. Cipher.getInstance() does a provider lookup on
+     * every call; a Cipher is not thread-safe but can be re-initialized freely.
+     */
+    private static Cipher gcmCipher() throws GeneralSecurityException {
+        Cipher cipher = (Cipher) sGcmCipher.get();
+        if (cipher == null) {
+            cipher = Cipher.getInstance("AES/GCM/NoPadding");
+            sGcmCipher.set(cipher);
+        }
+        return cipher;
+    }
+
+    /**
+     * Key spec for a derived key, reused while the same key array is passed in.
+     * Two slots, so re-encryption alternating old/new key does not thrash.
+     * A private copy of each key detects arrays modified in place.
+     */
+    private static SecretKeySpec keySpec(byte[] keyBytes) {
+        synchronized (sKeyCacheLock) {
+            for (int i = 0; i < KEY_CACHE_SLOTS; i++) {
+                if (sKeyRefs[i] == keyBytes && MessageDigest.isEqual(sKeyCopies[i], keyBytes)) {
+                    return sKeySpecs[i];
+                }
+            }
+            // Evict the older slot
+            int slot = KEY_CACHE_SLOTS - 1;
+            if (sKeyCopies[slot] != null) {
+                Arrays.fill(sKeyCopies[slot], (byte) 0);
+            }
+            for (int i = slot; i > 0; i--) {
+                sKeyRefs[i] = sKeyRefs[i - 1];
+                sKeyCopies[i] = sKeyCopies[i - 1];
+                sKeySpecs[i] = sKeySpecs[i - 1];
+            }
+            SecretKeySpec spec = new SecretKeySpec(keyBytes, "AES");
+            sKeyRefs[0] = keyBytes;
+            sKeyCopies[0] = keyBytes.clone();
+            sKeySpecs[0] = spec;
+            return spec;
+        }
+    }
+
+    /**
+     * Forget cached key specs and zero-fill the key copies.
+     * Called by SessionManager whenever the session key is discarded.
+     */
+    public static void clearKeyCache() {
+        synchronized (sKeyCacheLock) {
+            for (int i = 0; i < KEY_CACHE_SLOTS; i++) {
+                if (sKeyCopies[i] != null) {
+                    Arrays.fill(sKeyCopies[i], (byte) 0);
+                }
+                sKeyRefs[i] = null;
+                sKeyCopies[i] = null;
+                sKeySpecs[i] = null;
+            }
+        }
+    }
+
     // ======================== VERIFICATION TOKEN ========================
 
     /**
@@ -182,25 +420,10 @@ public class CryptoUtils {
             return false;
         }
         try {
-            int colonIdx = encryptedToken.indexOf(':');
-            if (colonIdx <= 0) {
+            byte[] plainBytes = decryptToBytes(encryptedToken, key);
+            if (plainBytes == null) {
                 return false;
             }
-            String ivHex = encryptedToken.substring(0, colonIdx);
-            String cipherHex = encryptedToken.substring(colonIdx + 1);
-
-            if (ivHex.length() != GCM_IV_LENGTH * 2) {
-                return false;
-            }
-
-            byte[] iv = hexToBytes(ivHex);
-            byte[] ciphertext = hexToBytes(cipherHex);
-
-            SecretKeySpec keySpec = new SecretKeySpec(key, "AES");
-            GCMParameterSpec gcmSpec = new GCMParameterSpec(GCM_TAG_LENGTH, iv);
-            Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
-            cipher.init(Cipher.DECRYPT_MODE, keySpec, gcmSpec);
-            byte[] plainBytes = cipher.doFinal(ciphertext);
             String decrypted = new String(plainBytes, "UTF-8");
             return constantTimeEquals(decrypted, VERIFY_TOKEN_PLAINTEXT);
         } catch (Exception e) {
@@ -209,6 +432,28 @@ public class CryptoUtils {
         }
     }
 
+    // ======================== KEYED IDS ========================
+
+    /**
+     * HMAC-SHA256 of the UTF-8 value under key, as hex. Stable for one key and
+     * value, and reveals neither: used for the id of a data key and for cloud
+     * document ids derived from user data.
+     *
+     * @return hex digest, or null on failure
+     */
+    public static String hmacHex(byte[] key, String value) {
+        if (key == null || value == null) {
+            return null;
+        }
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(key, "HmacSHA256"));
+            return bytesToHex(mac.doFinal(value.getBytes("UTF-8")));
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
     // ======================== UTILITY ========================
 
     /**
@@ -232,49 +477,82 @@ public class CryptoUtils {
      * Convert byte array to lowercase hex string.
      */
     public static String bytesToHex(byte[] bytes) {
-        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        char[] out = new char[bytes.length * 2];
         for (int i = 0; i < bytes.length; i++) {
-            String hex = Integer.toHexString(0xff & bytes[i]);
-            if (hex.length() == 1) {
-                sb.append('0');
-            }
-            sb.append(hex);
+            int v = bytes[i] & 0xff;
+            out[i * 2] = HEX_DIGITS[v >>> 4];
+            out[i * 2 + 1] = HEX_DIGITS[v & 0x0f];
         }
-        return sb.toString();
+        return new String(out);
     }
 
     /**
      * Convert hex string to byte array.
+     *
+     * @throws IllegalArgumentException on a non-hex character
      */
     public static byte[] hexToBytes(String hex) {
-        int len = hex.length();
-        byte[] data = new byte[len / 2];
-        for (int i = 0; i < len; i += 2) {
-            data[i / 2] = (byte) ((Character.digit(hex.charAt(i), 16) << 4)
-                    + Character.digit(hex.charAt(i + 1), 16));
+        return hexToBytes(hex, 0, hex.length());
+    }
+
+    private static byte[] hexToBytes(String hex, int start, int end) {
+        byte[] data = new byte[(end - start) / 2];
+        for (int i = 0; i < data.length; i++) {
+            int hi = hexValue(hex.charAt(start + i * 2));
+            int lo = hexValue(hex.charAt(start + i * 2 + 1));
+            data[i] = (byte) ((hi << 4) | lo);
         }
         return data;
     }
 
+    private static int hexValue(char c) {
+        int v = c < HEX_VALUES.length ? HEX_VALUES[c] : -1;
+        if (v < 0) {
+            throw new IllegalArgumentException("Invalid hex character");
+        }
+        return v;
+    }
+
     /**
-     * Check if a string looks like encrypted data (iv:ciphertext format).
+     * Check if a string looks like encrypted data, in the compact format or
+     * the legacy iv:ciphertext format.
      */
     public static boolean isEncrypted(String data) {
         if (data == null || data.length() == 0) {
             return false;
         }
+        if (hasCompactHeader(data)) {
+            if (data.length() < COMPACT_MIN_LENGTH || (data.length() - 1) % 4 != 0) {
+                return false;
+            }
+            for (int i = 1; i < data.length(); i++) {
+                char c = data.charAt(i);
+                if (!((c >= 'A' && c <= 'Z') || (c >= 'a' && c <= 'z') || (c >= '0' && c <= '9')
+                        || c == '+' || c == '/' || c == '=')) {
+                    return false;
+                }
+            }
+            return true;
+        }
         int colonIdx = data.indexOf(':');
         if (colonIdx != GCM_IV_LENGTH * 2) {
             return false;
         }
         // Check if IV part is valid hex
-        String ivPart = data.substring(0, colonIdx);
-        for (int i = 0; i < ivPart.length(); i++) {
-            char c = ivPart.charAt(i);
+        for (int i = 0; i < colonIdx; i++) {
+            char c = data.charAt(i);
             if (!((c >= '0' && c <= '9') || (c >= 'a' && c <= 'f'))) {
                 return false;
             }
         }
         return true;
     }
+
+    /**
+     * The compact format starts with the marker followed by the base64 of the
+     * version byte (0x02 always encodes to 'A').
+     */
+    private static boolean hasCompactHeader(String data) {
+        return data.length() > 1 && data.charAt(0) == COMPACT_MARKER_CHAR && data.charAt(1) == 'A';
+    }
 }
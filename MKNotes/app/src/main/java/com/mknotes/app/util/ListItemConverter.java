@@ -70,6 +70,39 @@ public class ListItemConverter {
         return items;
     }
 
+    /**
+     * Count checked and total items (children included) without building
+     * ListItem objects, so the shared id counter is left untouched.
+     *
+     * @return {checked, total}; {0, 0} for empty or invalid JSON
+     */
+    public static int[] countItems(String json) {
+        int[] counts = new int[2];
+        if (json == null || json.length() == 0 || json.equals("[]")) {
+            return counts;
+        }
+        try {
+            countItems(new JSONArray(json), counts);
+        } catch (JSONException e) {
+            // Treat as empty
+        }
+        return counts;
+    }
+
+    private static void countItems(JSONArray array, int[] counts) throws JSONException {
+        for (int i = 0; i < array.length(); i++) {
+            JSONObject obj = array.getJSONObject(i);
+            counts[1]++;
+            if (obj.optBoolean("checked", false)) {
+                counts[0]++;
+            }
+            JSONArray children = obj.optJSONArray("children");
+            if (children != null) {
+                countItems(children, counts);
+            }
+        }
+    }
+
     private static int findMaxId(ListItem item) {
         int max = item.getId();
         List children = item.getChildren();
@@ -0,0 +1,56 @@
+package com.mknotes.app.util;
+
+/**
+ * Builds the short plaintext preview shown in the note list.
+ *
+ * The preview is stored encrypted in notes.preview (see NotesRepository), so the
+ * list decrypts a couple of hundred bytes per note instead of the whole HTML body
+ * and checklist JSON. Notes loaded in full compute the same text on the fly.
+ *
+ * Format: HTML stripped, whitespace collapsed, at most PREVIEW_LENGTH characters
+ * followed by "..." when cut. Checklist notes start with a check mark and their
+ * progress, e.g. "2/5".
+ */
+public class NotePreviewUtils {
+
+    public static final int PREVIEW_LENGTH = 150;
+
+    private static final String ELLIPSIS = "...";
+    private static final String CHECKLIST_MARK = "\u2611 ";
+
+    private NotePreviewUtils() {
+    }
+
+    /**
+     * @param content       plaintext note content (may be HTML)
+     * @param checklistData plaintext checklist JSON, may be empty
+     * @param checklistMode whether the note is a checklist
+     * @return preview text, empty when there is nothing to show
+     */
+    public static String buildPreview(String content, String checklistData, boolean checklistMode) {
+        String text = collapseWhitespace(SearchIndexUtils.stripHtml(content));
+        if (text.length() > PREVIEW_LENGTH) {
+            text = text.substring(0, PREVIEW_LENGTH) + ELLIPSIS;
+        }
+        if (checklistMode && checklistData != null && checklistData.length() > 2) {
+            int[] counts = ListItemConverter.countItems(checklistData);
+            if (counts[1] > 0) {
+                String progress = CHECKLIST_MARK + counts[0] + "/" + counts[1];
+                return text.length() > 0 ? progress + "\n" + text : progress;
+            }
+        }
+        return text;
+    }
+
+    /**
+     * Collapse runs of spaces and blank lines left over from stripped markup.
+     */
+    private static String collapseWhitespace(String text) {
+        if (text.length() == 0) {
+            return text;
+        }
+        return text.replaceAll("[ \\t\\u00A0]+", " ")
+                .replaceAll(" ?\\n[\\s]*", "\n")
+                .trim();
+    }
+}
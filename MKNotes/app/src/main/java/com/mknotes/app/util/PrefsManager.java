@@ -3,9 +3,13 @@ package com.mknotes.app.util;
 import android.content.Context;
 import android.content.SharedPreferences;
 
+import java.util.UUID;
+
 public class PrefsManager {
 
     private static final String PREFS_NAME = "mknotes_prefs";
+    /** Per-installation values; excluded from backup (res/xml/backup_rules.xml). */
+    private static final String DEVICE_PREFS_NAME = "mknotes_device";
     private static final String KEY_SORT_BY = "sort_by";
     private static final String KEY_DEFAULT_COLOR = "default_color";
     private static final String KEY_FONT_SIZE = "font_size";
@@ -15,6 +19,10 @@ public class PrefsManager {
     private static final String KEY_CURRENT_FILTER = "current_filter";
     private static final String KEY_CURRENT_CATEGORY_ID = "current_category_id";
     private static final String KEY_CLOUD_SYNC_ENABLED = "cloud_sync_enabled";
+    private static final String KEY_AUTO_BACKUP_ENABLED = "auto_backup_enabled";
+    private static final String KEY_SYNC_WATERMARK_PREFIX = "sync_watermark_";
+    private static final String KEY_DEVICE_ID = "sync_device_id";
+    private static final String KEY_ACTIVITY_SYNC_KEY_PREFIX = "activity_sync_key_";
 
     public static final String SORT_MODIFIED = "modified";
     public static final String SORT_CREATED = "created";
@@ -28,6 +36,7 @@ public class PrefsManager {
     public static final String FILTER_CATEGORY = "category";
 
     private SharedPreferences prefs;
+    private SharedPreferences devicePrefs;
     private static PrefsManager sInstance;
 
     public static synchronized PrefsManager getInstance(Context context) {
@@ -39,6 +48,7 @@ public class PrefsManager {
 
     private PrefsManager(Context context) {
         prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        devicePrefs = context.getSharedPreferences(DEVICE_PREFS_NAME, Context.MODE_PRIVATE);
     }
 
     public String getSortBy() {
@@ -112,4 +122,62 @@ public class PrefsManager {
     public void setCloudSyncEnabled(boolean enabled) {
         prefs.edit().putBoolean(KEY_CLOUD_SYNC_ENABLED, enabled).apply();
     }
+
+    public boolean isAutoBackupEnabled() {
+        return prefs.getBoolean(KEY_AUTO_BACKUP_ENABLED, true);
+    }
+
+    public void setAutoBackupEnabled(boolean enabled) {
+        prefs.edit().putBoolean(KEY_AUTO_BACKUP_ENABLED, enabled).apply();
+    }
+
+    /**
+     * Server time (millis) of the newest cloud change already applied for this
+     * account, or 0 if it never completed a sync (full download needed).
+     */
+    public long getSyncWatermark(String uid) {
+        return prefs.getLong(KEY_SYNC_WATERMARK_PREFIX + uid, 0);
+    }
+
+    public void setSyncWatermark(String uid, long serverMillis) {
+        prefs.edit().putLong(KEY_SYNC_WATERMARK_PREFIX + uid, serverMillis).apply();
+    }
+
+    /**
+     * Watermark of another synced collection (meditation and mood data).
+     */
+    public long getSyncWatermark(String uid, String collection) {
+        return prefs.getLong(KEY_SYNC_WATERMARK_PREFIX + collection + "_" + uid, 0);
+    }
+
+    public void setSyncWatermark(String uid, String collection, long serverMillis) {
+        prefs.edit().putLong(KEY_SYNC_WATERMARK_PREFIX + collection + "_" + uid, serverMillis).apply();
+    }
+
+    /**
+     * Id of the key the account's meditation and mood documents were last
+     * fully synced with, or null (documents may still be plaintext or under
+     * an older key).
+     */
+    public String getActivitySyncKeyId(String uid) {
+        return prefs.getString(KEY_ACTIVITY_SYNC_KEY_PREFIX + uid, null);
+    }
+
+    public void setActivitySyncKeyId(String uid, String keyId) {
+        prefs.edit().putString(KEY_ACTIVITY_SYNC_KEY_PREFIX + uid, keyId).apply();
+    }
+
+    /**
+     * Random id of this installation, used as its entry in note version
+     * vectors. Created on first use; not restored from a backup, so two
+     * devices never share one.
+     */
+    public synchronized String getDeviceId() {
+        String id = devicePrefs.getString(KEY_DEVICE_ID, null);
+        if (id == null) {
+            id = UUID.randomUUID().toString().replace("-", "").substring(0, 16);
+            devicePrefs.edit().putString(KEY_DEVICE_ID, id).commit();
+        }
+        return id;
+    }
 }
@@ -0,0 +1,382 @@
+package com.mknotes.app.util;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Blind-token search index for encrypted notes.
+ *
+ * Every normalized word of a note is expanded into its prefixes, and each prefix
+ * is turned into a keyed HMAC-SHA256 token. Only these tokens are stored in the
+ * notes.search_index column, so plaintext never touches disk and a query becomes
+ * a plain SQL LIKE lookup on token strings -- no bulk decryption needed.
+ *
+ * Security model:
+ * - Index key is derived from the session key via HMAC with a fixed label,
+ *   so index tokens can never be used to decrypt note data.
+ * - Tokens are truncated to 48 bits; collisions only cause rare false positives.
+ * - Tokens change whenever the encryption key changes (index must be rebuilt).
+ *
+ * Index format: " tok1 tok2 tok3 " (leading and trailing space so every token
+ * can be matched with LIKE '% tok %'). A single space means "indexed, no words".
+ * The same tokens plus an ordered word-token sequence feed the notes_fts table
+ * (see buildEntry / buildFtsQuery) for ranked and phrase search.
+ */
+public class SearchIndexUtils {
+
+    /** Stored value for a note that has been indexed but contains no words. */
+    public static final String EMPTY_INDEX = " ";
+
+    private static final String INDEX_KEY_LABEL = "MKNOTES_SEARCH_INDEX_V1";
+    private static final String HMAC_ALGORITHM = "HmacSHA256";
+
+    /** Prefixes longer than this are not indexed; longer query words are truncated. */
+    private static final int MAX_PREFIX_LENGTH = 12;
+    /** Bytes of HMAC output kept per token (48 bits = 12 hex chars). */
+    private static final int TOKEN_BYTES = 6;
+    /** Upper bound on tokens per note to keep huge notes from bloating the row. */
+    private static final int MAX_TOKENS_PER_NOTE = 6000;
+    /** Upper bound on indexed words (phrase/ranking sequence) per note. */
+    private static final int MAX_WORDS_PER_NOTE = 20000;
+    /** Upper bound on prefix token occurrences written to the FTS prefixes column. */
+    private static final int MAX_PREFIX_OCCURRENCES = 30000;
+    /** HMAC input prefix for full-word tokens; ':' is never part of a word. */
+    private static final String WORD_TOKEN_DOMAIN = "w:";
+
+    /** BM25 term-frequency saturation and length normalization constants. */
+    private static final double BM25_K1 = 1.2;
+    private static final double BM25_B = 0.75;
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    /**
+     * Derive the search index key from the note encryption key.
+     *
+     * @return 32-byte index key, or null if key is null or HMAC is unavailable
+     */
+    public static byte[] deriveIndexKey(byte[] key) {
+        if (key == null) {
+            return null;
+        }
+        try {
+            Mac mac = Mac.getInstance(HMAC_ALGORITHM);
+            mac.init(new SecretKeySpec(key, HMAC_ALGORITHM));
+            return mac.doFinal(INDEX_KEY_LABEL.getBytes("UTF-8"));
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    /**
+     * Build the blind-token index string for a note's plaintext title and content.
+     *
+     * @param title   decrypted title
+     * @param content decrypted content (may contain HTML)
+     * @param key     the note encryption key (NOT the index key)
+     * @return index string, or "" if no key is available (row stays unindexed)
+     */
+    public static String buildIndex(String title, String content, byte[] key) {
+        IndexEntry entry = buildEntry(title, content, key);
+        return entry != null ? entry.prefixes : "";
+    }
+
+    /**
+     * Build both index representations of a note in a single pass:
+     * - prefixes: the prefix token set (search_index column) and, for the FTS
+     *   "prefixes" column, one prefix token per word occurrence so BM25 sees
+     *   real term frequencies;
+     * - words: the ordered full-word token sequence (FTS "words" column, used for
+     *   phrase and exact-word queries).
+     *
+     * @return index entry, or null if no key is available
+     */
+    public static IndexEntry buildEntry(String title, String content, byte[] key) {
+        Mac mac = newIndexMac(key);
+        if (mac == null) {
+            return null;
+        }
+        List words = tokenizeWords((title != null ? title : "") + " " + stripHtml(content));
+        Set tokens = new LinkedHashSet();
+        StringBuilder wordSeq = new StringBuilder();
+        StringBuilder prefixSeq = new StringBuilder();
+        int prefixCount = 0;
+        int wordCount = Math.min(words.size(), MAX_WORDS_PER_NOTE);
+        for (int i = 0; i < wordCount; i++) {
+            String word = (String) words.get(i);
+            if (wordSeq.length() > 0) {
+                wordSeq.append(' ');
+            }
+            wordSeq.append(token(mac, WORD_TOKEN_DOMAIN + word));
+            boolean setFull = tokens.size() >= MAX_TOKENS_PER_NOTE;
+            if (setFull && prefixCount >= MAX_PREFIX_OCCURRENCES) {
+                continue;
+            }
+            int maxLen = Math.min(word.length(), MAX_PREFIX_LENGTH);
+            for (int len = 1; len <= maxLen; len++) {
+                String t = token(mac, word.substring(0, len));
+                boolean isNew = !setFull && tokens.add(t);
+                // Past the occurrence cap only unseen prefixes are added, so
+                // matching stays complete while term frequencies saturate
+                if (isNew || prefixCount < MAX_PREFIX_OCCURRENCES) {
+                    if (prefixSeq.length() > 0) {
+                        prefixSeq.append(' ');
+                    }
+                    prefixSeq.append(t);
+                    prefixCount++;
+                }
+            }
+        }
+        IndexEntry entry = new IndexEntry();
+        entry.words = wordSeq.toString();
+        entry.prefixOccurrences = prefixSeq.toString();
+        if (tokens.isEmpty()) {
+            entry.prefixes = EMPTY_INDEX;
+            return entry;
+        }
+        StringBuilder sb = new StringBuilder(tokens.size() * (TOKEN_BYTES * 2 + 1) + 1);
+        sb.append(' ');
+        for (Object t : tokens) {
+            sb.append((String) t).append(' ');
+        }
+        entry.prefixes = sb.toString();
+        return entry;
+    }
+
+    /**
+     * Build an FTS4 MATCH expression for a user query.
+     *
+     * - Plain words become "prefixes:P" (prefix match on the prefix column).
+     * - Text inside double quotes becomes "W1 W2 W3": an exact word or phrase.
+     *   Word tokens use their own HMAC domain, so they can only ever match the
+     *   words column (FTS4 does not reliably support column:"phrase" filters).
+     * All parts are ANDed; only implicit AND is used, which behaves the same
+     * under the standard and the enhanced FTS query syntax.
+     *
+     * @return match expression, "" if the query has no words, or null if no key
+     */
+    public static String buildFtsQuery(String query, String prefixColumn, byte[] key) {
+        Mac mac = newIndexMac(key);
+        if (mac == null) {
+            return null;
+        }
+        if (query == null) {
+            return "";
+        }
+        StringBuilder sb = new StringBuilder();
+        String[] segments = query.split("\"", -1);
+        for (int s = 0; s < segments.length; s++) {
+            List words = tokenizeWords(segments[s]);
+            if (words.isEmpty()) {
+                continue;
+            }
+            if (s % 2 == 1) {
+                appendSeparator(sb);
+                sb.append('"');
+                for (int i = 0; i < words.size(); i++) {
+                    if (i > 0) sb.append(' ');
+                    sb.append(token(mac, WORD_TOKEN_DOMAIN + (String) words.get(i)));
+                }
+                sb.append('"');
+                continue;
+            }
+            for (int i = 0; i < words.size(); i++) {
+                String word = (String) words.get(i);
+                if (word.length() > MAX_PREFIX_LENGTH) {
+                    word = word.substring(0, MAX_PREFIX_LENGTH);
+                }
+                appendSeparator(sb);
+                sb.append(prefixColumn).append(':').append(token(mac, word));
+            }
+        }
+        return sb.toString();
+    }
+
+    private static void appendSeparator(StringBuilder sb) {
+        if (sb.length() > 0) {
+            sb.append(' ');
+        }
+    }
+
+    /**
+     * Okapi BM25 score of one row from an FTS4 matchinfo(table, 'pcnalx') blob.
+     * FTS4 has no built-in ranking function, so it is computed here from the raw
+     * statistics: phrase/column counts, row count, average and row column lengths,
+     * and per phrase/column hit counts. Higher is better.
+     *
+     * @param matchinfo     blob returned by matchinfo(..., 'pcnalx')
+     * @param columnWeights weight per FTS column, in table column order
+     */
+    public static double bm25(byte[] matchinfo, double[] columnWeights) {
+        if (matchinfo == null || matchinfo.length < 12) {
+            return 0;
+        }
+        ByteBuffer buf = ByteBuffer.wrap(matchinfo).order(ByteOrder.nativeOrder());
+        int phraseCount = buf.getInt(0);
+        int columnCount = buf.getInt(4);
+        double rowCount = buf.getInt(8) & 0xffffffffL;
+        int avgOffset = 3;
+        int lenOffset = avgOffset + columnCount;
+        int hitsOffset = lenOffset + columnCount;
+        if ((hitsOffset + phraseCount * columnCount * 3) * 4 > matchinfo.length) {
+            return 0;
+        }
+        double score = 0;
+        for (int col = 0; col < columnCount; col++) {
+            double weight = col < columnWeights.length ? columnWeights[col] : 1.0;
+            if (weight == 0) continue;
+            double avgLen = Math.max(1, buf.getInt((avgOffset + col) * 4));
+            double rowLen = buf.getInt((lenOffset + col) * 4);
+            double norm = BM25_K1 * (1 - BM25_B + BM25_B * rowLen / avgLen);
+            for (int phrase = 0; phrase < phraseCount; phrase++) {
+                int base = hitsOffset + (phrase * columnCount + col) * 3;
+                double tf = buf.getInt(base * 4);
+                if (tf <= 0) continue;
+                double docsWithHit = buf.getInt((base + 2) * 4);
+                double idf = Math.log((rowCount - docsWithHit + 0.5) / (docsWithHit + 0.5));
+                // Terms present in most rows would go negative; keep them slightly positive
+                if (idf < 0.000001) idf = 0.000001;
+                score += weight * idf * (tf * (BM25_K1 + 1)) / (tf + norm);
+            }
+        }
+        return score;
+    }
+
+    /**
+     * Convert a user query into index tokens. Every word of the query must match
+     * the prefix of some word in the note (AND logic): "medi" matches "meditation".
+     *
+     * @return list of tokens (may be empty), or null if no key is available
+     */
+    public static List queryTokens(String query, byte[] key) {
+        Mac mac = newIndexMac(key);
+        if (mac == null) {
+            return null;
+        }
+        List words = tokenizeWords(query);
+        Set tokens = new LinkedHashSet();
+        for (int i = 0; i < words.size(); i++) {
+            String word = (String) words.get(i);
+            if (word.length() > MAX_PREFIX_LENGTH) {
+                word = word.substring(0, MAX_PREFIX_LENGTH);
+            }
+            tokens.add(token(mac, word));
+        }
+        return new ArrayList(tokens);
+    }
+
+    /**
+     * LIKE pattern that matches a single token inside an index string.
+     * Tokens are pure hex, so no LIKE escaping is needed.
+     */
+    public static String likePattern(String token) {
+        return "% " + token + " %";
+    }
+
+    /**
+     * Remove HTML tags and decode the handful of entities the rich text editor emits.
+     */
+    public static String stripHtml(String html) {
+        if (html == null || html.length() == 0) {
+            return "";
+        }
+        String text = html.replaceAll("<[^>]*>", " ");
+        if (text.indexOf('&') >= 0) {
+            text = text.replace("&nbsp;", " ")
+                    .replace("&lt;", "<")
+                    .replace("&gt;", ">")
+                    .replace("&quot;", "\"")
+                    .replace("&#39;", "'")
+                    .replace("&amp;", "&");
+        }
+        return text;
+    }
+
+    /**
+     * Split text into normalized (NFKC, lowercase) words.
+     * Combining marks count as word characters so Devanagari matras
+     * do not split a word into fragments.
+     */
+    public static List tokenizeWords(String text) {
+        List words = new ArrayList();
+        if (text == null || text.length() == 0) {
+            return words;
+        }
+        String normalized = Normalizer.normalize(text, Normalizer.Form.NFKC).toLowerCase(Locale.ROOT);
+        StringBuilder current = new StringBuilder();
+        for (int i = 0; i < normalized.length(); i++) {
+            char c = normalized.charAt(i);
+            if (isWordChar(c)) {
+                current.append(c);
+            } else if (current.length() > 0) {
+                words.add(current.toString());
+                current.setLength(0);
+            }
+        }
+        if (current.length() > 0) {
+            words.add(current.toString());
+        }
+        return words;
+    }
+
+    private static boolean isWordChar(char c) {
+        if (Character.isLetterOrDigit(c)) {
+            return true;
+        }
+        int type = Character.getType(c);
+        return type == Character.NON_SPACING_MARK
+                || type == Character.COMBINING_SPACING_MARK
+                || type == Character.ENCLOSING_MARK;
+    }
+
+    private static Mac newIndexMac(byte[] key) {
+        byte[] indexKey = deriveIndexKey(key);
+        if (indexKey == null) {
+            return null;
+        }
+        try {
+            Mac mac = Mac.getInstance(HMAC_ALGORITHM);
+            mac.init(new SecretKeySpec(indexKey, HMAC_ALGORITHM));
+            return mac;
+        } catch (Exception e) {
+            return null;
+        } finally {
+            java.util.Arrays.fill(indexKey, (byte) 0);
+        }
+    }
+
+    private static String token(Mac mac, String term) {
+        byte[] digest;
+        try {
+            digest = mac.doFinal(term.getBytes("UTF-8"));
+        } catch (Exception e) {
+            digest = mac.doFinal(term.getBytes());
+        }
+        char[] out = new char[TOKEN_BYTES * 2];
+        for (int i = 0; i < TOKEN_BYTES; i++) {
+            int v = digest[i] & 0xff;
+            out[i * 2] = HEX[v >>> 4];
+            out[i * 2 + 1] = HEX[v & 0x0f];
+        }
+        return new String(out);
+    }
+
+    /**
+     * Both blind-token representations of one note.
+     */
+    public static class IndexEntry {
+        /** Prefix token set, formatted " t1 t2 ... ". */
+        public String prefixes;
+        /** Prefix tokens per word occurrence, space separated (FTS column). */
+        public String prefixOccurrences;
+        /** Ordered full-word token sequence, space separated. */
+        public String words;
+    }
+}
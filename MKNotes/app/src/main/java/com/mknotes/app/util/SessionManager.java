@@ -3,7 +3,9 @@ package com.mknotes.app.util;
 import android.content.Context;
 import android.content.SharedPreferences;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 
 /**
  * Manages master password verification via encrypted verification token,
@@ -11,9 +13,16 @@ import java.util.Arrays;
  * and in-memory encryption key caching for AES-256-GCM note encryption.
  *
  * Security model:
- * - Derived key is NEVER stored on disk -- only cached in memory during active session.
+ * - Notes are encrypted with a random data key. It is stored only wrapped
+ *   (AES-GCM) by the password-derived key, so a password change rewraps 32
+ *   bytes instead of re-encrypting every note.
+ * - Neither key is stored on disk in the clear -- the data key is only cached
+ *   in memory during an active session.
  * - Password verification uses encrypted token approach (not key hash).
  * - Key material is zero-filled before being discarded to prevent memory leaks.
+ * - With cloud sync, the salt, verification token and wrapped data key are
+ *   kept in the cloud (Keyring), so every device holding the password
+ *   encrypts with the same data key.
  * - Background/foreground tracking for session timeout enforcement.
  */
 public class SessionManager {
@@ -26,6 +35,21 @@ public class SessionManager {
     private static final String KEY_ENCRYPTION_MIGRATED = "encryption_migrated";
     private static final String KEY_BACKGROUND_TIME = "app_background_timestamp";
     private static final String KEY_ITERATIONS = "pbkdf2_iterations";
+    private static final String KEY_WRAPPED_DATA_KEY = "wrapped_data_key";
+    private static final String KEY_KEY_VERSION = "key_version";
+    private static final String KEY_REKEY_TARGET_VERSION = "rekey_target_version";
+    private static final String KEY_REKEY_OLD_KEY = "rekey_old_key_wrapped";
+    private static final String KEY_REKEY_LOCAL_DONE = "rekey_local_done";
+    private static final String KEY_CREDENTIALS_CHANGED_AT = "credentials_changed_at";
+    private static final String KEY_CLOUD_SALT = "cloud_keyring_salt";
+    private static final String KEY_CLOUD_VERIFY_TOKEN = "cloud_keyring_verify_token";
+    private static final String KEY_CLOUD_WRAPPED_KEY = "cloud_keyring_wrapped_key";
+    private static final String KEY_CLOUD_CHANGED_AT = "cloud_keyring_changed_at";
+    private static final String KEY_MIGRATION_NOTES_CHECKPOINT = "migration_notes_checkpoint";
+    private static final String KEY_MIGRATION_TRASH_CHECKPOINT = "migration_trash_checkpoint";
+
+    /** Key version of data written before key versions were tracked. */
+    private static final int FIRST_KEY_VERSION = 1;
 
     /** Session timeout in milliseconds. 5 minutes by default. */
     public static final long SESSION_TIMEOUT_MS = 5L * 60L * 1000L;
@@ -37,7 +61,8 @@ public class SessionManager {
     private static SessionManager sInstance;
 
     /**
-     * In-memory cached derived key for AES-256-GCM encryption/decryption.
+     * In-memory cached data key for AES-256-GCM encryption/decryption (the
+     * password-derived key itself on installs not yet upgraded to a data key).
      * This is NEVER written to disk. Cleared and zero-filled when session expires.
      */
     private byte[] cachedDerivedKey;
@@ -50,6 +75,40 @@ public class SessionManager {
      */
     private boolean isMeditationPlaying = false;
 
+    /** Notified when the cached key is discarded (lock, timeout). */
+    private final List sessionListeners = new ArrayList();
+
+    /**
+     * Receives a callback when the session ends and the cached key is wiped.
+     * Holders of decrypted data must drop it here.
+     */
+    public interface SessionListener {
+        void onSessionCleared();
+    }
+
+    /**
+     * Credentials another device needs to read this account's data: salt and
+     * verification token of the password, the data key wrapped by it, an id of
+     * the data key (HMAC under the key, reveals nothing about it) and the time
+     * the password was last set.
+     */
+    public static final class Keyring {
+        public final String saltHex;
+        public final String verifyToken;
+        public final String wrappedDataKey;
+        public final String keyId;
+        public final long changedAt;
+
+        public Keyring(String saltHex, String verifyToken, String wrappedDataKey, String keyId,
+                       long changedAt) {
+            this.saltHex = saltHex;
+            this.verifyToken = verifyToken;
+            this.wrappedDataKey = wrappedDataKey;
+            this.keyId = keyId;
+            this.changedAt = changedAt;
+        }
+    }
+
     public static synchronized SessionManager getInstance(Context context) {
         if (sInstance == null) {
             sInstance = new SessionManager(context.getApplicationContext());
@@ -84,6 +143,15 @@ public class SessionManager {
         return prefs.getString(KEY_VERIFY_TOKEN, null);
     }
 
+    /**
+     * Get the data key wrapped by the password-derived key, or null on installs
+     * from before data keys (notes encrypted with the derived key directly).
+     * Used for backup export.
+     */
+    public String getWrappedDataKey() {
+        return prefs.getString(KEY_WRAPPED_DATA_KEY, null);
+    }
+
     /**
      * Get the stored iteration count. Falls back to current default if not stored.
      */
@@ -93,42 +161,63 @@ public class SessionManager {
 
     /**
      * Set the master password for the first time (or overwrite).
-     * Generates salt, derives key via PBKDF2WithHmacSHA256, encrypts verification token.
-     * Caches the derived key in memory for encryption operations.
-     * Does NOT store key hash -- only salt and encrypted token are persisted.
+     * Generates salt and a new random data key, derives the wrapping key via
+     * PBKDF2WithHmacSHA256, encrypts verification token and wraps the data key.
+     * Caches the data key in memory for encryption operations.
+     * Does NOT store key hash -- only salt, encrypted token and wrapped key are persisted.
      *
      * @return true on success
      */
     public boolean setMasterPassword(String password) {
+        byte[] dataKey = CryptoUtils.generateDataKey();
+        if (!storeMasterPassword(password, dataKey, null)) {
+            zeroFill(dataKey);
+            return false;
+        }
+        cacheKey(dataKey);
+        return true;
+    }
+
+    /**
+     * Derive a wrapping key for the password with a fresh salt and persist it
+     * with the data key wrapped by it, in one commit. When editor is given,
+     * its pending changes are committed together with the password.
+     */
+    private boolean storeMasterPassword(String password, byte[] dataKey, SharedPreferences.Editor editor) {
+        byte[] derivedKey = null;
         try {
             byte[] salt = CryptoUtils.generateSalt();
-            byte[] derivedKey = CryptoUtils.deriveKey(password, salt);
+            derivedKey = CryptoUtils.deriveKey(password, salt);
             if (derivedKey == null) {
                 return false;
             }
 
             // Encrypt verification token with derived key
             String verifyToken = CryptoUtils.encryptVerificationToken(derivedKey);
-            if (verifyToken == null) {
-                zeroFill(derivedKey);
+            String wrappedDataKey = CryptoUtils.wrapKey(dataKey, derivedKey);
+            if (verifyToken == null || wrappedDataKey == null) {
                 return false;
             }
 
             String saltHex = CryptoUtils.bytesToHex(salt);
 
-            prefs.edit()
+            if (editor == null) {
+                editor = prefs.edit();
+            }
+            return editor
                     .putString(KEY_SALT, saltHex)
                     .putString(KEY_VERIFY_TOKEN, verifyToken)
+                    .putString(KEY_WRAPPED_DATA_KEY, wrappedDataKey)
                     .putInt(KEY_ITERATIONS, CURRENT_ITERATIONS)
                     .putBoolean(KEY_IS_SET, true)
                     .putLong(KEY_LAST_UNLOCK, System.currentTimeMillis())
+                    .putLong(KEY_CREDENTIALS_CHANGED_AT, System.currentTimeMillis())
                     .commit();
-
-            // Cache derived key in memory for encryption
-            cachedDerivedKey = derivedKey;
-            return true;
         } catch (Exception e) {
             return false;
+        } finally {
+            // The derived key only wraps; it is never cached
+            zeroFill(derivedKey);
         }
     }
 
@@ -139,34 +228,59 @@ public class SessionManager {
      * the known plaintext, password is correct.
      *
      * On failure: temp key is zero-filled, returns false, NEVER crashes.
+     * On success the data key is cached, and a data key received from the
+     * cloud is adopted (adoptPendingCloudKey()).
      *
      * @return true if the password matches
      */
     public boolean verifyMasterPassword(String password) {
+        byte[] key = unlock(password);
+        if (key == null) {
+            return false;
+        }
+        // Cache data key in memory on successful verification
+        cacheKey(key);
+        adoptPendingCloudKey(password);
+        return true;
+    }
+
+    /**
+     * Derive the key for password with the stored salt, check it against the
+     * verification token and unwrap the data key. One PBKDF2 run.
+     *
+     * @return data key (derived key on installs from before data keys), owned
+     *         by the caller; null if the password is wrong or on failure
+     */
+    private byte[] unlock(String password) {
         String saltHex = prefs.getString(KEY_SALT, null);
         String verifyToken = prefs.getString(KEY_VERIFY_TOKEN, null);
         if (saltHex == null || verifyToken == null) {
-            return false;
+            return null;
         }
         try {
             byte[] salt = CryptoUtils.hexToBytes(saltHex);
             byte[] tempKey = CryptoUtils.deriveKey(password, salt);
             if (tempKey == null) {
-                return false;
+                return null;
             }
 
             boolean valid = CryptoUtils.verifyKeyWithToken(tempKey, verifyToken);
             if (valid) {
-                // Cache derived key in memory on successful verification
-                cachedDerivedKey = tempKey;
-                return true;
+                String wrappedDataKey = prefs.getString(KEY_WRAPPED_DATA_KEY, null);
+                if (wrappedDataKey == null) {
+                    // Install from before data keys: switch over, or keep the derived key
+                    return upgradeToDataKey(password, tempKey);
+                }
+                byte[] dataKey = CryptoUtils.unwrapKey(wrappedDataKey, tempKey);
+                zeroFill(tempKey);
+                return dataKey;
             } else {
                 // Wrong password -- zero-fill temp key immediately
                 zeroFill(tempKey);
-                return false;
+                return null;
             }
         } catch (Exception e) {
-            return false;
+            return null;
         }
     }
 
@@ -204,6 +318,7 @@ public class SessionManager {
             Arrays.fill(cachedDerivedKey, (byte) 0);
             cachedDerivedKey = null;
         }
+        notifySessionCleared();
     }
 
     /**
@@ -214,18 +329,60 @@ public class SessionManager {
         if (!isSessionValid()) {
             if (cachedDerivedKey != null) {
                 Arrays.fill(cachedDerivedKey, (byte) 0);
+                cachedDerivedKey = null;
+                notifySessionCleared();
             }
-            cachedDerivedKey = null;
             return null;
         }
         return cachedDerivedKey;
     }
 
+    /**
+     * Register a listener for session end. Listeners are held strongly;
+     * intended for process-wide singletons such as NotesRepository.
+     */
+    public void addSessionListener(SessionListener listener) {
+        synchronized (sessionListeners) {
+            if (!sessionListeners.contains(listener)) {
+                sessionListeners.add(listener);
+            }
+        }
+    }
+
+    private void notifySessionCleared() {
+        CryptoUtils.clearKeyCache();
+        Object[] listeners;
+        synchronized (sessionListeners) {
+            listeners = sessionListeners.toArray();
+        }
+        for (int i = 0; i < listeners.length; i++) {
+            ((SessionListener) listeners[i]).onSessionCleared();
+        }
+    }
+
     /**
      * Set the cached derived key directly (used during password change re-encryption).
+     * The key it replaces is zero-filled.
      */
     public void setCachedKey(byte[] key) {
+        cacheKey(key);
+    }
+
+    /**
+     * Cache key as the session key. If an equal key is cached already, that
+     * array is kept (background jobs may hold it) and key is zero-filled;
+     * otherwise the replaced key is zero-filled.
+     */
+    private void cacheKey(byte[] key) {
+        byte[] old = cachedDerivedKey;
+        if (old != null && old != key && key != null && Arrays.equals(old, key)) {
+            zeroFill(key);
+            return;
+        }
         cachedDerivedKey = key;
+        if (old != key) {
+            zeroFill(old);
+        }
     }
 
     /**
@@ -246,7 +403,25 @@ public class SessionManager {
      * Mark the database as migrated to encrypted format.
      */
     public void setEncryptionMigrated(boolean migrated) {
-        prefs.edit().putBoolean(KEY_ENCRYPTION_MIGRATED, migrated).commit();
+        prefs.edit()
+                .putBoolean(KEY_ENCRYPTION_MIGRATED, migrated)
+                .remove(KEY_MIGRATION_NOTES_CHECKPOINT)
+                .remove(KEY_MIGRATION_TRASH_CHECKPOINT)
+                .commit();
+    }
+
+    /**
+     * Highest notes (or trash) row id already handled by the encryption migration.
+     * Rows up to it are skipped when an interrupted migration resumes.
+     */
+    public long getMigrationCheckpoint(boolean trash) {
+        return prefs.getLong(trash ? KEY_MIGRATION_TRASH_CHECKPOINT : KEY_MIGRATION_NOTES_CHECKPOINT, 0);
+    }
+
+    public void setMigrationCheckpoint(boolean trash, long lastId) {
+        prefs.edit()
+                .putLong(trash ? KEY_MIGRATION_TRASH_CHECKPOINT : KEY_MIGRATION_NOTES_CHECKPOINT, lastId)
+                .commit();
     }
 
     /**
@@ -306,57 +481,301 @@ public class SessionManager {
      *
      * Does NOT cache any key -- user must enter password to derive key.
      *
-     * @param saltHex     hex-encoded salt from backup
-     * @param verifyToken encrypted verification token from backup
+     * @param saltHex        hex-encoded salt from backup
+     * @param verifyToken    encrypted verification token from backup
+     * @param wrappedDataKey wrapped data key from backup, null for backups from
+     *                       before data keys (notes under the derived key)
      */
-    public void restoreFromBackup(String saltHex, String verifyToken) {
-        prefs.edit()
+    public void restoreFromBackup(String saltHex, String verifyToken, String wrappedDataKey) {
+        SharedPreferences.Editor editor = prefs.edit()
                 .putString(KEY_SALT, saltHex)
                 .putString(KEY_VERIFY_TOKEN, verifyToken)
                 .putBoolean(KEY_IS_SET, true)
                 .putBoolean(KEY_ENCRYPTION_MIGRATED, true)
+                // Older than any keyring in the cloud: a newer password set there wins
+                .remove(KEY_CREDENTIALS_CHANGED_AT);
+        if (wrappedDataKey != null) {
+            editor.putString(KEY_WRAPPED_DATA_KEY, wrappedDataKey);
+        } else {
+            editor.remove(KEY_WRAPPED_DATA_KEY);
+        }
+        editor.commit();
+    }
+
+    // ======================== KEY ROTATION ========================
+
+    /**
+     * Version of the current encryption key. Rows record the version they were
+     * encrypted with (key_version column); it increases when the key changes
+     * (switch to a data key), not on password changes.
+     */
+    public int getKeyVersion() {
+        return prefs.getInt(KEY_KEY_VERSION, FIRST_KEY_VERSION);
+    }
+
+    /**
+     * True while notes written with the previous key still need re-encryption.
+     */
+    public boolean isReKeyPending() {
+        return prefs.contains(KEY_REKEY_OLD_KEY) && !prefs.getBoolean(KEY_REKEY_LOCAL_DONE, false);
+    }
+
+    /**
+     * True once every local row is re-encrypted but the cloud copy may still be
+     * under the previous key. The old key is kept until a sync has uploaded
+     * the re-encrypted notes and attachments (finishReKey()).
+     */
+    public boolean isReKeyUploadPending() {
+        return prefs.contains(KEY_REKEY_OLD_KEY) && prefs.getBoolean(KEY_REKEY_LOCAL_DONE, false);
+    }
+
+    /**
+     * Key version the pending re-key job moves rows to.
+     */
+    public int getReKeyTargetVersion() {
+        return prefs.getInt(KEY_REKEY_TARGET_VERSION, getKeyVersion());
+    }
+
+    /**
+     * Unwrap the previous key of the pending re-key job with the session key.
+     * Caller MUST zero-fill the returned key.
+     *
+     * @return old key, or null if no job or upload is pending or no session key is cached
+     */
+    public byte[] getReKeyOldKey() {
+        String wrapped = prefs.getString(KEY_REKEY_OLD_KEY, null);
+        byte[] key = getCachedKey();
+        if (wrapped == null || key == null) {
+            return null;
+        }
+        return CryptoUtils.unwrapKey(wrapped, key);
+    }
+
+    /**
+     * Switch an install that encrypts with the password-derived key to a random
+     * data key. The new data key, the wrapped old key and the re-key job are
+     * committed together; ReKeyEngine then re-encrypts the notes.
+     *
+     * @param derivedKey verified derived key; ownership passes to this method
+     * @return key to cache: the new data key, or derivedKey if the switch is
+     *         deferred (an older re-key job still runs) or failed
+     */
+    private byte[] upgradeToDataKey(String password, byte[] derivedKey) {
+        if (isReKeyPending()) {
+            // That job's old key is wrapped with derivedKey; switch on a later unlock
+            return derivedKey;
+        }
+        byte[] dataKey = CryptoUtils.generateDataKey();
+        String wrappedOldKey = CryptoUtils.wrapKey(derivedKey, dataKey);
+        int targetVersion = getKeyVersion() + 1;
+        SharedPreferences.Editor editor = prefs.edit()
+                .putInt(KEY_KEY_VERSION, targetVersion)
+                .putInt(KEY_REKEY_TARGET_VERSION, targetVersion);
+        if (wrappedOldKey != null) {
+            editor.putString(KEY_REKEY_OLD_KEY, wrappedOldKey);
+        }
+        if (wrappedOldKey == null || !storeMasterPassword(password, dataKey, editor)) {
+            zeroFill(dataKey);
+            return derivedKey;
+        }
+        zeroFill(derivedKey);
+        return dataKey;
+    }
+
+    /**
+     * Record that every local row is re-encrypted. The old key is kept until
+     * the cloud copy is migrated too (see isReKeyUploadPending()).
+     */
+    public void completeLocalReKey() {
+        prefs.edit().putBoolean(KEY_REKEY_LOCAL_DONE, true).commit();
+    }
+
+    /**
+     * Mark the re-key job finished and forget the wrapped old key.
+     */
+    public void finishReKey() {
+        prefs.edit()
+                .remove(KEY_REKEY_OLD_KEY)
+                .remove(KEY_REKEY_TARGET_VERSION)
+                .remove(KEY_REKEY_LOCAL_DONE)
                 .commit();
     }
 
+    /** Result of changeMasterPassword(). */
+    public static final int PASSWORD_CHANGED = 0;
+    public static final int PASSWORD_WRONG = 1;
+    public static final int PASSWORD_CHANGE_FAILED = 2;
+
     /**
-     * Change master password. Verifies old password first.
-     * Does NOT re-encrypt notes -- caller must handle that.
-     * Returns a CLONE of the OLD derived key for re-encryption purposes.
-     * Caller MUST zero-fill the returned old key after re-encryption completes.
+     * Change master password. Verifies old password first, then rewraps the
+     * data key with a key derived from the new password. Notes are not touched.
+     * The old password is derived once; its data key becomes the session key.
      *
-     * @return cloned old derived key bytes if successful, null if old password wrong
+     * @return PASSWORD_CHANGED; PASSWORD_WRONG if the old password is wrong;
+     *         PASSWORD_CHANGE_FAILED if the install still encrypts with the
+     *         derived key (re-key pending) or on failure
      */
-    public byte[] changeMasterPasswordGetOldKey(String oldPassword, String newPassword) {
-        if (!verifyMasterPassword(oldPassword)) {
+    public int changeMasterPassword(String oldPassword, String newPassword) {
+        byte[] key = unlock(oldPassword);
+        if (key == null) {
+            return PASSWORD_WRONG;
+        }
+        cacheKey(key);
+        if (prefs.getString(KEY_WRAPPED_DATA_KEY, null) == null) {
+            // Still on the derived key until the pending re-key job finishes
+            return PASSWORD_CHANGE_FAILED;
+        }
+        // cachedDerivedKey is the data key (set by cacheKey)
+        return storeMasterPassword(newPassword, cachedDerivedKey, null)
+                ? PASSWORD_CHANGED : PASSWORD_CHANGE_FAILED;
+    }
+
+    // ======================== CLOUD KEYRING ========================
+
+    /**
+     * Time the current password was set on this or another device.
+     */
+    public long getCredentialsChangedAt() {
+        return prefs.getLong(KEY_CREDENTIALS_CHANGED_AT, 0);
+    }
+
+    /**
+     * Id of the cached data key, equal on every device with the same key.
+     *
+     * @return null without a session key or before the switch to a data key
+     */
+    public String getKeyId() {
+        byte[] key = getCachedKey();
+        if (key == null || prefs.getString(KEY_WRAPPED_DATA_KEY, null) == null) {
             return null;
         }
-        // At this point cachedDerivedKey is the OLD key (set by verifyMasterPassword)
-        byte[] oldKey = new byte[cachedDerivedKey.length];
-        System.arraycopy(cachedDerivedKey, 0, oldKey, 0, cachedDerivedKey.length);
+        return CryptoUtils.hmacHex(key, "mknotes-data-key-id");
+    }
 
-        // Set new password (this updates cachedDerivedKey to the NEW key)
-        boolean success = setMasterPassword(newPassword);
-        if (!success) {
-            zeroFill(oldKey);
+    /**
+     * This device's keyring, for upload.
+     *
+     * @return null without a session key, before the switch to a data key, or
+     *         while a re-key job still moves the notes to it
+     */
+    public Keyring getKeyring() {
+        String keyId = getKeyId();
+        if (keyId == null || isReKeyPending()) {
             return null;
         }
-        return oldKey;
+        return new Keyring(getSaltHex(), getVerifyToken(), getWrappedDataKey(), keyId,
+                getCredentialsChangedAt());
     }
 
     /**
-     * Change master password (simple version for backward compat).
+     * Check this device against the keyring stored in the cloud. For the same
+     * data key, newer credentials (password changed on another device) are
+     * taken over. A different data key is kept for adoptPendingCloudKey() on
+     * the next unlock: until then, nothing may be synced.
      *
-     * @return true if old password was correct and new password was set
+     * @return true if this device encrypts with the cloud's data key
      */
-    public boolean changeMasterPassword(String oldPassword, String newPassword) {
-        byte[] oldKey = changeMasterPasswordGetOldKey(oldPassword, newPassword);
-        if (oldKey != null) {
-            zeroFill(oldKey);
+    public boolean applyCloudKeyring(Keyring cloud) {
+        if (cloud.saltHex == null || cloud.verifyToken == null || cloud.wrappedDataKey == null) {
+            return false;
+        }
+        boolean sameCredentials = cloud.saltHex.equals(getSaltHex())
+                && cloud.wrappedDataKey.equals(getWrappedDataKey());
+        String keyId = sameCredentials ? null : getKeyId();
+        if (!sameCredentials && keyId == null) {
+            // Cannot tell without the session key
+            return false;
+        }
+        SharedPreferences.Editor editor = prefs.edit()
+                .remove(KEY_CLOUD_SALT)
+                .remove(KEY_CLOUD_VERIFY_TOKEN)
+                .remove(KEY_CLOUD_WRAPPED_KEY)
+                .remove(KEY_CLOUD_CHANGED_AT);
+        if (sameCredentials) {
+            editor.commit();
             return true;
         }
+        if (keyId.equals(cloud.keyId)) {
+            if (cloud.changedAt > getCredentialsChangedAt()) {
+                // Password changed on another device; the data key stays
+                editor.putString(KEY_SALT, cloud.saltHex)
+                        .putString(KEY_VERIFY_TOKEN, cloud.verifyToken)
+                        .putString(KEY_WRAPPED_DATA_KEY, cloud.wrappedDataKey)
+                        .putLong(KEY_CREDENTIALS_CHANGED_AT, cloud.changedAt);
+            }
+            editor.commit();
+            return true;
+        }
+        editor.putString(KEY_CLOUD_SALT, cloud.saltHex)
+                .putString(KEY_CLOUD_VERIFY_TOKEN, cloud.verifyToken)
+                .putString(KEY_CLOUD_WRAPPED_KEY, cloud.wrappedDataKey)
+                .putLong(KEY_CLOUD_CHANGED_AT, cloud.changedAt)
+                .commit();
         return false;
     }
 
+    /**
+     * True while a data key from the cloud waits for the next unlock.
+     */
+    public boolean hasPendingCloudKey() {
+        return prefs.contains(KEY_CLOUD_WRAPPED_KEY);
+    }
+
+    /**
+     * Switch to the data key received from the cloud, if password unlocks it:
+     * its credentials replace this device's and a re-key job moves the notes
+     * from the current key to it, as for upgradeToDataKey(). Deferred while an
+     * older re-key job runs; kept pending if the password differs from the one
+     * set in the cloud.
+     */
+    private void adoptPendingCloudKey(String password) {
+        String saltHex = prefs.getString(KEY_CLOUD_SALT, null);
+        String verifyToken = prefs.getString(KEY_CLOUD_VERIFY_TOKEN, null);
+        String wrappedDataKey = prefs.getString(KEY_CLOUD_WRAPPED_KEY, null);
+        if (saltHex == null || verifyToken == null || wrappedDataKey == null
+                || cachedDerivedKey == null || isReKeyPending()
+                || prefs.getString(KEY_WRAPPED_DATA_KEY, null) == null) {
+            return;
+        }
+        byte[] derivedKey = null;
+        byte[] cloudKey = null;
+        try {
+            derivedKey = CryptoUtils.deriveKey(password, CryptoUtils.hexToBytes(saltHex));
+            if (!CryptoUtils.verifyKeyWithToken(derivedKey, verifyToken)) {
+                return;
+            }
+            cloudKey = CryptoUtils.unwrapKey(wrappedDataKey, derivedKey);
+            String wrappedOldKey = CryptoUtils.wrapKey(cachedDerivedKey, cloudKey);
+            if (cloudKey == null || wrappedOldKey == null) {
+                return;
+            }
+            int targetVersion = getKeyVersion() + 1;
+            boolean stored = prefs.edit()
+                    .putString(KEY_SALT, saltHex)
+                    .putString(KEY_VERIFY_TOKEN, verifyToken)
+                    .putString(KEY_WRAPPED_DATA_KEY, wrappedDataKey)
+                    .putLong(KEY_CREDENTIALS_CHANGED_AT, prefs.getLong(KEY_CLOUD_CHANGED_AT, 0))
+                    .putInt(KEY_KEY_VERSION, targetVersion)
+                    .putInt(KEY_REKEY_TARGET_VERSION, targetVersion)
+                    .putString(KEY_REKEY_OLD_KEY, wrappedOldKey)
+                    .remove(KEY_REKEY_LOCAL_DONE)
+                    .remove(KEY_CLOUD_SALT)
+                    .remove(KEY_CLOUD_VERIFY_TOKEN)
+                    .remove(KEY_CLOUD_WRAPPED_KEY)
+                    .remove(KEY_CLOUD_CHANGED_AT)
+                    .commit();
+            if (stored) {
+                cacheKey(cloudKey);
+                cloudKey = null;
+            }
+        } catch (Exception e) {
+            // Stays pending; retried on the next unlock
+        } finally {
+            zeroFill(derivedKey);
+            zeroFill(cloudKey);
+        }
+    }
+
     /**
      * Zero-fill a byte array to prevent key material from lingering in memory.
      */
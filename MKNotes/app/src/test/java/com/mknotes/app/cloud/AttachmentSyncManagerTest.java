@@ -0,0 +1,202 @@
+package com.mknotes.app.cloud;
+
+import android.app.Application;
+import android.content.Context;
+
+import androidx.test.core.app.ApplicationProvider;
+
+import com.mknotes.app.db.NotesRepository;
+import com.mknotes.app.model.FileAttachment;
+import com.mknotes.app.model.Note;
+import com.mknotes.app.util.AttachmentConverter;
+import com.mknotes.app.util.AttachmentManager;
+import com.mknotes.app.util.SessionManager;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * AttachmentSyncManager against a LocalChunkStore, with the real repository
+ * and database (Robolectric): chunk deduplication, and uploads and downloads
+ * resumed after an injected store failure.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 33, application = Application.class)
+public class AttachmentSyncManagerTest {
+
+    private static final String UID = "attachment-test-user";
+    private static final int CHUNK = AttachmentSyncManager.CHUNK_SIZE;
+
+    private Context context;
+    private NotesRepository repo;
+    private byte[] key;
+    private int keyVersion;
+    private LocalChunkStore store;
+    private AttachmentSyncManager sync;
+
+    @Before
+    public void setUp() {
+        context = ApplicationProvider.getApplicationContext();
+        SessionManager session = SessionManager.getInstance(context);
+        assertTrue(session.setMasterPassword("attachments"));
+        key = session.getCachedKey();
+        keyVersion = session.getKeyVersion();
+        repo = NotesRepository.getInstance(context);
+        store = new LocalChunkStore(new File(context.getCacheDir(), "chunk-store"));
+        sync = new AttachmentSyncManager(context, store);
+    }
+
+    @Test
+    public void equalContentIsStoredOnce() throws Exception {
+        // Two full chunks and a partial one, the first two equal
+        byte[] data = new byte[2 * CHUNK + 1000];
+        byte[] chunk = randomBytes(CHUNK, 1);
+        System.arraycopy(chunk, 0, data, 0, CHUNK);
+        System.arraycopy(chunk, 0, data, CHUNK, CHUNK);
+        System.arraycopy(randomBytes(1000, 2), 0, data, 2 * CHUNK, 1000);
+        long first = insertNoteWithFile("a.bin", data);
+        long second = insertNoteWithFile("b.bin", data);
+
+        assertTrue(sync.uploadAll(UID, key, keyVersion));
+        assertEquals(2, store.getChunkPutCount());
+
+        // Recorded as uploaded: nothing is sent again
+        assertTrue(sync.uploadAll(UID, key, keyVersion));
+        assertEquals(2, store.getChunkPutCount());
+
+        // A new file sharing a chunk with them sends only its own
+        byte[] other = new byte[2 * CHUNK];
+        System.arraycopy(chunk, 0, other, 0, CHUNK);
+        System.arraycopy(randomBytes(CHUNK, 3), 0, other, CHUNK, CHUNK);
+        insertNoteWithFile("c.bin", other);
+        assertTrue(sync.uploadAll(UID, key, keyVersion));
+        assertEquals(3, store.getChunkPutCount());
+
+        assertDownloads(first, "a.bin", data);
+        assertDownloads(second, "b.bin", data);
+    }
+
+    @Test
+    public void failedUploadResumesWithMissingChunks() throws Exception {
+        byte[] data = randomBytes(4 * CHUNK, 4);
+        long noteId = insertNoteWithFile("resume.bin", data);
+        File file = attachment(noteId, "resume.bin");
+
+        store.failChunkPutsAfter(2);
+        assertFalse(sync.uploadAll(UID, key, keyVersion));
+        assertEquals(2, store.getChunkPutCount());
+        assertFalse(repo.isAttachmentUploaded(noteId, "resume.bin", file.length(), file.lastModified(),
+                keyVersion));
+
+        store.failChunkPutsAfter(-1);
+        assertTrue(sync.uploadAll(UID, key, keyVersion));
+        assertEquals(4, store.getChunkPutCount());
+        assertTrue(repo.isAttachmentUploaded(noteId, "resume.bin", file.length(), file.lastModified(),
+                keyVersion));
+
+        assertDownloads(noteId, "resume.bin", data);
+    }
+
+    @Test
+    public void failedDownloadResumesFromPartFile() throws Exception {
+        byte[] data = randomBytes(4 * CHUNK + 500, 5);
+        long noteId = insertNoteWithFile("fetch.bin", data);
+        assertTrue(sync.uploadAll(UID, key, keyVersion));
+        File target = attachment(noteId, "fetch.bin");
+        assertTrue(target.delete());
+        File part = new File(target.getPath() + ".part");
+
+        store.failChunkGetsAfter(2);
+        try {
+            sync.download(UID, key, noteId, "fetch.bin", target);
+            fail("Download should fail at the third chunk");
+        } catch (IOException expected) {
+            // Injected by the store
+        }
+        assertFalse(target.exists());
+        assertEquals(2L * CHUNK, part.length());
+
+        store.failChunkGetsAfter(-1);
+        assertTrue(sync.download(UID, key, noteId, "fetch.bin", target));
+        // Only the three chunks after the .part file were fetched
+        assertEquals(5, store.getChunkGetCount());
+        assertFalse(part.exists());
+        assertTrue(Arrays.equals(data, read(target)));
+    }
+
+    private void assertDownloads(long noteId, String localName, byte[] expected) throws Exception {
+        File target = attachment(noteId, localName);
+        assertTrue(target.delete());
+        assertTrue(sync.download(UID, key, noteId, localName, target));
+        assertTrue(Arrays.equals(expected, read(target)));
+    }
+
+    /**
+     * Insert a note with one file attachment holding data.
+     *
+     * @return the note id
+     */
+    private long insertNoteWithFile(String localName, byte[] data) throws IOException {
+        List files = new ArrayList();
+        files.add(new FileAttachment(localName, localName, "application/octet-stream"));
+        Note note = new Note();
+        note.setTitle(localName);
+        note.setContent("");
+        note.setFilesData(AttachmentConverter.filesToJson(files));
+        note.setCreatedAt(System.currentTimeMillis());
+        note.setModifiedAt(System.currentTimeMillis());
+        long noteId = repo.insertNote(note);
+        OutputStream os = new FileOutputStream(attachment(noteId, localName));
+        try {
+            os.write(data);
+        } finally {
+            os.close();
+        }
+        return noteId;
+    }
+
+    private File attachment(long noteId, String localName) {
+        return AttachmentManager.getAttachmentFile(context, noteId, "files", localName);
+    }
+
+    private static byte[] randomBytes(int length, long seed) {
+        byte[] data = new byte[length];
+        new Random(seed).nextBytes(data);
+        return data;
+    }
+
+    private static byte[] read(File file) throws IOException {
+        byte[] data = new byte[(int) file.length()];
+        InputStream is = new FileInputStream(file);
+        try {
+            int off = 0;
+            while (off < data.length) {
+                int n = is.read(data, off, data.length - off);
+                if (n < 0) break;
+                off += n;
+            }
+        } finally {
+            is.close();
+        }
+        return data;
+    }
+}
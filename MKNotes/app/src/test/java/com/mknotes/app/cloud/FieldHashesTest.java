@@ -0,0 +1,104 @@
+package com.mknotes.app.cloud;
+
+import com.mknotes.app.util.CryptoUtils;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Diff uploads of re-saved notes. NotesRepository.updateNote() keeps the
+ * stored ciphertext of every field whose plaintext is unchanged
+ * (CryptoUtils.isEncryptionOf()); save() below does the same for a note
+ * document as CloudSyncManager uploads it.
+ */
+public class FieldHashesTest {
+
+    private static final String[] ENCRYPTED_FIELDS = {"title", "content", "checklistData", "routineData"};
+
+    private final byte[] key = CryptoUtils.generateDataKey();
+
+    @Test
+    public void metadataChangeSendsOnlyMetadata() {
+        Map<String, Object> stored = save(null, plain("Groceries", "milk, eggs"), 100);
+        String synced = FieldHashes.of(stored);
+
+        Map<String, Object> edited = plain("Groceries", "milk, eggs");
+        edited.put("favorite", Boolean.TRUE);
+        edited.put("color", Integer.valueOf(4));
+        Map<String, Object> diff = FieldHashes.changed(save(stored, edited, 200), synced);
+
+        Set expected = new HashSet();
+        expected.add("favorite");
+        expected.add("color");
+        expected.add("modifiedAt");
+        expected.add("isDeleted");
+        expected.add("vclock");
+        assertEquals(expected, diff.keySet());
+    }
+
+    @Test
+    public void contentChangeSendsOnlyContent() {
+        Map<String, Object> stored = save(null, plain("Groceries", "milk"), 100);
+        String synced = FieldHashes.of(stored);
+
+        Map<String, Object> diff = FieldHashes.changed(
+                save(stored, plain("Groceries", "milk, bread"), 200), synced);
+        assertTrue(diff.containsKey("content"));
+        assertFalse(diff.containsKey("title"));
+        assertFalse(diff.containsKey("favorite"));
+        assertEquals("milk, bread", CryptoUtils.decrypt((String) diff.get("content"), key));
+    }
+
+    @Test
+    public void ciphertextIsKeptOnlyForSamePlaintextAndKey() {
+        String stored = CryptoUtils.encrypt("milk", key);
+        assertTrue(CryptoUtils.isEncryptionOf(stored, "milk", key));
+        assertFalse(CryptoUtils.isEncryptionOf(stored, "milk, eggs", key));
+        assertFalse(CryptoUtils.isEncryptionOf(stored, "milk", CryptoUtils.generateDataKey()));
+        // Unencrypted legacy values are encrypted on the next save
+        assertFalse(CryptoUtils.isEncryptionOf("milk", "milk", key));
+        assertFalse(CryptoUtils.isEncryptionOf(null, "milk", key));
+    }
+
+    /** Plaintext note fields, as the editor holds them. */
+    private static Map<String, Object> plain(String title, String content) {
+        Map<String, Object> note = new HashMap<String, Object>();
+        note.put("title", title);
+        note.put("content", content);
+        note.put("checklistData", "");
+        note.put("routineData", "");
+        note.put("color", Integer.valueOf(0));
+        note.put("favorite", Boolean.FALSE);
+        note.put("isDeleted", Boolean.FALSE);
+        note.put("vclock", "");
+        return note;
+    }
+
+    /**
+     * Encrypt edited as updateNote() does, keeping the ciphertext of stored
+     * (may be null) for unchanged fields.
+     */
+    private Map<String, Object> save(Map<String, Object> stored, Map<String, Object> edited, long time) {
+        Map<String, Object> row = new HashMap<String, Object>(edited);
+        for (int i = 0; i < ENCRYPTED_FIELDS.length; i++) {
+            String field = ENCRYPTED_FIELDS[i];
+            String plaintext = (String) edited.get(field);
+            String old = stored != null ? (String) stored.get(field) : null;
+            if (CryptoUtils.isEncryptionOf(old, plaintext, key)) {
+                row.put(field, old);
+            } else {
+                row.put(field, plaintext.length() == 0 ? "" : CryptoUtils.encrypt(plaintext, key));
+            }
+        }
+        row.put("modifiedAt", Long.valueOf(time));
+        return row;
+    }
+}
@@ -0,0 +1,174 @@
+package com.mknotes.app.cloud;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * ChunkStore in a local directory, for tests of attachment sync.
+ *
+ * Layout: {root}/{uid}/chunks/{chunkId} and {root}/{uid}/manifests/{manifestId}.
+ * Files are written to a temporary name and renamed, so a failed put leaves
+ * nothing behind, as a failed Firestore write would.
+ *
+ * Counts chunk transfers so tests can check deduplication, and can fail
+ * chunk uploads or downloads after a number of them to exercise resumed
+ * transfers.
+ */
+public class LocalChunkStore implements ChunkStore {
+
+    private static final int MAX_CHUNK_BYTES = 1024 * 1024;
+
+    private final File root;
+    private final Object lock = new Object();
+    private int chunkPuts = 0;
+    private int chunkGets = 0;
+    /** Chunk uploads left before putChunk() fails, -1 for no limit. */
+    private int putsBeforeFailure = -1;
+    /** Chunk downloads left before getChunk() fails, -1 for no limit. */
+    private int getsBeforeFailure = -1;
+
+    public LocalChunkStore(File root) {
+        this.root = root;
+    }
+
+    /**
+     * Let the next count chunk uploads succeed and fail every later one;
+     * -1 removes the limit.
+     */
+    public void failChunkPutsAfter(int count) {
+        synchronized (lock) {
+            putsBeforeFailure = count;
+        }
+    }
+
+    /**
+     * Let the next count chunk downloads succeed and fail every later one;
+     * -1 removes the limit.
+     */
+    public void failChunkGetsAfter(int count) {
+        synchronized (lock) {
+            getsBeforeFailure = count;
+        }
+    }
+
+    /**
+     * Number of chunks stored so far.
+     */
+    public int getChunkPutCount() {
+        synchronized (lock) {
+            return chunkPuts;
+        }
+    }
+
+    /**
+     * Number of chunks read so far.
+     */
+    public int getChunkGetCount() {
+        synchronized (lock) {
+            return chunkGets;
+        }
+    }
+
+    public int getMaxChunkBytes() {
+        return MAX_CHUNK_BYTES;
+    }
+
+    public Set findExisting(String uid, List chunkIds) {
+        Set existing = new HashSet();
+        File dir = dir(uid, "chunks");
+        for (int i = 0; i < chunkIds.size(); i++) {
+            String id = (String) chunkIds.get(i);
+            if (new File(dir, id).exists()) {
+                existing.add(id);
+            }
+        }
+        return existing;
+    }
+
+    public void putChunk(String uid, String chunkId, byte[] data) throws IOException {
+        if (data.length > MAX_CHUNK_BYTES) {
+            throw new IOException("Chunk too large: " + data.length);
+        }
+        synchronized (lock) {
+            if (putsBeforeFailure == 0) {
+                throw new IOException("Simulated chunk upload failure");
+            }
+            if (putsBeforeFailure > 0) {
+                putsBeforeFailure--;
+            }
+            chunkPuts++;
+        }
+        write(new File(dir(uid, "chunks"), chunkId), data);
+    }
+
+    public byte[] getChunk(String uid, String chunkId) throws IOException {
+        File file = new File(dir(uid, "chunks"), chunkId);
+        if (!file.exists()) {
+            return null;
+        }
+        synchronized (lock) {
+            if (getsBeforeFailure == 0) {
+                throw new IOException("Simulated chunk download failure");
+            }
+            if (getsBeforeFailure > 0) {
+                getsBeforeFailure--;
+            }
+            chunkGets++;
+        }
+        return read(file);
+    }
+
+    public void putManifest(String uid, String manifestId, String manifest) throws IOException {
+        write(new File(dir(uid, "manifests"), manifestId), manifest.getBytes("UTF-8"));
+    }
+
+    public String getManifest(String uid, String manifestId) throws IOException {
+        File file = new File(dir(uid, "manifests"), manifestId);
+        return file.exists() ? new String(read(file), "UTF-8") : null;
+    }
+
+    private File dir(String uid, String kind) {
+        File dir = new File(new File(root, uid), kind);
+        if (!dir.exists()) {
+            dir.mkdirs();
+        }
+        return dir;
+    }
+
+    private static void write(File file, byte[] data) throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        OutputStream os = new FileOutputStream(tmp);
+        try {
+            os.write(data);
+        } finally {
+            os.close();
+        }
+        if (!tmp.renameTo(file)) {
+            tmp.delete();
+            throw new IOException("Cannot rename " + tmp);
+        }
+    }
+
+    private static byte[] read(File file) throws IOException {
+        byte[] data = new byte[(int) file.length()];
+        InputStream is = new FileInputStream(file);
+        try {
+            int off = 0;
+            while (off < data.length) {
+                int n = is.read(data, off, data.length - off);
+                if (n < 0) break;
+                off += n;
+            }
+        } finally {
+            is.close();
+        }
+        return data;
+    }
+}
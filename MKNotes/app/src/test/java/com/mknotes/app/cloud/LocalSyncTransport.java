@@ -0,0 +1,436 @@
+package com.mknotes.app.cloud;
+
+import android.util.Log;
+
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * In-process SyncTransport for tests and sync load benchmarks.
+ *
+ * Keeps documents in memory, optionally persisted to a JSON file after every
+ * commit. Update times come from a local clock that never repeats, so
+ * watermark queries behave like the server-timestamp ones on Firestore.
+ *
+ * putRemote() simulates a write by another device (reported to listeners);
+ * upsert()/delete() are this client's writes (not reported, as on Firestore).
+ * Latency and a failure rate can be set to exercise retry and pipelining.
+ * With no latency set, callbacks run on the calling thread.
+ */
+public class LocalSyncTransport implements SyncTransport {
+
+    private static final String TAG = "LocalTransport";
+    private static final int MAX_BATCH_WRITES = 450;
+
+    private final File file;
+    private final Object lock = new Object();
+    /** uid -> (cloudId -> Document) */
+    private final Map users = new HashMap();
+    /** uid -> List of ChangeListener */
+    private final Map listeners = new HashMap();
+    private final Random random = new Random();
+    private long lastUpdatedAt = 0;
+
+    private long latencyMillis = 0;
+    private double failureRate = 0;
+    private ScheduledExecutorService scheduler;
+    /** collection name -> LocalSyncTransport */
+    private final Map collections = new HashMap();
+
+    /**
+     * Memory-only transport.
+     */
+    public LocalSyncTransport() {
+        this(null);
+    }
+
+    /**
+     * @param file JSON file to load from and save to, or null for memory only
+     */
+    public LocalSyncTransport(File file) {
+        this.file = file;
+        if (file != null && file.exists()) {
+            load();
+        }
+    }
+
+    /**
+     * Delay every callback by latencyMillis (delivered on a background thread).
+     */
+    public void setLatencyMillis(long latencyMillis) {
+        synchronized (lock) {
+            this.latencyMillis = latencyMillis;
+            if (latencyMillis > 0 && scheduler == null) {
+                scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "mknotes-local-transport");
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+            }
+        }
+    }
+
+    /**
+     * Fail this fraction (0..1) of queries and commits, without applying them.
+     */
+    public void setFailureRate(double failureRate) {
+        synchronized (lock) {
+            this.failureRate = failureRate;
+        }
+    }
+
+    public int getMaxBatchSize() {
+        return MAX_BATCH_WRITES;
+    }
+
+    /**
+     * Separate store for another collection, saved next to this one's file
+     * (file.collection). Latency and failure rate are those set at creation.
+     */
+    public SyncTransport forCollection(String collection) {
+        synchronized (lock) {
+            LocalSyncTransport transport = (LocalSyncTransport) collections.get(collection);
+            if (transport == null) {
+                transport = new LocalSyncTransport(file != null
+                        ? new File(file.getPath() + "." + collection) : null);
+                transport.setLatencyMillis(latencyMillis);
+                transport.setFailureRate(failureRate);
+                collections.put(collection, transport);
+            }
+            return transport;
+        }
+    }
+
+    // ============ QUERIES ============
+
+    public void querySince(String uid, long watermark, final QueryCallback callback) {
+        if (shouldFail()) {
+            deliver(new Runnable() {
+                public void run() {
+                    callback.onError(new Exception("Simulated query failure"));
+                }
+            });
+            return;
+        }
+        final List result = new ArrayList();
+        synchronized (lock) {
+            Map docs = (Map) users.get(uid);
+            if (docs != null) {
+                Iterator it = docs.values().iterator();
+                while (it.hasNext()) {
+                    Document doc = (Document) it.next();
+                    if (watermark <= 0 || doc.updatedAt > watermark) {
+                        result.add(copy(doc));
+                    }
+                }
+            }
+        }
+        deliver(new Runnable() {
+            public void run() {
+                callback.onResult(result, true);
+            }
+        });
+    }
+
+    /**
+     * Number of documents stored for uid.
+     */
+    public int getDocumentCount(String uid) {
+        synchronized (lock) {
+            Map docs = (Map) users.get(uid);
+            return docs != null ? docs.size() : 0;
+        }
+    }
+
+    // ============ WRITES ============
+
+    public void upsert(String uid, List documents, CommitCallback callback) {
+        List writes = new ArrayList();
+        for (int i = 0; i < documents.size(); i++) {
+            Document doc = (Document) documents.get(i);
+            writes.add(new Document(doc.id, doc.data, 0));
+        }
+        commit(uid, writes, callback);
+    }
+
+    public void delete(String uid, Map deletedAtById, CommitCallback callback) {
+        List writes = new ArrayList();
+        Iterator it = deletedAtById.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry entry = (Map.Entry) it.next();
+            Map<String, Object> data = new HashMap<String, Object>();
+            data.put("isDeleted", Boolean.TRUE);
+            data.put("modifiedAt", entry.getValue());
+            writes.add(new Document((String) entry.getKey(), data, 0));
+        }
+        commit(uid, writes, callback);
+    }
+
+    public void remove(String uid, List ids, final CommitCallback callback) {
+        if (ids.size() > MAX_BATCH_WRITES) {
+            deliver(new Runnable() {
+                public void run() {
+                    callback.onFailed(new IllegalArgumentException("Batch too large"));
+                }
+            });
+            return;
+        }
+        if (shouldFail()) {
+            deliver(new Runnable() {
+                public void run() {
+                    callback.onFailed(new Exception("Simulated commit failure"));
+                }
+            });
+            return;
+        }
+        synchronized (lock) {
+            Map docs = (Map) users.get(uid);
+            for (int i = 0; docs != null && i < ids.size(); i++) {
+                docs.remove(ids.get(i));
+            }
+            save();
+        }
+        deliver(new Runnable() {
+            public void run() {
+                callback.onCommitted();
+            }
+        });
+    }
+
+    /**
+     * Write a document as another device would: merged like upsert(), then
+     * reported to listeners.
+     */
+    public void putRemote(String uid, String id, Map<String, Object> data) {
+        List changes = new ArrayList();
+        List targets;
+        synchronized (lock) {
+            changes.add(apply(uid, new Document(id, data, 0)));
+            save();
+            List registered = (List) listeners.get(uid);
+            targets = registered != null ? new ArrayList(registered) : new ArrayList();
+        }
+        for (int i = 0; i < targets.size(); i++) {
+            final ChangeListener listener = (ChangeListener) targets.get(i);
+            final List delivered = changes;
+            deliver(new Runnable() {
+                public void run() {
+                    listener.onChanges(delivered);
+                }
+            });
+        }
+    }
+
+    private void commit(String uid, List writes, final CommitCallback callback) {
+        if (writes.size() > MAX_BATCH_WRITES) {
+            deliver(new Runnable() {
+                public void run() {
+                    callback.onFailed(new IllegalArgumentException("Batch too large"));
+                }
+            });
+            return;
+        }
+        if (shouldFail()) {
+            deliver(new Runnable() {
+                public void run() {
+                    callback.onFailed(new Exception("Simulated commit failure"));
+                }
+            });
+            return;
+        }
+        synchronized (lock) {
+            for (int i = 0; i < writes.size(); i++) {
+                apply(uid, (Document) writes.get(i));
+            }
+            save();
+        }
+        deliver(new Runnable() {
+            public void run() {
+                callback.onCommitted();
+            }
+        });
+    }
+
+    /**
+     * Merge one write into the store. Caller holds lock.
+     */
+    private Change apply(String uid, Document write) {
+        Map docs = (Map) users.get(uid);
+        if (docs == null) {
+            docs = new HashMap();
+            users.put(uid, docs);
+        }
+        Document old = (Document) docs.get(write.id);
+        Map<String, Object> merged = new HashMap<String, Object>();
+        if (old != null) {
+            merged.putAll(old.data);
+        }
+        merged.putAll(write.data);
+        lastUpdatedAt = Math.max(System.currentTimeMillis(), lastUpdatedAt + 1);
+        Document doc = new Document(write.id, merged, lastUpdatedAt);
+        docs.put(write.id, doc);
+        return new Change(old == null ? CHANGE_ADDED : CHANGE_MODIFIED, copy(doc));
+    }
+
+    // ============ LISTENERS ============
+
+    /**
+     * Only writes made after this call are reported, all of them updated after since.
+     */
+    public Registration listen(final String uid, long since, final ChangeListener listener) {
+        synchronized (lock) {
+            List registered = (List) listeners.get(uid);
+            if (registered == null) {
+                registered = new ArrayList();
+                listeners.put(uid, registered);
+            }
+            registered.add(listener);
+        }
+        return new Registration() {
+            public void remove() {
+                synchronized (lock) {
+                    List registered = (List) listeners.get(uid);
+                    if (registered != null) {
+                        registered.remove(listener);
+                    }
+                }
+            }
+        };
+    }
+
+    // ============ HELPERS ============
+
+    private boolean shouldFail() {
+        synchronized (lock) {
+            return failureRate > 0 && random.nextDouble() < failureRate;
+        }
+    }
+
+    private void deliver(Runnable callback) {
+        ScheduledExecutorService s;
+        long delay;
+        synchronized (lock) {
+            s = scheduler;
+            delay = latencyMillis;
+        }
+        if (s != null && delay > 0) {
+            s.schedule(callback, delay, TimeUnit.MILLISECONDS);
+        } else {
+            callback.run();
+        }
+    }
+
+    private static Document copy(Document doc) {
+        return new Document(doc.id, new HashMap<String, Object>(doc.data), doc.updatedAt);
+    }
+
+    // ============ FILE STORAGE ============
+
+    /**
+     * Write the store as {uid: {cloudId: {"updatedAt": n, "data": {...}}}}.
+     * Caller holds lock.
+     */
+    private void save() {
+        if (file == null) return;
+        OutputStream out = null;
+        try {
+            JSONObject root = new JSONObject();
+            Iterator uidIt = users.entrySet().iterator();
+            while (uidIt.hasNext()) {
+                Map.Entry uidEntry = (Map.Entry) uidIt.next();
+                JSONObject docsJson = new JSONObject();
+                Iterator docIt = ((Map) uidEntry.getValue()).values().iterator();
+                while (docIt.hasNext()) {
+                    Document doc = (Document) docIt.next();
+                    JSONObject docJson = new JSONObject();
+                    docJson.put("updatedAt", doc.updatedAt);
+                    docJson.put("data", new JSONObject(doc.data));
+                    docsJson.put(doc.id, docJson);
+                }
+                root.put((String) uidEntry.getKey(), docsJson);
+            }
+            File tmp = new File(file.getPath() + ".tmp");
+            out = new FileOutputStream(tmp);
+            out.write(root.toString().getBytes("UTF-8"));
+            out.close();
+            out = null;
+            if (!tmp.renameTo(file)) {
+                Log.e(TAG, "Could not replace " + file);
+            }
+        } catch (Exception e) {
+            Log.e(TAG, "Save failed: " + e.getMessage());
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (Exception e) {
+                    // Ignore
+                }
+            }
+        }
+    }
+
+    private void load() {
+        InputStream in = null;
+        try {
+            in = new FileInputStream(file);
+            byte[] bytes = new byte[(int) file.length()];
+            int read = 0;
+            while (read < bytes.length) {
+                int n = in.read(bytes, read, bytes.length - read);
+                if (n < 0) break;
+                read += n;
+            }
+            JSONObject root = new JSONObject(new String(bytes, 0, read, "UTF-8"));
+            Iterator uidIt = root.keys();
+            while (uidIt.hasNext()) {
+                String uid = (String) uidIt.next();
+                JSONObject docsJson = root.getJSONObject(uid);
+                Map docs = new HashMap();
+                Iterator docIt = docsJson.keys();
+                while (docIt.hasNext()) {
+                    String id = (String) docIt.next();
+                    JSONObject docJson = docsJson.getJSONObject(id);
+                    JSONObject dataJson = docJson.getJSONObject("data");
+                    Map<String, Object> data = new HashMap<String, Object>();
+                    Iterator keyIt = dataJson.keys();
+                    while (keyIt.hasNext()) {
+                        String key = (String) keyIt.next();
+                        data.put(key, dataJson.get(key));
+                    }
+                    long updatedAt = docJson.getLong("updatedAt");
+                    lastUpdatedAt = Math.max(lastUpdatedAt, updatedAt);
+                    docs.put(id, new Document(id, data, updatedAt));
+                }
+                users.put(uid, docs);
+            }
+        } catch (Exception e) {
+            Log.e(TAG, "Load failed: " + e.getMessage());
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (Exception e) {
+                    // Ignore
+                }
+            }
+        }
+    }
+}
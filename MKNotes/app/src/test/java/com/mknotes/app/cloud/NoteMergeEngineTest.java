@@ -0,0 +1,481 @@
+package com.mknotes.app.cloud;
+
+import com.mknotes.app.util.CryptoUtils;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Convergence of NoteMergeEngine, VectorClock and FieldHashes, using a
+ * simulation of devices syncing one note through a cloud document. The
+ * simulation follows CloudSyncManager: pull and resolve (resolveCloudVersion),
+ * then upload the changed fields (noteToDiffDocument); deletes are queued
+ * soft-deletes sent before the next pull. Devices decrypt with one shared
+ * data key; tests with plain values exercise the hash comparison only.
+ */
+public class NoteMergeEngineTest {
+
+    private static final String[] ORDERS = {"ABC", "ACB", "BAC", "BCA", "CAB", "CBA"};
+
+    private static final byte[] KEY = CryptoUtils.generateDataKey();
+
+    private static final NoteMergeEngine.Decryptor DECRYPTOR = new NoteMergeEngine.Decryptor() {
+        public String decrypt(String ciphertext) {
+            return CryptoUtils.decryptOrNull(ciphertext, KEY);
+        }
+    };
+
+    // ============ VectorClock / FieldHashes ============
+
+    @Test
+    public void vectorClockComparesAndMerges() {
+        VectorClock base = VectorClock.parse("A:1,B:1");
+        VectorClock a = base.increment("A");
+        VectorClock b = base.increment("B");
+
+        assertEquals("A:2,B:1", a.toString());
+        assertEquals(VectorClock.AFTER, a.compare(base));
+        assertEquals(VectorClock.BEFORE, base.compare(a));
+        assertEquals(VectorClock.CONCURRENT, a.compare(b));
+        assertEquals(VectorClock.EQUAL, a.compare(VectorClock.parse(a.toString())));
+
+        VectorClock merged = a.merge(b);
+        assertEquals("A:2,B:2", merged.toString());
+        assertEquals(VectorClock.AFTER, merged.compare(a));
+        assertEquals(VectorClock.AFTER, merged.compare(b));
+        assertTrue(a.advancedOnlyBy(base, "A"));
+        assertFalse(merged.advancedOnlyBy(base, "A"));
+        assertTrue(VectorClock.parse("").isEmpty());
+    }
+
+    @Test
+    public void fieldHashesSendChangedAndAlwaysSentFields() {
+        Map<String, Object> note = newNote(100);
+        String synced = FieldHashes.of(note);
+        note.put("title", "Shopping");
+        note.put("modifiedAt", Long.valueOf(200));
+
+        Map<String, Object> diff = FieldHashes.changed(note, synced);
+        assertEquals("Shopping", diff.get("title"));
+        assertEquals(Long.valueOf(200), diff.get("modifiedAt"));
+        assertTrue(diff.containsKey("isDeleted"));
+        assertTrue(diff.containsKey("vclock"));
+        assertFalse(diff.containsKey("content"));
+        assertFalse(diff.containsKey("color"));
+
+        // Always-sent fields are not part of the hashes
+        assertEquals(synced, FieldHashes.of(stripped(newNote(300))));
+        assertEquals(note.size(), FieldHashes.changed(note, null).size());
+    }
+
+    // ============ Concurrent edits ============
+
+    @Test
+    public void editsOfDifferentFieldsConvergeInEveryOrder() {
+        Set finalStates = new HashSet();
+        for (int i = 0; i < ORDERS.length; i++) {
+            World world = new World();
+            world.device('A').edit("title", "Shopping", 200);
+            world.device('B').edit("color", Integer.valueOf(3), 210);
+            world.device('C').edit("isFavorite", Boolean.TRUE, 220);
+            world.sync(ORDERS[i]);
+            world.settle();
+
+            Map<String, Object> cloud = world.assertConverged(ORDERS[i]);
+            assertEquals(ORDERS[i], "Shopping", cloud.get("title"));
+            assertEquals(ORDERS[i], Integer.valueOf(3), cloud.get("color"));
+            assertEquals(ORDERS[i], Boolean.TRUE, cloud.get("isFavorite"));
+            assertEquals(ORDERS[i], Long.valueOf(220), cloud.get("modifiedAt"));
+            assertEquals(ORDERS[i], 0, world.conflictCopies().size());
+            finalStates.add(stripped(cloud));
+        }
+        assertEquals(1, finalStates.size());
+    }
+
+    @Test
+    public void editsOfSameContentFieldKeepLaterEditAndCopyTheOther() {
+        Set finalStates = new HashSet();
+        for (int i = 0; i < ORDERS.length; i++) {
+            World world = new World();
+            world.device('A').edit("content", "milk, eggs", 200);
+            world.device('B').edit("content", "milk, bread", 300);
+            world.sync(ORDERS[i]);
+            world.settle();
+
+            Map<String, Object> cloud = world.assertConverged(ORDERS[i]);
+            assertEquals(ORDERS[i], "milk, bread", cloud.get("content"));
+            List copies = world.conflictCopies();
+            assertEquals(ORDERS[i], 1, copies.size());
+            Map copy = (Map) copies.get(0);
+            assertEquals(ORDERS[i], "milk, eggs", copy.get("content"));
+            assertEquals(ORDERS[i], "", copy.get("vclock"));
+            finalStates.add(stripped(cloud));
+        }
+        assertEquals(1, finalStates.size());
+    }
+
+    @Test
+    public void editsOfSameMetadataFieldKeepLaterEditWithoutCopy() {
+        for (int i = 0; i < ORDERS.length; i++) {
+            World world = new World();
+            world.device('A').edit("color", Integer.valueOf(5), 250);
+            world.device('C').edit("color", Integer.valueOf(7), 240);
+            world.sync(ORDERS[i]);
+            world.settle();
+
+            Map<String, Object> cloud = world.assertConverged(ORDERS[i]);
+            assertEquals(ORDERS[i], Integer.valueOf(5), cloud.get("color"));
+            assertEquals(ORDERS[i], 0, world.conflictCopies().size());
+        }
+    }
+
+    // ============ Encrypted fields ============
+
+    @Test
+    public void reEncryptedContentWithDifferentMetadataMergesWithoutCopy() {
+        Set finalStates = new HashSet();
+        for (int i = 0; i < ORDERS.length; i++) {
+            World world = encryptedWorld();
+            // Saved again with a fresh IV: same text, new ciphertext
+            world.device('B').reEncrypt("content");
+            world.device('B').edit("color", Integer.valueOf(3), 200);
+            world.device('C').reEncrypt("content");
+            world.device('C').reEncrypt("title");
+            world.device('C').edit("isFavorite", Boolean.TRUE, 210);
+            world.sync(ORDERS[i]);
+            world.settle();
+
+            Map<String, Object> cloud = world.assertConverged(ORDERS[i]);
+            assertEquals(ORDERS[i], 0, world.conflictCopies().size());
+            assertEquals(ORDERS[i], Integer.valueOf(3), cloud.get("color"));
+            assertEquals(ORDERS[i], Boolean.TRUE, cloud.get("isFavorite"));
+            assertEquals(ORDERS[i], "milk", CryptoUtils.decrypt((String) cloud.get("content"), KEY));
+            finalStates.add(decrypted(stripped(cloud)));
+        }
+        assertEquals(1, finalStates.size());
+    }
+
+    @Test
+    public void withoutBaseHashesSameTextIsNoConflict() {
+        for (int i = 0; i < ORDERS.length; i++) {
+            World world = encryptedWorld();
+            world.forgetBaseHashes();
+            world.device('A').reEncrypt("content");
+            world.device('A').edit("color", Integer.valueOf(3), 200);
+            world.device('B').reEncrypt("content");
+            world.device('B').edit("color", Integer.valueOf(5), 210);
+            world.sync(ORDERS[i]);
+            world.settle();
+
+            Map<String, Object> cloud = world.assertConverged(ORDERS[i]);
+            assertEquals(ORDERS[i], 0, world.conflictCopies().size());
+            assertEquals(ORDERS[i], Integer.valueOf(5), cloud.get("color"));
+            assertEquals(ORDERS[i], "milk", CryptoUtils.decrypt((String) cloud.get("content"), KEY));
+        }
+    }
+
+    @Test
+    public void withoutBaseHashesDifferentTextKeepsCopy() {
+        for (int i = 0; i < ORDERS.length; i++) {
+            World world = encryptedWorld();
+            world.forgetBaseHashes();
+            world.device('A').edit("content", CryptoUtils.encrypt("milk, eggs", KEY), 200);
+            world.device('B').edit("content", CryptoUtils.encrypt("milk, bread", KEY), 300);
+            world.sync(ORDERS[i]);
+            world.settle();
+
+            Map<String, Object> cloud = world.assertConverged(ORDERS[i]);
+            assertEquals(ORDERS[i], "milk, bread", CryptoUtils.decrypt((String) cloud.get("content"), KEY));
+            List copies = world.conflictCopies();
+            assertEquals(ORDERS[i], 1, copies.size());
+            assertEquals(ORDERS[i], "milk, eggs",
+                    CryptoUtils.decrypt((String) ((Map) copies.get(0)).get("content"), KEY));
+        }
+    }
+
+    @Test
+    public void withoutKeyUncomparableFieldTakesCloud() {
+        NoteMergeEngine engine = new NoteMergeEngine("A", null);
+        Map<String, Object> local = newNote(200);
+        local.put("content", CryptoUtils.encrypt("milk", KEY));
+        local.put("vclock", "A:1");
+        Map<String, Object> cloud = newNote(100);
+        cloud.put("content", CryptoUtils.encrypt("milk", KEY));
+        cloud.put("vclock", "B:1");
+
+        NoteMergeEngine.Resolution resolution = engine.resolve(local, "A:1", null, true, cloud);
+        assertEquals(NoteMergeEngine.MERGE, resolution.action);
+        assertEquals(cloud.get("content"), resolution.merged.get("content"));
+        assertNull(resolution.conflictCopy);
+    }
+
+    // ============ Delete vs edit ============
+
+    @Test
+    public void deleteAfterEditWinsInEveryOrder() {
+        for (int i = 0; i < ORDERS.length; i++) {
+            World world = new World();
+            world.device('A').edit("content", "milk, eggs", 200);
+            world.device('B').delete(300);
+            world.sync(ORDERS[i]);
+            world.settle();
+
+            assertEquals(ORDERS[i], Boolean.TRUE, world.cloud.get("isDeleted"));
+            for (int d = 0; d < world.devices.length; d++) {
+                assertNull(ORDERS[i] + " device " + world.devices[d].id, world.devices[d].note);
+            }
+        }
+    }
+
+    @Test
+    public void editAfterDeleteRestoresNoteInEveryOrder() {
+        Set finalStates = new HashSet();
+        for (int i = 0; i < ORDERS.length; i++) {
+            World world = new World();
+            world.device('B').delete(200);
+            world.device('A').edit("content", "milk, eggs", 300);
+            world.sync(ORDERS[i]);
+            world.settle();
+
+            Map<String, Object> cloud = world.assertConverged(ORDERS[i]);
+            assertEquals(ORDERS[i], Boolean.FALSE, cloud.get("isDeleted"));
+            assertEquals(ORDERS[i], "milk, eggs", cloud.get("content"));
+            finalStates.add(stripped(cloud));
+        }
+        assertEquals(1, finalStates.size());
+    }
+
+    @Test
+    public void deleteAtSameTimeAsEditWins() {
+        for (int i = 0; i < ORDERS.length; i++) {
+            World world = new World();
+            world.device('C').edit("title", "Shopping", 300);
+            world.device('A').delete(300);
+            world.sync(ORDERS[i]);
+            world.settle();
+
+            assertEquals(ORDERS[i], Boolean.TRUE, world.cloud.get("isDeleted"));
+            for (int d = 0; d < world.devices.length; d++) {
+                assertNull(ORDERS[i] + " device " + world.devices[d].id, world.devices[d].note);
+            }
+        }
+    }
+
+    // ============ Simulation ============
+
+    /** Three devices holding a note with encrypted title and content. */
+    private static World encryptedWorld() {
+        World world = new World();
+        world.device('A').edit("title", CryptoUtils.encrypt("Groceries", KEY), 150);
+        world.device('A').edit("content", CryptoUtils.encrypt("milk", KEY), 150);
+        world.settle();
+        return world;
+    }
+
+    private static Map<String, Object> decrypted(Map<String, Object> note) {
+        Map<String, Object> fields = new HashMap<String, Object>(note);
+        fields.put("title", CryptoUtils.decrypt((String) note.get("title"), KEY));
+        fields.put("content", CryptoUtils.decrypt((String) note.get("content"), KEY));
+        return fields;
+    }
+
+    private static Map<String, Object> newNote(long modifiedAt) {
+        Map<String, Object> note = new HashMap<String, Object>();
+        note.put("title", "Groceries");
+        note.put("content", "milk");
+        note.put("color", Integer.valueOf(0));
+        note.put("isFavorite", Boolean.FALSE);
+        note.put("modifiedAt", Long.valueOf(modifiedAt));
+        note.put("isDeleted", Boolean.FALSE);
+        note.put("vclock", "");
+        return note;
+    }
+
+    /** Fields without the clock, to compare states reached through different orders. */
+    private static Map<String, Object> stripped(Map<String, Object> note) {
+        Map<String, Object> fields = new HashMap<String, Object>(note);
+        fields.remove("vclock");
+        fields.remove("modifiedAt");
+        fields.remove("isDeleted");
+        return fields;
+    }
+
+    private static String clockOf(Map<String, Object> doc) {
+        Object clock = doc.get("vclock");
+        return clock instanceof String ? (String) clock : "";
+    }
+
+    private static long modifiedOf(Map<String, Object> doc) {
+        return ((Number) doc.get("modifiedAt")).longValue();
+    }
+
+    /** Three devices that all have the note, created on A at time 100. */
+    private static class World {
+        final Device[] devices = {new Device("A"), new Device("B"), new Device("C")};
+        Map<String, Object> cloud;
+
+        World() {
+            device('A').note = newNote(100);
+            device('A').pending = true;
+            settle();
+        }
+
+        Device device(char id) {
+            return devices[id - 'A'];
+        }
+
+        void sync(String order) {
+            for (int i = 0; i < order.length(); i++) {
+                device(order.charAt(i)).sync(this);
+            }
+        }
+
+        /** Sync rounds until every device has seen every upload. */
+        void settle() {
+            for (int round = 0; round < 4; round++) {
+                sync("ABC");
+            }
+        }
+
+        /** @return the cloud document, after checking every device holds it */
+        Map<String, Object> assertConverged(String order) {
+            assertNotNull(order, cloud);
+            for (int i = 0; i < devices.length; i++) {
+                assertFalse(order + " device " + devices[i].id, devices[i].pending);
+                assertEquals(order + " device " + devices[i].id, cloud, devices[i].note);
+            }
+            return cloud;
+        }
+
+        /** As for notes synced before field hashes were stored. */
+        void forgetBaseHashes() {
+            for (int i = 0; i < devices.length; i++) {
+                devices[i].syncedHashes = null;
+            }
+        }
+
+        List conflictCopies() {
+            List copies = new ArrayList();
+            for (int i = 0; i < devices.length; i++) {
+                copies.addAll(devices[i].conflictCopies);
+            }
+            return copies;
+        }
+    }
+
+    private static class Device {
+        final String id;
+        final NoteMergeEngine engine;
+        final List conflictCopies = new ArrayList();
+        /** Local row as a note document; vclock is the clock of its cloud base. */
+        Map<String, Object> note;
+        String syncedHashes;
+        boolean pending;
+        long queuedDelete = -1;
+
+        Device(String id) {
+            this.id = id;
+            this.engine = new NoteMergeEngine(id, DECRYPTOR);
+        }
+
+        void edit(String field, Object value, long time) {
+            note.put(field, value);
+            note.put("modifiedAt", Long.valueOf(time));
+            pending = true;
+        }
+
+        /** Save an encrypted field again unchanged, with a new IV. */
+        void reEncrypt(String field) {
+            note.put(field, CryptoUtils.encrypt(CryptoUtils.decrypt((String) note.get(field), KEY), KEY));
+            pending = true;
+        }
+
+        void delete(long time) {
+            note = null;
+            pending = false;
+            queuedDelete = time;
+        }
+
+        void sync(World world) {
+            if (queuedDelete >= 0) {
+                // Outbox soft-delete: only isDeleted and modifiedAt are written
+                if (world.cloud != null) {
+                    world.cloud.put("isDeleted", Boolean.TRUE);
+                    world.cloud.put("modifiedAt", Long.valueOf(queuedDelete));
+                }
+                queuedDelete = -1;
+            }
+            boolean upload = pending;
+            if (world.cloud != null) {
+                upload = pull(new HashMap<String, Object>(world.cloud));
+            }
+            if (upload && note != null) {
+                note.put("vclock", VectorClock.parse(clockOf(note)).increment(id).toString());
+                Map<String, Object> diff = FieldHashes.changed(note, syncedHashes);
+                if (world.cloud == null) {
+                    world.cloud = new HashMap<String, Object>();
+                }
+                world.cloud.putAll(diff);
+                syncedHashes = FieldHashes.of(note);
+                pending = false;
+            }
+        }
+
+        /** @return true if the local note is to be uploaded */
+        private boolean pull(Map<String, Object> remote) {
+            boolean remoteDeleted = Boolean.TRUE.equals(remote.get("isDeleted"));
+            if (note == null) {
+                if (!remoteDeleted && queuedDelete < 0) {
+                    take(remote);
+                }
+                return false;
+            }
+            if (remoteDeleted) {
+                if (modifiedOf(remote) >= modifiedOf(note)) {
+                    note = null;
+                    pending = false;
+                    return false;
+                }
+                syncedHashes = FieldHashes.of(remote);
+                return true;
+            }
+            NoteMergeEngine.Resolution resolution = engine.resolve(new HashMap<String, Object>(note),
+                    clockOf(note), syncedHashes, pending, remote);
+            if (resolution.action == NoteMergeEngine.TAKE_CLOUD) {
+                take(remote);
+                return false;
+            }
+            if (resolution.action == NoteMergeEngine.MERGE) {
+                note = new HashMap<String, Object>(resolution.merged);
+                syncedHashes = FieldHashes.of(remote);
+                pending = true;
+                if (resolution.conflictCopy != null) {
+                    conflictCopies.add(resolution.conflictCopy);
+                }
+                return true;
+            }
+            note.put("vclock", VectorClock.parse(clockOf(note))
+                    .merge(VectorClock.parse(clockOf(remote))).toString());
+            syncedHashes = FieldHashes.of(remote);
+            return pending;
+        }
+
+        private void take(Map<String, Object> remote) {
+            note = new HashMap<String, Object>(remote);
+            syncedHashes = FieldHashes.of(remote);
+            pending = false;
+        }
+    }
+}
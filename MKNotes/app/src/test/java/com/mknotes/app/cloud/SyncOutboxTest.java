@@ -0,0 +1,211 @@
+package com.mknotes.app.cloud;
+
+import android.app.Application;
+import android.content.Context;
+
+import androidx.test.core.app.ApplicationProvider;
+
+import com.mknotes.app.db.NotesRepository;
+import com.mknotes.app.db.SyncOutboxRepository;
+import com.mknotes.app.model.Note;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * SyncOutbox draining against a fake Backend, with the real outbox and notes
+ * tables (Robolectric). The worker runs by hand and retries are recorded
+ * instead of posted, so every step is deterministic.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 33, application = Application.class)
+public class SyncOutboxTest {
+
+    private static final String UID = "outbox-test-user";
+
+    private NotesRepository notes;
+    private SyncOutboxRepository queue;
+    private FakeBackend backend;
+    private ManualExecutor worker;
+    private RecordingScheduler scheduler;
+    private SyncOutbox outbox;
+
+    @Before
+    public void setUp() {
+        Context context = ApplicationProvider.getApplicationContext();
+        notes = NotesRepository.getInstance(context);
+        queue = SyncOutboxRepository.getInstance(context);
+        queue.clear();
+        backend = new FakeBackend();
+        worker = new ManualExecutor();
+        scheduler = new RecordingScheduler();
+        outbox = new SyncOutbox(backend, queue, notes, scheduler, worker);
+    }
+
+    @Test
+    public void editsWhileOfflineCoalesceIntoOneWrite() {
+        Note note = insertNote("Groceries");
+        Note other = insertNote("Ideas");
+        queue.enqueue(note.getCloudId(), note.getId(), SyncOutboxRepository.OP_UPSERT);
+        queue.enqueue(other.getCloudId(), other.getId(), SyncOutboxRepository.OP_UPSERT);
+        queue.enqueue(note.getCloudId(), note.getId(), SyncOutboxRepository.OP_UPSERT);
+        queue.enqueue(note.getCloudId(), note.getId(), SyncOutboxRepository.OP_UPSERT);
+
+        outbox.drainOnWorker();
+        worker.runAll();
+
+        assertEquals(1, backend.commits.size());
+        List writes = (List) backend.commits.get(0);
+        List cloudIds = new ArrayList();
+        for (int i = 0; i < writes.size(); i++) {
+            cloudIds.add(((SyncOutbox.Write) writes.get(i)).cloudId);
+        }
+        assertEquals(2, cloudIds.size());
+        assertTrue(cloudIds.contains(note.getCloudId()));
+        assertTrue(cloudIds.contains(other.getCloudId()));
+        assertEquals(0, queue.getCount());
+    }
+
+    @Test
+    public void failedBatchWaitsForBackoff() {
+        Note note = insertNote("Groceries");
+        queue.enqueue(note.getCloudId(), note.getId(), SyncOutboxRepository.OP_UPSERT);
+        backend.failing = true;
+
+        long before = System.currentTimeMillis();
+        outbox.drainOnWorker();
+        worker.runAll();
+        long after = System.currentTimeMillis();
+
+        assertEquals(1, backend.commits.size());
+        assertEquals(1, queue.getCount());
+        // First failure: 5 s base delay, +/-20% jitter
+        long next = queue.getNextAttemptAt();
+        assertTrue("retry at " + (next - before), next >= before + 4000 && next <= after + 6000);
+        assertTrue("retry posted in " + scheduler.delayMs,
+                scheduler.task != null && scheduler.delayMs >= 4000 - (after - before)
+                        && scheduler.delayMs <= 6000);
+
+        // Neither a new edit nor another drain sends it inside the window
+        queue.enqueue(note.getCloudId(), note.getId(), SyncOutboxRepository.OP_UPSERT);
+        outbox.drainOnWorker();
+        worker.runAll();
+        scheduler.task.run();
+        worker.runAll();
+        assertEquals(1, backend.commits.size());
+        assertEquals(1, queue.getCount());
+    }
+
+    @Test
+    public void rowRequeuedDuringCommitSurvivesRemoveSent() {
+        final Note note = insertNote("Groceries");
+        queue.enqueue(note.getCloudId(), note.getId(), SyncOutboxRepository.OP_UPSERT);
+        backend.duringCommit = new Runnable() {
+            public void run() {
+                // An edit saved while the batch is in flight; enqueued_at must differ
+                sleep(5);
+                queue.enqueue(note.getCloudId(), note.getId(), SyncOutboxRepository.OP_UPSERT);
+            }
+        };
+
+        outbox.drainOnWorker();
+        assertEquals(1, backend.commits.size());
+        backend.duringCommit = null;
+        worker.runAll();
+
+        // The committed row was removed, the re-queued one was sent again
+        assertEquals(2, backend.commits.size());
+        assertEquals(0, queue.getCount());
+    }
+
+    private Note insertNote(String title) {
+        Note note = new Note();
+        note.setTitle(title);
+        note.setContent(title + " content");
+        note.setCreatedAt(System.currentTimeMillis());
+        note.setModifiedAt(System.currentTimeMillis());
+        note.setId(notes.insertNote(note));
+        return note;
+    }
+
+    private static void sleep(long ms) {
+        try {
+            Thread.sleep(ms);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Records each commit (List of Write) and answers it at once.
+     */
+    private static class FakeBackend implements SyncOutbox.Backend {
+        final List commits = new ArrayList();
+        boolean failing = false;
+        Runnable duringCommit;
+
+        public String getSyncUid() {
+            return UID;
+        }
+
+        public void commit(String uid, List writes, SyncTransport.CommitCallback callback) {
+            commits.add(new ArrayList(writes));
+            if (duringCommit != null) {
+                duringCommit.run();
+            }
+            if (failing) {
+                callback.onFailed(new Exception("Simulated commit failure"));
+            } else {
+                callback.onCommitted();
+            }
+        }
+    }
+
+    /**
+     * Single worker whose queued tasks run when the test says so.
+     */
+    private static class ManualExecutor implements Executor {
+        private final LinkedList tasks = new LinkedList();
+
+        public void execute(Runnable task) {
+            tasks.add(task);
+        }
+
+        void runAll() {
+            while (!tasks.isEmpty()) {
+                ((Runnable) tasks.removeFirst()).run();
+            }
+        }
+    }
+
+    /**
+     * Keeps the last scheduled retry.
+     */
+    private static class RecordingScheduler implements SyncOutbox.Scheduler {
+        Runnable task;
+        long delayMs = -1;
+
+        public void postDelayed(Runnable task, long delayMs) {
+            this.task = task;
+            this.delayMs = delayMs;
+        }
+
+        public void cancel(Runnable task) {
+            if (task == this.task) {
+                this.task = null;
+                this.delayMs = -1;
+            }
+        }
+    }
+}
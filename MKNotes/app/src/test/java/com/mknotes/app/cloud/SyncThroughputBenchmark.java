@@ -0,0 +1,170 @@
+package com.mknotes.app.cloud;
+
+import android.app.Application;
+import android.content.Context;
+
+import androidx.test.core.app.ApplicationProvider;
+
+import com.mknotes.app.db.NotesRepository;
+import com.mknotes.app.model.Note;
+import com.mknotes.app.util.CryptoUtils;
+import com.mknotes.app.util.SessionManager;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowLooper;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Throughput of CloudSyncManager.performSync() against a LocalSyncTransport,
+ * with the real repository and database (Robolectric):
+ *
+ * 1. NOTES local notes are uploaded by a first, full sync.
+ * 2. Another device edits CHANGE_RATIO of them; CONFLICT_RATIO of those are
+ *    edited locally too, so the delta sync merges them and uploads a
+ *    conflict copy for each.
+ *
+ * Runs with the unit tests at a small size. Larger runs:
+ *
+ *   ./gradlew :app:testDebugUnitTest --tests '*SyncThroughputBenchmark' \
+ *       -Pbenchmark.notes=10000 -Pbenchmark.changeRatio=0.2 -Pbenchmark.conflictRatio=0.25 -i
+ *
+ * Desktop numbers; the relative cost of the phases is what matters.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 33, application = Application.class)
+public class SyncThroughputBenchmark {
+
+    private static final int NOTES = Integer.getInteger("benchmark.notes", 300).intValue();
+    private static final double CHANGE_RATIO = doubleProperty("benchmark.changeRatio", 0.2);
+    private static final double CONFLICT_RATIO = doubleProperty("benchmark.conflictRatio", 0.25);
+
+    private static final String UID = "benchmark-user";
+    private static final String REMOTE_DEVICE = "benchmark-remote";
+    private static final long SYNC_TIMEOUT_MS = 10 * 60 * 1000L;
+
+    @Test
+    public void syncThroughput() throws Exception {
+        Context context = ApplicationProvider.getApplicationContext();
+        SessionManager session = SessionManager.getInstance(context);
+        assertTrue(session.setMasterPassword("benchmark"));
+        byte[] key = session.getCachedKey();
+        NotesRepository repo = NotesRepository.getInstance(context);
+        LocalSyncTransport transport = new LocalSyncTransport();
+        CloudSyncManager sync = new CloudSyncManager(context, transport);
+
+        long start = System.nanoTime();
+        for (int i = 0; i < NOTES; i++) {
+            Note note = new Note();
+            note.setTitle("Note " + i);
+            note.setContent("Benchmark note " + i + "\nSome text to make the body a realistic size.");
+            note.setCreatedAt(System.currentTimeMillis());
+            note.setModifiedAt(System.currentTimeMillis());
+            repo.insertNote(note);
+        }
+        report("insert", NOTES, start);
+
+        start = System.nanoTime();
+        assertTrue("Initial sync failed", runSync(sync));
+        report("initial sync", NOTES, start);
+        assertEquals(NOTES, transport.getDocumentCount(UID));
+
+        // Edits by another device, some concurrent with local ones
+        Map cloud = cloudDocuments(transport);
+        List local = repo.getAllNotesRaw();
+        int changed = (int) (NOTES * CHANGE_RATIO);
+        int conflicts = (int) (changed * CONFLICT_RATIO);
+        long remoteModified = System.currentTimeMillis() - 60000;
+        for (int i = 0; i < changed; i++) {
+            Note raw = (Note) local.get(i);
+            Map<String, Object> stored = (Map<String, Object>) cloud.get(raw.getCloudId());
+            Map<String, Object> edit = new HashMap<String, Object>();
+            edit.put("content", CryptoUtils.encrypt("Edited on another device " + i, key));
+            edit.put("modifiedAt", Long.valueOf(remoteModified));
+            edit.put("isDeleted", Boolean.FALSE);
+            edit.put("vclock", VectorClock.parse((String) stored.get("vclock")).increment(REMOTE_DEVICE).toString());
+            transport.putRemote(UID, raw.getCloudId(), edit);
+            if (i < conflicts) {
+                Note note = repo.getNoteById(raw.getId());
+                note.setContent("Edited here " + i);
+                repo.updateNote(note);
+            }
+        }
+
+        start = System.nanoTime();
+        assertTrue("Delta sync failed", runSync(sync));
+        report("delta sync (" + changed + " changed, " + conflicts + " conflicts)", changed, start);
+        assertEquals(NOTES + conflicts, transport.getDocumentCount(UID));
+        assertEquals(0, repo.getPendingNotesRaw().size());
+
+        start = System.nanoTime();
+        assertTrue("Idle sync failed", runSync(sync));
+        report("idle sync", NOTES, start);
+    }
+
+    /**
+     * Run one sync and wait for its result, which is posted to the main looper.
+     */
+    private static boolean runSync(CloudSyncManager sync) throws InterruptedException {
+        final boolean[] result = new boolean[1];
+        final CountDownLatch done = new CountDownLatch(1);
+        sync.syncUser(UID, new CloudSyncManager.SyncCallback() {
+            public void onSyncComplete(boolean success) {
+                result[0] = success;
+                done.countDown();
+            }
+        }, null);
+        long deadline = System.currentTimeMillis() + SYNC_TIMEOUT_MS;
+        while (!done.await(5, TimeUnit.MILLISECONDS)) {
+            ShadowLooper.idleMainLooper();
+            if (System.currentTimeMillis() > deadline) {
+                fail("Sync timed out");
+            }
+        }
+        return result[0];
+    }
+
+    /** cloud id -> document data */
+    private static Map cloudDocuments(LocalSyncTransport transport) {
+        final Map documents = new HashMap();
+        // No latency set: the callback runs before querySince() returns
+        transport.querySince(UID, 0, new SyncTransport.QueryCallback() {
+            public void onResult(List result, boolean fromServer) {
+                for (int i = 0; i < result.size(); i++) {
+                    SyncTransport.Document doc = (SyncTransport.Document) result.get(i);
+                    documents.put(doc.id, doc.data);
+                }
+            }
+
+            public void onError(Exception e) {
+                fail("Query failed: " + e.getMessage());
+            }
+        });
+        return documents;
+    }
+
+    private static void report(String phase, int notes, long startNanos) {
+        long millis = Math.max(1, (System.nanoTime() - startNanos) / 1000000);
+        System.out.println("SyncThroughputBenchmark " + phase + ": " + notes + " notes in "
+                + millis + " ms, " + (notes * 1000L / millis) + " notes/s");
+    }
+
+    private static double doubleProperty(String name, double fallback) {
+        String value = System.getProperty(name);
+        if (value == null || value.length() == 0) {
+            return fallback;
+        }
+        return Double.parseDouble(value);
+    }
+}
@@ -0,0 +1,147 @@
+package com.mknotes.app.db;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * GCounter merge laws, and the PN fold of session counts as
+ * ActivitySyncRepository does it (foldSession() / applySession()).
+ */
+public class GCounterTest {
+
+    @Test
+    public void mergeIsCommutative() {
+        GCounter x = GCounter.parse("a:3,b:1");
+        GCounter y = GCounter.parse("b:5,c:2");
+        assertEquals("a:3,b:5,c:2", merged(x, y).toString());
+        assertEquals(merged(x, y).toString(), merged(y, x).toString());
+    }
+
+    @Test
+    public void mergeIsAssociative() {
+        GCounter x = GCounter.parse("a:3");
+        GCounter y = GCounter.parse("a:1,b:4");
+        GCounter z = GCounter.parse("b:2,c:7");
+        assertEquals(merged(merged(x, y), z).toString(), merged(x, merged(y, z)).toString());
+    }
+
+    @Test
+    public void mergeIsIdempotent() {
+        GCounter x = GCounter.parse("a:3,b:1");
+        GCounter y = GCounter.parse("b:5");
+        GCounter once = merged(x, y);
+        GCounter twice = merged(once, y);
+        assertEquals(once.toString(), twice.toString());
+        assertEquals(once.toString(), merged(once, once).toString());
+        assertEquals(8, twice.sum());
+    }
+
+    @Test
+    public void entriesOnlyGrow() {
+        GCounter counter = new GCounter();
+        counter.raise("a", 5);
+        counter.raise("a", 2);
+        counter.add("a", 0);
+        counter.add("a", -3);
+        assertEquals(5, counter.get("a"));
+        counter.add("a", 2);
+        assertEquals(7, counter.get("a"));
+        assertEquals(0, counter.get("b"));
+    }
+
+    @Test
+    public void parseSortsAndSkipsDamagedEntries() {
+        GCounter counter = GCounter.parse("b:2,a:1,x,c:zz,:4,d:-1");
+        assertEquals("a:1,b:2", counter.toString());
+        assertEquals(counter.toString(), GCounter.parse(counter.toString()).toString());
+        assertEquals("", GCounter.parse(null).toString());
+    }
+
+    @Test
+    public void resetConcurrentWithIncrementKeepsTheIncrement() {
+        // Device A counts 10 and both devices sync
+        Session a = new Session("a");
+        Session b = new Session("b");
+        a.count = 10;
+        a.fold();
+        b.apply(a);
+        assertEquals(10, b.count);
+
+        // Offline: A resets the day, B counts 3 more
+        a.count = 0;
+        b.count += 3;
+        a.fold();
+        b.fold();
+        assertEquals("a:10", a.n.toString());
+        assertEquals("a:10,b:3", b.p.toString());
+
+        // Either delivery order, and repeated delivery, ends at p - n = 3
+        a.apply(b);
+        b.apply(a);
+        a.apply(b);
+        assertEquals(3, a.count);
+        assertEquals(3, b.count);
+        assertEquals(a.p.sum() - a.n.sum(), a.count);
+        assertEquals(b.p.sum() - b.n.sum(), b.count);
+        assertEquals(a.p.toString(), b.p.toString());
+        assertEquals(a.n.toString(), b.n.toString());
+    }
+
+    @Test
+    public void unfoldedLocalCountsStayOnTopOfMergedTotal() {
+        Session a = new Session("a");
+        Session b = new Session("b");
+        a.count = 4;
+        a.fold();
+        b.count = 2;
+        // b has not folded its 2 yet when A's counts arrive
+        b.apply(a);
+        assertEquals(6, b.count);
+        b.fold();
+        a.apply(b);
+        assertEquals(6, a.count);
+    }
+
+    private static GCounter merged(GCounter x, GCounter y) {
+        GCounter result = GCounter.parse(x.toString());
+        result.merge(y);
+        return result;
+    }
+
+    /**
+     * One device's session row: the count shown, the count already folded
+     * into the counters, and the PN counters.
+     */
+    private static class Session {
+        final String replica;
+        long count;
+        long syncedCount;
+        final GCounter p = new GCounter();
+        final GCounter n = new GCounter();
+
+        Session(String replica) {
+            this.replica = replica;
+        }
+
+        /** foldSession(): local changes into this row's own entry. */
+        void fold() {
+            long delta = count - syncedCount;
+            if (delta > 0) {
+                p.add(replica, delta);
+            } else {
+                n.add(replica, -delta);
+            }
+            syncedCount = count;
+        }
+
+        /** applySession(): merge another device's counters. */
+        void apply(Session other) {
+            p.merge(other.p);
+            n.merge(other.n);
+            long total = p.sum() - n.sum();
+            count = total + count - syncedCount;
+            syncedCount = total;
+        }
+    }
+}
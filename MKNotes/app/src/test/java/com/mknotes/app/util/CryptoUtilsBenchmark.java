@@ -0,0 +1,166 @@
+package com.mknotes.app.util;
+
+import java.security.SecureRandom;
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Throughput of CryptoUtils.encrypt/decrypt against the previous
+ * implementation (a Cipher and SecretKeySpec per call, ivHex:ciphertextHex
+ * via Integer.toHexString), for a short and a long field. Each case runs
+ * WARMUP_ROUNDS rounds of ROUND_MS, then the best of MEASURE_ROUNDS rounds is
+ * reported. Also checks that legacy values still decrypt with CryptoUtils.
+ *
+ * Not a unit test; run on a desktop JVM after compiling the unit test classes:
+ *
+ *   ./gradlew :app:compileDebugUnitTestJavaWithJavac
+ *   java -cp app/build/intermediates/javac/debug/classes:app/build/intermediates/javac/debugUnitTest/classes \
+ *        com.mknotes.app.util.CryptoUtilsBenchmark
+ *
+ * Device numbers are lower; the ratio between the two is what matters.
+ */
+public class CryptoUtilsBenchmark {
+
+    private static final int WARMUP_ROUNDS = 3;
+    private static final int MEASURE_ROUNDS = 5;
+    private static final long ROUND_MS = 1000;
+    private static final int[] SIZES = {200, 4096};
+
+    /** Keeps results alive so the JIT cannot drop the work. */
+    private static int sink;
+
+    private interface Op {
+        String run();
+    }
+
+    public static void main(String[] args) throws Exception {
+        final byte[] key = CryptoUtils.generateDataKey();
+        for (int s = 0; s < SIZES.length; s++) {
+            final String plain = text(SIZES[s]);
+            final String legacy = legacyEncrypt(plain, key);
+            final String compact = CryptoUtils.encrypt(plain, key);
+            if (!plain.equals(CryptoUtils.decrypt(legacy, key))
+                    || !plain.equals(CryptoUtils.decrypt(compact, key))) {
+                throw new IllegalStateException("Round trip failed for " + SIZES[s] + " B");
+            }
+            String label = SIZES[s] + " B";
+            report(label + " encrypt", new Op() {
+                public String run() {
+                    return legacyEncrypt(plain, key);
+                }
+            }, new Op() {
+                public String run() {
+                    return CryptoUtils.encrypt(plain, key);
+                }
+            });
+            report(label + " decrypt", new Op() {
+                public String run() {
+                    return legacyDecrypt(legacy, key);
+                }
+            }, new Op() {
+                public String run() {
+                    return CryptoUtils.decrypt(compact, key);
+                }
+            });
+            System.out.println(label + " stored size  legacy " + legacy.length()
+                    + " chars  new " + compact.length() + " chars");
+        }
+        System.out.println("(sink " + sink + ")");
+    }
+
+    private static void report(String label, Op legacy, Op current) {
+        long before = opsPerSecond(legacy);
+        long after = opsPerSecond(current);
+        System.out.println(label + "  legacy " + before + " ops/s  new " + after + " ops/s");
+    }
+
+    private static long opsPerSecond(Op op) {
+        for (int i = 0; i < WARMUP_ROUNDS; i++) {
+            round(op);
+        }
+        long best = 0;
+        for (int i = 0; i < MEASURE_ROUNDS; i++) {
+            best = Math.max(best, round(op));
+        }
+        return best;
+    }
+
+    private static long round(Op op) {
+        long start = System.nanoTime();
+        long end = start + ROUND_MS * 1000000L;
+        long count = 0;
+        long now;
+        do {
+            for (int i = 0; i < 64; i++) {
+                sink += op.run().length();
+            }
+            count += 64;
+            now = System.nanoTime();
+        } while (now < end);
+        return count * 1000000000L / (now - start);
+    }
+
+    private static String text(int length) {
+        SecureRandom random = new SecureRandom();
+        String words = "abcdefghijklmnopqrstuvwxyz     .,\n";
+        StringBuilder sb = new StringBuilder(length);
+        for (int i = 0; i < length; i++) {
+            sb.append(words.charAt(random.nextInt(words.length())));
+        }
+        return sb.toString();
+    }
+
+    // ============ Previous implementation ============
+
+    private static String legacyEncrypt(String plaintext, byte[] keyBytes) {
+        try {
+            byte[] iv = CryptoUtils.generateIV();
+            SecretKeySpec keySpec = new SecretKeySpec(keyBytes, "AES");
+            GCMParameterSpec gcmSpec = new GCMParameterSpec(128, iv);
+            Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+            cipher.init(Cipher.ENCRYPT_MODE, keySpec, gcmSpec);
+            byte[] ciphertext = cipher.doFinal(plaintext.getBytes("UTF-8"));
+            return legacyHex(iv) + ":" + legacyHex(ciphertext);
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String legacyDecrypt(String encryptedData, byte[] keyBytes) {
+        try {
+            int colonIdx = encryptedData.indexOf(':');
+            byte[] iv = legacyUnhex(encryptedData.substring(0, colonIdx));
+            byte[] ciphertext = legacyUnhex(encryptedData.substring(colonIdx + 1));
+            SecretKeySpec keySpec = new SecretKeySpec(keyBytes, "AES");
+            GCMParameterSpec gcmSpec = new GCMParameterSpec(128, iv);
+            Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+            cipher.init(Cipher.DECRYPT_MODE, keySpec, gcmSpec);
+            return new String(cipher.doFinal(ciphertext), "UTF-8");
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String legacyHex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (int i = 0; i < bytes.length; i++) {
+            String hex = Integer.toHexString(0xff & bytes[i]);
+            if (hex.length() == 1) {
+                sb.append('0');
+            }
+            sb.append(hex);
+        }
+        return sb.toString();
+    }
+
+    private static byte[] legacyUnhex(String hex) {
+        int len = hex.length();
+        byte[] data = new byte[len / 2];
+        for (int i = 0; i < len; i += 2) {
+            data[i / 2] = (byte) ((Character.digit(hex.charAt(i), 16) << 4)
+                    + Character.digit(hex.charAt(i + 1), 16));
+        }
+        return data;
+    }
+}
@@ -0,0 +1,190 @@
+package com.mknotes.app.util;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.HashSet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * FTS query building, BM25 ranking and word normalisation of the blind-token
+ * search index.
+ */
+public class SearchIndexUtilsTest {
+
+    /** Tokens are 48-bit HMAC prefixes in hex. */
+    private static final String TOKEN = "[0-9a-f]{12}";
+    private static final String QUERY_PART = "(prefixes:" + TOKEN + "|\"" + TOKEN + "( " + TOKEN + ")*\")";
+
+    private final byte[] key = CryptoUtils.generateDataKey();
+
+    // ============ buildFtsQuery ============
+
+    @Test
+    public void plainWordsBecomePrefixTerms() {
+        assertEquals("prefixes:" + prefixToken("milk") + " prefixes:" + prefixToken("eggs"),
+                buildFtsQuery("Milk eggs"));
+    }
+
+    @Test
+    public void quotedTextBecomesPhraseOfWordTokens() {
+        assertEquals("prefixes:" + prefixToken("buy") + " \"" + wordToken("oat") + " " + wordToken("milk")
+                        + "\" prefixes:" + prefixToken("today"),
+                buildFtsQuery("buy \"oat milk\" today"));
+        // An unterminated quote still quotes the rest of the query
+        assertEquals("prefixes:" + prefixToken("buy") + " \"" + wordToken("oat") + "\"",
+                buildFtsQuery("buy \"oat"));
+        // Empty quotes add nothing
+        assertEquals("prefixes:" + prefixToken("buy"), buildFtsQuery("buy \"\""));
+    }
+
+    @Test
+    public void ftsSyntaxInQueryIsNotPassedThrough() {
+        String[] queries = {
+                "milk OR eggs",
+                "milk NOT eggs",
+                "mi* -eggs",
+                "milk NEAR/2 eggs",
+                "content:milk",
+                "(milk AND eggs)",
+                "\"milk\" OR \"eggs\"",
+                "milk' ; DROP TABLE notes; --",
+                "^milk $eggs",
+        };
+        for (int i = 0; i < queries.length; i++) {
+            String match = buildFtsQuery(queries[i]);
+            assertTrue(queries[i] + " -> " + match, match.matches(QUERY_PART + "( " + QUERY_PART + ")*"));
+        }
+        // Operator words are searched like any other word
+        assertEquals("prefixes:" + prefixToken("milk") + " prefixes:" + prefixToken("or")
+                + " prefixes:" + prefixToken("eggs"), buildFtsQuery("milk OR eggs"));
+    }
+
+    @Test
+    public void longQueryWordsAreCutToIndexedPrefixLength() {
+        // Only prefixes up to 12 characters are indexed
+        assertEquals(12, new HashSet(Arrays.asList(
+                SearchIndexUtils.buildEntry(null, "internationalization", key).prefixOccurrences.split(" ")))
+                .size());
+        String cut = "prefixes:" + prefixToken("internationa");
+        assertEquals(cut, buildFtsQuery("internationalization"));
+        assertEquals(cut, buildFtsQuery("internationally"));
+        assertFalse(cut.equals(buildFtsQuery("internation")));
+        // Quoted words are matched whole, not cut
+        assertEquals("\"" + wordToken("internationalization") + "\"",
+                buildFtsQuery("\"internationalization\""));
+    }
+
+    @Test
+    public void queryWithoutWordsOrKey() {
+        assertEquals("", buildFtsQuery(""));
+        assertEquals("", buildFtsQuery(" ,;- \"\" * "));
+        assertEquals("", SearchIndexUtils.buildFtsQuery(null, "prefixes", key));
+        assertNull(SearchIndexUtils.buildFtsQuery("milk", "prefixes", null));
+    }
+
+    // ============ bm25 ============
+
+    @Test
+    public void moreOccurrencesRankHigher() {
+        double once = bm25(1, 100, 20, 20, 10);
+        double thrice = bm25(3, 100, 20, 20, 10);
+        assertTrue(thrice > once);
+        assertTrue(once > 0);
+    }
+
+    @Test
+    public void shorterRowsRankHigher() {
+        assertTrue(bm25(2, 100, 20, 10, 10) > bm25(2, 100, 20, 80, 10));
+    }
+
+    @Test
+    public void rarerTermsRankHigher() {
+        assertTrue(bm25(1, 100, 20, 20, 2) > bm25(1, 100, 20, 20, 40));
+        // A term in every row still counts, barely
+        double common = bm25(1, 100, 20, 20, 100);
+        assertTrue(common > 0);
+        assertTrue(common < bm25(1, 100, 20, 20, 40));
+    }
+
+    @Test
+    public void columnWeightsApply() {
+        byte[] info = matchinfo(1, 100, 20, 20, 10);
+        double full = SearchIndexUtils.bm25(info, new double[]{1.0});
+        assertEquals(0.0, SearchIndexUtils.bm25(info, new double[]{0.0}), 0.0);
+        assertEquals(2 * full, SearchIndexUtils.bm25(info, new double[]{2.0}), 1e-9);
+    }
+
+    @Test
+    public void malformedMatchinfoScoresZero() {
+        byte[] info = matchinfo(1, 100, 20, 20, 10);
+        assertEquals(0.0, SearchIndexUtils.bm25(null, new double[]{1.0}), 0.0);
+        assertEquals(0.0, SearchIndexUtils.bm25(new byte[8], new double[]{1.0}), 0.0);
+        assertEquals(0.0, SearchIndexUtils.bm25(Arrays.copyOf(info, info.length - 4), new double[]{1.0}), 0.0);
+    }
+
+    // ============ NORMALISATION ============
+
+    @Test
+    public void wordsAreLowercasedAndNfkcNormalised() {
+        assertEquals(Arrays.asList(new String[]{"caf\u00e9", "caf\u00e9", "abc", "fi"}),
+                SearchIndexUtils.tokenizeWords("CAF\u00c9 cafe\u0301 \uff21\uff22\uff23 \ufb01"));
+        // Composed and decomposed input find the same notes
+        assertEquals(buildFtsQuery("Caf\u00e9"), buildFtsQuery("cafe\u0301"));
+    }
+
+    @Test
+    public void punctuationSplitsWordsButCombiningMarksDoNot() {
+        assertEquals(Arrays.asList(new String[]{"well", "known", "a1", "b2"}),
+                SearchIndexUtils.tokenizeWords("well-known, a1/b2!"));
+        // Devanagari vowel signs and virama stay inside the word
+        String namaste = "\u0928\u092e\u0938\u094d\u0924\u0947";
+        String duniya = "\u0926\u0941\u0928\u093f\u092f\u093e";
+        assertEquals(Arrays.asList(new String[]{namaste, duniya}),
+                SearchIndexUtils.tokenizeWords(namaste + ", " + duniya));
+    }
+
+    @Test
+    public void htmlIsStrippedBeforeIndexing() {
+        assertEquals(SearchIndexUtils.buildEntry("Title", "bold & <i>more</i>", key).words,
+                SearchIndexUtils.buildEntry("Title", "<b>bold</b> &amp; <i>more</i>", key).words);
+    }
+
+    private String buildFtsQuery(String query) {
+        return SearchIndexUtils.buildFtsQuery(query, "prefixes", key);
+    }
+
+    /** Index token of word itself as a prefix (word at most 12 characters). */
+    private String prefixToken(String word) {
+        String[] occurrences = SearchIndexUtils.buildEntry(null, word, key).prefixOccurrences.split(" ");
+        return occurrences[occurrences.length - 1];
+    }
+
+    /** Whole-word token of word. */
+    private String wordToken(String word) {
+        return SearchIndexUtils.buildEntry(null, word, key).words;
+    }
+
+    private static double bm25(int hits, int rows, int avgLength, int rowLength, int rowsWithHit) {
+        return SearchIndexUtils.bm25(matchinfo(hits, rows, avgLength, rowLength, rowsWithHit),
+                new double[]{1.0});
+    }
+
+    /**
+     * matchinfo(..., 'pcnalx') of one phrase in a one-column table.
+     */
+    private static byte[] matchinfo(int hits, int rows, int avgLength, int rowLength, int rowsWithHit) {
+        int[] values = {1, 1, rows, avgLength, rowLength, hits, hits * rowsWithHit, rowsWithHit};
+        ByteBuffer buf = ByteBuffer.allocate(values.length * 4).order(ByteOrder.nativeOrder());
+        for (int i = 0; i < values.length; i++) {
+            buf.putInt(values[i]);
+        }
+        return buf.array();
+    }
+}